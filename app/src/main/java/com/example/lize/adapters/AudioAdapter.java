@@ -18,18 +18,19 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.recyclerview.widget.RecyclerView;
 import com.example.lize.R;
 import com.example.lize.data.Audio;
+import com.example.lize.models.PlaybackController;
 import com.example.lize.utils.Preferences;
-import com.gauravk.audiovisualizer.visualizer.BarVisualizer;
+import com.example.lize.utils.WaveformView;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder> {
     private final ArrayList<Audio> localDataSet;
     private final Context parentContext;
     private final playerInterface listener;
-    private int sessionID = -1;
-    private final HashMap<Integer,Integer> stateReproduction;
+    private PlaybackController.PlaybackState playbackState;
+    private static final Object PLAYBACK_PAYLOAD = new Object();
 
     /**
      * Constructor de la clase
@@ -38,7 +39,6 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
         parentContext = current;
         localDataSet = new ArrayList<>();
         this.listener = listener;
-        stateReproduction = new HashMap<>();
     }
 
     /**
@@ -50,14 +50,14 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
         private final LinearLayout audioLayout;
         private final ImageButton playButton;
         private final ImageButton removeButton;
-        private final BarVisualizer barVisualizer;
+        private final WaveformView waveformView;
 
         public ViewHolder(View view ) {
             super(view);
             textView = view.findViewById(R.id.audioTime);
             audioLayout = view.findViewById(R.id.audio_layout);
             playButton = view.findViewById(R.id.playButton);
-            barVisualizer = view.findViewById(R.id.blast);
+            waveformView = view.findViewById(R.id.waveform);
             removeButton = view.findViewById(R.id.removeAudioButton);
         }
 
@@ -80,10 +80,10 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
         public ImageButton getPlayButton() { return playButton; }
 
         /**
-         * Metodo para conseguir la barra de prograso del audio
-         * @return Barra de progreso del audio
+         * Metodo para conseguir la forma de onda del audio, que muestra también su progreso
+         * @return Forma de onda del audio
          */
-        public BarVisualizer getProgressBar() { return barVisualizer; }
+        public WaveformView getWaveformView() { return waveformView; }
 
         /**
          * Metodo para conseguir el botón de cerrar del audio
@@ -116,23 +116,11 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
      * Interfaz del audio player
      */
     public interface playerInterface {
-        void startPlaying(int position);
-        void pausePlaying(int position);
-        void removeAudio(int position);
+        void startPlaying(Audio audio);
+        void pausePlaying(Audio audio);
+        void removeAudio(Audio audio);
     }
 
-    /**
-     * Metodo para reproducir el audio
-     * @param position Posicion del audio en la que lo empezamos a reproducir
-     */
-    private void playAudio(int position) { listener.startPlaying(position); }
-
-    /**
-     * Metodo para pausar el audio
-     * @param position Posicion del audio en la que lo hemos pausado
-     */
-    private void pausePlaying(int position){ listener.pausePlaying(position); }
-
     /**
      * Metodo para cambiar el contenido de una View, invocado por el manager del Layout
      * @param viewHolder ViewHolder a cambiar
@@ -143,42 +131,25 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
     @RequiresApi(api = Build.VERSION_CODES.N)
     @Override
     public void onBindViewHolder(ViewHolder viewHolder, final int position) {
-        BarVisualizer barVisualizer = viewHolder.getProgressBar();
-        ImageButton playButton = viewHolder.getPlayButton();
-        playButton.setBackgroundResource(R.drawable.ic_baseline_play_circle_filled_24);
-
-        playButton.setOnClickListener(view -> {
-            if (stateReproduction.get(position) == 0) {
-                //current value in the text view
-                stateReproduction.put(position,1);
-                playAudio(position);
-                playButton.setBackgroundResource(R.drawable.ic_baseline_pause_circle_filled_24);
-                if (sessionID != -1) {
-                    try {
-                        barVisualizer.show();
-                        barVisualizer.setActivated(true);
-
-                        //barVisualizer.setAudioSessionId(sessionID);
-
-
-                        } catch (IllegalStateException e){
-                        e.printStackTrace();
-                    }
-                }
-            } else if (stateReproduction.get(position) == 1) {
-                stateReproduction.put(position,0);
-                barVisualizer.hide();
-                barVisualizer.setActivated(false);
-                playButton.setBackgroundResource(R.drawable.ic_baseline_play_circle_filled_24);
-                pausePlaying(position);
-            }
+        Audio audio = localDataSet.get(position);
+        viewHolder.getWaveformView().setPeaks(audio.getWaveform());
+        bindPlayback(viewHolder, audio);
+
+        // La posición se lee al pulsar: la del bind deja de valer si se elimina otro audio
+        viewHolder.getPlayButton().setOnClickListener(view -> {
+            int current = viewHolder.getAdapterPosition();
+            if (current == RecyclerView.NO_POSITION) return;
+            Audio clicked = localDataSet.get(current);
+            if (isPlaying(clicked)) listener.pausePlaying(clicked);
+            else listener.startPlaying(clicked);
         });
 
         ImageButton removeButton = viewHolder.getRemoveButton();
         removeButton.setOnClickListener(v -> new AlertDialog.Builder(parentContext)
                     .setTitle("¿Estás seguro que deseas eliminarlo?")
                     .setPositiveButton("Borrar", (dialog, which) -> {
-                        removeAudio(position);
+                        int current = viewHolder.getAdapterPosition();
+                        if (current != RecyclerView.NO_POSITION) removeAudio(current);
                         Log.d("MainActivity", "Sending atomic bombs to Jupiter");
                     })
                     .setNegativeButton("Cancelar", (dialog, which) -> {
@@ -192,6 +163,29 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
         ));
     }
 
+    /**
+     * Metodo para actualizar solo el estado de reproducción de una View, sin volver a montarla entera
+     * @param viewHolder ViewHolder a cambiar
+     * @param position Posicion del audio
+     * @param payloads Cambios parciales a aplicar
+     */
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int position, @NonNull List<Object> payloads) {
+        if (payloads.contains(PLAYBACK_PAYLOAD)) bindPlayback(viewHolder, localDataSet.get(position));
+        else onBindViewHolder(viewHolder, position);
+    }
+
+    /**
+     * Metodo para pintar el botón y el progreso de reproducción de un audio
+     * @param viewHolder ViewHolder del audio
+     * @param audio Audio a pintar
+     */
+    private void bindPlayback(ViewHolder viewHolder, Audio audio) {
+        viewHolder.getPlayButton().setBackgroundResource(isPlaying(audio)
+                ? R.drawable.ic_baseline_pause_circle_filled_24 : R.drawable.ic_baseline_play_circle_filled_24);
+        viewHolder.getWaveformView().setProgress(playbackState == null ? 0f : playbackState.getProgress(audio.getID()));
+    }
+
     /**
      * Metod para conseguir el tamaño del Dataset
      * @return Tamaño del dataset
@@ -205,7 +199,16 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
      */
     public void addAudio(Audio audio){
         localDataSet.add(audio);
-        stateReproduction.put(localDataSet.indexOf(audio),0);
+        notifyItemInserted(localDataSet.size() - 1);
+    }
+
+    /**
+     * Metodo para reemplazar los audios del Dataset
+     * @param audios Audios a mostrar
+     */
+    public void setAudios(ArrayList<Audio> audios) {
+        localDataSet.clear();
+        localDataSet.addAll(audios);
         notifyDataSetChanged();
     }
 
@@ -214,10 +217,9 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
      * @param position Posición del audio
      */
     public void removeAudio(int position) {
-        stateReproduction.remove(position);
-        listener.removeAudio(position);
+        listener.removeAudio(localDataSet.get(position));
         localDataSet.remove(position);
-        notifyDataSetChanged();
+        notifyItemRemoved(position);
     }
 
     /**
@@ -227,14 +229,40 @@ public class AudioAdapter extends RecyclerView.Adapter<AudioAdapter.ViewHolder>
     public Audio getAudio(int position) { return localDataSet.get(position); }
 
     /**
-     * Metodo para establecer el sessionID
-     * @param sessionID ID de la session
+     * Metodo para establecer el estado de reproducción. Solo se repintan el audio que sonaba y el
+     * que suena ahora, buscados por su ID.
+     * @param state Estado publicado por el PlaybackController
+     */
+    public void setPlaybackState(PlaybackController.PlaybackState state) {
+        PlaybackController.PlaybackState previous = playbackState;
+        playbackState = state;
+        if (previous != null && previous.getAudioID() != null
+                && (state == null || !previous.getAudioID().equals(state.getAudioID()))) notifyAudioChanged(previous.getAudioID(), PLAYBACK_PAYLOAD);
+        if (state != null && state.getAudioID() != null) notifyAudioChanged(state.getAudioID(), PLAYBACK_PAYLOAD);
+    }
+
+    /**
+     * Metodo para repintar un audio, p.ej. cuando ya se conoce su forma de onda
+     * @param audioID ID del audio
+     */
+    public void notifyAudioChanged(String audioID) { notifyAudioChanged(audioID, null); }
+
+    /**
+     * Metodo para repintar un audio buscándolo por su ID
+     * @param audioID ID del audio
+     * @param payload Cambio parcial, null para repintarlo entero
      */
-    public void setSessionID(int sessionID) { this.sessionID = sessionID; }
+    private void notifyAudioChanged(String audioID, Object payload) {
+        for (int i = 0; i < localDataSet.size(); i++)
+            if (audioID.equals(localDataSet.get(i).getID())) notifyItemChanged(i, payload);
+    }
 
     /**
-     * Metodo para establecer el estado de reproduccion
-     * @param position posicion de la reproduccion del audio
+     * Metodo para saber si un audio está sonando
+     * @param audio Audio a consultar
+     * @return True si se está reproduciendo o preparando, False si no
      */
-    public void setStateReproduction(int position) { stateReproduction.put(position,0); }
+    private boolean isPlaying(Audio audio) {
+        return playbackState != null && playbackState.isPlaying(audio.getID());
+    }
 }
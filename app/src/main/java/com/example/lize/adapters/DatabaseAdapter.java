@@ -7,25 +7,33 @@ import androidx.annotation.NonNull;
 import com.example.lize.data.Ambito;
 import com.example.lize.data.Note;
 import com.example.lize.data.User;
+import com.example.lize.models.DocumentManager;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.WriteBatch;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 
 
 public class DatabaseAdapter {
     public static final String TAG = "DatabaseAdapter";
+    public static final int NOTES_PAGE_SIZE = 50;    // Notas por página al cargar un Ámbito
+    private static final int DELETE_BATCH_SIZE = 400;   // Notas por WriteBatch al eliminar (máximo 500 escrituras)
 
     public final FirebaseFirestore db = FirebaseFirestore.getInstance();
     private final FirebaseStorage storage = FirebaseStorage.getInstance();
@@ -36,6 +44,26 @@ public class DatabaseAdapter {
     private static DatabaseAdapter databaseAdapter;  // Singleton implementation
     private LoaderInterface loader;
     private SaverInterface saver;
+    private final Map<String, NotePager> notePagers = new HashMap<>();   // Carga paginada de Notas por Ámbito o Carpeta
+    private final Set<String> loadedNotes = new HashSet<>();            // IDs cargados, por si una Nota cambia de página o de Ámbito
+    private final Set<String> deletedFolders = new HashSet<>();         // Carpetas eliminadas cuyas Notas aún pueden llegar
+
+    /**
+     * Estado de la carga paginada de las Notas de un Ámbito o de una de sus Carpetas: la siguiente
+     * página empieza después del último documento cargado.
+     */
+    private static class NotePager {
+        final Query query;                              // Consulta ordenada, sin paginar
+        boolean login;                                  // Su siguiente página forma parte del login
+        DocumentSnapshot last;                          // Último documento cargado
+        boolean loading;                                // Hay una página pedida
+        boolean complete;                               // Ya no quedan Notas por cargar
+
+        NotePager(Query query, boolean login) {
+            this.query = query;
+            this.login = login;
+        }
+    }
 
     /**
      * Metodo para establecer el Loader Listener
@@ -82,6 +110,8 @@ public class DatabaseAdapter {
         void getUserResult(User user);
         void getAmbitoCollectionResult(String userID, ArrayList<Ambito> userAmbitos);
         void getNoteCollectionResult(String ambitoID, ArrayList<Note> ambitoNotes);
+        void getNotePageResult(String ambitoID, ArrayList<Note> ambitoNotes);
+        void deleteNotesResult(ArrayList<String> noteIDs);
         void setToast(String s);
     }
 
@@ -154,6 +184,9 @@ public class DatabaseAdapter {
         ambitosRef.get().addOnCompleteListener(task -> {
             if (task.isSuccessful()) {
                 ArrayList<Ambito> userAmbitos = new ArrayList<>();
+                notePagers.clear();             // Las Notas de los Ámbitos se vuelven a cargar desde el principio
+                loadedNotes.clear();
+                deletedFolders.clear();
 
                 // Por cada resultado, creamos el ambito a partir de los datos de DB y lo añadimos
                 for (QueryDocumentSnapshot document : task.getResult()) {
@@ -162,6 +195,8 @@ public class DatabaseAdapter {
                     ambito.setUserID(document.getString("userID"));
                     ambito.setSelfID(document.getString("selfID"));
                     ambito.setPosition(document.getLong("position").intValue());
+                    List<String> folders = (List<String>) document.get("folders");
+                    if (folders != null) for (String folderName : folders) ambito.addFolder(folderName);
                     userAmbitos.add(ambito);
                 }
                 Collections.sort(userAmbitos, (Ambito a1, Ambito a2) -> a1.getPosition() - a2.getPosition());
@@ -173,37 +208,150 @@ public class DatabaseAdapter {
 
 
     /**
-     * Metodo para conseguir una nota de la Collección Notes
+     * Metodo para conseguir la primera página de Notas de un Ámbito, de la editada más recientemente
+     * a la más antigua. El resto se pide con {@link #getMoreNotes(String, String)}.
+     * @param ambitoID ID del Ámbito
      */
     public void getNotes(String ambitoID){
-        Query notasRef = db.collection("notes").whereEqualTo("ambitoID", ambitoID);
+        Query notasRef = db.collection("notes").whereEqualTo("ambitoID", ambitoID)
+                .orderBy("lastUpdate", Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+        NotePager pager = new NotePager(notasRef, true);
+        notePagers.put(ambitoID, pager);
         Log.d(TAG, "Getting ambito " + ambitoID + "'s notes collection...");
+        loadNotePage(ambitoID, ambitoID, pager);
+    }
+
+    /**
+     * Metodo para conseguir las Notas de una Carpeta sin cargar antes todo su Ámbito: se piden a DB
+     * solo las de la Carpeta, por páginas. Si ya se había empezado a cargar, no hace nada.
+     * @param ambitoID ID del Ámbito
+     * @param folderTAG Nombre de la Carpeta
+     */
+    public void getFolderNotes(String ambitoID, String folderTAG) {
+        String key = getPagerKey(ambitoID, folderTAG);
+        NotePager ambitoPager = notePagers.get(ambitoID);
+        if (notePagers.containsKey(key) || (ambitoPager != null && ambitoPager.complete)) return;
+        Query notasRef = db.collection("notes").whereEqualTo("ambitoID", ambitoID)
+                .whereEqualTo("folderTAG", folderTAG).orderBy("lastUpdate", Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+        NotePager pager = new NotePager(notasRef, false);
+        notePagers.put(key, pager);
+        Log.d(TAG, "Getting folder " + folderTAG + " of ambito " + ambitoID + "...");
+        loadNotePage(ambitoID, key, pager);
+    }
+
+    /**
+     * Metodo para conseguir la siguiente página de Notas de un Ámbito o de una de sus Carpetas
+     * @param ambitoID ID del Ámbito
+     * @param folderTAG Nombre de la Carpeta, null para todo el Ámbito
+     * @return True si se ha pedido una página, False si ya se estaba cargando o no quedan Notas
+     */
+    public boolean getMoreNotes(String ambitoID, String folderTAG) {
+        String key = getPagerKey(ambitoID, folderTAG);
+        if (!notePagers.containsKey(key)) key = ambitoID;      // La Carpeta llega con las páginas del Ámbito
+        NotePager pager = notePagers.get(key);
+        if (pager == null || pager.loading || pager.complete) return false;
+        Log.d(TAG, "Getting next page of " + key + "'s notes...");
+        loadNotePage(ambitoID, key, pager);
+        return true;
+    }
+
+    /**
+     * Metodo para saber si quedan Notas de un Ámbito por cargar
+     * @param ambitoID ID del Ámbito
+     * @return True si quedan Notas, False si ya se han cargado todas
+     */
+    public boolean hasMoreNotes(String ambitoID) {
+        NotePager pager = notePagers.get(ambitoID);
+        return pager != null && !pager.complete;
+    }
+
+    /**
+     * Metodo para conseguir la clave de la carga paginada de un Ámbito o de una de sus Carpetas
+     * @param ambitoID ID del Ámbito
+     * @param folderTAG Nombre de la Carpeta, null para todo el Ámbito
+     * @return Clave en notePagers
+     */
+    private static String getPagerKey(String ambitoID, String folderTAG) {
+        return folderTAG == null ? ambitoID : ambitoID + "/" + folderTAG;
+    }
+
+    /**
+     * Metodo para cargar una página de Notas de un Ámbito o Carpeta. Las Notas se piden ordenadas por
+     * fecha de edición y, con la misma fecha, por ID, y cada página empieza después del último
+     * documento de la anterior (requiere los índices compuestos de firestore.indexes.json). Si falla
+     * la página del login se entrega vacía, para que el login no se quede esperando, y se vuelve a
+     * pedir con la siguiente.
+     * @param ambitoID ID del Ámbito
+     * @param key Clave de la carga en notePagers
+     * @param pager Estado de la carga
+     */
+    private void loadNotePage(String ambitoID, String key, NotePager pager) {
+        Query notasRef = pager.query.limit(NOTES_PAGE_SIZE);
+        if (pager.last != null) notasRef = notasRef.startAfter(pager.last);
+        pager.loading = true;
 
         notasRef.get().addOnCompleteListener(task -> {
+            pager.loading = false;
+            if (notePagers.get(key) != pager) return;       // Se ha vuelto a cargar o se ha eliminado
             if (task.isSuccessful()) {
                 ArrayList<Note> ambitoNotes = new ArrayList<>();
+                List<DocumentSnapshot> documents = task.getResult().getDocuments();
 
-                for (QueryDocumentSnapshot document : task.getResult()) {
+                for (DocumentSnapshot document : documents) {
                     Log.d(TAG, document.getId() + " => " + document.getData());
-                    Note note = new Note(document.getString("title"), document.getString("text_plain"), document.getString("text_html"));
-                    note.setAmbitoID(document.getString("ambitoID"));
-                    note.setFolderTAG(document.getString("folderTAG"));
-                    note.setSelfID(document.getString("selfID"));
-                    note.setLastUpdate(document.getDate("lastUpdate"));
-                    note.setDocumentsID(document.getString("documentsID"));
-                    note.setImagesID(document.getString("imagesID"));
-                    note.setHaveImages(document.getBoolean("images"));
-                    note.setHaveDocuments(document.getBoolean("documents"));
-                    note.setHaveAudios(document.getBoolean("audios"));
-                    note.setAudiosID(document.getString("audiosID"));
-                    ambitoNotes.add(note);
+                    if (deletedFolders.contains(getPagerKey(ambitoID, document.getString("folderTAG")))) continue;
+                    if (!loadedNotes.add(document.getId())) continue;     // Ya cargada en otra página
+                    ambitoNotes.add(toNote(document));
                 }
-                if (loader != null) loader.getNoteCollectionResult(ambitoID, ambitoNotes);
+                if (!documents.isEmpty()) pager.last = documents.get(documents.size() - 1);
+                pager.complete = documents.size() < NOTES_PAGE_SIZE;
+
+                boolean loginPage = pager.login;
+                pager.login = false;
+                if (!loginPage && ambitoNotes.isEmpty()) {
+                    if (!pager.complete) loadNotePage(ambitoID, key, pager);   // Todas estaban cargadas: pedimos la siguiente
+                    return;
+                }
+                if (loader == null) return;
+                if (loginPage) loader.getNoteCollectionResult(ambitoID, ambitoNotes);
+                else loader.getNotePageResult(ambitoID, ambitoNotes);
 
-            } else Log.d(TAG, "Error getting documents: ", task.getException());
+            } else {
+                Log.d(TAG, "Error getting documents: ", task.getException());
+                if (loader == null || !pager.login) return;
+                pager.login = false;
+                loader.getNoteCollectionResult(ambitoID, new ArrayList<>());
+                loader.setToast("Couldn't load every note, retrying later.");
+            }
         });
     }
 
+    /**
+     * Metodo para construir una Nota a partir de su documento
+     * @param document Documento de la Nota en la colección "notes"
+     * @return Nota
+     */
+    private Note toNote(DocumentSnapshot document) {
+        Note note = new Note(document.getString("title"), document.getString("text_plain"), document.getString("text_html"));
+        note.setAmbitoID(document.getString("ambitoID"));
+        note.setFolderTAG(document.getString("folderTAG"));
+        note.setSelfID(document.getString("selfID"));
+        note.setLastUpdate(document.getDate("lastUpdate"));
+        // Las Notas anteriores a la fecha de creación se ordenan por su última edición
+        Date creationDate = document.getDate("creationDate");
+        note.setCreationDate(creationDate != null ? creationDate : note.getLastUpdate());
+        note.setAttachmentsID(document.getString("attachmentsID"));
+        note.setDocumentsID(document.getString("documentsID"));
+        note.setImagesID(document.getString("imagesID"));
+        note.setHaveImages(document.getBoolean("images"));
+        note.setHaveDocuments(document.getBoolean("documents"));
+        note.setHaveAudios(document.getBoolean("audios"));
+        note.setAudiosID(document.getString("audiosID"));
+        return note;
+    }
+
 
     /**
      * Guardamos un nuevo User en FireBase.
@@ -256,6 +404,7 @@ public class DatabaseAdapter {
         ambitoData.put("selfID", ambito.getSelfID());
         ambitoData.put("userID", ambito.getUserID());
         ambitoData.put("position", ambito.getPosition());
+        ambitoData.put("folders", ambito.getFolderNames());     // Las Carpetas se muestran antes de cargar sus Notas
 
 
         ambitoRef.set(ambitoData).addOnCompleteListener(new OnCompleteListener(){
@@ -295,12 +444,15 @@ public class DatabaseAdapter {
         notesData.put("ambitoID", note.getAmbitoID());
         notesData.put("folderTAG", note.getFolderTAG());
         notesData.put("lastUpdate", note.getLastUpdate());
-        notesData.put("documentsID",note.getDocumentsID());
-        notesData.put("imagesID",note.getImagesID());
+        notesData.put("creationDate", note.getCreationDate());
+        notesData.put("attachmentsID",note.getAttachmentsID());
         notesData.put("documents",note.getHaveDocuments());
         notesData.put("images",note.getHaveImages());
-        notesData.put("audiosID",note.getAudiosID());
         notesData.put("audios",note.getHaveAudios());
+        // IDs anteriores al manifiesto único: solo mientras la Nota no se ha migrado
+        if (note.getDocumentsID() != null) notesData.put("documentsID",note.getDocumentsID());
+        if (note.getImagesID() != null) notesData.put("imagesID",note.getImagesID());
+        if (note.getAudiosID() != null) notesData.put("audiosID",note.getAudiosID());
 
         noteRef.set(notesData).addOnCompleteListener(new OnCompleteListener(){
             @Override
@@ -403,26 +555,74 @@ public class DatabaseAdapter {
     }
 
     /**
-     * Eliminamos la subcolección de notas cuyo valor del campo "folderTAG" sea el pasado por parámetro.
-     * Obtenemos cada documento de la subcolección y lo eliminamos.
-     * @param folderTAG valor del campo "folderTAG" de la subcolección de notas de la colección "notes".
+     * Eliminamos las notas de una Carpeta de un Ámbito: las de la colección "notes" con ese "ambitoID"
+     * y "folderTAG". Se consultan y eliminan por lotes con un WriteBatch, sin tener que cargar antes
+     * todas las Notas del Ámbito; sus adjuntos se eliminan también.
+     * @param ambitoID ID del Ámbito de la Carpeta
+     * @param folderTAG valor del campo "folderTAG" de las notas de la Carpeta
      */
-    public void deleteFolder(String folderTAG) {
-        Query notasRef = db.collection("notes").whereEqualTo("folderTAG", folderTAG);
+    public void deleteFolder(String ambitoID, String folderTAG) {
+        String key = getPagerKey(ambitoID, folderTAG);
+        notePagers.remove(key);                 // Descartamos las páginas de la Carpeta aún pendientes
+        deletedFolders.add(key);
+        deleteFolderBatch(ambitoID, folderTAG);
+    }
+
+    /**
+     * Metodo para eliminar un lote de notas de una Carpeta. Si el lote está lleno, quedan más y se
+     * pide el siguiente.
+     * @param ambitoID ID del Ámbito de la Carpeta
+     * @param folderTAG Nombre de la Carpeta
+     */
+    private void deleteFolderBatch(String ambitoID, String folderTAG) {
+        Query notasRef = db.collection("notes").whereEqualTo("ambitoID", ambitoID)
+                .whereEqualTo("folderTAG", folderTAG).limit(DELETE_BATCH_SIZE);
         notasRef.get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                try {
-                    for (QueryDocumentSnapshot document : task.getResult()) {
-                        deleteNote(document.getId());
-                    }
+            if (!task.isSuccessful()) {
+                Log.d(TAG, "Error al eliminar la coleccion de notas: ", task.getException());
+                return;
+            }
+            List<DocumentSnapshot> documents = task.getResult().getDocuments();
+            if (documents.isEmpty()) {
+                deletedFolders.remove(getPagerKey(ambitoID, folderTAG));
+                Log.d(TAG, "Colección de Notas de " + folderTAG + " eliminado correctamente");
+                return;
+            }
+            WriteBatch batch = db.batch();
+            ArrayList<String> noteIDs = new ArrayList<>();
+            for (DocumentSnapshot document : documents) {
+                batch.delete(document.getReference());
+                noteIDs.add(document.getId());
+            }
+            batch.commit().addOnCompleteListener(commit -> {
+                if (!commit.isSuccessful()) {
+                    Log.w(TAG, "Error al eliminar las notas de " + folderTAG, commit.getException());
+                    return;
+                }
+                // Los adjuntos solo se borran si se han borrado las Notas, que si no los seguirían apuntando
+                for (DocumentSnapshot document : documents) deleteNoteAttachments(document);
+                if (loader != null) loader.deleteNotesResult(noteIDs);   // Incluye las Notas de páginas aún sin cargar
+                if (documents.size() == DELETE_BATCH_SIZE) deleteFolderBatch(ambitoID, folderTAG);
+                else {
+                    deletedFolders.remove(getPagerKey(ambitoID, folderTAG));
                     Log.d(TAG, "Colección de Notas de " + folderTAG + " eliminado correctamente");
-                } catch (NullPointerException exception) {
-                    Log.w(TAG, "Failed to get Collection of notes of  " + folderTAG + ": null pointer exception.");
                 }
-            } else Log.d(TAG, "Error al eliminar la coleccion de notas: ", task.getException());
+            });
         });
     }
 
+    /**
+     * Metodo para eliminar los adjuntos de una Nota borrada, tanto del manifiesto como de las
+     * colecciones antiguas
+     * @param document Documento de la Nota
+     */
+    private void deleteNoteAttachments(DocumentSnapshot document) {
+        if (document.getString("attachmentsID") != null) DocumentManager.getInstance().deleteAttachments(document.getString("attachmentsID"));
+        if (document.getString("imagesID") != null) deleteImages(document.getString("imagesID"));
+        if (document.getString("documentsID") != null) deleteDocuments(document.getString("documentsID"));
+        if (document.getString("audiosID") != null) deleteAudios(document.getString("audiosID"));
+    }
+
     /**
      * Eliminamos un Ámbito de Firebase. También eliminamos la subcolección de Notas cuyo valor del
      * campo "ambitoID" sea el pasado por parámetro. Obtenemos cada documento de la subcolección y lo eliminamos.
@@ -433,11 +633,13 @@ public class DatabaseAdapter {
         notasRef.get().addOnCompleteListener(task -> {
             if (task.isSuccessful()) {
                 try {
+                    ArrayList<String> noteIDs = new ArrayList<>();
                     for (QueryDocumentSnapshot document : task.getResult()) {
                         deleteNote(document.getId());
-                        if ((boolean) document.get("images")) deleteImages((String) document.get("imagesID"));
-                        if ((boolean) document.get("documents")) deleteDocuments((String) document.get("documentsID"));
+                        noteIDs.add(document.getId());
+                        deleteNoteAttachments(document);
                     }
+                    if (loader != null) loader.deleteNotesResult(noteIDs);
                     Log.d(TAG, "Colección de Notas de " + ambitoID + " eliminado correctamente");
                 } catch (NullPointerException exception) {
                     Log.w(TAG, "Failed to get Collection of notes of  " + ambitoID + ": null pointer exception.");
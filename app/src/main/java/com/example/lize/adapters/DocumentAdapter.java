@@ -128,6 +128,16 @@ public class DocumentAdapter extends RecyclerView.Adapter<DocumentAdapter.ViewHo
         notifyDataSetChanged();
     }
 
+    /**
+     * Metodo para reemplazar los documentos del Dataset
+     * @param documents Documentos a mostrar
+     */
+    public void setDocuments(ArrayList<Document> documents) {
+        localDataSet.clear();
+        localDataSet.addAll(documents);
+        notifyDataSetChanged();
+    }
+
     /**
      * Metodo para eliminar un documento del Dataset
      * @param position Posición del documento
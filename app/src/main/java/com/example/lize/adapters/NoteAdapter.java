@@ -2,7 +2,11 @@ package com.example.lize.adapters;
 
 import android.content.Context;
 import android.os.Build;
+import android.graphics.Typeface;
 import android.text.Html;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -21,21 +25,38 @@ import com.bumptech.glide.Glide;
 import com.example.lize.R;
 import com.example.lize.data.Note;
 import com.example.lize.models.DocumentManager;
+import com.example.lize.models.NoteIndex;
 import com.google.android.material.card.MaterialCardView;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Adaptador del RecyclerView de Notas, en la actividad principal. Enlaza los datos del dataSet
  * de Notas, con el correspondiente CardNote (ViewHolder). */
 public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.CardNote> implements Filterable {
 
+    private static final int PREFETCH_WINDOW = 4;       // Notas por delante cuyos adjuntos se precargan
+    private static final int MAX_GLOBAL_RESULTS = 100;  // Resultados de la búsqueda global
+
     private final Context mContext;
     private final ArrayList<Note> mNotesData;
-    private final ArrayList<Note> mNotesSearch;
+    private volatile SearchSource mSearchSource;               // Notas donde se busca, se sustituye al añadir
+    private final NoteIndex mNoteIndex;
+    private boolean mGlobalSearch;                             // Buscar en todos los ámbitos y no solo en el listado
+    private Map<String, String> mAmbitoNames = new HashMap<>();  // ID de Ámbito -> nombre, para la ubicación
+    private Map<String, NoteIndex.Hit> mHits = new HashMap<>();  // Resultados mostrados de la búsqueda global
+    private volatile String mLatestQuery = "";                  // Última consulta pedida: las anteriores se descartan
+    // Última búsqueda resuelta, para refinarla si la siguiente consulta la amplía (solo en el hilo del Filter)
+    private String mLastQuery;
+    private Set<String> mLastMatches;
+    private long mLastVersion;
     private NoteAdapter.CardNoteListener customListener;
     private boolean cardNoteType;
 
@@ -61,14 +82,52 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.CardNote> impl
      * Constructor que pasa el listado de notas i el contexto.
      * @param context contexto de la app
      * @param notesData ArrayList conteniendo la información de las notas.
+     * @param noteIndex Índice de búsqueda de las notas del usuario
      */
-    public NoteAdapter(Context context, ArrayList<Note> notesData, boolean cardNoteType) {
+    public NoteAdapter(Context context, ArrayList<Note> notesData, boolean cardNoteType, NoteIndex noteIndex) {
         this.mNotesData = notesData;
-        this.mNotesSearch = (ArrayList<Note>) this.mNotesData.clone();
+        this.mSearchSource = new SearchSource(new ArrayList<>(notesData), new HashMap<String, Integer>());
+        for (int i = 0; i < notesData.size(); i++) mSearchSource.positions.put(notesData.get(i).getSelfID(), i);
+        this.mNoteIndex = noteIndex;
         this.mContext = context;
         this.cardNoteType = cardNoteType;
     }
 
+    /**
+     * Metodo para añadir Notas al final del listado, p.ej. la siguiente página cargada de DB o del
+     * listado de recientes. Las que ya están se ignoran. Si hay una búsqueda en curso, las nuevas
+     * Notas entran en la siguiente. Las Notas donde se busca se copian en vez de modificarse, porque
+     * el Filter las lee desde su hilo.
+     * @param notes Notas a añadir
+     */
+    public void appendNotes(List<Note> notes) {
+        SearchSource source = mSearchSource;
+        ArrayList<Note> searchNotes = new ArrayList<>(source.notes);
+        Map<String, Integer> positions = new HashMap<>(source.positions);
+        ArrayList<Note> added = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            if (positions.containsKey(note.getSelfID())) continue;
+            positions.put(note.getSelfID(), searchNotes.size());
+            searchNotes.add(note);
+            added.add(note);
+        }
+        if (added.isEmpty()) return;
+        mSearchSource = new SearchSource(searchNotes, positions);
+        if (!mLatestQuery.trim().isEmpty()) return;     // Se muestra un resultado de búsqueda
+        int start = mNotesData.size();
+        mNotesData.addAll(added);
+        notifyItemRangeInserted(start, added.size());
+    }
+
+    /**
+     * Metodo para conseguir la última Nota del listado, sin tener en cuenta la búsqueda en curso
+     * @return Última Nota, null si el listado está vacío
+     */
+    public Note getLastNote() {
+        ArrayList<Note> notes = mSearchSource.notes;
+        return notes.isEmpty() ? null : notes.get(notes.size() - 1);
+    }
+
     /**
      * Modificamos el cardNoteType, y actualizamos el RecicleView llamando a {@link #notifyDataSetChanged()}
      * @param newCardNoteType Nuevo tipo de CardNote
@@ -80,6 +139,18 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.CardNote> impl
         }
     }
 
+    /**
+     * Metodo para activar o desactivar la búsqueda global. En modo global la búsqueda recorre las
+     * notas de todos los ámbitos y carpetas, ordenadas por relevancia, con las palabras encontradas
+     * resaltadas y la ubicación de cada nota. Se aplica en la siguiente llamada al Filter.
+     * @param globalSearch True para buscar en todos los ámbitos, False para buscar en el listado
+     * @param ambitoNames Nombres de los ámbitos del usuario, por ID
+     */
+    public void setGlobalSearch(boolean globalSearch, Map<String, String> ambitoNames) {
+        mGlobalSearch = globalSearch;
+        mAmbitoNames = ambitoNames;
+    }
+
     /**
      * Generador de ViewHolders de notas.
      * @param parent ViewGroup correspondiente al RecycleView - contenedor de notas.
@@ -101,6 +172,23 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.CardNote> impl
     @Override
     public void onBindViewHolder(@NonNull CardNote holder, int position) {
         holder.bindTo(mNotesData.get(position), cardNoteType);  // Enlazamos la nota de la posición con el ViewHolder
+        prefetchAttachments(position + 1);
+    }
+
+    /**
+     * Metodo para precargar las imágenes de las siguientes notas del listado, de modo que ya estén
+     * en local cuando aparezcan en pantalla. En el Grid Layout no se muestran imágenes, así que no
+     * se precarga nada.
+     * @param from Primera posición a precargar
+     */
+    private void prefetchAttachments(int from) {
+        if (cardNoteType) return;
+        int to = Math.min(from + PREFETCH_WINDOW, mNotesData.size());
+        for (int i = from; i < to; i++) {
+            Note note = mNotesData.get(i);
+            if (note.getHaveImages() && note.getAttachmentsID() != null)
+                DocumentManager.getInstance().loadImages(note.getAttachmentsID());
+        }
     }
 
     /**
@@ -118,37 +206,133 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.CardNote> impl
     @Override
     public Filter getFilter() { return filter; }
 
+    /**
+     * Metodo para buscar notas. Solo se publica el resultado de la última consulta: las que aún se
+     * estén resolviendo se descartan.
+     * @param query Consulta tal como la escribe el usuario
+     */
+    public void search(String query) {
+        mLatestQuery = query;
+        filter.filter(query);
+    }
+
+    /**
+     * Metodo para conseguir los IDs de las notas que coinciden con una consulta. Si amplía la
+     * consulta anterior y el índice no ha cambiado, se refina el resultado anterior en vez de
+     * volver a buscar en el índice. Se llama en el hilo del Filter.
+     * @param query Consulta tal como la escribe el usuario
+     * @return IDs de las notas que coinciden, de todos los ámbitos
+     */
+    private Set<String> findMatches(String query) {
+        long version = mNoteIndex.getVersion();
+        Set<String> matches;
+        if (mLastMatches != null && version == mLastVersion && NoteIndex.isRefinement(mLastQuery, query))
+            matches = mNoteIndex.refine(query, mLastMatches);
+        else matches = mNoteIndex.search(query);
+        mLastQuery = query;
+        mLastMatches = matches;
+        mLastVersion = version;
+        return matches;
+    }
+
     Filter filter = new Filter() {
         //Runs on background thread
         @Override
         protected FilterResults performFiltering(CharSequence constraint) {
+            String query = constraint.toString();
+            if (!query.equals(mLatestQuery)) return null;   // Ya se ha pedido otra consulta
+            SearchSource source = mSearchSource;
             ArrayList<Note> filteredList = new ArrayList<>();
-
-            if (constraint.toString().isEmpty()) {
-                filteredList.addAll(mNotesSearch);
+            Map<String, NoteIndex.Hit> hits = new HashMap<>();
+
+            if (query.trim().isEmpty()) {
+                filteredList.addAll(source.notes);
+            } else if (mGlobalSearch) {
+                // Resultados de todos los ámbitos, ya ordenados por relevancia. rank() ya exige todas
+                // las palabras, así que no hace falta buscar antes las Notas que coinciden
+                List<NoteIndex.Hit> ranked = mNoteIndex.rank(query, MAX_GLOBAL_RESULTS);
+                for (NoteIndex.Hit hit : ranked) {
+                    filteredList.add(hit.getNote());
+                    hits.put(hit.getNote().getSelfID(), hit);
+                }
             } else {
-                for (Note note: mNotesSearch) {
-                    if (note.getTitle().toLowerCase().contains(constraint.toString().toLowerCase()) |
-                    note.getText_plain().contains(constraint.toString().toLowerCase())) {
-                        filteredList.add(note);
-                    }
+                // El índice tiene las notas de todos los ámbitos: nos quedamos con las de este listado,
+                // en su orden, sin recorrer las que no coinciden
+                Set<String> matches = findMatches(query);
+                ArrayList<Integer> positions = new ArrayList<>();
+                for (String noteID : matches) {
+                    Integer position = source.positions.get(noteID);
+                    if (position != null) positions.add(position);
                 }
+                Collections.sort(positions);
+                for (int position : positions) filteredList.add(source.notes.get(position));
             }
 
             FilterResults filterResults = new FilterResults();
-            filterResults.values = filteredList;
+            filterResults.values = new SearchResults(filteredList, hits);
             return filterResults;
         }
 
         //Runs on a UI thread
         @Override
         protected void publishResults(CharSequence constraint, FilterResults results) {
+            if (results == null || results.values == null || !constraint.toString().equals(mLatestQuery)) return;
+            SearchResults searchResults = (SearchResults) results.values;
             mNotesData.clear();
-            mNotesData.addAll((Collection<? extends Note>) results.values);
+            mNotesData.addAll(searchResults.notes);
+            mHits = searchResults.hits;
             notifyDataSetChanged();
         }
     };
 
+    /**
+     * Notas donde se busca y la posición de cada una. No se modifica una vez publicada: el Filter
+     * la lee desde su hilo mientras el hilo principal añade Notas
+     */
+    private static class SearchSource {
+        final ArrayList<Note> notes;
+        final Map<String, Integer> positions;      // ID de Nota -> posición en notes
+
+        SearchSource(ArrayList<Note> notes, Map<String, Integer> positions) {
+            this.notes = notes;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * Resultado del Filter: las notas a mostrar y, en la búsqueda global, sus resultados
+     */
+    private static class SearchResults {
+        final ArrayList<Note> notes;
+        final Map<String, NoteIndex.Hit> hits;
+
+        SearchResults(ArrayList<Note> notes, Map<String, NoteIndex.Hit> hits) {
+            this.notes = notes;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * Metodo para resaltar en negrita las palabras de un texto que han coincidido con la búsqueda
+     * @param text Texto a resaltar (puede tener ya estilos, p.ej. el HTML de la nota)
+     * @param terms Palabras del índice que han coincidido
+     * @return Texto con las palabras resaltadas
+     */
+    private static CharSequence highlight(CharSequence text, Set<String> terms) {
+        SpannableStringBuilder builder = new SpannableStringBuilder(text);
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && NoteIndex.isWordChar(text.charAt(i));
+            if (letter && start < 0) start = i;
+            else if (!letter && start >= 0) {
+                if (terms.contains(NoteIndex.normalize(text.subSequence(start, i).toString())))
+                    builder.setSpan(new StyleSpan(Typeface.BOLD), start, i, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                start = -1;
+            }
+        }
+        return builder;
+    }
+
     /**
      * ViewHolder class que se corresponde con los Cards de las notas
      */
@@ -203,20 +387,38 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.CardNote> impl
          * @param currentNote nota actual
          */
         public void bindTo(Note currentNote, boolean cardNoteType) {
-            mTitleNote.setText(currentNote.getTitle());
-
+            NoteIndex.Hit hit = mHits.get(currentNote.getSelfID());
+            CharSequence body;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                mTextNote.setText(Html.fromHtml(currentNote.getText_html(), Html.FROM_HTML_MODE_COMPACT));
+                body = Html.fromHtml(currentNote.getText_html(), Html.FROM_HTML_MODE_COMPACT);
             } else {
-                mTextNote.setText(Html.fromHtml(currentNote.getText_html()));
+                body = Html.fromHtml(currentNote.getText_html());
+            }
+
+            if (hit != null) {
+                mTitleNote.setText(highlight(currentNote.getTitle(), hit.getTerms()));
+                mTextNote.setText(highlight(body, hit.getTerms()));
+            } else {
+                mTitleNote.setText(currentNote.getTitle());
+                mTextNote.setText(body);
             }
 
             DateFormat dateFormat = new SimpleDateFormat("dd MMMM yyyy");
 
             String metadata = "";
+            // En la búsqueda global la nota puede estar en otro ámbito: mostramos dónde está
+            if (hit != null && mAmbitoNames.containsKey(currentNote.getAmbitoID())) {
+                metadata += mAmbitoNames.get(currentNote.getAmbitoID());
+                if (currentNote.getFolderTAG() != null) metadata += " / ";
+            }
             if (currentNote.getFolderTAG() != null) metadata += currentNote.getFolderTAG();
             if (0 < metadata.length() && currentNote.getLastUpdate() != null) metadata += " - " + dateFormat.format(currentNote.getLastUpdate());
             else if(currentNote.getLastUpdate() != null) metadata += dateFormat.format(currentNote.getLastUpdate());
+            // Si la nota ha coincidido por el texto de un documento adjunto, indicamos cuál
+            if (hit != null && hit.getAttachment() != null) {
+                String attachment = mContext.getString(R.string.found_in_attachment, DocumentManager.getDocumentName(hit.getAttachment()));
+                metadata += 0 < metadata.length() ? " - " + attachment : attachment;
+            }
 
             mMetadataText.setText(metadata);
             mNoteID = currentNote.getSelfID();
@@ -239,13 +441,17 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.CardNote> impl
                     params.height = mContext.getResources().getDimensionPixelSize(R.dimen.cardnote_text_group_height);
                     mTextGroup.setLayoutParams(params);
 
-                    /*Bitmap bitmap = BitmapFactory.decodeFile(DocumentManager.getInstance()
-                            .selectImageFromArray(currentNote.getImagesID(), 0));*/
-                    //mMediaNote.setImageBitmap(bitmap);
-
-                    Glide.with(mContext).load(DocumentManager.getInstance().selectImageFromArray(
-                            currentNote.getImagesID(), 0)).into(mMediaNote);
+                    // Descargamos las imágenes cuando la nota se muestra; el holder puede haberse
+                    // reciclado para otra nota cuando terminen de cargarse.
+                    String attachmentsID = currentNote.getAttachmentsID();
+                    String noteID = currentNote.getSelfID();
+                    mMediaNote.setImageDrawable(null);
                     mMediaNote.setVisibility(View.VISIBLE);
+                    DocumentManager.getInstance().loadImages(attachmentsID).addOnSuccessListener(images -> {
+                        if (noteID == null || !noteID.equals(mNoteID)) return;
+                        if (images.isEmpty()) return;
+                        Glide.with(mContext).load(images.get(0).getPath()).into(mMediaNote);
+                    });
 
                 } else {
                     params.width = mContext.getResources().getDimensionPixelSize(R.dimen.cardnote_text_width_high_no_image);
@@ -13,7 +13,7 @@ public class Ambito {
     private String selfID;
     private String userID;
     private int position;
-    private final ArrayList<Note> notes;
+    private final SortedNotes notes;
     private final Map<String, Folder> folders;
 
     /**
@@ -24,7 +24,7 @@ public class Ambito {
     public Ambito(String name, int color) {
         this.name = name;
         this.color = color;
-        this.notes = new ArrayList<>();
+        this.notes = new SortedNotes();
         this.folders = new HashMap<>();
     }
 
@@ -74,7 +74,7 @@ public class Ambito {
      */
     public void setSelfID(String selfID) {
         this.selfID = selfID;
-        for (Note note : this.notes) note.setAmbitoID(selfID);
+        for (Note note : this.notes.getNotes(SortedNotes.Order.UPDATED)) note.setAmbitoID(selfID);
     }
 
     /**
@@ -107,6 +107,12 @@ public class Ambito {
      */
     public ArrayList<Folder> getFolders() { return new ArrayList<>(folders.values()); }
 
+    /**
+     * Metodo para conseguir los nombres de las carpetas del Ambito
+     * @return Nombres de las Carpetas
+     */
+    public ArrayList<String> getFolderNames() { return new ArrayList<>(folders.keySet()); }
+
     /**
      * Metodo para conseguir una de las Carpetas del Ambito
      * @param folderName Nombre de la Carpeta
@@ -123,10 +129,24 @@ public class Ambito {
     }
 
     /**
-     * Metodo para conseguir las Notas de un Ambito
-     * @return Notas de un Ámbito
+     * Metodo para conseguir las Notas de un Ambito, de la editada más recientemente a la más antigua
+     * @return Copia de las Notas de un Ámbito
+     */
+    public ArrayList<Note> getNotes() { return this.notes.getNotes(SortedNotes.Order.UPDATED); }
+
+    /**
+     * Metodo para conseguir las Notas de un Ambito en un orden
+     * @param order Orden de las Notas
+     * @return Copia de las Notas de un Ámbito, ya ordenadas
+     */
+    public ArrayList<Note> getNotes(SortedNotes.Order order) { return this.notes.getNotes(order); }
+
+    /**
+     * Metodo para recorrer las Notas de un Ambito en un orden, sin copiarlas
+     * @param order Orden de las Notas
+     * @return Cursor situado en la primera Nota
      */
-    public ArrayList<Note> getNotes() { return this.notes; }
+    public SortedNotes.Cursor getCursor(SortedNotes.Order order) { return this.notes.cursor(order); }
 
     /**
      * Metodo para conseguir el numero de Notas que tiene un Ambito
@@ -149,6 +169,16 @@ public class Ambito {
         }
     }
 
+    /**
+     * Metodo para recolocar una Nota editada del Ambito (y de su Carpeta) en los listados ordenados
+     * @param note Nota editada
+     */
+    public void updateNote(Note note) {
+        this.notes.update(note);
+        String folderName = note.getFolderTAG();
+        if (folderName != null && folders.containsKey(folderName)) folders.get(folderName).updateNote(note);
+    }
+
     /**
      * Metodo para eliminar una Nota de un Ambito
      * @param note Nota a eliminar
@@ -156,7 +186,7 @@ public class Ambito {
     public void removeNote(Note note) {
         this.notes.remove(note);
         String folderName = note.getFolderTAG();
-        if (folderName != null && folders.containsKey(folderName)) folders.get(folderName).getNotes().remove(note);
+        if (folderName != null && folders.containsKey(folderName)) folders.get(folderName).removeNote(note);
         }
 
     /**
@@ -1,11 +1,19 @@
 package com.example.lize.data;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class Audio {
 
     private String ID;
     private final String address;
-    private final long duration;
+    private long duration;
+    private String codec;
+    private long bitRate;
+    private byte[] waveform;
+    private List<String> segments = new ArrayList<>();
 
     /**
      * Constructor de la clase
@@ -35,6 +43,12 @@ public class Audio {
         return duration;
     }
 
+    /**
+     * Metodo para establecer la duracion de un Audio, p.ej. al medirlo
+     * @param duration Duracion del Audio en milisegundos
+     */
+    public void setDuration(long duration) { this.duration = duration; }
+
     /**
      * Metodo para conseguir el ID de un Audio
      * @return ID del Audio
@@ -49,4 +63,69 @@ public class Audio {
      */
     public void setID(String ID) { this.ID = ID; }
 
+    /**
+     * Metodo para conseguir el códec de un Audio
+     * @return Códec del Audio (p.ej. "amr_nb"), null si no se conoce
+     */
+    public String getCodec() { return codec; }
+
+    /**
+     * Metodo para establecer el códec de un Audio
+     * @param codec Códec del Audio
+     */
+    public void setCodec(String codec) { this.codec = codec; }
+
+    /**
+     * Metodo para conseguir la tasa de bits de un Audio
+     * @return Tasa de bits en bits por segundo, 0 si no se conoce
+     */
+    public long getBitRate() { return bitRate; }
+
+    /**
+     * Metodo para establecer la tasa de bits de un Audio
+     * @param bitRate Tasa de bits en bits por segundo
+     */
+    public void setBitRate(long bitRate) { this.bitRate = bitRate; }
+
+    /**
+     * Metodo para conseguir el resumen de la forma de onda de un Audio
+     * @return Picos de 0 a 255, null si no se conoce
+     */
+    public byte[] getWaveform() { return waveform; }
+
+    /**
+     * Metodo para establecer el resumen de la forma de onda de un Audio
+     * @param waveform Picos de 0 a 255
+     */
+    public void setWaveform(byte[] waveform) { this.waveform = waveform; }
+
+    /**
+     * Metodo para conseguir los ficheros que forman un Audio, en orden de reproducción
+     * @return PATHs de los segmentos del Audio, o solo su PATH si no se grabó por segmentos
+     */
+    public List<String> getFiles() {
+        return segments.isEmpty() ? Collections.singletonList(address) : segments;
+    }
+
+    /**
+     * Metodo para establecer los segmentos de un Audio grabado por partes
+     * @param segments PATHs locales de los segmentos, en orden
+     */
+    public void setSegments(List<String> segments) { this.segments = new ArrayList<>(segments); }
+
+    /**
+     * Metodo para saber si un Audio se grabó por segmentos
+     * @return True si tiene varios ficheros, False si no
+     */
+    public boolean isSegmented() { return !segments.isEmpty(); }
+
+    /**
+     * Metodo para saber si todos los ficheros de un Audio están en local
+     * @return True si se puede reproducir sin descargar nada, False si no
+     */
+    public boolean isAvailable() {
+        for (String file : getFiles()) if (!new File(file).exists()) return false;
+        return true;
+    }
+
 }
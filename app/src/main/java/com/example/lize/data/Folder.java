@@ -4,7 +4,7 @@ import java.util.ArrayList;
 
 public class Folder {
     private String name;
-    private final ArrayList<Note> notes;
+    private final SortedNotes notes;
 
     /**
      * Constructor de la clase
@@ -12,7 +12,7 @@ public class Folder {
      */
     public Folder(String name) {
         this.name = name;
-        this.notes = new ArrayList<>();
+        this.notes = new SortedNotes();
     }
 
     /**
@@ -30,13 +30,20 @@ public class Folder {
     public void setName(String name) { this.name = name; }
 
     /**
-     * Metodo para ocnseguir las Notas de una Carpeta
-     * @return Notas de la Carpeta
+     * Metodo para ocnseguir las Notas de una Carpeta, de la editada más recientemente a la más antigua
+     * @return Copia de las Notas de la Carpeta
      */
     public ArrayList<Note> getNotes() {
-        return notes;
+        return notes.getNotes(SortedNotes.Order.UPDATED);
     }
 
+    /**
+     * Metodo para conseguir las Notas de una Carpeta en un orden
+     * @param order Orden de las Notas
+     * @return Copia de las Notas de la Carpeta, ya ordenadas
+     */
+    public ArrayList<Note> getNotes(SortedNotes.Order order) { return notes.getNotes(order); }
+
     /**
      * Metodo para añadir una Nota a una Carpeta
      * @param note Nota a añadir
@@ -45,5 +52,17 @@ public class Folder {
         note.setFolderTAG(this.name);
         notes.add(note);
     }
+
+    /**
+     * Metodo para recolocar una Nota editada de la Carpeta
+     * @param note Nota editada
+     */
+    public void updateNote(Note note) { notes.update(note); }
+
+    /**
+     * Metodo para quitar una Nota de la Carpeta
+     * @param note Nota a quitar
+     */
+    public void removeNote(Note note) { notes.remove(note); }
 }
 
@@ -7,11 +7,13 @@ public class Note {
     private String text_plain;
     private String text_html;
     private Date lastUpdate;
+    private Date creationDate;
 
     private String folderTAG;
 
     private String selfID;
     private String ambitoID;
+    private String attachmentsID;
     private String documentsID;
     private String imagesID;
     private String audiosID;
@@ -32,6 +34,7 @@ public class Note {
         this.text_plain = text_plain;
         this.text_html = text_html;
         this.lastUpdate = new Date();
+        this.creationDate = lastUpdate;
         this.haveAudios = false;
         this.haveDocuments = false;
         this.haveImages = false;
@@ -86,6 +89,18 @@ public class Note {
      */
     public void setLastUpdate(Date lastUpdate) { this.lastUpdate = lastUpdate; }
 
+    /**
+     * Metodo para conseguir la fecha de creación de la Nota
+     * @return Fecha de creación de la Nota
+     */
+    public Date getCreationDate() { return creationDate; }
+
+    /**
+     * Metodo para establecer la fecha de creación de la Nota
+     * @param creationDate Fecha de creación de la Nota
+     */
+    public void setCreationDate(Date creationDate) { this.creationDate = creationDate; }
+
     /**
      * Metodo para conseguir el TAG de la Carpeta de la Nota
      * @return TAG de la Carpeta de la Nota
@@ -123,7 +138,19 @@ public class Note {
     public void setAmbitoID(String ambitoID) { this.ambitoID = ambitoID; }
 
     /**
-     * Metodo para conseguir el ID de los Documentos de la Nota
+     * Metodo para conseguir el ID de los Adjuntos de la Nota
+     * @return ID de los Adjuntos de la Nota
+     */
+    public String getAttachmentsID() { return attachmentsID; }
+
+    /**
+     * Metodo para establecer el ID de los Adjuntos de la Nota
+     * @param attachmentsID ID de los Adjuntos de la Nota
+     */
+    public void setAttachmentsID(String attachmentsID) { this.attachmentsID = attachmentsID; }
+
+    /**
+     * Metodo para conseguir el ID de los Documentos de la Nota (anterior al manifiesto único de adjuntos)
      * @return ID de los Documentos de la Nota
      */
     public String getDocumentsID() { return documentsID; }
@@ -135,7 +162,7 @@ public class Note {
     public void setDocumentsID(String documentsID) { this.documentsID = documentsID; }
 
     /**
-     * Metodo para conseguir el ID de las Imagenes de la Nota
+     * Metodo para conseguir el ID de las Imagenes de la Nota (anterior al manifiesto único de adjuntos)
      * @return ID de las Imagenes de la Nota
      */
     public String getImagesID() { return imagesID; }
@@ -147,7 +174,7 @@ public class Note {
     public void setImagesID(String imagesID) { this.imagesID = imagesID; }
 
     /**
-     * Metodo para conseguir el ID de los Audios de la Nota
+     * Metodo para conseguir el ID de los Audios de la Nota (anterior al manifiesto único de adjuntos)
      * @return ID de los Audios de la Nota
      */
     public String getAudiosID() { return audiosID; }
@@ -0,0 +1,80 @@
+package com.example.lize.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Listado virtual de las Notas editadas más recientemente en todos los Ámbitos del Usuario. Cada
+ * Ámbito ya tiene sus Notas ordenadas por fecha de edición, así que se mezclan con un montículo de
+ * un Cursor por Ámbito (k-way merge): cada Nota servida cuesta O(log k) y solo se recorren las
+ * Notas que se muestran, sin copiar ni ordenar todas las del Usuario.
+ */
+public class RecentNotes {
+
+    public static final int PAGE_SIZE = 50;         // Notas por página
+
+    private final PriorityQueue<SortedNotes.Cursor> heads;
+    private int served;
+
+    /**
+     * Constructor del listado
+     * @param ambitos Ámbitos del Usuario
+     */
+    public RecentNotes(List<Ambito> ambitos) {
+        this.heads = new PriorityQueue<>(Math.max(1, ambitos.size()));
+        for (Ambito ambito : ambitos) {
+            SortedNotes.Cursor cursor = ambito.getCursor(SortedNotes.Order.UPDATED);
+            if (cursor.hasNext()) heads.add(cursor);
+        }
+    }
+
+    /**
+     * Metodo para saber si quedan Notas por servir
+     * @return True si quedan, False si no
+     */
+    public boolean hasMore() {
+        for (SortedNotes.Cursor cursor : heads) if (cursor.hasNext()) return true;
+        return false;
+    }
+
+    /**
+     * Metodo para conseguir la siguiente página de Notas
+     * @return Hasta {@link #PAGE_SIZE} Notas, de la más reciente a la más antigua
+     */
+    public ArrayList<Note> nextPage() { return next(PAGE_SIZE); }
+
+    /**
+     * Metodo para conseguir las siguientes Notas del listado
+     * @param count Número máximo de Notas
+     * @return Siguientes Notas, de la más reciente a la más antigua
+     */
+    public ArrayList<Note> next(int count) {
+        ArrayList<Note> page = new ArrayList<>(Math.min(count, PAGE_SIZE));
+        reorder();
+        while (page.size() < count && !heads.isEmpty()) {
+            SortedNotes.Cursor cursor = heads.poll();
+            page.add(cursor.next());
+            if (cursor.hasNext()) heads.add(cursor);      // Se recoloca según su siguiente Nota
+        }
+        served += page.size();
+        return page;
+    }
+
+    /**
+     * Metodo para recolocar los Cursores antes de servir una página: si se han editado o borrado
+     * Notas desde la anterior, su Nota actual puede haber cambiado dentro del montículo. Con un
+     * Cursor por Ámbito es barato.
+     */
+    private void reorder() {
+        ArrayList<SortedNotes.Cursor> cursors = new ArrayList<>(heads);
+        heads.clear();
+        for (SortedNotes.Cursor cursor : cursors) if (cursor.hasNext()) heads.add(cursor);
+    }
+
+    /**
+     * Metodo para conseguir el número de Notas servidas hasta ahora
+     * @return Número de Notas servidas
+     */
+    public int getServed() { return served; }
+}
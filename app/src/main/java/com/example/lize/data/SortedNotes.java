@@ -0,0 +1,221 @@
+package com.example.lize.data;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Notas de un Ámbito o de una Carpeta, ordenadas a la vez por fecha de edición, por título y por
+ * fecha de creación. Cada orden es un TreeSet de claves inmutables con los valores de la Nota al
+ * añadirla, así que añadir, quitar o recolocar una Nota editada cuesta O(log n), y el listado en
+ * cualquier orden se recorre ya ordenado, sin reordenarlo entero.
+ */
+public class SortedNotes {
+
+    /**
+     * Órdenes del listado de Notas
+     */
+    public enum Order { UPDATED, TITLE, CREATED }
+
+    // Ignora mayúsculas y tildes al ordenar por título
+    private static final Collator collator = Collator.getInstance();
+    static { collator.setStrength(Collator.PRIMARY); }
+
+    private final Map<Note, Key> keys = new IdentityHashMap<>();   // La Nota puede no tener ID aún
+    private final TreeSet<Key> byUpdate = new TreeSet<>(BY_UPDATE);
+    private final TreeSet<Key> byTitle = new TreeSet<>(BY_TITLE);
+    private final TreeSet<Key> byCreation = new TreeSet<>(BY_CREATION);
+    private long sequence;
+
+    /**
+     * Valores de una Nota con los que se ordena. Son una copia: si la Nota cambia, la clave sigue
+     * encontrándose en los TreeSet hasta que se sustituye.
+     */
+    private static class Key {
+        final Note note;
+        final long updated;
+        final long created;
+        final CollationKey title;
+        final long sequence;        // Desempata las Notas con los mismos valores
+
+        Key(Note note, long sequence) {
+            this.note = note;
+            this.updated = note.getLastUpdate() == null ? 0 : note.getLastUpdate().getTime();
+            this.created = note.getCreationDate() == null ? updated : note.getCreationDate().getTime();
+            synchronized (collator) {
+                this.title = collator.getCollationKey(note.getTitle() == null ? "" : note.getTitle());
+            }
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Key> BY_UPDATE = new Comparator<Key>() {
+        @Override
+        public int compare(Key a, Key b) {
+            if (a.updated != b.updated) return a.updated > b.updated ? -1 : 1;     // Las más recientes primero
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static final Comparator<Key> BY_TITLE = new Comparator<Key>() {
+        @Override
+        public int compare(Key a, Key b) {
+            int title = a.title.compareTo(b.title);
+            return title != 0 ? title : BY_UPDATE.compare(a, b);
+        }
+    };
+
+    private static final Comparator<Key> BY_CREATION = new Comparator<Key>() {
+        @Override
+        public int compare(Key a, Key b) {
+            if (a.created != b.created) return a.created > b.created ? -1 : 1;     // Las más nuevas primero
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    /**
+     * Metodo para añadir una Nota. Si ya estaba, se recoloca.
+     * @param note Nota a añadir
+     */
+    public void add(Note note) {
+        Key old = keys.get(note);
+        if (old != null) removeKey(old);
+        Key key = new Key(note, old != null ? old.sequence : sequence++);
+        keys.put(note, key);
+        byUpdate.add(key);
+        byTitle.add(key);
+        byCreation.add(key);
+    }
+
+    /**
+     * Metodo para recolocar una Nota cuyo título o fechas han cambiado
+     * @param note Nota editada
+     * @return True si estaba y se ha recolocado, False si no estaba
+     */
+    public boolean update(Note note) {
+        if (!keys.containsKey(note)) return false;
+        add(note);
+        return true;
+    }
+
+    /**
+     * Metodo para quitar una Nota
+     * @param note Nota a quitar
+     * @return True si estaba, False si no
+     */
+    public boolean remove(Note note) {
+        Key key = keys.remove(note);
+        if (key == null) return false;
+        removeKey(key);
+        return true;
+    }
+
+    /**
+     * Metodo para saber si una Nota está en el listado
+     * @param note Nota
+     * @return True si está, False si no
+     */
+    public boolean contains(Note note) { return keys.containsKey(note); }
+
+    /**
+     * Metodo para conseguir el número de Notas
+     * @return Número de Notas
+     */
+    public int size() { return keys.size(); }
+
+    /**
+     * Metodo para conseguir las Notas en un orden
+     * @param order Orden del listado
+     * @return Copia del listado, ya ordenado
+     */
+    public ArrayList<Note> getNotes(Order order) {
+        ArrayList<Note> notes = new ArrayList<>(keys.size());
+        for (Key key : getSet(order)) notes.add(key.note);
+        return notes;
+    }
+
+    /**
+     * Metodo para recorrer las Notas en un orden sin copiarlas
+     * @param order Orden del recorrido
+     * @return Cursor situado en la primera Nota
+     */
+    public Cursor cursor(Order order) { return new Cursor(getSet(order), comparator(order)); }
+
+    /**
+     * Recorrido perezoso de las Notas en un orden. En vez de un Iterator del TreeSet guarda la última
+     * clave, y avanza con {@link TreeSet#higher}, así que editar las Notas mientras se recorre no lo
+     * invalida: las claves que ya no están (Notas quitadas o recolocadas) se saltan. Se compara con
+     * otros Cursores del mismo orden por su Nota actual, para mezclar varios listados.
+     */
+    public class Cursor implements Comparable<Cursor> {
+        private final TreeSet<Key> set;
+        private final Comparator<Key> comparator;
+        private Key head;
+
+        private Cursor(TreeSet<Key> set, Comparator<Key> comparator) {
+            this.set = set;
+            this.comparator = comparator;
+            this.head = set.isEmpty() ? null : set.first();
+        }
+
+        /**
+         * Metodo para saber si quedan Notas por recorrer
+         * @return True si quedan, False si no
+         */
+        public boolean hasNext() {
+            while (head != null && keys.get(head.note) != head) head = set.higher(head);
+            return head != null;
+        }
+
+        /**
+         * Metodo para conseguir la Nota actual sin avanzar
+         * @return Nota actual, null si no quedan
+         */
+        public Note peek() { return hasNext() ? head.note : null; }
+
+        /**
+         * Metodo para conseguir la Nota actual y avanzar a la siguiente
+         * @return Nota actual, null si no quedan
+         */
+        public Note next() {
+            if (!hasNext()) return null;
+            Key current = head;
+            head = set.higher(current);
+            return current.note;
+        }
+
+        /** Los Cursores sin Notas van al final */
+        @Override
+        public int compareTo(Cursor other) {
+            boolean mine = hasNext(), theirs = other.hasNext();
+            if (!mine || !theirs) return mine == theirs ? 0 : (mine ? -1 : 1);
+            return comparator.compare(head, other.head);
+        }
+    }
+
+    private static Comparator<Key> comparator(Order order) {
+        switch (order) {
+            case TITLE:     return BY_TITLE;
+            case CREATED:   return BY_CREATION;
+            default:        return BY_UPDATE;
+        }
+    }
+
+    private TreeSet<Key> getSet(Order order) {
+        switch (order) {
+            case TITLE:     return byTitle;
+            case CREATED:   return byCreation;
+            default:        return byUpdate;
+        }
+    }
+
+    private void removeKey(Key key) {
+        byUpdate.remove(key);
+        byTitle.remove(key);
+        byCreation.remove(key);
+    }
+}
@@ -0,0 +1,385 @@
+package com.example.lize.models;
+
+import android.util.Log;
+
+import com.example.lize.utils.WaveformAnalyzer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache en disco de los adjuntos descargados (imágenes, documentos y audios), limitada a un
+ * presupuesto de bytes. Las entradas se desalojan en orden LRU, salvo las fijadas por estar en uso.
+ * El índice se guarda en un journal en disco (PUT / READ / DEL) para poder reconstruirlo al
+ * arrancar sin recorrer el directorio; los accesos se apuntan por lotes. Las descargas se escriben
+ * en un fichero ".part" que cuenta para el presupuesto y solo pasa a la cache al registrarse.
+ * Leer el journal toca el disco, así que la cache se abre con {@link #open()} fuera del hilo principal.
+ */
+public class AttachmentCache {
+    private static final String TAG = "AttachmentCache";
+    public static final long DEFAULT_MAX_BYTES = 100L * 1024 * 1024;
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DEL = "DEL";
+    private static final String PART_SUFFIX = ".part";
+    private static final int COMPACT_THRESHOLD = 2000;
+    private static final int READ_BATCH = 100;
+
+    private final File directory;
+    private final LinkedHashMap<String, Long> entries;   // key -> bytes, en orden de acceso
+    private final long maxBytes;
+    private long size;
+    private final Map<String, Integer> pins;              // key -> usos, no se desalojan
+    private final Set<String> writing;                    // keys con una descarga a medias
+    private Writer journalWriter;
+    private int redundantOps;
+    private int unsavedReads;
+
+    /**
+     * Constructor de la clase. No toca el disco: el índice se reconstruye en {@link #open()}.
+     * @param directory Directorio de la cache
+     * @param maxBytes Presupuesto máximo de bytes
+     */
+    public AttachmentCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.pins = new HashMap<>();
+        this.writing = new HashSet<>();
+    }
+
+    /**
+     * Metodo para abrir la cache: reconstruye el índice a partir del journal y borra los ficheros
+     * que no son de ninguna entrada. Se llama una vez, fuera del hilo principal; quien use la
+     * cache mientras tanto espera a que termine.
+     */
+    public synchronized void open() {
+        if (!directory.exists() && !directory.mkdirs()) Log.w(TAG, "Couldn't create cache dir " + directory);
+        readJournal();
+        deleteUntracked();
+        trimToSize();
+    }
+
+    /**
+     * Metodo para conseguir el directorio de la cache
+     * @return Directorio de la cache
+     */
+    public File getDirectory() { return directory; }
+
+    /**
+     * Metodo para conseguir el fichero donde vive (o vivirá) una entrada. No cuenta como acceso.
+     * @param key Clave de la entrada
+     * @return Fichero de la entrada
+     */
+    public File getFile(String key) { return new File(directory, key); }
+
+    /**
+     * Metodo para conseguir el fichero donde descargar una entrada. Lo que se escriba en él cuenta
+     * para el presupuesto y se publica con {@link #commit(String)} o se descarta con {@link #abort(String)}.
+     * @param key Clave de la entrada
+     * @return Fichero temporal de la entrada
+     */
+    public synchronized File getPartialFile(String key) {
+        writing.add(key);
+        return new File(directory, key + PART_SUFFIX);
+    }
+
+    /**
+     * Metodo para conseguir una entrada de la cache, marcándola como la más reciente
+     * @param key Clave de la entrada
+     * @return Fichero de la entrada, o null si no está en la cache
+     */
+    public synchronized File get(String key) {
+        Long bytes = entries.get(key);
+        File file = getFile(key);
+        if (bytes == null || !file.exists()) {
+            if (bytes != null) removeEntry(key);
+            return null;
+        }
+        recordRead(key);
+        return file;
+    }
+
+    /**
+     * Metodo para registrar en la cache un fichero ya escrito en {@link #getFile(String)}, o
+     * descargado en {@link #getPartialFile(String)}, que se mueve a su sitio.
+     * Desaloja las entradas menos usadas si se supera el presupuesto.
+     * @param key Clave de la entrada
+     * @return True si la entrada está en la cache, False si no
+     */
+    public synchronized boolean commit(String key) {
+        File file = getFile(key);
+        File partial = new File(directory, key + PART_SUFFIX);
+        writing.remove(key);
+        if (partial.exists() && !partial.renameTo(file)) {
+            Log.w(TAG, "Couldn't publish entry " + key);
+            if (!partial.delete()) Log.d(TAG, "Partial file already gone: " + key);
+            return false;
+        }
+        if (!file.exists()) {
+            Log.w(TAG, "Can't commit missing entry " + key);
+            return false;
+        }
+        Long previous = entries.put(key, file.length());
+        if (previous != null) {
+            size -= previous;
+            redundantOps++;
+        }
+        size += file.length();
+        appendJournal(PUT, key, file.length());
+        trimToSize();
+        return true;
+    }
+
+    /**
+     * Metodo para descartar una descarga a medias de una entrada
+     * @param key Clave de la entrada
+     */
+    public synchronized void abort(String key) {
+        writing.remove(key);
+        if (!new File(directory, key + PART_SUFFIX).delete()) Log.d(TAG, "No partial file to abort for " + key);
+    }
+
+    /**
+     * Metodo para fijar una entrada que está en uso (p.ej. en la nota abierta), de modo que no se
+     * desaloje aunque se supere el presupuesto. Se puede fijar antes de que la entrada exista.
+     * @param key Clave de la entrada
+     */
+    public synchronized void pin(String key) {
+        Integer count = pins.get(key);
+        pins.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Metodo para soltar una entrada fijada con {@link #pin(String)}. Si se había superado el
+     * presupuesto por tenerla fijada, se desaloja lo que sobre.
+     * @param key Clave de la entrada
+     */
+    public synchronized void unpin(String key) {
+        Integer count = pins.get(key);
+        if (count == null) return;
+        if (count > 1) pins.put(key, count - 1);
+        else {
+            pins.remove(key);
+            trimToSize();
+        }
+    }
+
+    /**
+     * Metodo para eliminar una entrada de la cache y su fichero
+     * @param key Clave de la entrada
+     */
+    public synchronized void remove(String key) {
+        if (entries.containsKey(key)) removeEntry(key);
+        else if (!deleteFile(key)) Log.d(TAG, "Nothing to remove for " + key);
+    }
+
+    /**
+     * Metodo para conseguir los bytes ocupados por la cache
+     * @return Bytes ocupados
+     */
+    public synchronized long size() { return size; }
+
+    @Override
+    public synchronized String toString() {
+        return "AttachmentCache[size=" + size + "/" + maxBytes + ", entries=" + entries.size() + "]";
+    }
+
+    //*******************
+    //      INTERNAL
+    //*******************
+
+    /**
+     * Metodo para desalojar las entradas menos usadas hasta caber en el presupuesto, contando las
+     * descargas a medias. Las entradas fijadas no se desalojan.
+     */
+    private void trimToSize() {
+        long writingBytes = 0;
+        for (String key : writing) writingBytes += new File(directory, key + PART_SUFFIX).length();
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size + writingBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (pins.containsKey(eldest.getKey())) continue;
+            iterator.remove();
+            size -= eldest.getValue();
+            if (!deleteFile(eldest.getKey())) Log.w(TAG, "Couldn't delete evicted entry " + eldest.getKey());
+            appendJournal(DEL, eldest.getKey(), 0);
+        }
+    }
+
+    /**
+     * Metodo para eliminar una entrada del índice y su fichero
+     * @param key Clave de la entrada
+     */
+    private void removeEntry(String key) {
+        Long bytes = entries.remove(key);
+        if (bytes != null) size -= bytes;
+        if (!deleteFile(key)) Log.d(TAG, "Entry file already gone: " + key);
+        appendJournal(DEL, key, 0);
+    }
+
+    /**
+     * Metodo para borrar el fichero de una entrada junto con los picos de su forma de onda, si los hay
+     * @param key Clave de la entrada
+     * @return True si se ha borrado el fichero de la entrada, False si no
+     */
+    private boolean deleteFile(String key) {
+        File file = getFile(key);
+        File peaks = WaveformAnalyzer.getPeaksFile(file);
+        if (peaks.exists() && !peaks.delete()) Log.w(TAG, "Couldn't delete peaks of " + key);
+        return file.delete();
+    }
+
+    /**
+     * Metodo para borrar al arrancar los ficheros que no son de ninguna entrada: descargas a medias
+     * que no llegaron a registrarse o ficheros de entradas ya desalojadas. Las descargas que hayan
+     * empezado antes de abrir la cache se respetan.
+     */
+    private void deleteUntracked() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP) || entries.containsKey(name)) continue;
+            if (name.endsWith(PART_SUFFIX) && writing.contains(name.substring(0, name.length() - PART_SUFFIX.length()))) continue;
+            if (name.endsWith(WaveformAnalyzer.PEAKS_SUFFIX)
+                    && entries.containsKey(name.substring(0, name.length() - WaveformAnalyzer.PEAKS_SUFFIX.length()))) continue;
+            if (!file.delete()) Log.w(TAG, "Couldn't delete untracked file " + name);
+        }
+    }
+
+    /**
+     * Metodo para reconstruir el índice a partir del journal. Las entradas cuyo fichero haya
+     * desaparecido se detectan de forma perezosa en {@link #get(String)}.
+     */
+    private void readJournal() {
+        File journal = new File(directory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(journal))) {
+                String line;
+                while ((line = reader.readLine()) != null) replayLine(line);
+            } catch (IOException | NumberFormatException exception) {
+                Log.w(TAG, "Corrupted journal, rebuilding cache index", exception);
+            }
+        }
+        rebuildJournal();   // Arrancamos siempre con un journal compacto
+    }
+
+    /**
+     * Metodo para aplicar una línea del journal al índice. Formato: "OP bytes key"
+     * @param line Línea del journal
+     */
+    private void replayLine(String line) {
+        String[] parts = line.split(" ", 3);
+        if (parts.length != 3) return;
+        String key = parts[2];
+        switch (parts[0]) {
+            case PUT:
+                Long previous = entries.put(key, Long.parseLong(parts[1]));
+                if (previous != null) size -= previous;
+                size += Long.parseLong(parts[1]);
+                break;
+            case READ:
+                entries.get(key);   // Solo actualiza el orden de acceso
+                break;
+            case DEL:
+                Long removed = entries.remove(key);
+                if (removed != null) size -= removed;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Metodo para apuntar un acceso en el journal. El orden de acceso ya está en memoria: los
+     * accesos solo se escriben por lotes, sin bloquear cada lectura con una escritura a disco.
+     * @param key Clave de la entrada
+     */
+    private void recordRead(String key) {
+        if (++redundantOps >= COMPACT_THRESHOLD && redundantOps >= entries.size()) {
+            rebuildJournal();
+            return;
+        }
+        try {
+            if (journalWriter == null) journalWriter = new BufferedWriter(new FileWriter(new File(directory, JOURNAL_FILE), true));
+            journalWriter.write(READ + " 0 " + key + "\n");
+            if (++unsavedReads >= READ_BATCH) flushJournal();
+        } catch (IOException exception) {
+            Log.w(TAG, "Couldn't write cache journal", exception);
+        }
+    }
+
+    /**
+     * Metodo para escribir en disco las operaciones pendientes del journal
+     * @throws IOException Si no se puede escribir
+     */
+    private void flushJournal() throws IOException {
+        if (journalWriter != null) journalWriter.flush();
+        unsavedReads = 0;
+    }
+
+    /**
+     * Metodo para escribir una operación en el journal, compactándolo cuando crece demasiado
+     * @param op Operación
+     * @param key Clave de la entrada
+     * @param bytes Tamaño de la entrada (solo para PUT)
+     */
+    private void appendJournal(String op, String key, long bytes) {
+        if (!PUT.equals(op)) redundantOps++;
+        if (redundantOps >= COMPACT_THRESHOLD && redundantOps >= entries.size()) {
+            rebuildJournal();
+            return;
+        }
+        try {
+            if (journalWriter == null) journalWriter = new BufferedWriter(new FileWriter(new File(directory, JOURNAL_FILE), true));
+            journalWriter.write(op + " " + bytes + " " + key + "\n");
+            flushJournal();   // Junto con los accesos pendientes
+        } catch (IOException exception) {
+            Log.w(TAG, "Couldn't write cache journal", exception);
+        }
+    }
+
+    /**
+     * Metodo para reescribir el journal con solo las entradas vivas, en orden de acceso
+     */
+    private void rebuildJournal() {
+        try {
+            if (journalWriter != null) journalWriter.close();
+        } catch (IOException exception) {
+            Log.w(TAG, "Couldn't close cache journal", exception);
+        }
+        journalWriter = null;
+        unsavedReads = 0;   // El journal compacto guarda el orden de acceso
+
+        File tmp = new File(directory, JOURNAL_FILE_TMP);
+        try (Writer writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Long> entry : new ArrayList<>(entries.entrySet()))
+                writer.write(PUT + " " + entry.getValue() + " " + entry.getKey() + "\n");
+        } catch (FileNotFoundException exception) {
+            Log.w(TAG, "Cache dir unavailable: " + directory);
+            return;
+        } catch (IOException exception) {
+            Log.w(TAG, "Couldn't rebuild cache journal", exception);
+            return;
+        }
+        if (!tmp.renameTo(new File(directory, JOURNAL_FILE))) Log.w(TAG, "Couldn't replace cache journal");
+        redundantOps = 0;
+    }
+}
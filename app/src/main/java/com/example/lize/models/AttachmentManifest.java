@@ -0,0 +1,271 @@
+package com.example.lize.models;
+
+import android.util.Base64;
+
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manifiesto de adjuntos de una Nota. Cada Nota tiene un único documento "attachments/{id}" con un
+ * mapa "entries" referencia -&gt; entrada, donde cada entrada indica su tipo (imagen, documento o
+ * audio), nombre, tamaño, tipo de contenido, el hash del blob que la guarda y, en los audios, su
+ * duración, códec, tasa de bits y forma de onda. Así cargar o borrar los adjuntos de una Nota es una
+ * sola lectura y la lista de audios se muestra sin tocar sus ficheros. Los audios grabados por
+ * segmentos no tienen blob propio: cada segmento es una entrada con su blob que apunta a su audio.
+ */
+public class AttachmentManifest {
+    public static final String COLLECTION = "attachments";
+    public static final String ID_FIELD = "attachmentsID";
+    public static final String ENTRIES_FIELD = "entries";
+
+    public static final String TYPE_IMAGE = "image";
+    public static final String TYPE_DOCUMENT = "document";
+    public static final String TYPE_AUDIO = "audio";
+    public static final String TYPE_AUDIO_SEGMENT = "audio_segment";
+
+    private AttachmentManifest() {}
+
+    /**
+     * Entrada del manifiesto: metadatos de un adjunto
+     */
+    public static class Entry {
+        private final String ref;
+        private final String type;
+        private String name;
+        private long size;
+        private String contentType;
+        private long durationMs;
+        private String codec;
+        private long bitRate;
+        private byte[] waveform;
+        private String hash;
+        private String path;
+        private String parent;
+        private long segments;
+        private long order;
+
+        /**
+         * Constructor de la clase
+         * @param ref Referencia del adjunto
+         * @param type Tipo del adjunto
+         */
+        public Entry(String ref, String type) {
+            this.ref = ref;
+            this.type = type;
+            this.order = System.currentTimeMillis();
+        }
+
+        public String getRef() { return ref; }
+        public String getType() { return type; }
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        public long getSize() { return size; }
+        public void setSize(long size) { this.size = size; }
+        public String getContentType() { return contentType; }
+        public void setContentType(String contentType) { this.contentType = contentType; }
+        public long getDurationMs() { return durationMs; }
+        public void setDurationMs(long durationMs) { this.durationMs = durationMs; }
+        public String getCodec() { return codec; }
+        public void setCodec(String codec) { this.codec = codec; }
+        public long getBitRate() { return bitRate; }
+        public void setBitRate(long bitRate) { this.bitRate = bitRate; }
+        public byte[] getWaveform() { return waveform; }
+        public void setWaveform(byte[] waveform) { this.waveform = waveform; }
+        public String getHash() { return hash; }
+        public void setHash(String hash) { this.hash = hash; }
+        public String getParent() { return parent; }
+        public void setParent(String parent) { this.parent = parent; }
+        public long getSegments() { return segments; }
+        public void setSegments(long segments) { this.segments = segments; }
+        public long getOrder() { return order; }
+        public void setOrder(long order) { this.order = order; }
+
+        /**
+         * Metodo para establecer la ruta en el Storage de un adjunto anterior a los blobs
+         * @param path Ruta del fichero
+         */
+        public void setPath(String path) { this.path = path; }
+
+        /**
+         * Metodo para conseguir la ruta del adjunto en el Storage
+         * @return Ruta del blob, o la ruta antigua si el adjunto no tiene hash
+         */
+        public String getStoragePath() {
+            if (hash != null) return BlobStore.getPath(hash);
+            return path != null ? path : ref;
+        }
+
+        /**
+         * Metodo para conseguir la clave local (cache) del adjunto. Los adjuntos con el mismo
+         * contenido comparten fichero local.
+         * @return Hash del adjunto, o su referencia si no tiene
+         */
+        public String getLocalKey() { return hash != null ? hash : ref; }
+
+        /**
+         * Metodo para saber si la entrada es un audio grabado por segmentos, sin fichero propio
+         * @return True si sus ficheros son entradas de segmento, False si no
+         */
+        public boolean isSegmented() { return segments > 0; }
+
+        /**
+         * Metodo para copiar la entrada con otra referencia
+         * @param newRef Nueva referencia
+         * @return Entrada copiada
+         */
+        public Entry copy(String newRef) { return fromMap(newRef, toMap()); }
+
+        /**
+         * Metodo para pasar la entrada a un mapa de Firestore
+         * @return Mapa con los campos definidos
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("type", type);
+            map.put("order", order);
+            if (name != null) map.put("name", name);
+            if (size > 0) map.put("size", size);
+            if (contentType != null) map.put("contentType", contentType);
+            if (durationMs > 0) map.put("durationMs", durationMs);
+            if (codec != null) map.put("codec", codec);
+            if (bitRate > 0) map.put("bitRate", bitRate);
+            if (waveform != null) map.put("waveform", Base64.encodeToString(waveform, Base64.NO_WRAP));
+            if (hash != null) map.put("hash", hash);
+            if (path != null) map.put("path", path);
+            if (parent != null) map.put("parent", parent);
+            if (segments > 0) map.put("segments", segments);
+            return map;
+        }
+
+        /**
+         * Metodo para leer una entrada de un mapa de Firestore
+         * @param ref Referencia del adjunto
+         * @param map Mapa de la entrada
+         * @return Entrada leída
+         */
+        public static Entry fromMap(String ref, Map<String, Object> map) {
+            Entry entry = new Entry(ref, (String) map.get("type"));
+            entry.name = (String) map.get("name");
+            entry.size = getLong(map, "size");
+            entry.contentType = (String) map.get("contentType");
+            entry.durationMs = getLong(map, "durationMs");
+            entry.codec = (String) map.get("codec");
+            entry.bitRate = getLong(map, "bitRate");
+            Object waveform = map.get("waveform");
+            if (waveform instanceof String) entry.waveform = Base64.decode((String) waveform, Base64.NO_WRAP);
+            entry.hash = (String) map.get("hash");
+            entry.path = (String) map.get("path");
+            entry.parent = (String) map.get("parent");
+            entry.segments = getLong(map, "segments");
+            entry.order = getLong(map, "order");
+            return entry;
+        }
+
+        private static long getLong(Map<String, Object> map, String key) {
+            Object value = map.get(key);
+            return value instanceof Number ? ((Number) value).longValue() : 0;
+        }
+    }
+
+    /**
+     * Metodo para conseguir el documento del manifiesto de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Referencia al documento
+     */
+    public static DocumentReference getReference(String attachmentsID) {
+        return FirebaseFirestore.getInstance().collection(COLLECTION).document(attachmentsID);
+    }
+
+    /**
+     * Metodo para generar un nuevo ID de adjuntos
+     * @return ID nuevo
+     */
+    public static String newID() {
+        return FirebaseFirestore.getInstance().collection(COLLECTION).document().getId();
+    }
+
+    /**
+     * Metodo para leer las entradas de un manifiesto, en el orden en que se añadieron
+     * @param manifest Manifiesto, puede ser null
+     * @return Entradas del manifiesto
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Entry> getEntries(DocumentSnapshot manifest) {
+        List<Entry> entries = new ArrayList<>();
+        Object field = manifest == null ? null : manifest.get(ENTRIES_FIELD);
+        if (!(field instanceof Map)) return entries;
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) field).entrySet())
+            if (entry.getValue() instanceof Map) entries.add(Entry.fromMap(entry.getKey(), (Map<String, Object>) entry.getValue()));
+        Collections.sort(entries, (a, b) -> a.getOrder() < b.getOrder() ? -1 : (a.getOrder() == b.getOrder() ? 0 : 1));
+        return entries;
+    }
+
+    /**
+     * Metodo para leer una entrada concreta de un manifiesto
+     * @param manifest Manifiesto, puede ser null o no existir
+     * @param ref Referencia del adjunto
+     * @return Entrada del adjunto, null si el manifiesto no la tiene
+     */
+    @SuppressWarnings("unchecked")
+    public static Entry getEntry(DocumentSnapshot manifest, String ref) {
+        Object field = manifest == null ? null : manifest.get(ENTRIES_FIELD);
+        if (!(field instanceof Map)) return null;
+        Object entry = ((Map<String, Object>) field).get(ref);
+        return entry instanceof Map ? Entry.fromMap(ref, (Map<String, Object>) entry) : null;
+    }
+
+    /**
+     * Metodo para conseguir la referencia de un segmento de un audio
+     * @param audioRef Referencia del audio
+     * @param index Posición del segmento
+     * @return Referencia del segmento
+     */
+    public static String getSegmentRef(String audioRef, int index) {
+        return audioRef + "-s" + index;
+    }
+
+    /**
+     * Metodo para conseguir los segmentos de un audio de entre las entradas de un manifiesto
+     * @param entries Entradas del manifiesto, ordenadas
+     * @param audioRef Referencia del audio
+     * @return Segmentos del audio, en orden
+     */
+    public static List<Entry> getSegments(List<Entry> entries, String audioRef) {
+        List<Entry> segments = new ArrayList<>();
+        for (Entry entry : entries)
+            if (TYPE_AUDIO_SEGMENT.equals(entry.getType()) && audioRef.equals(entry.getParent())) segments.add(entry);
+        return segments;
+    }
+
+    /**
+     * Metodo para crear el contenido de un manifiesto con una entrada, para escribirlo con merge
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entry Entrada a añadir
+     * @return Mapa a escribir con SetOptions.merge()
+     */
+    public static Map<String, Object> withEntry(String attachmentsID, Entry entry) {
+        return withEntries(attachmentsID, Collections.singletonList(entry));
+    }
+
+    /**
+     * Metodo para crear el contenido de un manifiesto con varias entradas, para escribirlo con merge
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entries Entradas a añadir
+     * @return Mapa a escribir con SetOptions.merge()
+     */
+    public static Map<String, Object> withEntries(String attachmentsID, List<Entry> entries) {
+        Map<String, Object> values = new HashMap<>();
+        for (Entry entry : entries) values.put(entry.getRef(), entry.toMap());
+        Map<String, Object> manifest = new HashMap<>();
+        manifest.put(ID_FIELD, attachmentsID);
+        manifest.put(ENTRIES_FIELD, values);
+        return manifest;
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.lize.models;
+
+import android.util.Log;
+
+import com.example.lize.data.Note;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Migración de los adjuntos de una Nota desde las colecciones antiguas "images", "documents" y
+ * "audios" a su manifiesto único en "attachments". Los ficheros no se mueven: las entradas con hash
+ * siguen apuntando a su blob y las anteriores a los blobs guardan su ruta en el Storage. El
+ * manifiesto nuevo, el cambio de la Nota y el borrado de los manifiestos antiguos se escriben en un
+ * único batch, de modo que la migración se puede repetir sin duplicar nada si falla a medias.
+ */
+public class AttachmentMigration {
+    private static final String TAG = "AttachmentMigration";
+    private static final String LEGACY_HASHES_FIELD = "hashes";
+
+    private AttachmentMigration() {}
+
+    /**
+     * Metodo para saber si una Nota aún tiene adjuntos en las colecciones antiguas
+     * @param note Nota a consultar
+     * @return True si hay que migrarla, False si no
+     */
+    public static boolean needsMigration(Note note) {
+        return note.getSelfID() != null
+                && (note.getImagesID() != null || note.getDocumentsID() != null || note.getAudiosID() != null);
+    }
+
+    /**
+     * Metodo para migrar los adjuntos de una Nota a su manifiesto único. Si la Nota aún no tiene
+     * attachmentsID, su manifiesto toma el ID de la Nota: si un guardado de la Nota pisa la
+     * migración y hay que repetirla, se escribe en el mismo manifiesto en vez de dejar el primero
+     * huérfano. El attachmentsID se asigna a la Nota en memoria y se quitan los IDs antiguos solo
+     * cuando la migración se ha escrito.
+     * @param note Nota a migrar
+     * @return Task con el attachmentsID de la Nota una vez migrada (null si no tiene adjuntos), que
+     * falla si no se ha podido migrar
+     */
+    public static Task<String> migrate(Note note) {
+        if (!needsMigration(note)) return Tasks.forResult(note.getAttachmentsID());
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        String attachmentsID = note.getAttachmentsID() != null ? note.getAttachmentsID() : note.getSelfID();
+
+        List<DocumentReference> legacy = new ArrayList<>();
+        List<String> types = new ArrayList<>();
+        if (note.getImagesID() != null) {
+            legacy.add(db.collection("images").document(note.getImagesID()));
+            types.add(AttachmentManifest.TYPE_IMAGE);
+        }
+        if (note.getDocumentsID() != null) {
+            legacy.add(db.collection("documents").document(note.getDocumentsID()));
+            types.add(AttachmentManifest.TYPE_DOCUMENT);
+        }
+        if (note.getAudiosID() != null) {
+            legacy.add(db.collection("audios").document(note.getAudiosID()));
+            types.add(AttachmentManifest.TYPE_AUDIO);
+            // Antes de los manifiestos, los audios a partir del segundo se apuntaban por error en
+            // "documents" con el ID de los audios
+            legacy.add(db.collection("documents").document(note.getAudiosID()));
+            types.add(AttachmentManifest.TYPE_AUDIO);
+        }
+
+        TaskCompletionSource<String> migrated = new TaskCompletionSource<>();
+        List<Task<DocumentSnapshot>> reads = new ArrayList<>();
+        for (DocumentReference ref : legacy) reads.add(ref.get());
+        Tasks.whenAllComplete(reads).addOnCompleteListener(done -> {
+            Map<String, Object> entries = new HashMap<>();
+            for (int i = 0; i < reads.size(); i++) {
+                if (!reads.get(i).isSuccessful()) {
+                    Log.w(TAG, "Couldn't read " + legacy.get(i).getPath() + ", retrying on next load", reads.get(i).getException());
+                    migrated.setException(reads.get(i).getException());
+                    return;
+                }
+                Map<String, Object> data = reads.get(i).getResult().getData();
+                addEntries(entries, types.get(i), data);
+                // Solo se borra el manifiesto antiguo si todo lo que tiene guardado tiene ya su entrada
+                if (!containsAll(entries, getRawRefs(data))) {
+                    Log.e(TAG, "Couldn't migrate every file of " + legacy.get(i).getPath() + ", keeping it");
+                    migrated.setException(new IllegalStateException("Incomplete migration of " + legacy.get(i).getPath()));
+                    return;
+                }
+            }
+
+            WriteBatch batch = db.batch();
+            Map<String, Object> manifest = new HashMap<>();
+            manifest.put(AttachmentManifest.ID_FIELD, attachmentsID);
+            manifest.put(AttachmentManifest.ENTRIES_FIELD, entries);
+            batch.set(AttachmentManifest.getReference(attachmentsID), manifest, SetOptions.merge());
+            batch.update(db.collection("notes").document(note.getSelfID()),
+                    AttachmentManifest.ID_FIELD, attachmentsID,
+                    "imagesID", FieldValue.delete(),
+                    "documentsID", FieldValue.delete(),
+                    "audiosID", FieldValue.delete());
+            for (DocumentReference ref : legacy) batch.delete(ref);
+
+            batch.commit().addOnCompleteListener(written -> {
+                if (!written.isSuccessful()) {
+                    Log.w(TAG, "Couldn't migrate attachments of note " + note.getSelfID(), written.getException());
+                    migrated.setException(written.getException());
+                    return;
+                }
+                note.setAttachmentsID(attachmentsID);
+                note.setImagesID(null);
+                note.setDocumentsID(null);
+                note.setAudiosID(null);
+                Log.d(TAG, "Attachments of note " + note.getSelfID() + " migrated to " + attachmentsID);
+                migrated.setResult(attachmentsID);
+            });
+        });
+        return migrated.getTask();
+    }
+
+    /**
+     * Metodo para conseguir las referencias de todos los ficheros de un manifiesto antiguo. El de
+     * imagenes guardaba la primera imagen en "images" y las siguientes en "files"; los de
+     * documentos y audios, todos sus ficheros en "files".
+     * @param type Tipo de los adjuntos del manifiesto
+     * @param legacy Contenido del manifiesto antiguo, null si no existe
+     * @return Referencias en el orden del manifiesto antiguo, sin repetir
+     */
+    static List<String> getLegacyRefs(String type, Map<String, Object> legacy) {
+        Set<String> refs = new LinkedHashSet<>();
+        if (legacy == null) return new ArrayList<>(refs);
+        if (AttachmentManifest.TYPE_IMAGE.equals(type)) addRefs(refs, legacy.get("images"));
+        addRefs(refs, legacy.get("files"));
+        return new ArrayList<>(refs);
+    }
+
+    /**
+     * Metodo para conseguir todo lo que guarda un manifiesto antiguo tal cual: los elementos de
+     * todas sus listas, sin interpretar qué campos usa cada tipo. Es con lo que se comprueba que
+     * las entradas migradas no se dejan nada.
+     * @param legacy Contenido del manifiesto antiguo, null si no existe
+     * @return Referencias guardadas en el manifiesto antiguo
+     */
+    static List<String> getRawRefs(Map<String, Object> legacy) {
+        List<String> refs = new ArrayList<>();
+        if (legacy == null) return refs;
+        for (Object field : legacy.values()) {
+            if (!(field instanceof List)) continue;
+            for (Object ref : (List<?>) field) if (ref != null) refs.add(String.valueOf(ref));
+        }
+        return refs;
+    }
+
+    /**
+     * Metodo para añadir las referencias de un campo de un manifiesto antiguo
+     * @param refs Referencias donde añadirlas
+     * @param field Campo del manifiesto: una lista de referencias o una sola referencia
+     */
+    private static void addRefs(Set<String> refs, Object field) {
+        if (field instanceof List) {
+            for (Object ref : (List<?>) field) if (ref != null) refs.add(String.valueOf(ref));
+        } else if (field instanceof String) refs.add((String) field);
+    }
+
+    /**
+     * Metodo para saber si el manifiesto nuevo tiene entrada para todas las referencias dadas
+     * @param entries Mapa referencia -&gt; entrada del manifiesto nuevo
+     * @param refs Referencias del manifiesto antiguo
+     * @return True si no falta ninguna, False si no
+     */
+    static boolean containsAll(Map<String, Object> entries, List<String> refs) {
+        for (String ref : refs) if (!entries.containsKey(ref)) return false;
+        return true;
+    }
+
+    /**
+     * Metodo para pasar las referencias de un manifiesto antiguo a entradas del manifiesto único
+     * @param entries Mapa referencia -&gt; entrada donde añadirlas
+     * @param type Tipo de los adjuntos del manifiesto
+     * @param legacy Contenido del manifiesto antiguo, null si no existe
+     */
+    @SuppressWarnings("unchecked")
+    static void addEntries(Map<String, Object> entries, String type, Map<String, Object> legacy) {
+        if (legacy == null) return;
+        Object field = legacy.get(LEGACY_HASHES_FIELD);
+        Map<String, Object> hashes = field instanceof Map ? (Map<String, Object>) field : new HashMap<>();
+
+        for (String name : getLegacyRefs(type, legacy)) {
+            AttachmentManifest.Entry entry = new AttachmentManifest.Entry(name, type);
+            entry.setOrder(entries.size());   // Conserva el orden del manifiesto antiguo
+            Object hash = hashes.get(name);
+            if (hash instanceof String) entry.setHash((String) hash);
+            else entry.setPath(name);
+            if (AttachmentManifest.TYPE_DOCUMENT.equals(type)) entry.setName(DocumentManager.getDocumentName(name));
+            entries.put(name, entry.toMap());
+        }
+    }
+}
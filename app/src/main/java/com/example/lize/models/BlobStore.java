@@ -0,0 +1,150 @@
+package com.example.lize.models;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Transaction;
+import com.google.firebase.firestore.WriteBatch;
+import com.google.firebase.storage.FirebaseStorage;
+
+import java.util.Collections;
+
+/**
+ * Almacén de adjuntos direccionado por contenido. Cada fichero de un usuario se guarda una única
+ * vez en el Storage bajo "users/{uid}/blobs/&lt;sha256&gt;" y su documento "users/{uid}/blobs/{hash}"
+ * en Firestore cuenta cuántos manifiestos lo referencian. Los blobs son de cada usuario: el
+ * mismo contenido en dos cuentas se guarda dos veces y nadie puede saber si otro tiene un fichero.
+ * Las entradas de los manifiestos guardan el hash de su adjunto, de modo que copiar un adjunto es
+ * solo una escritura de metadatos y el fichero se borra del Storage cuando deja de referenciarlo
+ * el último manifiesto.
+ */
+public class BlobStore {
+    private static final String TAG = "BlobStore";
+    public static final String COLLECTION = "blobs";
+    private static final String USERS = "users";
+    private static final String REFS_FIELD = "refs";
+    private static final String STORED_FIELD = "stored";    // El fichero ya está en el Storage
+
+    private BlobStore() {}
+
+    /**
+     * Metodo para conseguir la ruta en el Storage de un blob del usuario actual
+     * @param hash SHA-256 del contenido
+     * @return Ruta del blob
+     */
+    public static String getPath(String hash) { return USERS + "/" + getUserID() + "/" + COLLECTION + "/" + hash; }
+
+    /**
+     * Metodo para sumar la referencia de un adjunto nuevo a su blob antes de subirlo. La
+     * comprobación de si el blob ya está guardado y el aumento van en la misma transacción, de
+     * modo que un release() a la vez no puede borrar el blob entre las dos: si ya está en el
+     * Storage no hace falta subirlo y, si no, hay que subirlo y apuntarlo con setStored().
+     * @param hash SHA-256 del contenido
+     * @return Task con True si el blob ya está en el Storage, False si hay que subirlo
+     */
+    public static Task<Boolean> acquire(String hash) {
+        DocumentReference ref = blobRef(hash);
+        return FirebaseFirestore.getInstance().runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(ref);
+            Long refs = snapshot.getLong(REFS_FIELD);
+            boolean stored = refs != null && refs > 0 && Boolean.TRUE.equals(snapshot.getBoolean(STORED_FIELD));
+            transaction.set(ref, Collections.singletonMap(REFS_FIELD, FieldValue.increment(1)), SetOptions.merge());
+            return stored;
+        });
+    }
+
+    /**
+     * Metodo para añadir a un batch el aumento de referencias de un blob
+     * @param batch Batch de escritura
+     * @param hash SHA-256 del contenido
+     * @param count Número de referencias nuevas
+     */
+    public static void addReferences(WriteBatch batch, String hash, long count) {
+        batch.set(blobRef(hash), Collections.singletonMap(REFS_FIELD, FieldValue.increment(count)), SetOptions.merge());
+    }
+
+    /**
+     * Metodo para añadir a una transacción la marca de que el fichero de un blob ya está subido,
+     * junto con la entrada del manifiesto que lo apunta. Su referencia se sumó con acquire().
+     * @param transaction Transacción de escritura
+     * @param hash SHA-256 del contenido
+     */
+    public static void setStored(Transaction transaction, String hash) {
+        transaction.set(blobRef(hash), Collections.singletonMap(STORED_FIELD, true), SetOptions.merge());
+    }
+
+    /**
+     * Metodo para liberar una referencia de un blob. Si era la última se borra el blob del Storage.
+     * @param hash SHA-256 del contenido
+     */
+    public static void release(String hash) {
+        DocumentReference ref = blobRef(hash);
+        FirebaseFirestore.getInstance().runTransaction(transaction -> {
+            Long refs = transaction.get(ref).getLong(REFS_FIELD);
+            if (refs == null || refs <= 1) {
+                transaction.delete(ref);
+                return true;
+            }
+            transaction.update(ref, REFS_FIELD, FieldValue.increment(-1));
+            return false;
+        }).addOnSuccessListener(unreferenced -> {
+            if (unreferenced) FirebaseStorage.getInstance().getReference().child(getPath(hash)).delete();
+        }).addOnFailureListener(exception -> Log.w(TAG, "Couldn't release blob " + hash, exception));
+    }
+
+    /**
+     * Metodo para borrar del Storage un blob subido cuya referencia ya se ha liberado, p.ej. porque
+     * el adjunto se eliminó mientras se subía. Si alguien lo referencia no se toca.
+     * @param hash SHA-256 del contenido
+     * @return Task con True si se ha borrado el blob
+     */
+    public static Task<Boolean> discard(String hash) {
+        return blobRef(hash).get().continueWithTask(task -> {
+            Long refs = task.getResult().getLong(REFS_FIELD);   // Si la lectura falla, falla el Task
+            if (refs != null && refs > 0) return Tasks.forResult(false);
+            return FirebaseStorage.getInstance().getReference().child(getPath(hash)).delete().continueWith(deleted -> {
+                if (!deleted.isSuccessful()) Log.w(TAG, "Couldn't delete unreferenced blob " + hash, deleted.getException());
+                return deleted.isSuccessful();
+            });
+        });
+    }
+
+    /**
+     * Metodo para pasar un hash a hexadecimal
+     * @param digest Bytes del hash
+     * @return Hash en hexadecimal
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Metodo para conseguir el documento de referencias de un blob del usuario actual
+     * @param hash SHA-256 del contenido
+     * @return Referencia al documento
+     */
+    private static DocumentReference blobRef(String hash) {
+        return FirebaseFirestore.getInstance().collection(USERS).document(getUserID()).collection(COLLECTION).document(hash);
+    }
+
+    /**
+     * Metodo para conseguir el ID del usuario dueño de los blobs
+     * @return ID del usuario actual
+     * @throws IllegalStateException Si no hay ningún usuario con la sesión iniciada
+     */
+    private static String getUserID() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) throw new IllegalStateException("No user signed in");
+        return user.getUid();
+    }
+}
@@ -1,43 +1,48 @@
 package com.example.lize.models;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.content.res.AssetFileDescriptor;
 import android.media.MediaMetadataRetriever;
-import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
 import com.example.lize.data.Audio;
 import com.example.lize.data.Document;
 import com.example.lize.data.Image;
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.OnSuccessListener;
+import com.example.lize.utils.FileUtils;
+import com.example.lize.utils.RecordingProfile;
+import com.example.lize.utils.TextExtractor;
+import com.example.lize.utils.WaveformAnalyzer;
+import com.example.lize.utils.WaveformSampler;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.firestore.DocumentReference;
-import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
 import com.google.firebase.storage.FirebaseStorage;
 import com.google.firebase.storage.StorageReference;
-import com.google.firebase.storage.StorageTask;
-import com.google.firebase.storage.UploadTask;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Array;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-
-import static com.onegravity.rteditor.api.RTApi.getApplicationContext;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DocumentManager {
     private static final String TAG = "DocumentManager";
@@ -47,12 +52,22 @@ public class DocumentManager {
     private final FirebaseStorage storage = FirebaseStorage.getInstance();
     private final FirebaseAuth mAuth = FirebaseAuth.getInstance();
     private final StorageReference mStorageRef = storage.getReference();
+    private final UploadScheduler uploadScheduler = new UploadScheduler(mStorageRef, UploadScheduler.DEFAULT_MAX_PARALLEL);
+    private UploadQueue uploadQueue;
 
     private Context context;
-    private StorageTask mUploadTask;
-    private final Map<String, ArrayList<Image>> imagesNote;
-    private final Map<String, ArrayList<Document>> documentsNote;
-    private final Map<String, ArrayList<Audio>> audiosNote;
+    private AttachmentCache attachmentCache;
+    private final ConcurrentMap<String, ArrayList<Image>> imagesNote;
+    private final ConcurrentMap<String, ArrayList<Document>> documentsNote;
+    private final ConcurrentMap<String, ArrayList<Audio>> audiosNote;
+    private final ConcurrentMap<String, List<AttachmentManifest.Entry>> manifests;
+    private final ConcurrentMap<String, TaskCompletionSource<Void>> loads;
+    private final Map<String, Set<String>> pinnedKeys = new HashMap<>();   // Notas abiertas, solo en el hilo principal
+    private final Map<String, Task<Uri>> audioDownloads = new HashMap<>();   // Solo en el hilo principal
+    private final ExecutorService copyExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService textExecutor = Executors.newSingleThreadExecutor();
+    private NoteIndex noteIndex;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Metodo para crear una instancia de la clase
@@ -74,299 +89,821 @@ public class DocumentManager {
      * Constructor de la clase
      */
     public DocumentManager() {
-        imagesNote = new HashMap<>();
-        documentsNote = new HashMap<>();
-        audiosNote = new HashMap<>();
+        imagesNote = new ConcurrentHashMap<>();
+        documentsNote = new ConcurrentHashMap<>();
+        audiosNote = new ConcurrentHashMap<>();
+        manifests = new ConcurrentHashMap<>();
+        loads = new ConcurrentHashMap<>();
     }
 
     /**
      * Metodo para establecer el conetxto
      * @param context Contexto de la clase
      */
-    public void setContext(Context context){ this.context = context; }
-
-    /**
-     * Metodo para conseguir los documentos
-     * @param documentsID ID de los documentos
-     * @return Array con todos los documentos pedidos
-     */
-    public ArrayList<Document> getDocuments(String documentsID) {
-        if (!documentsNote.containsKey(documentsID)) {
-            ArrayList<Document> docs = new ArrayList<>();
-            documentsNote.put(documentsID, docs);
-            DocumentReference notasRef = db.collection("documents").document(documentsID);
-            final long MEGABYTE = 8192 * 1024;
-
-            notasRef.get().addOnCompleteListener(task -> {
-                if (task.isSuccessful()) {
-                    DocumentSnapshot document = task.getResult();
-                    List<String> group = (List<String>) document.get("files");
-                    ArrayList<String> files = (ArrayList<String>) group;
-
-                    for (String doc : files) {
-                        StorageReference singleDoc = mStorageRef.child(doc);
-                        singleDoc.getBytes(MEGABYTE).addOnSuccessListener(bytes -> {
-                            File file = new File(context.getFilesDir(), doc);
-                            FileOutputStream outputStream = null;
-                            try {
-                                outputStream = context.openFileOutput(doc, Context.MODE_PRIVATE);
-                                outputStream.write(bytes);
-                                Document f = new Document(Uri.fromFile(file));
-                                String base = doc.substring(0, doc.lastIndexOf("@"));
-                                String ext = doc.substring(doc.lastIndexOf("."));
-
-                                // Get Name (without @System.currentTime identifier
-                                f.setName(base + ext);
-                                f.setId(doc);
-                                documentsNote.get(documentsID).add(f);
-                            } catch (FileNotFoundException e) {
-                                e.printStackTrace();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            } finally {
-                                try {
-                                    outputStream.close();
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }).addOnFailureListener(Throwable::printStackTrace);
-                    }
+    public void setContext(Context context){
+        this.context = context;
+        if (attachmentCache == null) {
+            attachmentCache = new AttachmentCache(new File(context.getCacheDir(), "attachments"), AttachmentCache.DEFAULT_MAX_BYTES);
+            copyExecutor.execute(attachmentCache::open);   // Lee el journal fuera del hilo principal
+        }
+        if (uploadQueue == null) {
+            uploadQueue = UploadQueue.getInstance(context);
+            if (uploadQueue.hasPending()) uploadQueue.scheduleWorker();   // Subidas de una sesión anterior
+        }
+    }
+
+    /**
+     * Metodo para establecer el índice de búsqueda en el que se indexa el texto de los documentos
+     * adjuntos cuando se adjuntan o se descargan
+     * @param noteIndex Índice de las Notas, null para no indexar los documentos
+     */
+    public void setNoteIndex(NoteIndex noteIndex) { this.noteIndex = noteIndex; }
+
+    /**
+     * Metodo para conseguir la cache de adjuntos descargados
+     * @return Cache de adjuntos, null si aún no se ha establecido el contexto
+     */
+    public AttachmentCache getAttachmentCache() { return attachmentCache; }
+
+    /**
+     * Interfaz del Listener de carga de un adjunto suelto, p.ej. el fichero de un audio. Las
+     * colecciones completas se esperan con el Task que devuelven loadImages, loadDocuments y loadAudios.
+     */
+    public interface OnAttachmentsLoadedListener {
+        void onAttachmentsLoaded();
+    }
+
+    /**
+     * Interfaz del Listener de las fuentes de un audio. Se llama en el hilo principal.
+     */
+    public interface OnAudioSourcesListener {
+        void onAudioSources(List<Uri> sources);
+    }
+
+    /**
+     * Metodo para conseguir la carga de una colección. La primera petición de cada clave crea su
+     * Task y empieza la descarga; las siguientes, aunque lleguen desde otro hilo mientras se
+     * descarga, reciben el mismo Task sin descargar nada más.
+     * @param key Clave de la colección (tipo + ID)
+     * @param starter Runnable que empieza la descarga, solo se ejecuta en la primera petición
+     * @return Task que se completa cuando la colección está cargada
+     */
+    private Task<Void> load(String key, Runnable starter) {
+        TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+        TaskCompletionSource<Void> running = loads.putIfAbsent(key, source);
+        if (running != null) return running.getTask();
+        starter.run();
+        return source.getTask();
+    }
+
+    /**
+     * Metodo para marcar una colección como cargada y completar su Task
+     * @param key Clave de la colección (tipo + ID)
+     */
+    private void finishLoad(String key) {
+        TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+        TaskCompletionSource<Void> running = loads.putIfAbsent(key, source);
+        (running != null ? running : source).trySetResult(null);
+    }
+
+    /**
+     * Metodo para marcar como fallida la carga de una colección. No se guarda el fallo: se quita su
+     * Task, de modo que la siguiente petición vuelve a intentar la descarga.
+     * @param key Clave de la colección (tipo + ID)
+     * @param exception Causa del fallo
+     */
+    private void failLoad(String key, Exception exception) {
+        TaskCompletionSource<Void> running = loads.remove(key);
+        if (running != null) running.trySetException(exception);
+    }
+
+    /**
+     * Metodo para conseguir la carga de una colección que se monta a partir del manifiesto. Si el
+     * manifiesto no se puede leer la carga falla, en vez de completarse vacía.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param key Clave de la colección (tipo + ID)
+     * @param fetcher Runnable que monta la colección una vez cargado el manifiesto
+     * @return Task que se completa cuando la colección está cargada
+     */
+    private Task<Void> loadFromManifest(String attachmentsID, String key, Runnable fetcher) {
+        return load(key, () -> loadManifest(attachmentsID).addOnCompleteListener(task -> {
+            if (task.isSuccessful()) fetcher.run();
+            else failLoad(key, task.getException());
+        }));
+    }
+
+    /**
+     * Metodo para que la siguiente petición de una colección ya cargada la vuelva a montar, p.ej.
+     * porque la cache ha desalojado alguno de sus ficheros. Las cargas en curso no se tocan.
+     * @param key Clave de la colección (tipo + ID)
+     */
+    private void reload(String key) {
+        TaskCompletionSource<Void> loaded = loads.get(key);
+        if (loaded != null && loaded.getTask().isComplete()) loads.remove(key, loaded);
+    }
+
+    /**
+     * Metodo para fijar en la cache los ficheros de los adjuntos de una Nota mientras está abierta,
+     * de modo que no se desalojen mientras se ven. Los que se añadan después también se fijan.
+     * @param attachmentsID ID de los adjuntos de la Nota, puede ser null
+     */
+    public void pinAttachments(String attachmentsID) {
+        if (attachmentsID == null || attachmentCache == null || pinnedKeys.containsKey(attachmentsID)) return;
+        pinnedKeys.put(attachmentsID, new HashSet<>());
+        loadManifest(attachmentsID).addOnSuccessListener(done -> {
+            List<AttachmentManifest.Entry> entries = manifests.get(attachmentsID);
+            if (entries != null) for (AttachmentManifest.Entry entry : entries) pinKey(attachmentsID, entry.getLocalKey());
+        });
+    }
+
+    /**
+     * Metodo para soltar los ficheros fijados con {@link #pinAttachments(String)}
+     * @param attachmentsID ID de los adjuntos de la Nota, puede ser null
+     */
+    public void unpinAttachments(String attachmentsID) {
+        Set<String> keys = attachmentsID == null ? null : pinnedKeys.remove(attachmentsID);
+        if (keys != null) for (String key : keys) attachmentCache.unpin(key);
+    }
+
+    /**
+     * Metodo para fijar en la cache un fichero de los adjuntos de una Nota, si está abierta
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param key Clave del fichero en la cache
+     */
+    private void pinKey(String attachmentsID, String key) {
+        Set<String> keys = pinnedKeys.get(attachmentsID);
+        if (keys != null && keys.add(key)) attachmentCache.pin(key);
+    }
+
+    /**
+     * Metodo para cargar bajo demanda el manifiesto de adjuntos de una Nota. Es una única lectura
+     * que comparten las cargas de imagenes, documentos y audios.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Task que se completa cuando el manifiesto está disponible
+     */
+    private Task<Void> loadManifest(String attachmentsID) {
+        String key = AttachmentManifest.COLLECTION + "/" + attachmentsID;
+        return load(key, () -> fetchManifest(attachmentsID, key));
+    }
+
+    /**
+     * Metodo para conseguir la lista de un ID en una de las caches, creándola si no existe
+     * @param cache Cache de imagenes, documentos o audios
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Lista del ID, la misma para todas las peticiones
+     */
+    private static <T> ArrayList<T> getList(ConcurrentMap<String, ArrayList<T>> cache, String attachmentsID) {
+        ArrayList<T> list = cache.get(attachmentsID);
+        if (list != null) return list;
+        ArrayList<T> created = new ArrayList<>();
+        list = cache.putIfAbsent(attachmentsID, created);
+        return list != null ? list : created;
+    }
+
+    /**
+     * Metodo para descargar el manifiesto de adjuntos de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param key Clave del manifiesto
+     */
+    private void fetchManifest(String attachmentsID, String key) {
+        AttachmentManifest.getReference(attachmentsID).get().addOnCompleteListener(task -> {
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Error getting attachments " + attachmentsID, task.getException());
+                failLoad(key, task.getException());
+                return;
+            }
+            manifests.put(attachmentsID, AttachmentManifest.getEntries(task.getResult()));
+            finishLoad(key);
+        });
+    }
+
+    /**
+     * Metodo para conseguir las entradas de un tipo del manifiesto ya cargado de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param type Tipo de adjunto
+     * @return Entradas de ese tipo, en orden
+     */
+    private List<AttachmentManifest.Entry> getEntries(String attachmentsID, String type) {
+        List<AttachmentManifest.Entry> entries = new ArrayList<>();
+        List<AttachmentManifest.Entry> manifest = manifests.get(attachmentsID);
+        if (manifest != null) for (AttachmentManifest.Entry entry : manifest) if (type.equals(entry.getType())) entries.add(entry);
+        return entries;
+    }
+
+    /**
+     * Metodo para marcar como cargados los adjuntos de una Nota nueva, que no tiene nada que descargar
+     * @param attachmentsID ID de los adjuntos de la Nota
+     */
+    private void markLoaded(String attachmentsID) {
+        finishLoad(AttachmentManifest.COLLECTION + "/" + attachmentsID);
+        finishLoad("images/" + attachmentsID);
+        finishLoad("documents/" + attachmentsID);
+        finishLoad("audios/" + attachmentsID);
+    }
+
+    /**
+     * Metodo para conseguir los documentos ya cargados de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Array con los documentos cargados (vacío si aún no se han cargado)
+     */
+    public ArrayList<Document> getDocuments(String attachmentsID) {
+        return getList(documentsNote, attachmentsID);
+    }
+
+    /**
+     * Metodo para cargar bajo demanda los documentos de una Nota del Firebase Cloud
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Task con los documentos, que se completa cuando el manifiesto y los ficheros están en
+     * local y falla si no se ha podido leer el manifiesto
+     */
+    public Task<ArrayList<Document>> loadDocuments(String attachmentsID) {
+        String key = "documents/" + attachmentsID;
+        ArrayList<Document> docs = documentsNote.get(attachmentsID);
+        if (docs != null) {
+            boolean evicted = false;
+            for (Iterator<Document> it = docs.iterator(); it.hasNext(); ) {
+                Uri url = it.next().getUrl();
+                if ("file".equals(url.getScheme()) && !new File(url.getPath()).exists()) {
+                    it.remove();
+                    evicted = true;
                 }
+            }
+            if (evicted) reload(key);
+        }
+        return loadFromManifest(attachmentsID, key, () -> fetchDocuments(attachmentsID, key))
+                .onSuccessTask(done -> Tasks.forResult(getDocuments(attachmentsID)));
+    }
+
+    /**
+     * Metodo para descargar los ficheros de los documentos de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param key Clave de la colección
+     */
+    private void fetchDocuments(String attachmentsID, String key) {
+        ArrayList<Document> docs = getDocuments(attachmentsID);
+        List<AttachmentManifest.Entry> files = getEntries(attachmentsID, AttachmentManifest.TYPE_DOCUMENT);
+        if (files.isEmpty()) {
+            finishLoad(key);
+            return;
+        }
+
+        int[] remaining = {files.size()};
+        for (AttachmentManifest.Entry entry : files) {
+            if (containsDocument(docs, entry.getRef())) {
+                if (--remaining[0] == 0) finishLoad(key);
+                continue;
+            }
+            File cached = attachmentCache.get(entry.getLocalKey());
+            if (cached != null) {
+                Document document = newDownloadedDocument(entry, cached);
+                docs.add(document);
+                indexText(attachmentsID, document);
+                if (--remaining[0] == 0) finishLoad(key);
+                continue;
+            }
+            downloadDocument(attachmentsID, entry, docs, () -> {
+                if (--remaining[0] == 0) finishLoad(key);
             });
         }
-        return documentsNote.get(documentsID);
     }
 
     /**
-     * Metodo para recuperar imagenes del Firebase Cloud
-     * @param imagesID ID de las imagenes a recuperar
+     * Metodo para descargar un documento en streaming a la cache. Se descarga primero al fichero
+     * ".part" de la cache, que solo se publica al completarse, de modo que nunca se ve un documento
+     * a medias.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entry Entrada del documento en el manifiesto
+     * @param docs Array donde añadir el documento descargado
+     * @param onComplete Runnable ejecutado al terminar, con éxito o no
      */
-    public void getImagesNote(String imagesID) {
+    private void downloadDocument(String attachmentsID, AttachmentManifest.Entry entry, ArrayList<Document> docs, Runnable onComplete) {
+        String doc = entry.getRef();
+        String localKey = entry.getLocalKey();
+        File file = attachmentCache.getFile(localKey);
+        File partial = attachmentCache.getPartialFile(localKey);
+
+        mStorageRef.child(entry.getStoragePath()).getFile(partial).addOnSuccessListener(taskSnapshot -> {
+            if (!attachmentCache.commit(localKey)) {
+                Log.w(TAG, "Couldn't publish downloaded document " + doc);
+                return;
+            }
+            Document document = newDownloadedDocument(entry, file);
+            docs.add(document);
+            indexText(attachmentsID, document);
+        }).addOnFailureListener(exception -> {
+            Log.w(TAG, "Error downloading document " + doc, exception);
+            attachmentCache.abort(localKey);
+        }).addOnCompleteListener(task -> onComplete.run());
+    }
 
-        if (!imagesNote.containsKey(imagesID)) {
-            ArrayList<Image> images = new ArrayList<>();
-            imagesNote.put(imagesID, images);
-            DocumentReference notasRef = db.collection("images").document(imagesID);
-            notasRef.get().addOnCompleteListener(task -> {
-                if (task.isSuccessful()) {
-                    DocumentSnapshot document = task.getResult();
-                    List<String> group = (List<String>) document.get("images");
-                    ArrayList<String> imagenes = (ArrayList<String>) group;
+    /**
+     * Metodo para indexar en segundo plano el texto de un documento, si su tipo está admitido y no
+     * se había indexado ya. Los documentos grandes se procesan en streaming.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param document Documento, con su fichero local o la Uri elegida por el usuario
+     */
+    private void indexText(String attachmentsID, Document document) {
+        NoteIndex index = noteIndex;
+        String ref = document.getId();
+        if (index == null || context == null || ref == null || !TextExtractor.isSupported(document.getName())) return;
+        textExecutor.execute(() -> {
+            if (index.hasAttachment(attachmentsID, ref)) return;
+            NoteIndex.TermCounter terms = new NoteIndex.TermCounter();
+            try (InputStream in = context.getContentResolver().openInputStream(document.getUrl())) {
+                if (in == null) return;
+                TextExtractor.extract(in, document.getName(), getSize(document.getUrl()), terms);
+            } catch (IOException | RuntimeException exception) {
+                Log.w(TAG, "Couldn't extract text of document " + ref, exception);
+                return;
+            }
+            index.putAttachment(attachmentsID, ref, terms);
+        });
+    }
 
-                    for (String doc : imagenes) {
-                        StorageReference singleDoc = mStorageRef.child(doc);
-                        Image f = new Image(context.getCacheDir(), doc);
-                        singleDoc.getFile(f).addOnSuccessListener(taskSnapshot -> {
-                            // Local temp file has been created
-                        }).addOnFailureListener(Throwable::printStackTrace);
-                        f.setId(doc);
-                        imagesNote.get(imagesID).add(f);
-                    }
+    /**
+     * Metodo para conseguir el tamaño de un fichero a partir de su Uri
+     * @param uri Uri local o de un ContentProvider
+     * @return Tamaño en bytes, -1 si no se conoce
+     */
+    private long getSize(Uri uri) {
+        if ("file".equals(uri.getScheme())) return new File(uri.getPath()).length();
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+            return descriptor == null ? -1 : descriptor.getLength();
+        } catch (IOException exception) {
+            return -1;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException exception) {
+                    Log.d(TAG, "Couldn't close " + uri);
                 }
-            });
+            }
         }
-        imagesNote.get(imagesID);
-    }
-
-    /**
-     * Metodo para conseguir los audios de una Array de audios
-     * @param AudiosID ID del Array de Audios
-     * @return Array con los audios
-     */
-    public ArrayList<Audio> getAudios(String AudiosID) {
-
-        if (!audiosNote.containsKey(AudiosID)) {
-            ArrayList<Audio> audios = new ArrayList<>();
-            DocumentReference notasRef = db.collection("audios").document(AudiosID);
-            notasRef.get().addOnCompleteListener(task -> {
-                if (task.isSuccessful()) {
-                    DocumentSnapshot document = task.getResult();
-                    List<String> group = (List<String>) document.get("files");
-                    ArrayList<String> files = (ArrayList<String>) group;
-
-                    for (String audio : files) {
-                        String filename = context.getExternalCacheDir().getAbsolutePath() + File.separator + audio + ".3gp";
-                        StorageReference singleDoc = mStorageRef.child(audio);
-
-                        File file = new File(filename);
-                        MediaPlayer mp = new MediaPlayer();
-                        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-
-                        if (!(file.length() > 0)) {
-                            singleDoc.getFile(file).addOnSuccessListener(taskSnapshot -> {
-                                retriever.setDataSource(context, Uri.parse(Uri.fromFile(file).toString()));
-                                String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-                                int millSecond = Integer.parseInt(duration);
-                                Audio newAudio = new Audio(audio, filename, millSecond);
-                                audios.add(newAudio);
-
-                                // Local temp file has been created
-                            }).addOnFailureListener(Throwable::printStackTrace);
-
-                        } else{
-                            retriever.setDataSource(context, Uri.parse(Uri.fromFile(file).toString()));
-                            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-                            int millSecond = Integer.parseInt(duration);
-                            audios.add(new Audio(audio, filename, millSecond));
-                        }
-                    }
+    }
+
+    /**
+     * Metodo para crear el Documento de un fichero descargado
+     * @param entry Entrada del documento en el manifiesto
+     * @param file Fichero local del documento
+     * @return Documento con su nombre original
+     */
+    private static Document newDownloadedDocument(AttachmentManifest.Entry entry, File file) {
+        Document f = new Document(Uri.fromFile(file));
+        f.setName(entry.getName() != null ? entry.getName() : getDocumentName(entry.getRef()));
+        f.setId(entry.getRef());
+        return f;
+    }
+
+    /**
+     * Metodo para conseguir el nombre original de un documento a partir de su ID
+     * @param doc ID del documento (nombre@System.currentTime.ext)
+     * @return Nombre del documento, sin el identificador @System.currentTime
+     */
+    public static String getDocumentName(String doc) {
+        if (!doc.contains("@")) return doc;
+        String base = doc.substring(0, doc.lastIndexOf("@"));
+        String ext = doc.substring(doc.lastIndexOf("."));
+        return base + ext;
+    }
+
+    /**
+     * Metodo para saber si un Array de documentos ya contiene un documento
+     * @param docs Array de documentos
+     * @param id ID del documento
+     * @return True si ya está, False si no
+     */
+    private static boolean containsDocument(ArrayList<Document> docs, String id) {
+        for (Document doc : docs) if (id.equals(doc.getId())) return true;
+        return false;
+    }
+
+    /**
+     * Metodo para conseguir las imagenes ya cargadas de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Array con las imagenes cargadas (vacío si aún no se han cargado)
+     */
+    public ArrayList<Image> getImages(String attachmentsID) {
+        return getList(imagesNote, attachmentsID);
+    }
+
+    /**
+     * Metodo para cargar bajo demanda las imagenes de una Nota del Firebase Cloud
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Task con las imagenes, que se completa cuando el manifiesto y los ficheros están en
+     * local y falla si no se ha podido leer el manifiesto
+     */
+    public Task<ArrayList<Image>> loadImages(String attachmentsID) {
+        String key = "images/" + attachmentsID;
+        ArrayList<Image> images = imagesNote.get(attachmentsID);
+        if (images != null) {
+            boolean evicted = false;
+            for (Iterator<Image> it = images.iterator(); it.hasNext(); ) {
+                if (!it.next().exists()) {
+                    it.remove();
+                    evicted = true;
                 }
-            });
+            }
+            if (evicted) reload(key);
+        }
+        return loadFromManifest(attachmentsID, key, () -> fetchImages(attachmentsID, key))
+                .onSuccessTask(done -> Tasks.forResult(getImages(attachmentsID)));
+    }
 
-            audiosNote.put(AudiosID, audios);
+    /**
+     * Metodo para descargar los ficheros de las imagenes de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param key Clave de la colección
+     */
+    private void fetchImages(String attachmentsID, String key) {
+        getImages(attachmentsID);
+        List<AttachmentManifest.Entry> imagenes = getEntries(attachmentsID, AttachmentManifest.TYPE_IMAGE);
+        if (imagenes.isEmpty()) {
+            finishLoad(key);
+            return;
+        }
+
+        // Añadimos las imagenes en el orden del manifiesto una vez descargadas todas
+        Image[] downloaded = new Image[imagenes.size()];
+        int[] remaining = {imagenes.size()};
+        for (int i = 0; i < imagenes.size(); i++) {
+            AttachmentManifest.Entry entry = imagenes.get(i);
+            String localKey = entry.getLocalKey();
+            int index = i;
+            Image f = new Image(attachmentCache.getDirectory(), localKey);
+            f.setId(entry.getRef());
+            if (attachmentCache.get(localKey) != null) {
+                downloaded[index] = f;
+                if (--remaining[0] == 0) publishImages(attachmentsID, downloaded, key);
+                continue;
+            }
+            mStorageRef.child(entry.getStoragePath()).getFile(attachmentCache.getPartialFile(localKey)).addOnSuccessListener(taskSnapshot -> {
+                        if (attachmentCache.commit(localKey)) downloaded[index] = f;
+                    })
+                    .addOnFailureListener(exception -> {
+                        Log.w(TAG, "Error downloading image " + entry.getRef(), exception);
+                        attachmentCache.abort(localKey);
+                    })
+                    .addOnCompleteListener(done -> {
+                        if (--remaining[0] == 0) publishImages(attachmentsID, downloaded, key);
+                    });
         }
-        return audiosNote.get(AudiosID);
     }
 
-    //*******************
-    //   ADD TO CLOUD
-    //*******************
+    /**
+     * Metodo para publicar las imagenes descargadas de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param downloaded Imagenes descargadas, null las que han fallado
+     * @param key Clave de la colección
+     */
+    private void publishImages(String attachmentsID, Image[] downloaded, String key) {
+        ArrayList<Image> images = getImages(attachmentsID);
+        for (Image image : downloaded) if (image != null && !images.contains(image)) images.add(image);
+        finishLoad(key);
+    }
 
+    /**
+     * Metodo para conseguir los audios ya cargados de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Array con los audios cargados (vacío si aún no se han cargado)
+     */
+    public ArrayList<Audio> getAudios(String attachmentsID) {
+        return getList(audiosNote, attachmentsID);
+    }
 
     /**
-     * Metodo para añadir una imagen al Firebase Cloud
-     * @param imagesID ID de la imagen
-     * @param image imagen a subir
-     * @return nuevo ID de la imagen
+     * Metodo para cargar bajo demanda los audios de una Nota del Firebase Cloud
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return Task con los audios, que se completa cuando están descritos a partir del manifiesto y
+     * falla si no se ha podido leer
      */
-    public String addImageToCloud(String imagesID, Image image) {
-        DocumentReference noteRef;
+    public Task<ArrayList<Audio>> loadAudios(String attachmentsID) {
+        String key = "audios/" + attachmentsID;
+        return loadFromManifest(attachmentsID, key, () -> fetchAudios(attachmentsID, key))
+                .onSuccessTask(done -> Tasks.forResult(getAudios(attachmentsID)));
+    }
 
-        if (imagesID == null) {
-            noteRef = db.collection("images").document();
-            imagesID = noteRef.getId();
-        } else noteRef = db.collection("images").document(imagesID);
+    /**
+     * Metodo para montar la lista de audios de una Nota a partir de su manifiesto. No se descarga
+     * ni se lee ningún fichero: la duración, el códec y la forma de onda están en el manifiesto, y
+     * el fichero se descarga al reproducirlo con {@link #loadAudioFile}. Los audios anteriores al
+     * manifiesto único, sin duración, se listan igual y se miden al reproducirlos con {@link #analyzeAudio}.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param key Clave de la colección
+     */
+    private void fetchAudios(String attachmentsID, String key) {
+        ArrayList<Audio> audios = getAudios(attachmentsID);
+        for (AttachmentManifest.Entry entry : getEntries(attachmentsID, AttachmentManifest.TYPE_AUDIO))
+            if (!containsAudio(audios, entry.getRef())) audios.add(newAudio(attachmentsID, entry));
+        finishLoad(key);
+    }
 
-        if (!imagesNote.containsKey(imagesID)) {
-            ArrayList<Image> images = new ArrayList<>();
-            imagesNote.put(imagesID, images);
+    /**
+     * Metodo para calcular la forma de onda y la duración de un audio que no las tiene (un audio
+     * anterior a los picos precalculados o al manifiesto único) y apuntarlas en el manifiesto, para
+     * no volver a decodificarlo. El fichero del audio debe estar ya en local.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param audio Audio a analizar
+     * @param listener Listener avisado cuando el audio tiene su forma de onda y su duración (no se avisa si falla)
+     */
+    public void analyzeAudio(String attachmentsID, Audio audio, OnAttachmentsLoadedListener listener) {
+        // Los segmentados vienen de grabaciones, con picos y duración
+        if ((audio.getWaveform() != null && audio.getDuration() > 0) || audio.isSegmented()) {
+            listener.onAttachmentsLoaded();
+            return;
         }
-        imagesNote.get(imagesID).add(image);
-
-        if (imagesNote.get(imagesID).size() == 1) {
-            String ref = image.getId();             // "-img-" + notas.get(DocumentsID).getBitmaps().indexOf(image);
-            uploadImage(ref, image);
-            Map<String, Object> noteDocuments = new HashMap<>();
-            ArrayList<String> imagenes = new ArrayList<>();
-            imagenes.add(ref);
-            noteDocuments.put("imagesID", imagesID);
-            noteDocuments.put("images", imagenes);
-            String finalDocumentsID = imagesID;
-            noteRef.set(noteDocuments).addOnCompleteListener(task -> {
-                if (task.isSuccessful()) Log.d(TAG, "Note " + finalDocumentsID + "Document correctly saved.");
-                else Log.d(TAG, "Error saving note " + finalDocumentsID, task.getException());
+        File file = new File(audio.getAddress());
+        copyExecutor.execute(() -> {
+            long duration = audio.getDuration() > 0 ? audio.getDuration() : measureDuration(file);
+            byte[] peaks = audio.getWaveform() != null ? audio.getWaveform() : WaveformAnalyzer.getPeaks(file, WaveformSampler.DEFAULT_PEAKS);
+            mainHandler.post(() -> {
+                if (duration <= 0 || peaks == null) return;
+                audio.setDuration(duration);
+                audio.setWaveform(peaks);
+                for (AttachmentManifest.Entry entry : getEntries(attachmentsID, AttachmentManifest.TYPE_AUDIO)) {
+                    if (entry.getRef().equals(audio.getID())) {
+                        entry.setDurationMs(duration);
+                        entry.setWaveform(peaks);
+                        updateEntry(attachmentsID, entry);
+                    }
+                }
+                listener.onAttachmentsLoaded();
             });
+        });
+    }
 
-        } else {
-            uploadImage(image.getId(), image);
-            DocumentReference notasRef = db.collection("images").document(imagesID);
-            notasRef.update("files", FieldValue.arrayUnion(image.getId())).addOnCompleteListener(task1 -> {
-                if (task1.isSuccessful())
-                    Log.d(TAG, "Image " + image.getId() + " correctly saved.");
-                else Log.d(TAG, "Error saving image " + image.getId(), task1.getException());
+    /**
+     * Metodo para reescribir una entrada del manifiesto con sus metadatos actuales
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entry Entrada a reescribir
+     */
+    private void updateEntry(String attachmentsID, AttachmentManifest.Entry entry) {
+        AttachmentManifest.getReference(attachmentsID)
+                .update(FieldPath.of(AttachmentManifest.ENTRIES_FIELD, entry.getRef()), entry.toMap())
+                .addOnFailureListener(exception -> Log.w(TAG, "Couldn't update entry " + entry.getRef(), exception));
+    }
+
+    /**
+     * Metodo para asegurar que el fichero de un audio está en local antes de reproducirlo
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param audio Audio a reproducir
+     * @param listener Listener avisado cuando el fichero está disponible (no se avisa si falla)
+     */
+    public void loadAudioFile(String attachmentsID, Audio audio, OnAttachmentsLoadedListener listener) {
+        if (audio.isAvailable()) {
+            listener.onAttachmentsLoaded();
+            return;
+        }
+        for (AttachmentManifest.Entry entry : getEntries(attachmentsID, AttachmentManifest.TYPE_AUDIO)) {
+            if (entry.getRef().equals(audio.getID())) {
+                downloadAudio(attachmentsID, entry, listener::onAttachmentsLoaded, () -> Log.w(TAG, "Couldn't load audio " + audio.getID()));
+                return;
+            }
+        }
+        Log.w(TAG, "Audio " + audio.getID() + " not found in attachments " + attachmentsID);
+    }
+
+    /**
+     * Metodo para conseguir de dónde reproducir un audio: sus ficheros en la cache. Los que falten
+     * se descargan una sola vez a la cache (los segmentos en paralelo) y se reproducen desde allí,
+     * de modo que el audio no se baja dos veces y el fichero queda listo para analizarlo.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param audio Audio a reproducir
+     * @param listener Listener avisado con las fuentes en orden (no se avisa si falla)
+     */
+    public void getAudioSources(String attachmentsID, Audio audio, OnAudioSourcesListener listener) {
+        AttachmentManifest.Entry audioEntry = null;
+        for (AttachmentManifest.Entry entry : getEntries(attachmentsID, AttachmentManifest.TYPE_AUDIO))
+            if (entry.getRef().equals(audio.getID())) audioEntry = entry;
+        if (audioEntry == null) {
+            // Audio recién grabado, aún no está en el manifiesto cargado: sus ficheros son los locales
+            List<Uri> sources = new ArrayList<>();
+            for (String file : audio.getFiles()) sources.add(Uri.fromFile(new File(file)));
+            listener.onAudioSources(sources);
+            return;
+        }
+
+        List<AttachmentManifest.Entry> files = audioEntry.isSegmented()
+                ? getSegments(attachmentsID, audioEntry.getRef()) : Collections.singletonList(audioEntry);
+        List<Task<Uri>> sources = new ArrayList<>();
+        for (AttachmentManifest.Entry file : files) sources.add(fetchAudioFile(file));
+        Tasks.<Uri>whenAllSuccess(sources)
+                .addOnSuccessListener(listener::onAudioSources)
+                .addOnFailureListener(exception -> Log.w(TAG, "Couldn't resolve audio " + audio.getID(), exception));
+    }
+
+    /**
+     * Metodo para descargar los ficheros de un audio a la cache, si no estaban ya. Los audios
+     * grabados por segmentos descargan todos sus segmentos.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entry Entrada del audio en el manifiesto
+     * @param onSuccess Runnable ejecutado si todos los ficheros están disponibles
+     * @param onFailure Runnable ejecutado si no se ha podido descargar alguno
+     */
+    private void downloadAudio(String attachmentsID, AttachmentManifest.Entry entry, Runnable onSuccess, Runnable onFailure) {
+        if (!entry.isSegmented()) {
+            downloadAudioFile(entry, onSuccess, onFailure);
+            return;
+        }
+        List<AttachmentManifest.Entry> segments = getSegments(attachmentsID, entry.getRef());
+        if (segments.size() < entry.getSegments()) {
+            Log.w(TAG, "Audio " + entry.getRef() + " has " + segments.size() + " of " + entry.getSegments() + " segments stored");
+            onFailure.run();
+            return;
+        }
+        int[] remaining = {segments.size()};
+        boolean[] failed = {false};
+        for (AttachmentManifest.Entry segment : segments) {
+            downloadAudioFile(segment, () -> {
+                if (--remaining[0] == 0) (failed[0] ? onFailure : onSuccess).run();
+            }, () -> {
+                failed[0] = true;
+                if (--remaining[0] == 0) onFailure.run();
             });
         }
+    }
 
-        return imagesID;
+    /**
+     * Metodo para descargar un fichero de audio (o un segmento) a la cache, si no estaba ya
+     * @param entry Entrada del fichero en el manifiesto
+     * @param onSuccess Runnable ejecutado si el fichero está disponible
+     * @param onFailure Runnable ejecutado si no se ha podido descargar
+     */
+    private void downloadAudioFile(AttachmentManifest.Entry entry, Runnable onSuccess, Runnable onFailure) {
+        fetchAudioFile(entry).addOnSuccessListener(uri -> onSuccess.run()).addOnFailureListener(exception -> onFailure.run());
     }
 
     /**
-     * Metodo para añadir un documento al Firebase Cloud
-     * @param DocumentsID ID del documento
-     * @param doc Documento a subir
-     * @return nuevo ID del cdocuemnto
+     * Metodo para conseguir un fichero de audio (o un segmento) de la cache, descargándolo si no
+     * estaba. Las peticiones de un fichero que ya se está descargando esperan a esa descarga.
+     * @param entry Entrada del fichero en el manifiesto
+     * @return Task con la Uri del fichero en la cache
      */
-    public String addDocumentToCloud(String DocumentsID, Document doc) {
-        DocumentReference noteRef;
+    private Task<Uri> fetchAudioFile(AttachmentManifest.Entry entry) {
+        String localKey = entry.getLocalKey();
+        File cached = attachmentCache.get(localKey);
+        if (cached != null) return Tasks.forResult(Uri.fromFile(cached));
+        Task<Uri> running = audioDownloads.get(localKey);
+        if (running != null) return running;
+
+        TaskCompletionSource<Uri> download = new TaskCompletionSource<>();
+        audioDownloads.put(localKey, download.getTask());
+        mStorageRef.child(entry.getStoragePath()).getFile(attachmentCache.getPartialFile(localKey)).addOnSuccessListener(taskSnapshot -> {
+            audioDownloads.remove(localKey);
+            if (attachmentCache.commit(localKey)) download.setResult(Uri.fromFile(attachmentCache.getFile(localKey)));
+            else download.setException(new IOException("Couldn't publish audio " + entry.getRef()));
+        }).addOnFailureListener(exception -> {
+            Log.w(TAG, "Error downloading audio " + entry.getRef(), exception);
+            audioDownloads.remove(localKey);
+            attachmentCache.abort(localKey);
+            download.setException(exception);
+        });
+        return download.getTask();
+    }
 
-        if (DocumentsID == null) {
-            noteRef = db.collection("documents").document();
-            DocumentsID = noteRef.getId();
-        } else noteRef = db.collection("documents").document(DocumentsID);
+    /**
+     * Metodo para crear el Audio de una entrada del manifiesto, con sus ficheros en la cache
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entry Entrada del audio
+     * @return Audio con sus metadatos
+     */
+    private Audio newAudio(String attachmentsID, AttachmentManifest.Entry entry) {
+        ArrayList<String> files = new ArrayList<>();
+        if (entry.isSegmented())
+            for (AttachmentManifest.Entry segment : getSegments(attachmentsID, entry.getRef()))
+                files.add(attachmentCache.getFile(segment.getLocalKey()).getAbsolutePath());
+        String filename = files.isEmpty() ? attachmentCache.getFile(entry.getLocalKey()).getAbsolutePath() : files.get(0);
+        Audio audio = new Audio(entry.getRef(), filename, entry.getDurationMs());
+        audio.setCodec(entry.getCodec());
+        audio.setBitRate(entry.getBitRate());
+        audio.setWaveform(entry.getWaveform());
+        if (entry.isSegmented()) audio.setSegments(files);
+        return audio;
+    }
 
+    /**
+     * Metodo para conseguir los segmentos ya cargados de un audio grabado por partes
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param audioRef Referencia del audio
+     * @return Segmentos del audio, en orden
+     */
+    private List<AttachmentManifest.Entry> getSegments(String attachmentsID, String audioRef) {
+        return AttachmentManifest.getSegments(getEntries(attachmentsID, AttachmentManifest.TYPE_AUDIO_SEGMENT), audioRef);
+    }
 
-        if (documentsNote.containsKey(DocumentsID)) documentsNote.get(DocumentsID).add(doc);
-        else {
-            ArrayList<Document> docs = new ArrayList<>();
-            docs.add(doc);
-            documentsNote.put(DocumentsID, docs);
-            //notas.get(DocumentsID).getDocuments().add(doc);
+    /**
+     * Metodo para medir la duración de un audio que no la tiene en el manifiesto
+     * @param file Fichero del audio
+     * @return Duración en milisegundos, 0 si no se puede leer
+     */
+    private static long measureDuration(File file) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getAbsolutePath());
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return duration == null ? 0 : Long.parseLong(duration);
+        } catch (RuntimeException exception) {
+            Log.w(TAG, "Couldn't measure audio " + file, exception);
+            return 0;
+        } finally {
+            retriever.release();
         }
+    }
 
-        if (documentsNote.get(DocumentsID).size() == 1) {
-            String ref = doc.getId();
-            uploadDocument(ref, doc);
-
-            Map<String, Object> noteDocuments = new HashMap<>();
-            ArrayList<String> files = new ArrayList<>();
-            files.add(ref);
-            noteDocuments.put("DocumentsID", DocumentsID);
-            noteDocuments.put("files", files);
-            String finalDocumentsID = DocumentsID;
-            noteRef.set(noteDocuments).addOnCompleteListener(task -> {
-                if (task.isSuccessful()) Log.d(TAG, "Note " + finalDocumentsID + "Document correctly saved.");
-                else Log.d(TAG, "Error saving note " + finalDocumentsID, task.getException());
-            });
+    /**
+     * Metodo para saber si un Array de audios ya contiene un audio
+     * @param audios Array de audios
+     * @param id ID del audio
+     * @return True si ya está, False si no
+     */
+    private static boolean containsAudio(ArrayList<Audio> audios, String id) {
+        for (Audio audio : audios) if (id.equals(audio.getID())) return true;
+        return false;
+    }
 
-        } else {
-            uploadDocument(doc.getId(), doc);
-            DocumentReference notasRef = db.collection("documents").document(DocumentsID);
-            notasRef.update("files", FieldValue.arrayUnion(doc.getId())).addOnCompleteListener(task1 -> {
-                if (task1.isSuccessful()) Log.d(TAG, "Document " + doc.getId() + " correctly saved.");
-                else Log.d(TAG, "Error saving document " + doc.getId(), task1.getException());
-            });
-        }
+    //*******************
+    //   ADD TO CLOUD
+    //*******************
 
-        return DocumentsID;
+
+    /**
+     * Metodo para añadir una imagen al Firebase Cloud
+     * @param attachmentsID ID de los adjuntos de la Nota, null si aún no tiene
+     * @param image imagen a subir
+     * @return ID de los adjuntos de la Nota
+     */
+    public String addImageToCloud(String attachmentsID, Image image) {
+        attachmentsID = ensureAttachmentsID(attachmentsID);
+
+        getImages(attachmentsID).add(image);
+
+        // El manifiesto se actualiza cuando la imagen ya está en el Storage
+        uploadImage(attachmentsID, image.getId(), image);
+        return attachmentsID;
+    }
+
+    /**
+     * Metodo para añadir un documento al Firebase Cloud
+     * @param attachmentsID ID de los adjuntos de la Nota, null si aún no tiene
+     * @param doc Documento a subir
+     * @return ID de los adjuntos de la Nota
+     */
+    public String addDocumentToCloud(String attachmentsID, Document doc) {
+        attachmentsID = ensureAttachmentsID(attachmentsID);
+
+        getDocuments(attachmentsID).add(doc);
+        indexText(attachmentsID, doc);
+
+        uploadDocument(attachmentsID, doc.getId(), doc);
+        return attachmentsID;
     }
 
     /**
      * Metodo para añadir un audio al Firebase Cloud
-     * @param AudiosID Id del Array de audios
+     * @param attachmentsID ID de los adjuntos de la Nota, null si aún no tiene
      * @param audio Audio a añadir
-     * @return Nuevo ID del Audio
+     * @return ID de los adjuntos de la Nota
      */
-    public String addAudioToCloud(String AudiosID, Audio audio) {
-        DocumentReference noteRef;
-        if (AudiosID == null) {
-            noteRef = db.collection("audios").document();
-            AudiosID = noteRef.getId();
-        } else noteRef = db.collection("audios").document(AudiosID);
+    public String addAudioToCloud(String attachmentsID, Audio audio) {
+        attachmentsID = ensureAttachmentsID(attachmentsID);
 
-        if (audiosNote.containsKey(AudiosID)) audiosNote.get(AudiosID).add(audio);
-        else {
-            ArrayList<Audio> audios = new ArrayList<>();
-            audios.add(audio);
-            audiosNote.put(AudiosID, audios);
-        }
+        getAudios(attachmentsID).add(audio);
 
-        if (audiosNote.get(AudiosID).size() == 1) {
-            String ref = audio.getID();// "-img-" + notas.get(DocumentsID).getBitmaps().indexOf(image);
-            uploadAudio(audio);
-            Map<String, Object> noteAudios = new HashMap<>();
-            ArrayList<String> files = new ArrayList<>();
-            files.add(ref);
-            noteAudios.put("audiosID", AudiosID);
-            noteAudios.put("files", files);
-            String finalDocumentsID = AudiosID;
-            noteRef.set(noteAudios).addOnCompleteListener(new OnCompleteListener<Void>() {
-                @Override
-                public void onComplete(@NonNull Task<Void> task) {
-                    if (task.isSuccessful()) Log.d(TAG, "Note " + finalDocumentsID + "Document correctly saved.");
-                    else Log.d(TAG, "Error saving note " + finalDocumentsID, task.getException());
-                }
-            });
+        uploadAudio(attachmentsID, audio);
+        return attachmentsID;
+    }
 
-        } else {
-            uploadAudio(audio);
-            DocumentReference notasRef = db.collection("documents").document(AudiosID);
-            notasRef.update("files", FieldValue.arrayUnion(audio.getID())).addOnCompleteListener(task1 -> {
-                if (task1.isSuccessful()) Log.d(TAG, "Audio " + audio.getID() + " correctly saved.");
-                else Log.d(TAG, "Error saving audio " + audio.getID(), task1.getException());
-            });
-        }
-        return AudiosID;
+    /**
+     * Metodo para subir un segmento de un audio que aún se está grabando. Cada segmento se sube
+     * como un blob propio, pero no se apunta en el manifiesto hasta que llega su audio al terminar
+     * con {@link #addAudioToCloud}; al parar solo queda por subir el último segmento.
+     * @param attachmentsID ID de los adjuntos de la Nota, null si aún no tiene
+     * @param audioRef Referencia del audio
+     * @param index Posición del segmento
+     * @param segment Fichero del segmento, ya cerrado
+     * @return ID de los adjuntos de la Nota
+     */
+    public String addAudioSegment(String attachmentsID, String audioRef, int index, File segment) {
+        attachmentsID = ensureAttachmentsID(attachmentsID);
+        AttachmentManifest.Entry entry = new AttachmentManifest.Entry(AttachmentManifest.getSegmentRef(audioRef, index), AttachmentManifest.TYPE_AUDIO_SEGMENT);
+        entry.setParent(audioRef);
+        entry.setOrder(index);
+        enqueueUpload(attachmentsID, entry, Uri.fromFile(segment));
+        return attachmentsID;
+    }
+
+    /**
+     * Metodo para conseguir el ID de los adjuntos de una Nota, creándolo si aún no tiene
+     * @param attachmentsID ID de los adjuntos de la Nota, puede ser null
+     * @return ID de los adjuntos de la Nota
+     */
+    private String ensureAttachmentsID(String attachmentsID) {
+        if (attachmentsID != null) return attachmentsID;
+        attachmentsID = AttachmentManifest.newID();
+        markLoaded(attachmentsID);   // Manifiesto nuevo: no hay nada que descargar
+        return attachmentsID;
     }
 
     //*******************
@@ -375,232 +912,473 @@ public class DocumentManager {
 
     /**
      * Metodo para subir las imagenes al layout de las notas rectangulares
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @param ref Referencia para subir
      * @param image Imagen
      */
-    private void uploadImage(String ref, Image image) {
-        final Boolean[] success = {false};
-        StorageReference file = mStorageRef.child(ref);
-        mUploadTask = file.putFile(Uri.fromFile(image)).addOnSuccessListener(taskSnapshot -> success[0] = true);
+    private void uploadImage(String attachmentsID, String ref, Image image) {
+        AttachmentManifest.Entry entry = new AttachmentManifest.Entry(ref, AttachmentManifest.TYPE_IMAGE);
+        entry.setContentType("image/webp");
+        enqueueUpload(attachmentsID, entry, Uri.fromFile(image));
     }
 
     /**
      * Metodo para subir un documento al layout de las notas
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @param ref Referencia a subir
      * @param document Documento
      */
-    private void uploadDocument(String ref, Document document) {
-        final Boolean[] success = {false};
-        StorageReference file = mStorageRef.child(ref);
-        mUploadTask = file.putFile(document.getUrl()).addOnSuccessListener(taskSnapshot -> success[0] = true);
+    private void uploadDocument(String attachmentsID, String ref, Document document) {
+        AttachmentManifest.Entry entry = new AttachmentManifest.Entry(ref, AttachmentManifest.TYPE_DOCUMENT);
+        entry.setName(document.getName());
+        entry.setContentType(context.getContentResolver().getType(document.getUrl()));
+        enqueueUpload(attachmentsID, entry, document.getUrl());
     }
 
     /**
      * Metodo para subir un audio al layout de las notas
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @param audio Audio a subir
      */
-    private void uploadAudio(Audio audio) {
-        final Boolean[] success = {false};
-        StorageReference file = mStorageRef.child(audio.getID());
-        mUploadTask = file.putFile(Uri.fromFile(new File(audio.getAddress()))).addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
-            @Override
-            public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) { success[0] = true; }
-        });
+    private void uploadAudio(String attachmentsID, Audio audio) {
+        AttachmentManifest.Entry entry = new AttachmentManifest.Entry(audio.getID(), AttachmentManifest.TYPE_AUDIO);
+        entry.setContentType(RecordingProfile.forCodec(audio.getCodec()).getContentType());
+        entry.setDurationMs(audio.getDuration());
+        entry.setCodec(audio.getCodec());
+        entry.setBitRate(audio.getBitRate());
+        entry.setWaveform(audio.getWaveform());
+        if (!audio.isSegmented()) {
+            enqueueUpload(attachmentsID, entry, Uri.fromFile(new File(audio.getAddress())));
+            return;
+        }
+        // Los segmentos se suben por su cuenta con addAudioSegment: el audio solo es su entrada, que
+        // se apunta junto con ellos cuando estén todos subidos
+        entry.setSegments(audio.getFiles().size());
+        uploadQueue.stageAudio(attachmentsID, entry);
+        commitAudio(attachmentsID, entry.getRef());
     }
 
-    //*******************
-    //      COPY
-    //*******************
+    /**
+     * Metodo para descartar los segmentos ya subidos de una grabación que no ha llegado a guardarse
+     * (p.ej. ha fallado al parar o se ha cerrado la nota mientras se grababa)
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param audioRef Referencia del audio
+     * @param segments Número de segmentos entregados
+     */
+    public void discardRecording(String attachmentsID, String audioRef, int segments) {
+        for (int i = 0; i < segments; i++) uploadQueue.discard(attachmentsID, AttachmentManifest.getSegmentRef(audioRef, i));
+    }
 
     /**
-     * Método para copiar las imágenes de una Nota (por referencia) y devolver el nuevo imagesID
-     * de la colección "images". Permite hacer un 'deep clone' de una Nota.
-     * @param imagesID ID de las imágenes de la Nota a copiar
-     * @return nuevo imageID de las imágenes de la Nota duplicada.
-     */
-    public String copyImages(String imagesID) {
-        Image copyImage;
-        String newImageID = null;
-        for (int i = 0; i < imagesArraySize(imagesID); i++) {
-            try {
-                copyImage = BitmapToImage(BitmapFactory.decodeFile(selectImageFromArray(imagesID, i)));
-                newImageID = addImageToCloud(newImageID, copyImage);
-            } catch (IOException exc) {
-                Log.e(TAG, "Couldn't copy image...");
+     * Metodo para encolar la subida de un adjunto. Se guarda primero en la cola persistente, de modo
+     * que si la app muere a medias la termina el UploadWorker, y se sube desde la copia local.
+     * Antes de subirlo se suma su referencia al blob; si ya hay un blob con el mismo contenido no se
+     * sube nada: solo se apunta en el manifiesto.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entry Entrada del adjunto en el manifiesto
+     * @param source Uri del adjunto original
+     */
+    private void enqueueUpload(String attachmentsID, AttachmentManifest.Entry entry, Uri source) {
+        uploadQueue.stage(attachmentsID, entry, source, upload -> {
+            if (AttachmentManifest.TYPE_IMAGE.equals(entry.getType())) {
+                // Las imagenes vienen de un fichero temporal (la ingesta o una copia): pasan a leerse
+                // de su copia preparada para subir y el temporal se borra
+                moveImage(attachmentsID, upload.getRef(), upload.getFile());
+                if (!new File(source.getPath()).delete()) Log.d(TAG, "Temporary image already gone: " + source);
             }
-        }
-        return newImageID;
+            uploadQueue.acquireBlob(upload).addOnCompleteListener(stored -> {
+                if (!stored.isSuccessful()) {
+                    Log.w(TAG, "Couldn't reference blob of " + upload.getRef(), stored.getException());
+                    uploadQueue.release(upload);   // Lo reintentará el UploadWorker
+                } else if (stored.getResult()) commitUpload(upload);
+                else uploadScheduler.enqueue(upload.getGroupID(), upload.getRef(), upload.getStoragePath(),
+                        Uri.fromFile(upload.getFile()), () -> commitUpload(upload), () -> uploadQueue.release(upload));
+            });
+        });
     }
 
     /**
-     * Método para copiar los Documentos de una Nota (por referencia) y devolver el nuevo documentID
-     * de la colección "documents". Permite hacer un 'deep clone' de una Nota.
-     * @param documentsID ID de los docus de la Nota a copiar
-     * @return nuevo documentID de las docus de la Nota duplicada.
+     * Metodo para que una imagen ya cargada de una Nota pase a leerse de otro fichero con el mismo contenido
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param ref Referencia de la imagen
+     * @param file Fichero nuevo de la imagen
      */
-    public String copyDocuments(String documentsID) {
-        String newDocuID = null;
-
-        for (Document copyDocu : getDocuments(documentsID)) {
-
-            // Change @System.currentMillis identifier
-            String doc = copyDocu.getId();
-            String base = doc.substring(0, doc.lastIndexOf("@"));
-            String ext = doc.substring(doc.lastIndexOf("."));
-            Document newDocument = new Document(copyDocu.getUrl());
-            newDocument.setName(copyDocu.getName());
-            newDocument.setId(base + "@" + System.currentTimeMillis() + ext);
-            newDocuID = addDocumentToCloud(newDocuID, newDocument);
+    private void moveImage(String attachmentsID, String ref, File file) {
+        ArrayList<Image> images = imagesNote.get(attachmentsID);
+        if (images == null) return;
+        for (int i = 0; i < images.size(); i++) {
+            if (!ref.equals(images.get(i).getId())) continue;
+            Image moved = new Image(file.getParentFile(), file.getName());
+            moved.setId(ref);
+            images.set(i, moved);
+            return;
         }
-        return newDocuID;
     }
 
     /**
-     * Método para copiar los Audios de una Nota (por referencia) y devolver el nuevo audiosID
-     * de la colección "audios". Permite hacer un 'deep clone' de una Nota.
-     * @param audiosID ID de las audios de la Nota a copiar
-     * @return nuevo audioID de los audios de la Nota duplicada.
+     * Metodo para apuntar en su manifiesto un adjunto ya subido al Storage
+     * @param upload Subida terminada
      */
-    public String copyAudios(String audiosID) {
-        String newAudioID = null;
+    private void commitUpload(UploadQueue.PendingUpload upload) {
+        if (!uploadQueue.isPending(upload)) {
+            // Se eliminó mientras se subía: el blob se borra si nadie más lo referencia ni lo va a apuntar
+            if (upload.getHash() != null && !uploadQueue.hasPendingBlob(upload.getHash()))
+                BlobStore.discard(upload.getHash()).addOnFailureListener(exception -> Log.w(TAG, "Couldn't discard blob of " + upload.getRef(), exception));
+            return;
+        }
+        if (upload.isAudioPart()) {
+            // Los segmentos esperan en la cola a su audio, que llega al parar la grabación
+            uploadQueue.markUploaded(upload);
+            commitAudio(upload.getAttachmentsID(), upload.getAudioRef());
+            return;
+        }
+        uploadQueue.commitManifest(upload).addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                cacheUpload(upload);
+                uploadQueue.complete(upload);
+                Log.d(TAG, "Attachment " + upload.getRef() + " correctly saved.");
+            } else {
+                Log.d(TAG, "Error saving attachment " + upload.getRef(), task.getException());
+                uploadQueue.release(upload);   // Lo reintentará el UploadWorker
+            }
+        });
+    }
 
-        for (Audio copyAudio : getAudios(audiosID)) {
+    /**
+     * Metodo para apuntar en su manifiesto un audio grabado por segmentos junto con todos sus
+     * segmentos, en una sola escritura, si ya está parada la grabación y subidos todos los segmentos.
+     * Así nunca queda en el manifiesto un segmento sin su audio.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param audioRef Referencia del audio
+     */
+    private void commitAudio(String attachmentsID, String audioRef) {
+        List<UploadQueue.PendingUpload> uploads = uploadQueue.claimAudio(attachmentsID, audioRef);
+        if (uploads == null) return;   // Aún se está grabando o faltan segmentos por subir
+        uploadQueue.commitManifest(uploads).addOnCompleteListener(task -> {
+            if (task.isSuccessful()) Log.d(TAG, "Audio " + audioRef + " correctly saved.");
+            else Log.d(TAG, "Error saving audio " + audioRef, task.getException());
+            for (UploadQueue.PendingUpload upload : uploads) {
+                if (!task.isSuccessful()) uploadQueue.release(upload);   // Lo reintentará el UploadWorker
+                else {
+                    cacheUpload(upload);
+                    uploadQueue.complete(upload);
+                }
+            }
+        });
+    }
 
-            // Change @System.currentMillis identifier
-            Audio newAudioFile = new Audio(String.valueOf(System.currentTimeMillis()),
-                    copyAudio.getAddress(), copyAudio.getDuration());
+    /**
+     * Metodo para pasar a la cache la copia local de un adjunto ya apuntado en su manifiesto, para
+     * no tener que descargarla al copiar la nota
+     * @param upload Subida terminada
+     */
+    private void cacheUpload(UploadQueue.PendingUpload upload) {
+        String hash = upload.getHash();
+        if (hash == null || upload.getFile() == null || !upload.getFile().renameTo(attachmentCache.getFile(hash))) return;
+        attachmentCache.commit(hash);
+        pinKey(upload.getAttachmentsID(), hash);
+        moveImage(upload.getAttachmentsID(), upload.getRef(), attachmentCache.getFile(hash));
+    }
 
-            newAudioID = addAudioToCloud(newAudioID, newAudioFile);
-        }
-        return newAudioID;
+    /**
+     * Metodo para saber si todos los adjuntos de una Nota están guardados en el Storage
+     * @param attachmentsID ID de los adjuntos de la Nota, puede ser null
+     * @return True si no queda ninguna subida pendiente, False si no
+     */
+    public boolean areAttachmentsStored(String attachmentsID) {
+        return attachmentsID == null || !uploadQueue.hasPending(attachmentsID);
     }
 
     //*******************
-    //      REMOVES
+    //      COPY
     //*******************
 
     /**
-     * Metodo para borrar una imegen de una nota
-     * @param imagesID ID de la imagen a borrar
-     * @param currentItem Item en el qu eestamos trabajando
+     * Método para copiar los adjuntos de una Nota (por referencia) y devolver el nuevo attachmentsID.
+     * Las entradas con hash se copian escribiendo el nuevo manifiesto y sumando una referencia a sus
+     * blobs, todo en un único batch: permite hacer un 'deep clone' de una Nota sin subir nada. Las
+     * anteriores a los blobs se copian volviéndolas a subir una vez descargadas. Si no se puede leer
+     * el manifiesto de origen la copia falla sin escribir nada, en vez de quedarse sin adjuntos.
+     * @param attachmentsID ID de los adjuntos de la Nota a copiar
+     * @return Task con el nuevo attachmentsID de la Nota duplicada, que se completa al escribir su
+     * manifiesto
      */
-    public void removeImageFromNote(String imagesID, int currentItem) {
-        String ref = imagesNote.get(imagesID).get(currentItem).getId();         //+ "-img-" + (currentItem);
-        DocumentReference notasRef = db.collection("images").document(imagesID);
+    public Task<String> copyAttachments(String attachmentsID) {
+        String newID = AttachmentManifest.newID();
+        String newKey = AttachmentManifest.COLLECTION + "/" + newID;
+        loads.putIfAbsent(newKey, new TaskCompletionSource<>());   // Las cargas de la copia esperan a que se escriba el manifiesto
+        TaskCompletionSource<String> copied = new TaskCompletionSource<>();
+
+        AttachmentManifest.getReference(attachmentsID).get().addOnCompleteListener(task -> {
+            if (!task.isSuccessful()) {
+                Log.e(TAG, "Error reading attachments " + attachmentsID + " to copy", task.getException());
+                failLoad(newKey, task.getException());
+                copied.setException(task.getException());
+                return;
+            }
+            List<AttachmentManifest.Entry> entries = AttachmentManifest.getEntries(task.getResult());
+            long timestamp = System.currentTimeMillis();
+
+            Map<String, Object> newEntries = new HashMap<>();
+            Map<String, Long> references = new HashMap<>();
+            Map<String, String> newRefs = new HashMap<>();
+            ArrayList<String> legacyRefs = new ArrayList<>();
+            ArrayList<AttachmentManifest.Entry> copies = new ArrayList<>();
+            for (AttachmentManifest.Entry entry : entries) {
+                String hash = entry.getHash();
+                if (hash == null && !entry.isSegmented()) {
+                    legacyRefs.add(entry.getRef());
+                    continue;
+                }
+                AttachmentManifest.Entry copy = entry.copy(newRef(entry, timestamp, copies.size()));
+                newRefs.put(entry.getRef(), copy.getRef());
+                copies.add(copy);
+                if (hash == null) continue;
+                Long count = references.get(hash);
+                references.put(hash, count == null ? 1 : count + 1);
+            }
+            for (AttachmentManifest.Entry copy : copies) {
+                // Los segmentos apuntan a la copia de su audio
+                if (copy.getParent() != null) copy.setParent(newRefs.get(copy.getParent()));
+                newEntries.put(copy.getRef(), copy.toMap());
+            }
 
-        imagesNote.get(imagesID).remove(currentItem);
-        notasRef.get().addOnCompleteListener(task -> {
+            WriteBatch batch = db.batch();
+            Map<String, Object> manifest = new HashMap<>();
+            manifest.put(AttachmentManifest.ID_FIELD, newID);
+            manifest.put(AttachmentManifest.ENTRIES_FIELD, newEntries);
+            batch.set(AttachmentManifest.getReference(newID), manifest);
+            for (Map.Entry<String, Long> reference : references.entrySet())
+                BlobStore.addReferences(batch, reference.getKey(), reference.getValue());
+
+            batch.commit().addOnCompleteListener(written -> {
+                if (!written.isSuccessful()) {
+                    Log.e(TAG, "Error copying attachments " + attachmentsID, written.getException());
+                    failLoad(newKey, written.getException());
+                    copied.setException(written.getException());
+                    return;
+                }
+                Log.d(TAG, "Attachments " + newID + " copied from " + attachmentsID);
+                fetchManifest(newID, newKey);
+                if (!legacyRefs.isEmpty()) copyLegacy(attachmentsID, newID, legacyRefs);
+                copied.setResult(newID);
+            });
+        });
+        return copied.getTask();
+    }
 
-            if (task.isSuccessful()) {
-                DocumentSnapshot document = task.getResult();
-                List<String> group = (List<String>) document.get("images");
-                ArrayList<String> imagenes = (ArrayList<String>) group;
-                imagenes.remove(ref);
-
-                Map<String, Object> noteDocuments = new HashMap<>();
-                noteDocuments.put("imagesID", imagesID);
-                noteDocuments.put("images", imagenes);
-                notasRef.update(noteDocuments).addOnCompleteListener(task1 -> {
-                    if (task1.isSuccessful()) Log.d(TAG, "Note Image " + imagesID + "Document correctly update.");
-                    else Log.d(TAG, "Error updating image note " + imagesID, task1.getException());
+    /**
+     * Metodo para generar la referencia de un adjunto copiado. Los documentos conservan su nombre
+     * y cambian el identificador @System.currentMillis.
+     * @param entry Entrada a copiar
+     * @param timestamp Instante de la copia
+     * @param index Posición de la entrada en la copia
+     * @return Nueva referencia
+     */
+    private static String newRef(AttachmentManifest.Entry entry, long timestamp, int index) {
+        String ref = entry.getRef();
+        if (!AttachmentManifest.TYPE_DOCUMENT.equals(entry.getType()) || !ref.contains("@")) return timestamp + "-" + index;
+        return ref.substring(0, ref.lastIndexOf("@")) + "@" + timestamp + "-" + index + ref.substring(ref.lastIndexOf("."));
+    }
+
+    /**
+     * Metodo para copiar los adjuntos anteriores a los blobs, que no tienen hash y se copian
+     * volviéndolos a subir una vez descargados
+     * @param sourceID ID de los adjuntos de la Nota a copiar
+     * @param newID ID de los adjuntos de la Nota duplicada
+     * @param legacyRefs Referencias de los adjuntos sin hash
+     */
+    private void copyLegacy(String sourceID, String newID, List<String> legacyRefs) {
+        long timestamp = System.currentTimeMillis();
+        loadImages(sourceID).addOnSuccessListener(images -> {
+            ArrayList<Image> sources = new ArrayList<>();
+            for (Image image : images) if (legacyRefs.contains(image.getId())) sources.add(image);
+
+            // Copiamos los bytes tal cual en segundo plano: sin decodificar ni perder calidad
+            copyExecutor.execute(() -> {
+                ArrayList<Image> copies = new ArrayList<>();
+                for (int i = 0; i < sources.size(); i++) {
+                    String ref = timestamp + "-legacy-" + i;
+                    Image copyImage = new Image(context.getCacheDir(), ref);
+                    copyImage.setId(ref);
+                    try {
+                        FileUtils.copyFile(sources.get(i), copyImage);
+                        copies.add(copyImage);
+                    } catch (IOException exc) {
+                        Log.e(TAG, "Couldn't copy image " + sources.get(i).getId(), exc);
+                    }
+                }
+                mainHandler.post(() -> {
+                    for (Image copyImage : copies) addImageToCloud(newID, copyImage);
                 });
-                StorageReference singleDoc = mStorageRef.child(ref);
-                singleDoc.delete();
+            });
+        });
+        loadDocuments(sourceID).addOnSuccessListener(documents -> {
+            int index = 0;
+            for (Document copyDocu : new ArrayList<>(documents)) {
+                if (!legacyRefs.contains(copyDocu.getId())) continue;
+                AttachmentManifest.Entry entry = new AttachmentManifest.Entry(copyDocu.getId(), AttachmentManifest.TYPE_DOCUMENT);
+                Document newDocument = new Document(copyDocu.getUrl());
+                newDocument.setName(copyDocu.getName());
+                newDocument.setId(newRef(entry, timestamp, index++));
+                addDocumentToCloud(newID, newDocument);
             }
         });
+        loadAudios(sourceID).addOnSuccessListener(audios -> {
+            int index = 0;
+            for (Audio copyAudio : new ArrayList<>(audios)) {
+                if (!legacyRefs.contains(copyAudio.getID())) continue;
+                Audio newAudio = new Audio(timestamp + "-legacy-a" + index++, copyAudio.getAddress(), copyAudio.getDuration());
+                newAudio.setCodec(copyAudio.getCodec());
+                newAudio.setBitRate(copyAudio.getBitRate());
+                newAudio.setWaveform(copyAudio.getWaveform());
+                // La lista de audios no descarga los ficheros: hay que tenerlo en local para subirlo
+                loadAudioFile(sourceID, copyAudio, () -> addAudioToCloud(newID, newAudio));
+            }
+        });
+    }
+
+    //*******************
+    //      REMOVES
+    //*******************
+
+    /**
+     * Metodo para borrar una imegen de una nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param currentItem Item en el qu eestamos trabajando
+     */
+    public void removeImageFromNote(String attachmentsID, int currentItem) {
+        String ref = imagesNote.get(attachmentsID).get(currentItem).getId();
+        imagesNote.get(attachmentsID).remove(currentItem);
+        uploadQueue.discard(attachmentsID, ref);   // Si aún no se había subido, no llegará a subirse
+        removeFromManifest(attachmentsID, ref);
     }
 
     /**
      * Metodo ara eliminar un documentos de la una nota
-     * @param documentsID ID del documento a borrar
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @param currentItem Item en el que estamos trabajando
      */
-    public void removeDocumentFromNote(String documentsID, Document currentItem) {
+    public void removeDocumentFromNote(String attachmentsID, Document currentItem) {
         String ref = currentItem.getId();
-        DocumentReference notasRef = db.collection("documents").document(documentsID);
-
-        documentsNote.get(documentsID).remove(currentItem);
-        notasRef.get().addOnCompleteListener(task -> {
-
-            if (task.isSuccessful()) {
-                DocumentSnapshot document = task.getResult();
-                List<String> group = (List<String>) document.get("files");
-                ArrayList<String> documents = (ArrayList<String>) group;
-                documents.remove(ref);
-
-                Map<String, Object> noteDocuments = new HashMap<>();
-                noteDocuments.put("DocumentsID", documentsID);
-                noteDocuments.put("files", documents);
-                notasRef.update(noteDocuments).addOnCompleteListener(task1 -> {
-                    if (task1.isSuccessful()) Log.d(TAG, "Note Image " + documentsID + "Document correctly update.");
-                    else Log.d(TAG, "Error updating image note " + documentsID, task1.getException());
-                });
-                StorageReference singleDoc = mStorageRef.child(ref);
-                singleDoc.delete();
-            }
-        });
+        documentsNote.get(attachmentsID).remove(currentItem);
+        if (noteIndex != null) noteIndex.removeAttachment(attachmentsID, ref);
+        uploadQueue.discard(attachmentsID, ref);
+        removeFromManifest(attachmentsID, ref);
     }
 
     /**
      * Metodo para borrar un audio de una nota
-     * @param AudiosID ID del Array de audios
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @param currentItem Item en el que etsamos trabajando
      */
-    public void removeAudioFromNote(String AudiosID, Audio currentItem) {
+    public void removeAudioFromNote(String attachmentsID, Audio currentItem) {
         String ref = currentItem.getID();
-        DocumentReference notasRef = db.collection("audios").document(AudiosID);
+        audiosNote.get(attachmentsID).remove(currentItem);
+        uploadQueue.discard(attachmentsID, ref);
+        if (currentItem.isSegmented())
+            for (int i = 0; i < currentItem.getFiles().size(); i++) uploadQueue.discard(attachmentsID, AttachmentManifest.getSegmentRef(ref, i));
+        removeFromManifest(attachmentsID, ref);
+    }
 
-        audiosNote.get(AudiosID).remove(currentItem);
+    /**
+     * Metodo para quitar un adjunto del manifiesto. Si tiene hash se libera su referencia al blob,
+     * que solo se borra del Storage si era la última; si no, se borra el fichero directamente.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param ref Referencia del adjunto
+     */
+    private void removeFromManifest(String attachmentsID, String ref) {
+        DocumentReference notasRef = AttachmentManifest.getReference(attachmentsID);
         notasRef.get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                DocumentSnapshot document = task.getResult();
-                List<String> group = (List<String>) document.get("files");
-                ArrayList<String> audios = (ArrayList<String>) group;
-                audios.remove(ref);
-
-                Map<String, Object> noteAudios = new HashMap<>();
-                noteAudios.put("audiosID", AudiosID);
-                noteAudios.put("files", audios);
-                notasRef.update(noteAudios).addOnCompleteListener(task1 -> {
-                    if (task1.isSuccessful()) Log.d(TAG, "Note Image " + AudiosID + "Document correctly update.");
-                    else Log.d(TAG, "Error updating image note " + AudiosID, task1.getException());
-                });
-                StorageReference singleDoc = mStorageRef.child(ref);
-                singleDoc.delete();
+            if (!task.isSuccessful() || !task.getResult().exists()) return;
+            List<AttachmentManifest.Entry> entries = AttachmentManifest.getEntries(task.getResult());
+            List<AttachmentManifest.Entry> removed = new ArrayList<>();
+            for (AttachmentManifest.Entry e : entries) if (ref.equals(e.getRef())) removed.add(e);
+            if (removed.isEmpty()) return;
+            removed.addAll(AttachmentManifest.getSegments(entries, ref));   // Un audio por segmentos se lleva sus segmentos
+
+            WriteBatch batch = db.batch();
+            for (AttachmentManifest.Entry e : removed)
+                batch.update(notasRef, FieldPath.of(AttachmentManifest.ENTRIES_FIELD, e.getRef()), FieldValue.delete());
+            batch.commit().addOnCompleteListener(task1 -> {
+                if (!task1.isSuccessful()) {
+                    Log.d(TAG, "Error updating attachments " + attachmentsID, task1.getException());
+                    return;
+                }
+                Log.d(TAG, "Attachments " + attachmentsID + " correctly updated.");
+                for (AttachmentManifest.Entry e : removed) releaseEntry(e);
+            });
+        });
+    }
 
+    /**
+     * Metodo para borrar todos los adjuntos de una Nota: se descartan las subidas pendientes, se
+     * libera cada blob y se borra el manifiesto
+     * @param attachmentsID ID de los adjuntos de la Nota
+     */
+    public void deleteAttachments(String attachmentsID) {
+        if (uploadQueue != null) uploadQueue.discardAll(attachmentsID);
+        imagesNote.remove(attachmentsID);
+        documentsNote.remove(attachmentsID);
+        audiosNote.remove(attachmentsID);
+        manifests.remove(attachmentsID);
+
+        DocumentReference notasRef = AttachmentManifest.getReference(attachmentsID);
+        notasRef.get().addOnCompleteListener(task -> {
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Error getting attachments " + attachmentsID, task.getException());
+                return;
             }
+            List<AttachmentManifest.Entry> entries = AttachmentManifest.getEntries(task.getResult());
+            notasRef.delete().addOnSuccessListener(aVoid -> {
+                Log.d(TAG, "Attachments " + attachmentsID + " correctly deleted.");
+                for (AttachmentManifest.Entry entry : entries) releaseEntry(entry);
+            }).addOnFailureListener(e -> Log.w(TAG, "Error deleting attachments " + attachmentsID, e));
         });
     }
 
+    /**
+     * Metodo para liberar el fichero de un adjunto quitado del manifiesto
+     * @param entry Entrada quitada
+     */
+    private void releaseEntry(AttachmentManifest.Entry entry) {
+        if (entry.isSegmented()) return;   // Sin fichero propio: se liberan sus segmentos
+        if (entry.getHash() != null) BlobStore.release(entry.getHash());
+        else {
+            mStorageRef.child(entry.getStoragePath()).delete();
+            if (attachmentCache != null) attachmentCache.remove(entry.getLocalKey());
+        }
+    }
+
 
     /**
      * Metodo para saber si un Array de Imagenes contiene imagenes
-     * @param imagesID ID del array de imagenes que queremos saber si esta vacio
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @return True si contiene imagenes, False si no
      */
-    public boolean arrayImagesEmpty(String imagesID) {
-        if (imagesNote.containsKey(imagesID)) return imagesNote.get(imagesID).isEmpty();
-        else return true;
+    public boolean arrayImagesEmpty(String attachmentsID) {
+        ArrayList<Image> images = imagesNote.get(attachmentsID);
+        return images == null || images.isEmpty();
     }
 
     /**
      * Metodo para saber si un Array de Documentos contiene documentos
-     * @param documentsID ID del array de documentos que queremos saber si esta vacio
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @return True si contiene documentos, False si no
      */
-    public boolean arrayDocumentEmpty(String documentsID) {
-        if (documentsNote.containsKey(documentsID))  return documentsNote.get(documentsID).isEmpty();
-        else return true;
+    public boolean arrayDocumentEmpty(String attachmentsID) {
+        ArrayList<Document> docs = documentsNote.get(attachmentsID);
+        return docs == null || docs.isEmpty();
     }
 
     /**
      * Metodo para saber si un Array de Audios contiene audios
-     * @param AudiosID ID del array de Audios que queremos saber si esta vacio
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @return True si contiene Audios, False si no
      */
-    public boolean arrayAudiosEmpty(String AudiosID) {
-        if (audiosNote.containsKey(AudiosID)) return audiosNote.get(AudiosID).isEmpty();
-        else return true;
+    public boolean arrayAudiosEmpty(String attachmentsID) {
+        ArrayList<Audio> audios = audiosNote.get(attachmentsID);
+        return audios == null || audios.isEmpty();
     }
 
     //*****************
@@ -609,49 +1387,25 @@ public class DocumentManager {
 
     /**
      * Metodo para conseguir una imagen de su Array de imagenes
-     * @param imagesID Id del Array de imagenes
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @param position Posicion de la imagen en el Array
      * @return Path de la imagen
      */
-    public String selectImageFromArray(String imagesID,int position) { return imagesNote.get(imagesID).get(position).getPath(); }
+    public String selectImageFromArray(String attachmentsID,int position) { return imagesNote.get(attachmentsID).get(position).getPath(); }
 
     /**
      * Metodo para saber el tamaño de un Array de imagenes
-     * @param imagesID ID del Array de imagenes
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @return Tamaño del Array de imagenes
-     */public int imagesArraySize(String imagesID) {
-        if (imagesNote.containsKey(imagesID)) return imagesNote.get(imagesID).size();
-        return 0;
+     */public int imagesArraySize(String attachmentsID) {
+        ArrayList<Image> images = imagesNote.get(attachmentsID);
+        return images == null ? 0 : images.size();
     }
 
     /**
      * Metodo para saber el tamaño de un Array de documentos
-     * @param documentsID ID del Array de documentos
+     * @param attachmentsID ID de los adjuntos de la Nota
      * @return Tamaño del Array de documentos
      */
-    public int documentArraySize(String documentsID) { return documentsNote.get(documentsID).size(); }
-
-    /**
-     * Metodo para transformar un Bitmap en una Imagen
-     * @param bitmap Bitmap a transformar
-     * @return Imagen resultante
-     * @throws IOException Excepción debia a un fallo de lectura del OutputStream
-     */
-    public Image BitmapToImage(Bitmap bitmap) throws IOException {
-        Image f = new Image(getApplicationContext().getCacheDir(), String.valueOf(System.currentTimeMillis()));
-        f.setId(String.valueOf(System.currentTimeMillis()));
-        f.createNewFile();
-
-        //Convert bitmap to byte array
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 50 /*ignored for PNG*/, bos);
-        byte[] bitmapdata = bos.toByteArray();
-
-        //write the bytes in file
-        FileOutputStream fos = new FileOutputStream(f);
-        fos.write(bitmapdata);
-        fos.flush();
-        fos.close();
-        return f;
-    }
-}
\ No newline at end of file
+    public int documentArraySize(String attachmentsID) { return documentsNote.get(attachmentsID).size(); }
+}
@@ -0,0 +1,482 @@
+package com.example.lize.models;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Segmento inmutable del índice de búsqueda guardado en disco. El fichero se mapea en memoria y
+ * se consulta tal cual: el diccionario de palabras está ordenado y se busca por bisección, y las
+ * listas de Notas de cada palabra se leen directamente del fichero, sin deserializarlo. Solo los
+ * IDs de las Notas se leen al abrirlo. Las Notas editadas o eliminadas después de escribir el
+ * segmento se marcan como borradas; el fichero nunca se modifica, así que las marcas se guardan
+ * aparte, con los IDs borrados, para que no vuelvan a aparecer al reabrirlo.
+ * <p>
+ * Formato (enteros big-endian): cabecera, tabla de Notas, diccionario de palabras, listas de
+ * Notas por palabra, palabras de cada Nota, diccionario de trigramas, palabras por trigrama y
+ * cadenas (longitud + UTF-8). Todas las tablas tienen entradas de tamaño fijo.
+ */
+final class IndexSegment {
+    private static final int MAGIC = 0x4C5A4958;     // "LZIX"
+    private static final int FORMAT = 1;
+    private static final int HEADER_BYTES = 12 * 4;
+    private static final int DOC_BYTES = 24;          // id, longitud, firma (long), inicio y número de palabras
+    private static final int TERM_BYTES = 12;         // palabra, inicio y número de entradas
+    private static final int POSTING_BYTES = 8;       // Nota, frecuencia
+    private static final int GRAM_BYTES = 12;         // trigrama, inicio y número de palabras
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String DELETIONS_SUFFIX = ".del";   // Fichero con los IDs borrados del segmento
+
+    private final File file;
+    private final long generation;
+    private final ByteBuffer buffer;
+    private final int docCount;
+    private final int termCount;
+    private final int gramCount;
+    private final int docsOffset;
+    private final int termsOffset;
+    private final int postingsOffset;
+    private final int docTermsOffset;
+    private final int gramsOffset;
+    private final int gramTermsOffset;
+    private final String[] ids;
+    private final BitSet deleted = new BitSet();
+
+    private IndexSegment(File file, long generation, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.generation = generation;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT)
+            throw new IOException("Not a search segment: " + file);
+        docCount = buffer.getInt(8);
+        termCount = buffer.getInt(12);
+        gramCount = buffer.getInt(16);
+        docsOffset = buffer.getInt(20);
+        termsOffset = buffer.getInt(24);
+        postingsOffset = buffer.getInt(28);
+        docTermsOffset = buffer.getInt(32);
+        gramsOffset = buffer.getInt(36);
+        gramTermsOffset = buffer.getInt(40);
+        ids = new String[docCount];
+        for (int doc = 0; doc < docCount; doc++) ids[doc] = readString(buffer.getInt(docsOffset + doc * DOC_BYTES));
+    }
+
+    /**
+     * Metodo para abrir un segmento mapeando su fichero en memoria
+     * @param file Fichero del segmento
+     * @param generation Generación del segmento: con Notas repetidas, vale la de la más nueva
+     * @return Segmento abierto
+     * @throws IOException Si el fichero no se puede leer o no es un segmento válido
+     */
+    static IndexSegment open(File file, long generation) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            // El mapeo sigue siendo válido después de cerrar el canal
+            IndexSegment segment = new IndexSegment(file, generation, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            segment.readDeletions();
+            return segment;
+        } catch (RuntimeException exception) {
+            throw new IOException("Corrupted search segment " + file, exception);
+        }
+    }
+
+    /**
+     * Metodo para conseguir el fichero con los IDs borrados de un segmento
+     * @param file Fichero del segmento
+     * @return Fichero de borrados, puede no existir
+     */
+    static File getDeletionsFile(File file) {
+        return new File(file.getPath() + DELETIONS_SUFFIX);
+    }
+
+    /**
+     * Metodo para marcar como borradas las Notas guardadas en el fichero de borrados
+     * @throws IOException Si el fichero existe pero no se puede leer
+     */
+    private void readDeletions() throws IOException {
+        File deletions = getDeletionsFile(file);
+        if (!deletions.exists()) return;
+        Set<String> deletedIDs = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(deletions), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) if (!line.isEmpty()) deletedIDs.add(line);
+        }
+        for (int doc = 0; doc < docCount; doc++) if (deletedIDs.contains(ids[doc])) deleted.set(doc);
+    }
+
+    /**
+     * Metodo para guardar los IDs borrados del segmento, sustituyendo los anteriores. Se escribe
+     * en un fichero temporal que se renombra al terminar; sin borrados, el fichero se elimina.
+     * @param deletedIDs IDs borrados, de {@link #getDeletedIDs}
+     * @throws IOException Si no se ha podido escribir
+     */
+    void writeDeletions(List<String> deletedIDs) throws IOException {
+        File deletions = getDeletionsFile(file);
+        if (deletedIDs.isEmpty()) {
+            if (deletions.exists() && !deletions.delete()) throw new IOException("Couldn't delete " + deletions);
+            return;
+        }
+        File partial = new File(deletions.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(partial)) {
+            Writer writer = new OutputStreamWriter(stream, UTF_8);
+            for (String id : deletedIDs) writer.write(id + "\n");
+            writer.flush();
+            stream.getFD().sync();
+        }
+        if (!partial.renameTo(deletions)) throw new IOException("Couldn't publish search deletions " + deletions);
+    }
+
+    File getFile() { return file; }
+    long getGeneration() { return generation; }
+    int getDocCount() { return docCount; }
+    int getTermCount() { return termCount; }
+
+    String getNoteID(int doc) { return ids[doc]; }
+    int getLength(int doc) { return buffer.getInt(docsOffset + doc * DOC_BYTES + 4); }
+    long getSignature(int doc) { return buffer.getLong(docsOffset + doc * DOC_BYTES + 8); }
+
+    boolean isDeleted(int doc) { return deleted.get(doc); }
+    void delete(int doc) { deleted.set(doc); }
+
+    /**
+     * Metodo para copiar las Notas borradas, p.ej. para fusionar el segmento en segundo plano
+     * @return Copia de las marcas de borrado
+     */
+    BitSet getDeleted() { return (BitSet) deleted.clone(); }
+
+    /**
+     * Metodo para conseguir los IDs de las Notas borradas, p.ej. para guardarlos en segundo plano
+     * @return IDs borrados
+     */
+    List<String> getDeletedIDs() {
+        List<String> deletedIDs = new ArrayList<>();
+        for (int doc = deleted.nextSetBit(0); doc >= 0; doc = deleted.nextSetBit(doc + 1)) deletedIDs.add(ids[doc]);
+        return deletedIDs;
+    }
+
+    String getTerm(int term) { return readString(buffer.getInt(termsOffset + term * TERM_BYTES)); }
+    int getPostingCount(int term) { return buffer.getInt(termsOffset + term * TERM_BYTES + 8); }
+
+    int getPostingDoc(int term, int index) {
+        return buffer.getInt(postingsOffset + (buffer.getInt(termsOffset + term * TERM_BYTES + 4) + index) * POSTING_BYTES);
+    }
+
+    int getPostingFrequency(int term, int index) {
+        return buffer.getInt(postingsOffset + (buffer.getInt(termsOffset + term * TERM_BYTES + 4) + index) * POSTING_BYTES + 4);
+    }
+
+    /**
+     * Metodo para buscar una palabra en el diccionario
+     * @param term Palabra normalizada
+     * @return Ordinal de la palabra, -1 si no está
+     */
+    int findTerm(String term) {
+        int ordinal = lowerBound(term);
+        return ordinal < termCount && getTerm(ordinal).equals(term) ? ordinal : -1;
+    }
+
+    /**
+     * Metodo para conseguir el rango de palabras del diccionario que empiezan por un prefijo
+     * @param prefix Prefijo normalizado
+     * @return {primera, última + 1}; vacío si las dos son iguales
+     */
+    int[] prefixRange(String prefix) {
+        int low = lowerBound(prefix);
+        int high = lowerBound(prefix + Character.MAX_VALUE);
+        return new int[]{low, high};
+    }
+
+    /**
+     * Metodo para conseguir las palabras de un rango del diccionario que están en más Notas. Solo
+     * se leen los contadores de las listas, no las palabras.
+     * @param range Rango de palabras, de {@link #prefixRange}
+     * @param limit Número máximo de palabras
+     * @return Ordinales de las palabras, todas las del rango si no pasan del máximo
+     */
+    int[] getFrequentTerms(int[] range, int limit) {
+        int size = Math.max(0, range[1] - range[0]);
+        if (size <= limit) {
+            int[] terms = new int[size];
+            for (int i = 0; i < size; i++) terms[i] = range[0] + i;
+            return terms;
+        }
+        // Montículo de mínimos por número de entradas con las 'limit' mejores vistas
+        int[] heap = new int[limit];
+        int count = 0;
+        for (int ordinal = range[0]; ordinal < range[1]; ordinal++) {
+            if (count < limit) {
+                heap[count] = ordinal;
+                siftUp(heap, count++);
+            } else if (getPostingCount(ordinal) > getPostingCount(heap[0])) {
+                heap[0] = ordinal;
+                siftDown(heap, limit);
+            }
+        }
+        return heap;
+    }
+
+    private void siftUp(int[] heap, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (getPostingCount(heap[parent]) <= getPostingCount(heap[index])) return;
+            swap(heap, parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int size) {
+        int index = 0;
+        while (true) {
+            int smallest = index;
+            for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++)
+                if (getPostingCount(heap[child]) < getPostingCount(heap[smallest])) smallest = child;
+            if (smallest == index) return;
+            swap(heap, smallest, index);
+            index = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, int a, int b) {
+        int value = heap[a];
+        heap[a] = heap[b];
+        heap[b] = value;
+    }
+
+    /**
+     * Metodo para saber si una Nota tiene alguna palabra de un rango del diccionario. Las palabras
+     * de cada Nota están guardadas por ordinal, así que basta una bisección.
+     * @param doc Nota del segmento
+     * @param range Rango de palabras, de {@link #prefixRange}
+     * @return True si la Nota tiene alguna, False si no
+     */
+    boolean hasTermInRange(int doc, int[] range) {
+        if (range[0] >= range[1]) return false;
+        int start = buffer.getInt(docsOffset + doc * DOC_BYTES + 16);
+        int count = buffer.getInt(docsOffset + doc * DOC_BYTES + 20);
+        int low = 0, high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getInt(docTermsOffset + (start + middle) * 4) < range[0]) low = middle + 1;
+            else high = middle;
+        }
+        return low < count && buffer.getInt(docTermsOffset + (start + low) * 4) < range[1];
+    }
+
+    /**
+     * Metodo para conseguir las palabras del diccionario que tienen un trigrama
+     * @param gram Trigrama
+     * @return Ordinales de las palabras, vacío si no hay ninguna
+     */
+    int[] getGramTerms(String gram) {
+        int low = 0, high = gramCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (readString(buffer.getInt(gramsOffset + middle * GRAM_BYTES)).compareTo(gram) < 0) low = middle + 1;
+            else high = middle;
+        }
+        if (low >= gramCount || !readString(buffer.getInt(gramsOffset + low * GRAM_BYTES)).equals(gram)) return new int[0];
+        int start = buffer.getInt(gramsOffset + low * GRAM_BYTES + 4);
+        int[] terms = new int[buffer.getInt(gramsOffset + low * GRAM_BYTES + 8)];
+        for (int i = 0; i < terms.length; i++) terms[i] = buffer.getInt(gramTermsOffset + (start + i) * 4);
+        return terms;
+    }
+
+    /**
+     * Metodo para conseguir el primer ordinal cuya palabra no es menor que la dada
+     * @param term Palabra a buscar
+     * @return Ordinal, termCount si todas son menores
+     */
+    private int lowerBound(String term) {
+        int low = 0, high = termCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTerm(middle).compareTo(term) < 0) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Metodo para leer una cadena del fichero
+     * @param offset Posición de la cadena
+     * @return Cadena
+     */
+    private String readString(int offset) {
+        byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 2);
+        view.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Constructor de segmentos: acumula las Notas y sus palabras y las escribe en el formato del
+     * segmento. Las entradas de cada palabra se deben añadir en orden de Nota.
+     */
+    static class Builder {
+        private final List<String> ids = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final List<Long> signatures = new ArrayList<>();
+        private final TreeMap<String, List<int[]>> postings = new TreeMap<>();
+
+        /**
+         * Metodo para añadir una Nota
+         * @param noteID ID de la Nota
+         * @param length Palabras de la Nota
+         * @param signature Firma del texto indexado
+         * @return Número de la Nota en el segmento
+         */
+        int addDoc(String noteID, int length, long signature) {
+            ids.add(noteID);
+            lengths.add(length);
+            signatures.add(signature);
+            return ids.size() - 1;
+        }
+
+        /**
+         * Metodo para añadir una palabra de una Nota
+         * @param term Palabra normalizada
+         * @param doc Número de la Nota en el segmento
+         * @param frequency Apariciones de la palabra en la Nota
+         */
+        void addPosting(String term, int doc, int frequency) {
+            List<int[]> list = postings.get(term);
+            if (list == null) {
+                list = new ArrayList<>();
+                postings.put(term, list);
+            }
+            list.add(new int[]{doc, frequency});
+        }
+
+        boolean isEmpty() { return ids.isEmpty(); }
+
+        /**
+         * Metodo para escribir el segmento. Se escribe en un fichero temporal que se renombra al
+         * terminar, así que nunca se ve un segmento a medias.
+         * @param file Fichero del segmento
+         * @throws IOException Si no se ha podido escribir
+         */
+        void write(File file) throws IOException {
+            // Palabras de cada Nota por ordinal: al recorrer el diccionario en orden salen ordenadas
+            List<List<Integer>> docTerms = new ArrayList<>();
+            for (int doc = 0; doc < ids.size(); doc++) docTerms.add(new ArrayList<>());
+            TreeMap<String, List<Integer>> grams = new TreeMap<>();
+            int ordinal = 0;
+            int postingTotal = 0;
+            for (Map.Entry<String, List<int[]>> term : postings.entrySet()) {
+                for (int[] posting : term.getValue()) docTerms.get(posting[0]).add(ordinal);
+                postingTotal += term.getValue().size();
+                for (String gram : getTrigrams(term.getKey())) {
+                    List<Integer> terms = grams.get(gram);
+                    if (terms == null) {
+                        terms = new ArrayList<>();
+                        grams.put(gram, terms);
+                    }
+                    terms.add(ordinal);
+                }
+                ordinal++;
+            }
+            int gramTermTotal = 0;
+            for (List<Integer> terms : grams.values()) gramTermTotal += terms.size();
+
+            int docsOffset = HEADER_BYTES;
+            int termsOffset = docsOffset + ids.size() * DOC_BYTES;
+            int postingsOffset = termsOffset + postings.size() * TERM_BYTES;
+            int docTermsOffset = postingsOffset + postingTotal * POSTING_BYTES;
+            int gramsOffset = docTermsOffset + postingTotal * 4;
+            int gramTermsOffset = gramsOffset + grams.size() * GRAM_BYTES;
+            int stringsOffset = gramTermsOffset + gramTermTotal * 4;
+
+            List<byte[]> strings = new ArrayList<>();
+            int stringBytes = 0;
+            for (String id : ids) stringBytes += addString(strings, id);
+            for (String term : postings.keySet()) stringBytes += addString(strings, term);
+            for (String gram : grams.keySet()) stringBytes += addString(strings, gram);
+
+            ByteBuffer out = ByteBuffer.allocate(stringsOffset + stringBytes);
+            out.putInt(MAGIC).putInt(FORMAT).putInt(ids.size()).putInt(postings.size()).putInt(grams.size())
+                    .putInt(docsOffset).putInt(termsOffset).putInt(postingsOffset).putInt(docTermsOffset)
+                    .putInt(gramsOffset).putInt(gramTermsOffset).putInt(stringsOffset);
+
+            int stringOffset = stringsOffset;
+            int stringIndex = 0;
+            int termStart = 0;
+            for (int doc = 0; doc < ids.size(); doc++) {
+                out.putInt(stringOffset).putInt(lengths.get(doc)).putLong(signatures.get(doc))
+                        .putInt(termStart).putInt(docTerms.get(doc).size());
+                stringOffset += strings.get(stringIndex++).length + 2;
+                termStart += docTerms.get(doc).size();
+            }
+            int postingStart = 0;
+            for (List<int[]> list : postings.values()) {
+                out.putInt(stringOffset).putInt(postingStart).putInt(list.size());
+                stringOffset += strings.get(stringIndex++).length + 2;
+                postingStart += list.size();
+            }
+            for (List<int[]> list : postings.values()) for (int[] posting : list) out.putInt(posting[0]).putInt(posting[1]);
+            for (List<Integer> terms : docTerms) for (int term : terms) out.putInt(term);
+            int gramStart = 0;
+            for (List<Integer> terms : grams.values()) {
+                out.putInt(stringOffset).putInt(gramStart).putInt(terms.size());
+                stringOffset += strings.get(stringIndex++).length + 2;
+                gramStart += terms.size();
+            }
+            for (List<Integer> terms : grams.values()) for (int term : terms) out.putInt(term);
+            for (byte[] bytes : strings) out.putShort((short) bytes.length).put(bytes);
+
+            File partial = new File(file.getPath() + ".tmp");
+            try (FileOutputStream stream = new FileOutputStream(partial)) {
+                stream.write(out.array());
+                stream.getFD().sync();
+            }
+            if (!partial.renameTo(file)) throw new IOException("Couldn't publish search segment " + file);
+        }
+
+        /**
+         * Metodo para añadir una cadena a la tabla de cadenas
+         * @param strings Tabla de cadenas en UTF-8
+         * @param value Cadena
+         * @return Bytes que ocupa en el fichero
+         */
+        private static int addString(List<byte[]> strings, String value) {
+            byte[] bytes = value.getBytes(UTF_8);
+            strings.add(bytes);
+            return bytes.length + 2;
+        }
+    }
+
+    /**
+     * Metodo para partir una palabra en los trigramas del índice, marcada con '$' en los extremos
+     * @param term Palabra normalizada
+     * @return Trigramas distintos de la palabra
+     */
+    static Set<String> getTrigrams(String term) {
+        return getGrams("$" + term + "$");
+    }
+
+    /**
+     * Metodo para partir una palabra ya marcada en trigramas
+     * @param padded Palabra marcada
+     * @return Trigramas distintos
+     */
+    static Set<String> getGrams(String padded) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) grams.add(padded.substring(i, i + 3));
+        return grams;
+    }
+}
@@ -11,6 +11,7 @@ import com.example.lize.data.User;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 
@@ -25,9 +26,12 @@ public class MainViewModel extends ViewModel{
     private final MutableLiveData<Note> mNoteSelected;
     private final MutableLiveData<String> mToast;
     private final MutableLiveData<Boolean> mViewUpdated;
+    private final MutableLiveData<ArrayList<Note>> mNotesLoaded;
 
     private final DatabaseAdapter databaseAdapter;
     private final DocumentManager documentManager;
+    private final NoteIndex noteIndex;
+    private File indexDirectory;
 
     /**
      * Constructor de la clase
@@ -40,10 +44,13 @@ public class MainViewModel extends ViewModel{
         mToast = new MutableLiveData<>();
         mViewUpdated = new MutableLiveData<>();
         mViewUpdated.setValue(false);
+        mNotesLoaded = new MutableLiveData<>();
 
         // Enlazamos con la base de datos, reconstruyendo la jerarquía del modelo a partir del Usuario Registrado
         this.databaseAdapter = DatabaseAdapter.getInstance();
         this.documentManager = DocumentManager.getInstance();
+        this.noteIndex = new NoteIndex();
+        documentManager.setNoteIndex(noteIndex);     // El texto de los documentos adjuntos también se busca
 
         databaseAdapter.setLoaderListener(new UserBuilder());
         databaseAdapter.initFireBase();
@@ -90,6 +97,34 @@ public class MainViewModel extends ViewModel{
      */
     public MutableLiveData<Boolean> getViewUpdate(){ return mViewUpdated; }
 
+    /**
+     * Metodo para conseguir la última página de Notas cargada de DB
+     * @return Notas de la última página, todas del mismo Ámbito
+     */
+    public MutableLiveData<ArrayList<Note>> getNotesLoaded() { return mNotesLoaded; }
+
+    /**
+     * Metodo para conseguir el índice de búsqueda de las Notas del Usuario
+     * @return Índice de las Notas de todos los Ámbitos
+     */
+    public NoteIndex getNoteIndex() { return noteIndex; }
+
+    /**
+     * Metodo para establecer dónde se guarda el índice de búsqueda. Cada Usuario tiene su propio
+     * subdirectorio, que se abre al cargar el Usuario.
+     * @param directory Directorio de los índices, null para mantenerlos solo en memoria
+     */
+    public void setIndexDirectory(File directory) { this.indexDirectory = directory; }
+
+    /**
+     * Escribimos a disco lo que quede del índice en memoria
+     */
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        noteIndex.flush();
+    }
+
 
     //***************************
     //      SELECT & DESELECT
@@ -129,6 +164,8 @@ public class MainViewModel extends ViewModel{
             Folder folder = mAmbitoSelected.getValue().getFolder(folderName);
             if (folder != null) {
                 setToast("Folder " + folderName + " selected.");
+                // Pedimos a DB las Notas de la Carpeta que aún no se hayan cargado con su Ámbito
+                databaseAdapter.getFolderNotes(mAmbitoSelected.getValue().getSelfID(), folderName);
                 mFolderSelected.setValue(folder);
             } else Log.w(TAG, "Failed to select folder " + folder.getName()  + ": invalid Name.");
 
@@ -158,7 +195,8 @@ public class MainViewModel extends ViewModel{
 
 
     /**
-     * Selecciona una Nota del Ámbito actual mAmbitoSelected.
+     * Selecciona una Nota del Ámbito actual mAmbitoSelected. Si no está en él, se busca en los demás
+     * Ámbitos del Usuario, p.ej. al abrir un resultado de la búsqueda global.
      * @param noteID ID de la Nota seleccionada.
      * @throws NullPointerException Si el Ámbito actual no ha sido correctamente seleccionado.
      */
@@ -171,6 +209,15 @@ public class MainViewModel extends ViewModel{
                     return;
                 }
             }
+            for (Ambito ambito : mUserSelected.getValue().getAmbitos()) {
+                for (Note note : ambito.getNotes()) {
+                    if (note.getSelfID().equals(noteID)) {
+                        setToast("Note " + note.getTitle() + " selected.");
+                        mNoteSelected.setValue(note);
+                        return;
+                    }
+                }
+            }
             Log.w(TAG, "Failed to select note " + noteID + ": invalid ID.");
 
         } catch(NullPointerException exception) {
@@ -227,6 +274,7 @@ public class MainViewModel extends ViewModel{
                 return;
             }
             mAmbitoSelected.getValue().addFolder(folderName);           // Añadimos una nueva Carpeta al Ámbito seleccionado
+            databaseAdapter.saveAmbito(mAmbitoSelected.getValue());     // Guardamos la Carpeta aunque aún no tenga Notas
             mAmbitoSelected.setValue(mAmbitoSelected.getValue());       // Actualizamos la colección de carpetas del Ámbito seleccionado
             setToast("Folder " + folderName + " correctly created.");   // Creamos Toast informativo
 
@@ -242,15 +290,13 @@ public class MainViewModel extends ViewModel{
      * @param text_plain Texto plano de la Nota a añadir.
      * @param text_html Texto en formato HTML de la Nota a añadir.
      * @param audios booleano para determinar si la nota tiene audios
-     * @param audiosID identificador de la colección audios de la nota
+     * @param attachmentsID identificador del manifiesto de adjuntos de la nota
      * @throws NullPointerException Si el Ámbito actual no ha sido correctamente seleccionado.
      */
-    public void addNote(String noteName, String text_plain, String text_html, Boolean images, Boolean documents, Boolean audios, String documentsID, String imagesID, String audiosID) {
+    public void addNote(String noteName, String text_plain, String text_html, Boolean images, Boolean documents, Boolean audios, String attachmentsID) {
         try {
             Note newNote = new Note(noteName, text_plain, text_html);   // Creamos una nueva Nota
-            newNote.setDocumentsID(documentsID);
-            newNote.setImagesID(imagesID);
-            newNote.setAudiosID(audiosID);
+            newNote.setAttachmentsID(attachmentsID);
             newNote.setHaveAudios(audios);
             newNote.setHaveDocuments(documents);
             newNote.setHaveImages(images);
@@ -261,6 +307,7 @@ public class MainViewModel extends ViewModel{
             mAmbitoSelected.getValue().addNote(newNote);                // Añadimos esa Nota al Ámbito seleccionado
             mFolderSelected.setValue(mFolderSelected.getValue());       // Actualizamos la colección de Notas de la Folder seleccionada
             databaseAdapter.saveNote(newNote);                          // Guardamos la Nota en DB
+            noteIndex.put(newNote);                                     // Indexamos la Nota, ya con su ID
             setToast("Note " + noteName + " correctly created.");       // Creamos Toast Informativo
 
         } catch(NullPointerException exception) {
@@ -338,24 +385,25 @@ public class MainViewModel extends ViewModel{
      * @param plainText Texto plano de la Nota editada.
      * @param htmlText Texto en formato HTML de la Nota editada.
      * @param audios booleano para determinar si la nota tiene audios
-     * @param audiosID identificador de la colección audios de la nota
+     * @param attachmentsID identificador del manifiesto de adjuntos de la nota
      * @throws NullPointerException Si la Nota Editada no ha sido correctamente seleccionada.
      */
-    public void editNote(String title, String plainText, String htmlText, boolean images, boolean documents, Boolean audios, String documentsID, String imagesID, String audiosID){
+    public void editNote(String title, String plainText, String htmlText, boolean images, boolean documents, Boolean audios, String attachmentsID){
         Note selected = mNoteSelected.getValue();                   // Editamos la Nota seleccionada
         selected.setTitle(title);
         selected.setText_plain(plainText);
         selected.setText_html(htmlText);
-        selected.setDocumentsID(documentsID);
-        selected.setImagesID(imagesID);
+        selected.setAttachmentsID(attachmentsID);
         selected.setLastUpdate(new Date());
         selected.setHaveImages(images);
         selected.setHaveDocuments(documents);
-        selected.setAudiosID(audiosID);
         selected.setHaveAudios(audios);
+        Ambito ambito = getAmbito(selected.getAmbitoID());          // Puede no ser el actual, p.ej. desde la búsqueda global
+        if (ambito != null) ambito.updateNote(selected);            // Recolocamos la Nota en los listados ordenados
         mNoteSelected.setValue(mNoteSelected.getValue());           // Actualizamos la Nota seleccionada
         mFolderSelected.setValue(mFolderSelected.getValue());       // Actualizamos colección de la carpeta seleccionada
         databaseAdapter.saveNote(selected);                         // Guardamos la Nota en DB
+        noteIndex.put(selected);                                    // Reindexamos la Nota editada
         setToast("Note " + title + " correctly edited.");           // Creamos Toast Informativo
     }
 
@@ -379,9 +427,12 @@ public class MainViewModel extends ViewModel{
                     if (mNoteSelected.getValue().getSelfID().equals(noteID)) mNoteSelected.setValue(null);
 
                     databaseAdapter.deleteNote(note.getSelfID());                   // Eliminamos la Nota de DB
-                    if(note.getHaveImages()) databaseAdapter.deleteImages(note.getImagesID());          //Eliminamos el Array de Imagenes de la DB
-                    if(note.getHaveDocuments()) databaseAdapter.deleteDocuments(note.getDocumentsID());    //Eliminamos el Array de Documentos de la DB
-                    if(note.getHaveAudios()) databaseAdapter.deleteAudios(note.getAudiosID());
+                    noteIndex.remove(note.getSelfID());                             // Quitamos la Nota del índice
+                    if(note.getAttachmentsID() != null) documentManager.deleteAttachments(note.getAttachmentsID());   //Eliminamos los Adjuntos de la DB
+                    // Adjuntos de una Nota aún no migrada al manifiesto único
+                    if(note.getImagesID() != null) databaseAdapter.deleteImages(note.getImagesID());
+                    if(note.getDocumentsID() != null) databaseAdapter.deleteDocuments(note.getDocumentsID());
+                    if(note.getAudiosID() != null) databaseAdapter.deleteAudios(note.getAudiosID());
                     setToast("Note " + note.getTitle() + " correctly deleted.");    // Creamos Toast Informativo
                     return;
                 }
@@ -404,13 +455,17 @@ public class MainViewModel extends ViewModel{
      */
     public void deleteFolder(String folderName) {
         try {
-            if (mAmbitoSelected.getValue().getFolder(folderName) != null) {
-                mAmbitoSelected.getValue().removeFolder(folderName);            // Eliminamos la Carpeta  del Ámbito seleccionado en modo local
-                mAmbitoSelected.setValue(mAmbitoSelected.getValue());           // Actualizamos la colección de carpetas del Ámbito seleccionado
+            Folder folder = mAmbitoSelected.getValue().getFolder(folderName);
+            if (folder != null) {
+                Ambito ambito = mAmbitoSelected.getValue();
+                for (Note note : folder.getNotes()) noteIndex.remove(note.getSelfID());   // Quitamos ya del índice las Notas cargadas
+                ambito.removeFolder(folderName);                                // Eliminamos la Carpeta  del Ámbito seleccionado en modo local
+                databaseAdapter.deleteFolder(ambito.getSelfID(), folderName);   // Eliminamos las Notas de la Carpeta de DB, solo de este Ámbito: se quitan del índice en deleteNotesResult
+                databaseAdapter.saveAmbito(ambito);                             // Guardamos sus Carpetas restantes
+                mAmbitoSelected.setValue(ambito);                               // Actualizamos la colección de carpetas del Ámbito seleccionado
 
                 // Si la carpeta eliminada es la carpeta seleccionada, la deseleccionamos.
-                if (mFolderSelected.getValue().getName().equals(folderName)) mFolderSelected.setValue(null);
-                databaseAdapter.deleteFolder(folderName);                       // Eliminamos las Notas de la Carpeta de DB
+                if (mFolderSelected.getValue() != null && mFolderSelected.getValue().getName().equals(folderName)) mFolderSelected.setValue(null);
                 setToast("Folder " + folderName + " correctly deleted.");       // Creamos Toast informativo
                 return;
             }
@@ -437,8 +492,9 @@ public class MainViewModel extends ViewModel{
                 for (Ambito ambito : mUserSelected.getValue().getAmbitos()) {
                     if (ambito.getSelfID().equals(ambitoID)) {
                         mUserSelected.getValue().getAmbitos().remove(ambito);                       // Eliminamos el Ámbito del Usuario registrado en modo Local.
+                        for (Note note : ambito.getNotes()) noteIndex.remove(note.getSelfID());    // Quitamos ya del índice las Notas cargadas
                         mUserSelected.setValue(mUserSelected.getValue());                           // Actualizamos el listado de Ámbitos del Usuario registrado.
-                        databaseAdapter.deleteAmbito(ambitoID);                                     // Eliminamos el Ámbito de DB
+                        databaseAdapter.deleteAmbito(ambitoID);                                     // Eliminamos el Ámbito de DB: sus Notas se quitan del índice en deleteNotesResult
 
                         setToast("Ambito " + ambito.getName() + " correctly deleted.");             // Creamos Toast informativo
                         // Finalmente, si el Ámbito eliminado es el seleccionado, lo deseleccionamos.
@@ -488,27 +544,30 @@ public class MainViewModel extends ViewModel{
      */
     public void copyNote(String noteID) {
         try {
-            for (Note note :mAmbitoSelected.getValue().getNotes()) {
+            Ambito ambito = mAmbitoSelected.getValue();
+            for (Note note : ambito.getNotes()) {
                 if (note.getSelfID().equals(noteID)) {
                     Note duplicated = new Note(note.getTitle(), note.getText_plain(), note.getText_html());
                     duplicated.setFolderTAG(note.getFolderTAG());
 
                     duplicated.setHaveImages(note.getHaveImages());
-                    if (duplicated.getHaveImages())
-                        duplicated.setImagesID(documentManager.copyImages(note.getImagesID()));
-
                     duplicated.setHaveDocuments(note.getHaveDocuments());
-                    if (duplicated.getHaveDocuments())
-                        duplicated.setDocumentsID(documentManager.copyDocuments(note.getDocumentsID()));
-
                     duplicated.setHaveAudios(note.getHaveAudios());
-                    if (duplicated.getHaveAudios())
-                        duplicated.setAudiosID(documentManager.copyAudios(note.getAudiosID()));
-
-                    mAmbitoSelected.getValue().addNote(duplicated);                 // Añadimos esa Nota al Ámbito seleccionado
-                    mFolderSelected.setValue(mFolderSelected.getValue());           // Actualizamos la colección de Notas de la Folder seleccionada
-                    databaseAdapter.saveNote(duplicated);                           // Guardamos la Nota en DB
-                    setToast("Note " + note.getTitle() + " correctly duplicated."); // Creamos Toast Informativo
+                    if (note.getAttachmentsID() == null && !AttachmentMigration.needsMigration(note)) {
+                        addCopy(ambito, note, duplicated);
+                        return;
+                    }
+                    // La copia solo se guarda con sus adjuntos ya copiados: si fallan, no hay copia. Los
+                    // que siguen en las colecciones antiguas se migran antes para poder copiarlos.
+                    AttachmentMigration.migrate(note).continueWithTask(migrated ->
+                            documentManager.copyAttachments(migrated.getResult())).addOnCompleteListener(task -> {
+                        if (!task.isSuccessful()) {
+                            setToast("Note " + note.getTitle() + " couldn't be duplicated.");
+                            return;
+                        }
+                        duplicated.setAttachmentsID(task.getResult());
+                        addCopy(ambito, note, duplicated);
+                    });
                     return;
                 }
             }
@@ -520,6 +579,20 @@ public class MainViewModel extends ViewModel{
         }
     }
 
+    /**
+     * Metodo para añadir una Nota duplicada a su Ámbito, guardarla e indexarla
+     * @param ambito Ámbito de la Nota original
+     * @param note Nota original
+     * @param duplicated Nota duplicada, ya con sus adjuntos
+     */
+    private void addCopy(Ambito ambito, Note note, Note duplicated) {
+        ambito.addNote(duplicated);                                     // Añadimos esa Nota al Ámbito seleccionado
+        mFolderSelected.setValue(mFolderSelected.getValue());           // Actualizamos la colección de Notas de la Folder seleccionada
+        databaseAdapter.saveNote(duplicated);                           // Guardamos la Nota en DB
+        noteIndex.put(duplicated);                                      // Indexamos la copia, ya con su ID
+        setToast("Note " + note.getTitle() + " correctly duplicated."); // Creamos Toast Informativo
+    }
+
     /**
      * Mueve la nota definida por el ID 'noteID', del Ámbito seleccionado al Ámbito dado por 'ambitoID'.
      * Además, la añade a la Carpeta 'folderTAG' del Ámbito de destino 'ambitoID'.
@@ -544,7 +617,9 @@ public class MainViewModel extends ViewModel{
             if (selectedNote != null && selectedAmbito != null) {
                 mAmbitoSelected.getValue().removeNote(selectedNote);        // Quitamos la Nota de la colección de Notas del Ámbito seleccionado.
                 selectedNote.setFolderTAG(folderTAG);                       // Seteamos el TAG de la Carpeta de destino de la Nota.
+                boolean newFolder = folderTAG != null && selectedAmbito.getFolder(folderTAG) == null;
                 selectedAmbito.addNote(selectedNote);                       // Añadimos la Nota al Ámbito de destino.
+                if (newFolder) databaseAdapter.saveAmbito(selectedAmbito);  // Guardamos la nueva Carpeta del Ámbito de destino
 
                 mFolderSelected.setValue(mFolderSelected.getValue());       // Actualizamos la colección de Notas de la Folder seleccionada
                 if (mNoteSelected.getValue().getSelfID().equals(noteID))    // Si la Nota movida es la seleccionada, la deseleccionamos.
@@ -562,6 +637,40 @@ public class MainViewModel extends ViewModel{
         }
     }
 
+    /**
+     * Pide a DB la siguiente página de Notas de la Carpeta o del Ámbito seleccionado, p.ej. al llegar
+     * al final del listado. Llega a {@link #getNotesLoaded()}.
+     * @return True si se ha pedido una página, False si ya se estaba cargando o no quedan Notas
+     */
+    public boolean loadMoreNotes() {
+        Ambito ambito = mAmbitoSelected.getValue();
+        Folder folder = mFolderSelected.getValue();
+        return ambito != null && databaseAdapter.getMoreNotes(ambito.getSelfID(), folder == null ? null : folder.getName());
+    }
+
+    /**
+     * Metodo para saber si se han cargado todas las Notas de todos los Ámbitos del Usuario
+     * @param user Usuario logueado
+     * @return True si no quedan Notas por cargar, False si no
+     */
+    private boolean allNotesLoaded(User user) {
+        for (Ambito ambito : user.getAmbitos())
+            if (databaseAdapter.hasMoreNotes(ambito.getSelfID())) return false;
+        return true;
+    }
+
+    /**
+     * Metodo para conseguir un Ámbito del Usuario logueado
+     * @param ambitoID ID del Ámbito
+     * @return Ámbito, null si el Usuario no tiene ninguno con ese ID
+     */
+    private Ambito getAmbito(String ambitoID) {
+        User user = mUserSelected.getValue();
+        if (user == null || ambitoID == null) return null;
+        for (Ambito ambito : user.getAmbitos()) if (ambitoID.equals(ambito.getSelfID())) return ambito;
+        return null;
+    }
+
     /**
      * Metodo para establecer los valores del Toast
      * @param s Valores del Toast
@@ -595,6 +704,8 @@ public class MainViewModel extends ViewModel{
         public void getUserResult(User user) {
             currentUser = user;
             Log.w("UserBuilder", "Step 1 succes: user correctly loaded from Database.");
+            // Abrimos el índice guardado del Usuario: solo se reindexan las Notas nuevas o cambiadas
+            if (indexDirectory != null) noteIndex.open(new File(indexDirectory, user.getSelfID()));
             databaseAdapter.getAmbitos();
         }
 
@@ -624,14 +735,7 @@ public class MainViewModel extends ViewModel{
             else {
                 for (Ambito ambito : currentUser.getAmbitos()) {
                     if (ambito.getSelfID().equals(ambitoID)) {
-                        for (Note note : ambitoNotes){ // Cargamos las Imágenes y Documentos necesarios de DB en el Map de DocumentManager
-                            if (note.getHaveImages() && note.getImagesID() != null) documentManager.getImagesNote(note.getImagesID());
-                            if (note.getHaveDocuments() && note.getDocumentsID() != null)  documentManager.getDocuments(note.getDocumentsID());
-                            if (note.getHaveAudios() != null)
-                                if(note.getHaveAudios() && note.getAudiosID() != null)
-                                    documentManager.getAudios(note.getAudiosID());
-                            ambito.addNote(note);
-                        }
+                        addNotes(ambito, ambitoNotes);
                         loadingCounter++;
                         break;
                     }
@@ -639,6 +743,8 @@ public class MainViewModel extends ViewModel{
                 // If notes for all user ambitos have been set, call the owner class for setting the user
                 if (loadingCounter == currentUser.getAmbitos().size()) {
                     Log.w("UserBuilder", "Step 3 succes: all notes of user " + currentUser.getSelfID() + " correctly loaded from Database.");
+                    // Solo se ha cargado la primera página de cada Ámbito: el resto llega al hacer scroll
+                    if (allNotesLoaded(currentUser)) noteIndex.prune();   // Olvidamos las Notas del índice guardado que ya no existen
                     setToast("User " + currentUser.getMail() + " correctly logged.");
                     mUserSelected.setValue(currentUser);
                     selectAmbito(currentUser.getAmbitos().get(0).getName());
@@ -646,6 +752,47 @@ public class MainViewModel extends ViewModel{
             }
         }
 
+        /**
+         * Metodo para conseguir las siguientes páginas de Notas de un Ámbito, una vez cargado el Usuario
+         * @param ambitoID ID del Ambito de las Notas
+         * @param ambitoNotes Notas de la página
+         */
+        @Override
+        public void getNotePageResult(String ambitoID, ArrayList<Note> ambitoNotes) {
+            Ambito ambito = getAmbito(ambitoID);
+            if (ambito == null) {
+                Log.w("UserBuilder", "Failed to add notes page: ambito " + ambitoID + " not found.");
+                return;
+            }
+            addNotes(ambito, ambitoNotes);
+            if (allNotesLoaded(currentUser)) noteIndex.prune();
+            mNotesLoaded.setValue(ambitoNotes);
+        }
+
+        /**
+         * Metodo para añadir a un Ámbito las Notas cargadas de DB, e indexarlas. Los adjuntos no se
+         * descargan aquí: el DocumentManager los carga bajo demanda cuando la nota se muestra o se abre.
+         * @param ambito Ámbito de las Notas
+         * @param ambitoNotes Notas cargadas
+         */
+        private void addNotes(Ambito ambito, ArrayList<Note> ambitoNotes) {
+            for (Note note : ambitoNotes) {
+                ambito.addNote(note);
+                noteIndex.put(note);
+                AttachmentMigration.migrate(note);   // Adjuntos aún en las colecciones antiguas
+            }
+        }
+
+        /**
+         * Metodo para quitar del índice las Notas eliminadas de DB al borrar una Carpeta o un Ámbito,
+         * también las de páginas que aún no se habían cargado
+         * @param noteIDs IDs de las Notas eliminadas
+         */
+        @Override
+        public void deleteNotesResult(ArrayList<String> noteIDs) {
+            for (String noteID : noteIDs) noteIndex.remove(noteID);
+        }
+
         /**
          * Metodo para establecer el Toast
          * @param s Mensaje del Toast
@@ -0,0 +1,1365 @@
+package com.example.lize.models;
+
+import android.util.Log;
+
+import com.example.lize.data.Note;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Índice invertido de las Notas para la búsqueda: asocia cada palabra del título y del texto
+ * plano con las Notas que la contienen y cuántas veces. Las palabras se guardan ordenadas, de modo
+ * que una búsqueda por prefijo es un rango del índice y no hay que recorrer el texto de todas las
+ * Notas en cada pulsación. Las palabras se guardan sin mayúsculas ni tildes, y un índice de
+ * trigramas de las palabras permite encontrar las escritas con alguna errata sin recorrer todo el
+ * vocabulario.
+ * <p>
+ * El texto de los documentos adjuntos se indexa aparte, con la clave "attachmentsID/ref", de modo
+ * que un resultado puede indicar qué adjunto ha coincidido. Una Nota coincide con la búsqueda si
+ * cada palabra está en su título, en su texto o en alguno de sus adjuntos.
+ * <p>
+ * El índice se guarda en disco en segmentos inmutables ({@link IndexSegment}) que se mapean en
+ * memoria al abrirlo, así que al arrancar solo se indexan las Notas nuevas o cambiadas desde la
+ * última vez. Las Notas añadidas o editadas van a un segmento delta en memoria, que se escribe a
+ * disco en segundo plano cuando crece, y los segmentos se fusionan cuando hay demasiados. Las
+ * Notas borradas de un segmento se guardan junto a él, también en segundo plano. Los
+ * métodos están sincronizados porque el Filter busca en un hilo de fondo mientras el ViewModel lo
+ * actualiza en el hilo principal.
+ */
+public class NoteIndex {
+    private static final String TAG = "NoteIndex";
+
+    // Parámetros habituales de BM25: saturación de la frecuencia y normalización por longitud
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int TITLE_WEIGHT = 2;          // Una palabra del título cuenta como dos del texto
+    private static final float PREFIX_WEIGHT = 0.5f;    // Peso de las palabras que solo empiezan por lo buscado
+    private static final float FUZZY_WEIGHT = 0.3f;     // Peso de las palabras que se parecen a lo buscado
+    private static final float ATTACHMENT_WEIGHT = 0.5f; // Peso de las palabras que están en un adjunto
+    private static final int MAX_TERM_LENGTH = 64;      // Las "palabras" más largas (URLs, códigos) no se indexan
+    private static final char ATTACHMENT_SEPARATOR = '/';
+    private static final int SHORT_PREFIX_LENGTH = 2;   // Palabras de la consulta que se expanden con límite
+    private static final int MAX_PREFIX_TERMS = 32;     // Palabras del índice en que se expande un prefijo corto
+
+    private static final int DELTA_FLUSH_DOCS = 256;    // Notas del delta a partir de las que se escribe a disco
+    private static final int MAX_SEGMENTS = 4;          // Segmentos a partir de los que se fusionan
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".idx";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Segmento delta, en memoria
+    private final TreeMap<String, Map<String, Integer>> postings = new TreeMap<>();   // Palabra -> clave -> frecuencia
+    private final Map<String, DeltaDoc> delta = new HashMap<>();                      // Clave -> sus palabras
+    private final Map<String, Set<String>> trigrams = new HashMap<>();                // Trigrama -> palabras que lo tienen
+
+    // Segmentos en disco, de más antiguo a más nuevo
+    private final List<IndexSegment> segments = new ArrayList<>();
+    private final Map<String, Location> owners = new HashMap<>();                     // Clave -> su entrada viva en disco
+    private final Set<IndexSegment> unsavedDeletions = new HashSet<>();               // Segmentos con borrados por guardar
+
+    private final Map<String, Note> notes = new HashMap<>();
+    private final Map<String, String> noteByAttachments = new HashMap<>();            // ID de los adjuntos -> ID de la Nota
+    private final Map<String, Set<String>> attachmentKeys = new HashMap<>();          // ID de los adjuntos -> claves indexadas
+
+    // Número de cada Nota, para que las búsquedas puntúen con arrays en vez de con mapas
+    private final Map<String, Integer> slots = new HashMap<>();                       // ID de la Nota -> su número
+    private final List<String> slotIDs = new ArrayList<>();                           // Número -> ID de la Nota
+    private final Map<IndexSegment, DocSlots> docSlots = new HashMap<>();             // Número de la Nota de cada entrada
+    private long slotsVersion;                          // Cambia al numerar Notas o al asociar adjuntos
+    private long totalLength;
+    private long version;                               // Cambia con cada modificación del índice
+    private File directory;                             // null: el índice solo vive en memoria
+    private long nextGeneration = 1;
+    private boolean flushing;
+    private boolean flushPending;                       // Se ha pedido escribir mientras se escribía
+    private boolean merging;
+    private long visitedPostings;                       // Entradas recorridas por la última búsqueda ordenada
+
+    /**
+     * Resultado de una búsqueda ordenada: la Nota, su puntuación, las palabras del índice que han
+     * coincidido, para resaltarlas, y el adjunto en el que han coincidido, si lo hay
+     */
+    public static class Hit {
+        private final Note note;
+        private final float score;
+        private final Set<String> terms;
+        private final String attachment;
+
+        Hit(Note note, float score, Set<String> terms, String attachment) {
+            this.note = note;
+            this.score = score;
+            this.terms = terms;
+            this.attachment = attachment;
+        }
+
+        public Note getNote() { return note; }
+        public float getScore() { return score; }
+        public Set<String> getTerms() { return terms; }
+        public String getAttachment() { return attachment; }
+    }
+
+    /**
+     * Contador de las palabras de un texto que llega por partes, p.ej. el extraído de un documento
+     * adjunto: las palabras partidas entre dos partes se juntan y el texto nunca se guarda entero
+     */
+    public static class TermCounter implements Appendable {
+        private final Map<String, Integer> frequencies = new HashMap<>();
+        private final StringBuilder word = new StringBuilder();
+        private boolean tooLong;
+
+        @Override
+        public Appendable append(CharSequence text) {
+            return append(text, 0, text.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence text, int start, int end) {
+            for (int i = start; i < end; i++) append(text.charAt(i));
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            if (isWordChar(c)) {
+                if (word.length() < MAX_TERM_LENGTH) word.append(c);
+                else tooLong = true;
+            } else endWord();
+            return this;
+        }
+
+        /**
+         * Metodo para conseguir las palabras contadas
+         * @return Palabra normalizada -> apariciones
+         */
+        Map<String, Integer> getFrequencies() {
+            endWord();
+            return frequencies;
+        }
+
+        private void endWord() {
+            if (word.length() > 0 && !tooLong) addFrequency(frequencies, normalize(word.toString()), 1);
+            word.setLength(0);
+            tooLong = false;
+        }
+    }
+
+    /**
+     * Nota o adjunto indexado en el segmento delta. Es inmutable: al editar la Nota se sustituye.
+     */
+    private static class DeltaDoc {
+        final String key;
+        final Map<String, Integer> frequencies;
+        final TreeSet<String> terms;
+        final int length;
+        final long signature;
+
+        DeltaDoc(String key, Map<String, Integer> frequencies, int length, long signature) {
+            this.key = key;
+            this.frequencies = frequencies;
+            this.terms = new TreeSet<>(frequencies.keySet());
+            this.length = length;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Número de la Nota de cada entrada de un segmento, -1 si es un adjunto de una Nota que no
+     * está cargada, con su longitud. Se calcula al buscar y vale mientras no se numeren Notas ni
+     * se asocien adjuntos.
+     */
+    private static class DocSlots {
+        final long version;
+        final int[] slots;
+        final int[] lengths;
+        final BitSet attachments;
+
+        DocSlots(long version, int[] slots, int[] lengths, BitSet attachments) {
+            this.version = version;
+            this.slots = slots;
+            this.lengths = lengths;
+            this.attachments = attachments;
+        }
+    }
+
+    /**
+     * Posición de una Nota en un segmento en disco
+     */
+    private static class Location {
+        final IndexSegment segment;
+        final int doc;
+
+        Location(IndexSegment segment, int doc) {
+            this.segment = segment;
+            this.doc = doc;
+        }
+    }
+
+    //*******************
+    //      STORAGE
+    //*******************
+
+    /**
+     * Metodo para abrir el índice guardado en un directorio. Los segmentos se mapean en memoria y
+     * solo se leen los IDs de sus Notas; las Notas que luego se indexen sin cambios no se vuelven a
+     * procesar, y las borradas no vuelven a aparecer. Los segmentos que no se pueden leer se
+     * borran: se reconstruyen al indexar.
+     * @param directory Directorio del índice, uno por Usuario
+     */
+    public synchronized void open(File directory) {
+        clear();
+        this.directory = directory;
+        nextGeneration = 1;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Couldn't create search index directory " + directory);
+            this.directory = null;
+            return;
+        }
+
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] listed = directory.listFiles();
+        if (listed != null) for (File file : listed) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                // Los borrados de un segmento que ya no existe (p.ej. fusionado) sobran
+                boolean orphan = name.endsWith(IndexSegment.DELETIONS_SUFFIX)
+                        && !new File(directory, name.substring(0, name.length() - IndexSegment.DELETIONS_SUFFIX.length())).exists();
+                if ((name.endsWith(".tmp") || orphan) && !file.delete()) Log.w(TAG, "Couldn't delete " + file);
+                continue;
+            }
+            try {
+                files.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException exception) {
+                Log.w(TAG, "Unexpected file in search index: " + file);
+            }
+        }
+
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            IndexSegment segment;
+            try {
+                segment = IndexSegment.open(entry.getValue(), entry.getKey());
+            } catch (IOException exception) {
+                Log.w(TAG, "Discarding search segment " + entry.getValue(), exception);
+                if (!entry.getValue().delete()) Log.w(TAG, "Couldn't delete " + entry.getValue());
+                deleteFile(IndexSegment.getDeletionsFile(entry.getValue()));
+                continue;
+            }
+            // Con una Nota en varios segmentos vale la del más nuevo
+            for (int doc = 0; doc < segment.getDocCount(); doc++) {
+                if (segment.isDeleted(doc)) continue;
+                String key = segment.getNoteID(doc);
+                Location previous = owners.put(key, new Location(segment, doc));
+                if (previous != null) deleteFromSegment(previous);
+                if (key.indexOf(ATTACHMENT_SEPARATOR) < 0) assignSlot(key);
+                addAttachmentKey(key);
+                totalLength += segment.getLength(doc);
+            }
+            segments.add(segment);
+            nextGeneration = entry.getKey() + 1;
+        }
+        version++;
+    }
+
+    /**
+     * Metodo para olvidar las Notas (y sus adjuntos) de los segmentos en disco que no se han vuelto
+     * a indexar, p.ej. porque se eliminaron desde otro dispositivo. Se llama cuando ya se han
+     * cargado todas las Notas del Usuario; después se escribe a disco lo indexado durante la carga.
+     */
+    public synchronized void prune() {
+        for (String key : new ArrayList<>(owners.keySet())) {
+            String noteID = getNoteID(key);
+            if (noteID != null && notes.containsKey(noteID)) continue;
+            removeIndexed(key);
+            version++;
+        }
+        flush();
+    }
+
+    /**
+     * Metodo para escribir a disco el segmento delta en segundo plano. No hace nada si el índice
+     * solo vive en memoria o si el delta está vacío; si ya se está escribiendo, se vuelve a
+     * escribir al terminar.
+     */
+    public synchronized void flush() {
+        if (directory == null || delta.isEmpty()) return;
+        if (flushing) {
+            flushPending = true;
+            return;
+        }
+        flushing = true;
+        File target = new File(directory, SEGMENT_PREFIX + nextGeneration + SEGMENT_SUFFIX);
+        long generation = nextGeneration++;
+        List<DeltaDoc> snapshot = new ArrayList<>(delta.values());
+        executor.execute(() -> {
+            IndexSegment segment = null;
+            try {
+                IndexSegment.Builder builder = new IndexSegment.Builder();
+                for (DeltaDoc doc : snapshot) {
+                    int ordinal = builder.addDoc(doc.key, doc.length, doc.signature);
+                    for (Map.Entry<String, Integer> term : doc.frequencies.entrySet())
+                        builder.addPosting(term.getKey(), ordinal, term.getValue());
+                }
+                builder.write(target);
+                segment = IndexSegment.open(target, generation);
+            } catch (IOException exception) {
+                Log.w(TAG, "Couldn't write search segment " + target, exception);
+            }
+            installFlush(segment, snapshot);
+        });
+    }
+
+    /**
+     * Metodo para activar el segmento escrito con el delta. Las Notas que no han cambiado mientras
+     * se escribía pasan del delta al segmento; las demás quedan borradas en el segmento.
+     * @param segment Segmento escrito, null si ha fallado
+     * @param snapshot Notas del delta que se han escrito
+     */
+    private synchronized void installFlush(IndexSegment segment, List<DeltaDoc> snapshot) {
+        flushing = false;
+        boolean pending = flushPending;
+        flushPending = false;
+        // Si se ha cerrado el índice mientras se escribía, el segmento se cargará al volver a abrirlo
+        if (segment == null || !segment.getFile().getParentFile().equals(directory)) return;
+        boolean deleted = false;
+        for (int doc = 0; doc < segment.getDocCount(); doc++) {
+            DeltaDoc written = snapshot.get(doc);
+            if (delta.get(written.key) == written) {
+                removeFromDelta(written.key);
+                owners.put(written.key, new Location(segment, doc));
+            } else {
+                segment.delete(doc);
+                deleted = true;
+            }
+        }
+        segments.add(segment);
+        if (deleted) saveDeletions(segment);
+        if (segments.size() > MAX_SEGMENTS) merge();
+        if (pending || delta.size() >= DELTA_FLUSH_DOCS) flush();
+    }
+
+    /**
+     * Metodo para fusionar en segundo plano todos los segmentos en disco en uno solo, sin las Notas
+     * borradas. El segmento fusionado conserva la generación del más nuevo y lo sustituye.
+     */
+    private synchronized void merge() {
+        if (directory == null || merging || segments.size() < 2) return;
+        merging = true;
+        List<IndexSegment> sources = new ArrayList<>(segments);
+        List<BitSet> deletedSources = new ArrayList<>();
+        for (IndexSegment source : sources) deletedSources.add(source.getDeleted());
+        IndexSegment newest = sources.get(sources.size() - 1);
+        File target = newest.getFile();
+        executor.execute(() -> {
+            IndexSegment merged = null;
+            List<int[]> origins = new ArrayList<>();     // Nota fusionada -> {segmento, Nota en él}
+            try {
+                IndexSegment.Builder builder = new IndexSegment.Builder();
+                for (int s = 0; s < sources.size(); s++) {
+                    IndexSegment source = sources.get(s);
+                    BitSet deleted = deletedSources.get(s);
+                    int[] remap = new int[source.getDocCount()];
+                    for (int doc = 0; doc < source.getDocCount(); doc++) {
+                        if (deleted.get(doc)) continue;
+                        remap[doc] = builder.addDoc(source.getNoteID(doc), source.getLength(doc), source.getSignature(doc));
+                        origins.add(new int[]{s, doc});
+                    }
+                    for (int term = 0; term < source.getTermCount(); term++) {
+                        String value = null;
+                        for (int i = 0; i < source.getPostingCount(term); i++) {
+                            int doc = source.getPostingDoc(term, i);
+                            if (deleted.get(doc)) continue;
+                            if (value == null) value = source.getTerm(term);
+                            builder.addPosting(value, remap[doc], source.getPostingFrequency(term, i));
+                        }
+                    }
+                }
+                // Se escribe sobre el fichero del más nuevo: si algo falla a medias, los antiguos siguen valiendo
+                builder.write(target);
+                merged = IndexSegment.open(target, newest.getGeneration());
+            } catch (IOException exception) {
+                Log.w(TAG, "Couldn't merge search segments", exception);
+            }
+            installMerge(merged, sources, origins);
+        });
+    }
+
+    /**
+     * Metodo para activar el segmento fusionado. Las Notas que se han editado o eliminado
+     * mientras se fusionaba quedan borradas en él.
+     * @param merged Segmento fusionado, null si ha fallado
+     * @param sources Segmentos fusionados
+     * @param origins Origen de cada Nota del segmento fusionado
+     */
+    private synchronized void installMerge(IndexSegment merged, List<IndexSegment> sources, List<int[]> origins) {
+        merging = false;
+        if (merged == null || !merged.getFile().getParentFile().equals(directory)) return;
+        for (int doc = 0; doc < merged.getDocCount(); doc++) {
+            IndexSegment source = sources.get(origins.get(doc)[0]);
+            int sourceDoc = origins.get(doc)[1];
+            Location owner = owners.get(merged.getNoteID(doc));
+            if (owner != null && owner.segment == source && owner.doc == sourceDoc && !source.isDeleted(sourceDoc))
+                owners.put(merged.getNoteID(doc), new Location(merged, doc));
+            else merged.delete(doc);
+        }
+        segments.removeAll(sources);
+        for (IndexSegment source : sources) docSlots.remove(source);
+        segments.add(0, merged);
+        // El fusionado ocupa el fichero del más nuevo: sus borrados sustituyen a los de aquel
+        saveDeletions(merged);
+        IndexSegment newest = sources.get(sources.size() - 1);
+        for (IndexSegment source : sources) {
+            if (source == newest) continue;
+            deleteFile(source.getFile());
+            deleteFile(IndexSegment.getDeletionsFile(source.getFile()));
+        }
+        if (segments.size() > MAX_SEGMENTS) merge();
+    }
+
+    /**
+     * Metodo para guardar en segundo plano las Notas borradas de un segmento. Varias peticiones
+     * seguidas se guardan de una vez.
+     * @param segment Segmento con Notas borradas
+     */
+    private void saveDeletions(IndexSegment segment) {
+        if (directory == null || !unsavedDeletions.add(segment)) return;
+        executor.execute(() -> {
+            List<String> deletedIDs;
+            synchronized (NoteIndex.this) {
+                unsavedDeletions.remove(segment);
+                // Si se ha fusionado, su fichero ya no existe; si se ha cerrado el índice, los borrados siguen valiendo
+                if (!segment.getFile().exists()) return;
+                deletedIDs = segment.getDeletedIDs();
+            }
+            try {
+                segment.writeDeletions(deletedIDs);
+            } catch (IOException exception) {
+                Log.w(TAG, "Couldn't save search deletions of " + segment.getFile(), exception);
+            }
+        });
+    }
+
+    /**
+     * Metodo para borrar un fichero del índice
+     * @param file Fichero a borrar
+     */
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) Log.w(TAG, "Couldn't delete " + file);
+    }
+
+    //*******************
+    //     INDEXING
+    //*******************
+
+    /**
+     * Metodo para indexar una Nota, o reindexarla si ya estaba (p.ej. al editarla). Si la Nota
+     * está en un segmento en disco con el mismo texto, no se vuelve a procesar.
+     * @param note Nota a indexar, debe tener ID
+     */
+    public synchronized void put(Note note) {
+        String noteID = note.getSelfID();
+        if (noteID == null) return;
+        notes.put(noteID, note);
+        assignSlot(noteID);
+        if (note.getAttachmentsID() != null && !noteID.equals(noteByAttachments.put(note.getAttachmentsID(), noteID)))
+            slotsVersion++;
+        long signature = signature(note);
+        Location owner = owners.get(noteID);
+        if (owner != null && owner.segment.getSignature(owner.doc) == signature) return;
+        DeltaDoc current = delta.get(noteID);
+        if (current != null && current.signature == signature) return;
+
+        index(noteID, getFrequencies(note), signature);
+    }
+
+    /**
+     * Metodo para contar las palabras indexadas de una Nota, las del título con más peso
+     * @param note Nota
+     * @return Palabra normalizada -> apariciones
+     */
+    static Map<String, Integer> getFrequencies(Note note) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String term : tokenize(note.getTitle())) addFrequency(frequencies, term, TITLE_WEIGHT);
+        for (String term : tokenize(note.getText_plain())) addFrequency(frequencies, term, 1);
+        return frequencies;
+    }
+
+    /**
+     * Metodo para indexar el texto de un documento adjunto, ya extraído. Los adjuntos no cambian
+     * (uno editado es otro adjunto), así que basta con indexarlos una vez.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param ref ID del adjunto
+     * @param terms Palabras del texto del adjunto
+     */
+    public synchronized void putAttachment(String attachmentsID, String ref, TermCounter terms) {
+        index(getAttachmentKey(attachmentsID, ref), terms.getFrequencies(), 0);
+    }
+
+    /**
+     * Metodo para saber si el texto de un adjunto ya está indexado, p.ej. de una sesión anterior
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param ref ID del adjunto
+     * @return True si está indexado, False si hay que extraer su texto
+     */
+    public synchronized boolean hasAttachment(String attachmentsID, String ref) {
+        String key = getAttachmentKey(attachmentsID, ref);
+        return delta.containsKey(key) || owners.containsKey(key);
+    }
+
+    /**
+     * Metodo para quitar del índice el texto de un adjunto eliminado
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param ref ID del adjunto
+     */
+    public synchronized void removeAttachment(String attachmentsID, String ref) {
+        removeIndexed(getAttachmentKey(attachmentsID, ref));
+        version++;
+    }
+
+    /**
+     * Metodo para añadir al delta las palabras de una Nota o de un adjunto, sustituyendo las que
+     * tuviera indexadas
+     * @param key ID de la Nota o clave del adjunto
+     * @param frequencies Palabra -> apariciones
+     * @param signature Firma del texto indexado
+     */
+    private void index(String key, Map<String, Integer> frequencies, long signature) {
+        removeIndexed(key);
+        int length = 0;
+        for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+            Map<String, Integer> postingList = postings.get(entry.getKey());
+            if (postingList == null) {
+                postingList = new HashMap<>();
+                postings.put(entry.getKey(), postingList);
+                addTrigrams(entry.getKey());
+            }
+            postingList.put(key, entry.getValue());
+            length += entry.getValue();
+        }
+        delta.put(key, new DeltaDoc(key, frequencies, length, signature));
+        addAttachmentKey(key);
+        totalLength += length;
+        version++;
+        if (delta.size() >= DELTA_FLUSH_DOCS) flush();
+    }
+
+    /**
+     * Metodo para indexar varias Notas
+     * @param notes Notas a indexar
+     */
+    public synchronized void putAll(List<Note> notes) {
+        for (Note note : notes) put(note);
+    }
+
+    /**
+     * Metodo para quitar una Nota del índice, con sus adjuntos. Solo se tocan las palabras de esa Nota.
+     * @param noteID ID de la Nota a quitar
+     */
+    public synchronized void remove(String noteID) {
+        removeIndexed(noteID);
+        Note note = notes.remove(noteID);
+        String attachmentsID = note == null ? null : note.getAttachmentsID();
+        if (attachmentsID != null) {
+            Set<String> keys = attachmentKeys.get(attachmentsID);
+            if (keys != null) for (String key : new ArrayList<>(keys)) removeIndexed(key);
+            noteByAttachments.remove(attachmentsID);
+            slotsVersion++;
+        }
+        version++;
+    }
+
+    /**
+     * Metodo para vaciar el índice en memoria, p.ej. al cambiar de Usuario. Los segmentos en
+     * disco se conservan y el índice deja de escribir en ellos hasta que se vuelve a abrir.
+     */
+    public synchronized void clear() {
+        postings.clear();
+        delta.clear();
+        trigrams.clear();
+        segments.clear();
+        owners.clear();
+        notes.clear();
+        noteByAttachments.clear();
+        attachmentKeys.clear();
+        slots.clear();
+        slotIDs.clear();
+        docSlots.clear();
+        slotsVersion++;
+        totalLength = 0;
+        directory = null;
+        version++;
+    }
+
+    /**
+     * Metodo para conseguir la versión del índice, que cambia con cada Nota añadida, editada o
+     * quitada. Un resultado guardado solo se puede refinar si el índice no ha cambiado desde entonces.
+     * @return Versión actual del índice
+     */
+    public synchronized long getVersion() { return version; }
+
+    /**
+     * Metodo para quitar una Nota o un adjunto del delta o de su segmento en disco
+     * @param key ID de la Nota o clave del adjunto
+     */
+    private void removeIndexed(String key) {
+        DeltaDoc doc = removeFromDelta(key);
+        if (doc != null) totalLength -= doc.length;
+        Location owner = owners.remove(key);
+        if (owner != null) deleteFromSegment(owner);
+
+        int separator = key.indexOf(ATTACHMENT_SEPARATOR);
+        if (separator < 0) return;
+        String attachmentsID = key.substring(0, separator);
+        Set<String> keys = attachmentKeys.get(attachmentsID);
+        if (keys == null) return;
+        keys.remove(key);
+        if (keys.isEmpty()) attachmentKeys.remove(attachmentsID);
+    }
+
+    /**
+     * Metodo para quitar una entrada del segmento delta, con las palabras que solo tenía ella. Si
+     * la entrada pasa a un segmento en disco, sigue indexada.
+     * @param key ID de la Nota o clave del adjunto
+     * @return Entrada quitada, null si no estaba en el delta
+     */
+    private DeltaDoc removeFromDelta(String key) {
+        DeltaDoc doc = delta.remove(key);
+        if (doc == null) return null;
+        for (String term : doc.terms) {
+            Map<String, Integer> postingList = postings.get(term);
+            if (postingList == null) continue;
+            postingList.remove(key);
+            if (postingList.isEmpty()) {
+                postings.remove(term);
+                removeTrigrams(term);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Metodo para marcar como borrada una Nota de un segmento en disco
+     * @param location Posición de la Nota
+     */
+    private void deleteFromSegment(Location location) {
+        if (location.segment.isDeleted(location.doc)) return;
+        location.segment.delete(location.doc);
+        totalLength -= location.segment.getLength(location.doc);
+        saveDeletions(location.segment);
+    }
+
+    /**
+     * Metodo para calcular la firma del texto indexado de una Nota, para saber si ha cambiado
+     * desde que se guardó en disco
+     * @param note Nota
+     * @return Firma del título y el texto plano
+     */
+    static long signature(Note note) {
+        int title = note.getTitle() == null ? 0 : note.getTitle().hashCode();
+        int text = note.getText_plain() == null ? 0 : note.getText_plain().hashCode();
+        return ((long) title << 32) | (text & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Metodo para conseguir la clave con la que se indexa un adjunto
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param ref ID del adjunto
+     * @return Clave del adjunto en el índice
+     */
+    private static String getAttachmentKey(String attachmentsID, String ref) {
+        return attachmentsID + ATTACHMENT_SEPARATOR + ref;
+    }
+
+    /**
+     * Metodo para apuntar un adjunto indexado entre los de su Nota
+     * @param key Clave indexada, se ignora si es de una Nota
+     */
+    private void addAttachmentKey(String key) {
+        int separator = key.indexOf(ATTACHMENT_SEPARATOR);
+        if (separator < 0) return;
+        String attachmentsID = key.substring(0, separator);
+        Set<String> keys = attachmentKeys.get(attachmentsID);
+        if (keys == null) {
+            keys = new HashSet<>();
+            attachmentKeys.put(attachmentsID, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Metodo para conseguir la Nota de una clave del índice
+     * @param key ID de la Nota o clave de un adjunto
+     * @return ID de la Nota, null si es un adjunto de una Nota que no está cargada
+     */
+    private String getNoteID(String key) {
+        int separator = key.indexOf(ATTACHMENT_SEPARATOR);
+        return separator < 0 ? key : noteByAttachments.get(key.substring(0, separator));
+    }
+
+    /**
+     * Metodo para conseguir las claves indexadas de una Nota: la suya y las de sus adjuntos
+     * @param noteID ID de la Nota
+     * @return Claves de la Nota
+     */
+    private List<String> getKeys(String noteID) {
+        List<String> keys = new ArrayList<>();
+        keys.add(noteID);
+        Note note = notes.get(noteID);
+        Set<String> attachments = note == null || note.getAttachmentsID() == null ? null : attachmentKeys.get(note.getAttachmentsID());
+        if (attachments != null) keys.addAll(attachments);
+        return keys;
+    }
+
+    /**
+     * Metodo para numerar una Nota, si no lo estaba. El número se conserva aunque se quite del índice.
+     * @param noteID ID de la Nota
+     */
+    private void assignSlot(String noteID) {
+        if (slots.containsKey(noteID)) return;
+        slots.put(noteID, slotIDs.size());
+        slotIDs.add(noteID);
+        slotsVersion++;
+    }
+
+    /**
+     * Metodo para conseguir el número de la Nota de una clave del índice
+     * @param key ID de la Nota o clave de un adjunto
+     * @return Número de la Nota, -1 si es un adjunto de una Nota que no está cargada
+     */
+    private int getSlot(String key) {
+        String noteID = getNoteID(key);
+        Integer slot = noteID == null ? null : slots.get(noteID);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Metodo para conseguir el número de la Nota de cada entrada de un segmento, que se calcula
+     * la primera vez y cuando cambian los números o los adjuntos
+     * @param segment Segmento
+     * @return Números de las Notas del segmento
+     */
+    private DocSlots getDocSlots(IndexSegment segment) {
+        DocSlots cached = docSlots.get(segment);
+        if (cached != null && cached.version == slotsVersion) return cached;
+        int[] segmentSlots = new int[segment.getDocCount()];
+        int[] lengths = new int[segment.getDocCount()];
+        BitSet attachments = new BitSet();
+        for (int doc = 0; doc < segmentSlots.length; doc++) {
+            String key = segment.getNoteID(doc);
+            segmentSlots[doc] = getSlot(key);
+            lengths[doc] = segment.getLength(doc);
+            if (key.indexOf(ATTACHMENT_SEPARATOR) >= 0) attachments.set(doc);
+        }
+        cached = new DocSlots(slotsVersion, segmentSlots, lengths, attachments);
+        docSlots.put(segment, cached);
+        return cached;
+    }
+
+    //*******************
+    //      QUERIES
+    //*******************
+
+    /**
+     * Metodo para buscar Notas. Cada palabra de la consulta se busca como prefijo, así que la
+     * última palabra puede estar a medio escribir; si ninguna palabra del índice empieza por ella,
+     * se buscan las parecidas (ver {@link #expand}). Una Nota coincide si contiene todas las palabras.
+     * @param query Consulta tal como la escribe el usuario
+     * @return IDs de las Notas que coinciden, vacío si la consulta no tiene palabras
+     */
+    public synchronized Set<String> search(String query) {
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) return Collections.emptySet();
+
+        BitSet result = null;
+        for (String token : tokens) {
+            BitSet matches = searchToken(token);
+            if (result == null) result = matches;
+            else result.and(matches);
+            if (result.isEmpty()) return Collections.emptySet();
+        }
+        Set<String> ids = new HashSet<>();
+        for (int slot = result.nextSetBit(0); slot >= 0; slot = result.nextSetBit(slot + 1)) ids.add(slotIDs.get(slot));
+        return ids;
+    }
+
+    /**
+     * Metodo para refinar el resultado de una búsqueda anterior cuando la nueva consulta la amplía
+     * (ver {@link #isRefinement}): las Notas que coinciden son un subconjunto de las anteriores, así
+     * que solo se comprueban esas, en vez de recorrer los rangos del índice.
+     * @param query Consulta nueva
+     * @param previous IDs que coincidían con la consulta anterior
+     * @return IDs de las Notas que coinciden con la consulta nueva
+     */
+    public synchronized Set<String> refine(String query, Set<String> previous) {
+        List<String> tokens = tokenize(query);
+        // Con palabras que solo se encuentran por parecido, el resultado no sale de comprobar prefijos
+        for (String token : tokens) if (!hasPrefix(token)) return search(query);
+
+        Map<IndexSegment, int[][]> ranges = new HashMap<>();
+        Set<String> result = new HashSet<>();
+        for (String noteID : previous) {
+            // Cada palabra puede estar en la Nota o en cualquiera de sus adjuntos
+            List<String> keys = getKeys(noteID);
+            boolean all = true;
+            for (int i = 0; i < tokens.size() && all; i++) {
+                all = false;
+                for (String key : keys) {
+                    if (hasPrefix(key, tokens, i, ranges)) {
+                        all = true;
+                        break;
+                    }
+                }
+            }
+            if (all) result.add(noteID);
+        }
+        return result;
+    }
+
+    /**
+     * Metodo para saber si una Nota o un adjunto tiene alguna palabra que empiece por una de la consulta
+     * @param key ID de la Nota o clave del adjunto
+     * @param tokens Palabras de la consulta
+     * @param token Posición de la palabra a comprobar
+     * @param ranges Rangos de cada palabra en cada segmento, que se calculan la primera vez
+     * @return True si la tiene, False si no o si no está indexado
+     */
+    private boolean hasPrefix(String key, List<String> tokens, int token, Map<IndexSegment, int[][]> ranges) {
+        DeltaDoc doc = delta.get(key);
+        if (doc != null) {
+            String term = doc.terms.ceiling(tokens.get(token));
+            return term != null && term.startsWith(tokens.get(token));
+        }
+        Location owner = owners.get(key);
+        if (owner == null) return false;
+        int[][] segmentRanges = ranges.get(owner.segment);
+        if (segmentRanges == null) {
+            segmentRanges = new int[tokens.size()][];
+            for (int i = 0; i < tokens.size(); i++) segmentRanges[i] = owner.segment.prefixRange(tokens.get(i));
+            ranges.put(owner.segment, segmentRanges);
+        }
+        return owner.segment.hasTermInRange(owner.doc, segmentRanges[token]);
+    }
+
+    /**
+     * Metodo para saber si una consulta amplía la anterior: mismas palabras, con la última
+     * alargada o con palabras nuevas al final. Como todas las palabras deben coincidir, el
+     * resultado nuevo está contenido en el anterior.
+     * @param previous Consulta anterior
+     * @param query Consulta nueva
+     * @return True si el resultado nuevo se puede sacar del anterior, False si no
+     */
+    public static boolean isRefinement(String previous, String query) {
+        List<String> before = tokenize(previous);
+        List<String> after = tokenize(query);
+        if (before.isEmpty() || after.size() < before.size()) return false;
+        int last = before.size() - 1;
+        for (int i = 0; i < last; i++) if (!before.get(i).equals(after.get(i))) return false;
+        return after.get(last).startsWith(before.get(last));
+    }
+
+    /**
+     * Metodo para buscar Notas ordenadas por relevancia con BM25. Como en {@link #search}, cada
+     * palabra de la consulta se busca como prefijo o por parecido y una Nota debe contenerlas todas;
+     * las palabras exactas puntúan más que las que solo empiezan por lo buscado o se le parecen, y
+     * las de la Nota más que las de sus adjuntos.
+     * @param query Consulta tal como la escribe el usuario
+     * @param limit Número máximo de resultados
+     * @return Resultados de mayor a menor puntuación
+     */
+    public synchronized List<Hit> rank(String query, int limit) {
+        return rank(query, limit, null);
+    }
+
+    /**
+     * Metodo para ordenar por relevancia las Notas que ya se sabe que coinciden con la consulta,
+     * p.ej. el resultado de {@link #search} o {@link #refine}. Solo se devuelven esas Notas.
+     * @param query Consulta tal como la escribe el usuario
+     * @param limit Número máximo de resultados
+     * @param candidates IDs de las Notas a puntuar, null para puntuar todas
+     * @return Resultados de mayor a menor puntuación
+     */
+    public synchronized List<Hit> rank(String query, int limit, Set<String> candidates) {
+        List<String> tokens = tokenize(query);
+        int documents = delta.size() + owners.size();
+        if (tokens.isEmpty() || documents == 0 || limit <= 0) return new ArrayList<>();
+        float averageLength = Math.max(1f, totalLength / (float) documents);
+
+        List<Map<String, Float>> expansions = new ArrayList<>();
+        final long[] costs = new long[tokens.size()];
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            Map<String, Float> terms = expand(tokens.get(i));
+            for (String term : terms.keySet()) costs[i] += countPostings(term);
+            expansions.add(terms);
+            order.add(i);
+        }
+        // Empezamos por la palabra con menos entradas: en las siguientes solo se puntúan las Notas
+        // que ya tienen todas las anteriores
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) { return Long.compare(costs[a], costs[b]); }
+        });
+
+        // Puntuación de cada palabra de la consulta en cada Nota, por su número: la de su mejor
+        // palabra del índice, en la Nota o en uno de sus adjuntos (del que se guarda la clave)
+        visitedPostings = 0;
+        float[] totals = new float[slotIDs.size()];
+        int[] matchedTokens = new int[slotIDs.size()];
+        String[][] sources = new String[tokens.size()][];
+        for (int position = 0; position < order.size(); position++) {
+            float[] scores = new float[slotIDs.size()];
+            String[] tokenSources = null;      // Solo si algún adjunto puntúa, que es lo raro
+            for (Map.Entry<String, Float> term : expansions.get(order.get(position)).entrySet()) {
+                int count = countPostings(term.getKey());
+                if (count == 0) continue;
+                float idf = term.getValue() * (float) Math.log(1 + (documents - count + 0.5) / (count + 0.5));
+                Map<String, Integer> postingList = postings.get(term.getKey());
+                if (postingList != null) {
+                    visitedPostings += postingList.size();
+                    for (Map.Entry<String, Integer> posting : postingList.entrySet()) {
+                        String key = posting.getKey();
+                        int slot = getSlot(key);
+                        if (slot < 0 || matchedTokens[slot] < position) continue;
+                        boolean attachment = key.indexOf(ATTACHMENT_SEPARATOR) >= 0;
+                        float score = score(idf, posting.getValue(), delta.get(key).length, averageLength, attachment);
+                        if (score > scores[slot]) {
+                            scores[slot] = score;
+                            if (attachment || tokenSources != null) tokenSources = setSource(tokenSources, slot, attachment ? key : null);
+                        }
+                    }
+                }
+                for (IndexSegment segment : segments) {
+                    int ordinal = segment.findTerm(term.getKey());
+                    if (ordinal < 0) continue;
+                    DocSlots segmentSlots = getDocSlots(segment);
+                    int postingCount = segment.getPostingCount(ordinal);
+                    visitedPostings += postingCount;
+                    for (int i = 0; i < postingCount; i++) {
+                        int doc = segment.getPostingDoc(ordinal, i);
+                        int slot = segmentSlots.slots[doc];
+                        if (slot < 0 || matchedTokens[slot] < position || segment.isDeleted(doc)) continue;
+                        boolean attachment = segmentSlots.attachments.get(doc);
+                        float score = score(idf, segment.getPostingFrequency(ordinal, i), segmentSlots.lengths[doc], averageLength, attachment);
+                        if (score > scores[slot]) {
+                            scores[slot] = score;
+                            if (attachment || tokenSources != null)
+                                tokenSources = setSource(tokenSources, slot, attachment ? segment.getNoteID(doc) : null);
+                        }
+                    }
+                }
+            }
+            boolean found = false;
+            for (int slot = 0; slot < scores.length; slot++) {
+                if (scores[slot] == 0) continue;
+                totals[slot] += scores[slot];
+                matchedTokens[slot]++;
+                found = true;
+            }
+            if (!found) return new ArrayList<>();
+            sources[order.get(position)] = tokenSources;
+        }
+
+        // Recorremos las Notas que tienen todas las palabras y guardamos solo las 'limit' mejores
+        PriorityQueue<Hit> best = new PriorityQueue<>(limit, BY_SCORE);
+        for (int slot = 0; slot < totals.length; slot++) {
+            if (matchedTokens[slot] < tokens.size()) continue;
+            float total = totals[slot];
+            if (best.size() == limit && total <= best.peek().getScore()) continue;
+            String noteID = slotIDs.get(slot);
+            if (candidates != null && !candidates.contains(noteID)) continue;
+            Note note = notes.get(noteID);
+            if (note == null) continue;     // En disco, pero aún no cargada
+            if (best.size() == limit) best.poll();
+            best.add(new Hit(note, total, null, getAttachment(slot, sources)));
+        }
+
+        // Las palabras que han coincidido solo hacen falta para resaltar los resultados devueltos
+        List<Hit> hits = new ArrayList<>();
+        Map<IndexSegment, Map<String, Integer>> ordinals = new HashMap<>();
+        for (Hit hit : best) {
+            String noteID = hit.getNote().getSelfID();
+            hits.add(new Hit(hit.note, hit.score, getMatchedTerms(noteID, expansions, ordinals), hit.attachment));
+        }
+        Collections.sort(hits, Collections.reverseOrder(BY_SCORE));
+        return hits;
+    }
+
+    /**
+     * Metodo para conseguir las palabras del índice que tiene una Nota, en su texto o en sus adjuntos
+     * @param noteID ID de la Nota
+     * @param expansions Palabras del índice en que se ha expandido cada palabra de la consulta
+     * @param ordinals Ordinal de cada palabra en cada segmento, que se busca la primera vez
+     * @return Palabras que tiene la Nota
+     */
+    private Set<String> getMatchedTerms(String noteID, List<Map<String, Float>> expansions, Map<IndexSegment, Map<String, Integer>> ordinals) {
+        Set<String> matched = new HashSet<>();
+        List<String> keys = getKeys(noteID);
+        for (Map<String, Float> terms : expansions) {
+            for (String term : terms.keySet()) {
+                for (String key : keys) {
+                    if (hasTerm(key, term, ordinals)) {
+                        matched.add(term);
+                        break;
+                    }
+                }
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Metodo para saber si una Nota o un adjunto tiene una palabra del índice
+     * @param key ID de la Nota o clave del adjunto
+     * @param term Palabra del índice
+     * @param ordinals Ordinal de cada palabra en cada segmento, que se busca la primera vez
+     * @return True si la tiene, False si no o si no está indexado
+     */
+    private boolean hasTerm(String key, String term, Map<IndexSegment, Map<String, Integer>> ordinals) {
+        DeltaDoc doc = delta.get(key);
+        if (doc != null) return doc.frequencies.containsKey(term);
+        Location owner = owners.get(key);
+        if (owner == null) return false;
+        Map<String, Integer> segmentOrdinals = ordinals.get(owner.segment);
+        if (segmentOrdinals == null) {
+            segmentOrdinals = new HashMap<>();
+            ordinals.put(owner.segment, segmentOrdinals);
+        }
+        Integer ordinal = segmentOrdinals.get(term);
+        if (ordinal == null) {
+            ordinal = owner.segment.findTerm(term);
+            segmentOrdinals.put(term, ordinal);
+        }
+        return ordinal >= 0 && owner.segment.hasTermInRange(owner.doc, new int[]{ordinal, ordinal + 1});
+    }
+
+    /**
+     * Metodo para conseguir el trabajo de la última búsqueda ordenada, p.ej. para comprobar que un
+     * prefijo corto no recorre todo el índice
+     * @return Entradas de las listas de Notas recorridas
+     */
+    synchronized long getVisitedPostings() { return visitedPostings; }
+
+    private static final Comparator<Hit> BY_SCORE = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit a, Hit b) { return Float.compare(a.score, b.score); }
+    };
+
+    /**
+     * Metodo para conseguir el adjunto en el que ha coincidido una Nota: el de la primera palabra
+     * de la consulta que puntúa más en un adjunto que en la propia Nota
+     * @param slot Número de la Nota
+     * @param sources Clave del adjunto que más puntúa para cada palabra de la consulta, por Nota
+     * @return ID del adjunto, null si todas las palabras puntúan más en la Nota
+     */
+    private static String getAttachment(int slot, String[][] sources) {
+        for (String[] tokenSources : sources) {
+            String key = tokenSources == null ? null : tokenSources[slot];
+            if (key != null) return key.substring(key.indexOf(ATTACHMENT_SEPARATOR) + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Metodo para apuntar el adjunto que más puntúa en una Nota para una palabra de la consulta
+     * @param sources Adjunto de cada Nota, null si aún no hay ninguno
+     * @param slot Número de la Nota
+     * @param key Clave del adjunto, null si puntúa más la propia Nota
+     * @return Adjunto de cada Nota
+     */
+    private String[] setSource(String[] sources, int slot, String key) {
+        if (sources == null) sources = new String[slotIDs.size()];
+        sources[slot] = key;
+        return sources;
+    }
+
+    /**
+     * Metodo para calcular la puntuación BM25 de una palabra del índice en una Nota o en un adjunto
+     * @param idf Peso de la palabra, ya multiplicado por el de su coincidencia con la consulta
+     * @param frequency Apariciones de la palabra
+     * @param length Palabras de la Nota o del adjunto
+     * @param averageLength Palabras de media de lo indexado
+     * @param attachment True si es un adjunto
+     * @return Puntuación, siempre positiva
+     */
+    private static float score(float idf, int frequency, int length, float averageLength, boolean attachment) {
+        float norm = K1 * (1 - B + B * length / averageLength);
+        float score = idf * frequency * (K1 + 1) / (frequency + norm);
+        return attachment ? score * ATTACHMENT_WEIGHT : score;
+    }
+
+    /**
+     * Metodo para contar las Notas y adjuntos que contienen una palabra. Cuenta también los
+     * borrados de los segmentos que aún no se han fusionado, lo que basta para el IDF.
+     * @param term Palabra del índice
+     * @return Número de entradas de la palabra
+     */
+    private int countPostings(String term) {
+        Map<String, Integer> postingList = postings.get(term);
+        int count = postingList == null ? 0 : postingList.size();
+        for (IndexSegment segment : segments) {
+            int ordinal = segment.findTerm(term);
+            if (ordinal >= 0) count += segment.getPostingCount(ordinal);
+        }
+        return count;
+    }
+
+    /**
+     * Metodo para conseguir las Notas con alguna palabra que coincide con una de la consulta
+     * @param token Palabra de la consulta ya normalizada
+     * @return Números de las Notas que la contienen, en su texto o en un adjunto
+     */
+    private BitSet searchToken(String token) {
+        BitSet matches = new BitSet(slotIDs.size());
+        for (String term : expand(token).keySet()) {
+            Map<String, Integer> postingList = postings.get(term);
+            if (postingList != null) for (String key : postingList.keySet()) {
+                int slot = getSlot(key);
+                if (slot >= 0) matches.set(slot);
+            }
+            for (IndexSegment segment : segments) {
+                int ordinal = segment.findTerm(term);
+                if (ordinal < 0) continue;
+                int[] segmentSlots = getDocSlots(segment).slots;
+                for (int i = 0; i < segment.getPostingCount(ordinal); i++) {
+                    int doc = segment.getPostingDoc(ordinal, i);
+                    if (segmentSlots[doc] >= 0 && !segment.isDeleted(doc)) matches.set(segmentSlots[doc]);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Metodo para conseguir las palabras del índice que coinciden con una de la consulta, con su
+     * peso: la misma palabra, las que empiezan por ella o, si no hay ninguna, las que se le parecen.
+     * Un prefijo corto puede abarcar buena parte del vocabulario, así que solo se expande a la
+     * palabra exacta y a las {@link #MAX_PREFIX_TERMS} que están en más Notas.
+     * @param token Palabra de la consulta ya normalizada
+     * @return Palabras del índice y su peso, vacío si no coincide ninguna
+     */
+    private Map<String, Float> expand(String token) {
+        int limit = token.length() <= SHORT_PREFIX_LENGTH ? MAX_PREFIX_TERMS : Integer.MAX_VALUE;
+        Map<String, Integer> counts = new HashMap<>();      // Palabra -> Notas que la tienen
+        SortedMap<String, Map<String, Integer>> range = postings.subMap(token, token + Character.MAX_VALUE);
+        for (Map.Entry<String, Map<String, Integer>> term : range.entrySet())
+            addFrequency(counts, term.getKey(), term.getValue().size());
+        for (IndexSegment segment : segments) {
+            for (int ordinal : segment.getFrequentTerms(segment.prefixRange(token), limit))
+                addFrequency(counts, segment.getTerm(ordinal), segment.getPostingCount(ordinal));
+        }
+
+        Map<String, Float> terms = new HashMap<>();
+        if (counts.isEmpty()) {
+            for (String term : fuzzyTerms(token)) terms.put(term, FUZZY_WEIGHT);
+            return terms;
+        }
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>(counts.entrySet());
+        if (candidates.size() > limit) {
+            Collections.sort(candidates, BY_COUNT);
+            candidates = candidates.subList(0, limit);
+        }
+        for (Map.Entry<String, Integer> term : candidates) terms.put(term.getKey(), PREFIX_WEIGHT);
+        if (counts.containsKey(token)) terms.put(token, 1f);
+        return terms;
+    }
+
+    private static final Comparator<Map.Entry<String, Integer>> BY_COUNT = new Comparator<Map.Entry<String, Integer>>() {
+        @Override
+        public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) { return b.getValue().compareTo(a.getValue()); }
+    };
+
+    /**
+     * Metodo para saber si alguna palabra del índice empieza por una de la consulta
+     * @param token Palabra de la consulta ya normalizada
+     * @return True si hay alguna, False si no
+     */
+    private boolean hasPrefix(String token) {
+        String term = postings.ceilingKey(token);
+        if (term != null && term.startsWith(token)) return true;
+        for (IndexSegment segment : segments) {
+            int[] range = segment.prefixRange(token);
+            if (range[0] < range[1]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Metodo para conseguir las palabras del índice parecidas a una de la consulta: aquellas con
+     * algún prefijo a una distancia de edición acotada. Los candidatos salen del índice de
+     * trigramas (una errata cambia como mucho tres trigramas) y solo se calcula la distancia de esos.
+     * @param token Palabra de la consulta ya normalizada
+     * @return Palabras parecidas, vacío si la palabra es demasiado corta para admitir erratas
+     */
+    private Set<String> fuzzyTerms(String token) {
+        Set<String> result = new HashSet<>();
+        int maxEdits = token.length() <= 3 ? 0 : token.length() <= 6 ? 1 : 2;
+        if (maxEdits == 0) return result;
+
+        // Sin el '$' final: la palabra de la consulta puede estar a medio escribir
+        Set<String> grams = IndexSegment.getGrams("$" + token);
+        int minShared = Math.max(1, grams.size() - 3 * maxEdits);
+
+        Map<String, Integer> shared = new HashMap<>();
+        for (String gram : grams) {
+            Set<String> terms = trigrams.get(gram);
+            if (terms != null) for (String term : terms) addFrequency(shared, term, 1);
+        }
+        for (Map.Entry<String, Integer> candidate : shared.entrySet()) {
+            if (candidate.getValue() >= minShared && prefixDistance(token, candidate.getKey(), maxEdits) <= maxEdits)
+                result.add(candidate.getKey());
+        }
+
+        for (IndexSegment segment : segments) {
+            Map<Integer, Integer> segmentShared = new HashMap<>();
+            for (String gram : grams) {
+                for (int ordinal : segment.getGramTerms(gram)) {
+                    Integer count = segmentShared.get(ordinal);
+                    segmentShared.put(ordinal, count == null ? 1 : count + 1);
+                }
+            }
+            for (Map.Entry<Integer, Integer> candidate : segmentShared.entrySet()) {
+                if (candidate.getValue() < minShared) continue;
+                String term = segment.getTerm(candidate.getKey());
+                if (prefixDistance(token, term, maxEdits) <= maxEdits) result.add(term);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Metodo para calcular la distancia de edición (Levenshtein) entre una palabra y el prefijo
+     * más parecido de otra. Se deja de calcular en cuanto se supera el máximo.
+     * @param token Palabra de la consulta
+     * @param term Palabra del índice
+     * @param max Distancia máxima que interesa
+     * @return Distancia, o max + 1 si es mayor que el máximo
+     */
+    static int prefixDistance(String token, String term, int max) {
+        int[] previous = new int[term.length() + 1];
+        int[] current = new int[term.length() + 1];
+        for (int j = 0; j <= term.length(); j++) previous[j] = j;
+        for (int i = 1; i <= token.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= term.length(); j++) {
+                int cost = token.charAt(i - 1) == term.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) return max + 1;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        // La última fila da la distancia a cada prefijo de la palabra del índice
+        int distance = max + 1;
+        for (int value : previous) distance = Math.min(distance, value);
+        return distance;
+    }
+
+    /**
+     * Metodo para apuntar los trigramas de una palabra nueva del delta
+     * @param term Palabra del índice
+     */
+    private void addTrigrams(String term) {
+        for (String gram : IndexSegment.getTrigrams(term)) {
+            Set<String> terms = trigrams.get(gram);
+            if (terms == null) {
+                terms = new HashSet<>();
+                trigrams.put(gram, terms);
+            }
+            terms.add(term);
+        }
+    }
+
+    /**
+     * Metodo para quitar los trigramas de una palabra que ya no está en ninguna Nota del delta
+     * @param term Palabra del índice
+     */
+    private void removeTrigrams(String term) {
+        for (String gram : IndexSegment.getTrigrams(term)) {
+            Set<String> terms = trigrams.get(gram);
+            if (terms == null) continue;
+            terms.remove(term);
+            if (terms.isEmpty()) trigrams.remove(gram);
+        }
+    }
+
+    /**
+     * Metodo para sumar apariciones de una palabra
+     * @param frequencies Frecuencias de las palabras
+     * @param term Palabra
+     * @param weight Apariciones a sumar
+     */
+    private static void addFrequency(Map<String, Integer> frequencies, String term, int weight) {
+        Integer frequency = frequencies.get(term);
+        frequencies.put(term, frequency == null ? weight : frequency + weight);
+    }
+
+    //*******************
+    //   NORMALIZATION
+    //*******************
+
+    /**
+     * Metodo para normalizar una palabra igual que las del índice, p.ej. para resaltarla: en
+     * minúsculas y sin tildes ni diéresis, de modo que "Canción" y "cancion" son la misma palabra
+     * @param word Palabra del texto
+     * @return Palabra normalizada
+     */
+    public static String normalize(String word) {
+        String decomposed = Normalizer.normalize(word.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) folded.append(c);
+        }
+        return folded.toString();
+    }
+
+    /**
+     * Metodo para saber si un carácter forma parte de una palabra. Las marcas diacríticas sueltas
+     * (un texto ya descompuesto) cuentan como parte de la palabra para no partirla.
+     * @param c Carácter del texto
+     * @return True si es una letra, un dígito o una marca diacrítica, False si no
+     */
+    public static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || Character.getType(c) == Character.NON_SPACING_MARK;
+    }
+
+    /**
+     * Metodo para partir un texto en palabras normalizadas, sin signos de puntuación
+     * @param text Texto a partir, puede ser null
+     * @return Palabras del texto, en orden y con repeticiones
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && isWordChar(text.charAt(i));
+            if (letter && start < 0) start = i;
+            else if (!letter && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) tokens.add(normalize(text.substring(start, i)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
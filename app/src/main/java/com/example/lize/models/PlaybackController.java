@@ -0,0 +1,302 @@
+package com.example.lize.models;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Controlador de la reproducción de los audios adjuntos. Reutiliza siempre los mismos dos
+ * MediaPlayer: el que suena y el que prepara el siguiente segmento, que se encadena con
+ * setNextMediaPlayer para que los audios grabados por segmentos suenen sin cortes. Los ficheros
+ * se preparan con prepareAsync, sin bloquear el hilo principal, y pueden ser Uris remotas que se
+ * reproducen mientras se descargan. El estado se publica como LiveData, identificado por el ID del
+ * audio y no por su posición en la lista. Debe usarse desde el hilo principal.
+ */
+public class PlaybackController {
+    private static final String TAG = "PlaybackController";
+    private static final long PROGRESS_INTERVAL_MS = 50;
+
+    /**
+     * Estados de la reproducción
+     */
+    public enum Status { IDLE, PREPARING, PLAYING, PAUSED, COMPLETED }
+
+    /**
+     * Estado inmutable de la reproducción de un audio
+     */
+    public static class PlaybackState {
+        private final String audioID;
+        private final Status status;
+        private final long position;
+        private final long duration;
+
+        PlaybackState(String audioID, Status status, long position, long duration) {
+            this.audioID = audioID;
+            this.status = status;
+            this.position = position;
+            this.duration = duration;
+        }
+
+        public String getAudioID() { return audioID; }
+        public Status getStatus() { return status; }
+        public long getPosition() { return position; }
+        public long getDuration() { return duration; }
+
+        /**
+         * Metodo para saber si un audio está sonando o a punto de sonar
+         * @param audioID ID del audio
+         * @return True si el audio está reproduciéndose o preparándose, False si no
+         */
+        public boolean isPlaying(String audioID) {
+            return audioID.equals(this.audioID) && (status == Status.PLAYING || status == Status.PREPARING);
+        }
+
+        /**
+         * Metodo para conseguir el progreso de un audio
+         * @param audioID ID del audio
+         * @return Fracción reproducida, de 0 a 1 (0 si el audio no es el actual)
+         */
+        public float getProgress(String audioID) {
+            if (!audioID.equals(this.audioID) || duration <= 0) return 0f;
+            return Math.min(1f, position / (float) duration);
+        }
+    }
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final MutableLiveData<PlaybackState> state = new MutableLiveData<>();
+
+    private MediaPlayer player;          // Segmento que suena
+    private MediaPlayer nextPlayer;      // Siguiente segmento, preparado de antemano
+    private boolean prepared;
+    private boolean nextPrepared;
+    private boolean waitingForNext;      // El segmento actual ha terminado antes de preparar el siguiente
+    private String audioID;
+    private List<Uri> sources = new ArrayList<>();
+    private int index;
+    private long playedOffset;           // Milisegundos de los segmentos ya reproducidos
+    private long duration;
+    private Status status = Status.IDLE;
+
+    private final Runnable progressUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (status != Status.PLAYING) return;
+            publish();
+            handler.postDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Constructor de la clase
+     * @param context Contexto de la app, para abrir las Uris
+     */
+    public PlaybackController(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Metodo para conseguir el estado de la reproducción
+     * @return LiveData con el estado, null si no se ha reproducido nada
+     */
+    public LiveData<PlaybackState> getState() { return state; }
+
+    /**
+     * Metodo para reproducir un audio. Si es el audio pausado se reanuda; si no, se cambia de audio
+     * reutilizando el MediaPlayer.
+     * @param audioID ID del audio
+     * @param sources Ficheros del audio en orden (locales o remotos)
+     * @param duration Duración total en milisegundos, 0 si no se conoce
+     */
+    public void play(String audioID, List<Uri> sources, long duration) {
+        if (audioID.equals(this.audioID) && status != Status.IDLE && status != Status.COMPLETED) {
+            resume();
+            return;
+        }
+        reset();
+        this.audioID = audioID;
+        this.sources = new ArrayList<>(sources);
+        this.duration = duration;
+        if (player == null) player = new MediaPlayer();
+        prepare(player, 0);
+        status = Status.PREPARING;
+        publish();
+    }
+
+    /**
+     * Metodo para reanudar el audio pausado
+     */
+    public void resume() {
+        if (status != Status.PAUSED) return;
+        if (!prepared) {
+            status = Status.PREPARING;   // Empezará al terminar de prepararse
+            publish();
+            return;
+        }
+        player.start();
+        status = Status.PLAYING;
+        handler.post(progressUpdater);
+    }
+
+    /**
+     * Metodo para pausar el audio actual
+     */
+    public void pause() {
+        if (status != Status.PLAYING && status != Status.PREPARING) return;
+        if (status == Status.PLAYING) player.pause();
+        status = Status.PAUSED;
+        handler.removeCallbacks(progressUpdater);
+        publish();
+    }
+
+    /**
+     * Metodo para parar la reproducción de un audio, p.ej. porque se ha eliminado
+     * @param audioID ID del audio, solo se para si es el actual
+     */
+    public void stop(String audioID) {
+        if (!audioID.equals(this.audioID)) return;
+        reset();
+        publish();
+    }
+
+    /**
+     * Metodo para liberar los MediaPlayer. El controlador no se puede volver a usar.
+     */
+    public void release() {
+        reset();
+        if (player != null) player.release();
+        if (nextPlayer != null) nextPlayer.release();
+        player = null;
+        nextPlayer = null;
+    }
+
+    //*******************
+    //      INTERNAL
+    //*******************
+
+    /**
+     * Metodo para dejar los MediaPlayer listos para otro audio, sin liberarlos
+     */
+    private void reset() {
+        handler.removeCallbacks(progressUpdater);
+        if (player != null) player.reset();
+        if (nextPlayer != null) nextPlayer.reset();
+        prepared = false;
+        nextPrepared = false;
+        waitingForNext = false;
+        audioID = null;
+        index = 0;
+        playedOffset = 0;
+        status = Status.IDLE;
+    }
+
+    /**
+     * Metodo para preparar de forma asíncrona un segmento en un MediaPlayer ya reiniciado
+     * @param mediaPlayer MediaPlayer a preparar
+     * @param segment Posición del segmento
+     */
+    private void prepare(MediaPlayer mediaPlayer, int segment) {
+        mediaPlayer.setOnPreparedListener(this::onPrepared);
+        mediaPlayer.setOnCompletionListener(this::onCompletion);
+        mediaPlayer.setOnErrorListener((mp, what, extra) -> {
+            Log.w(TAG, "Playback error " + what + "/" + extra + " in " + audioID);
+            reset();
+            publish();
+            return true;
+        });
+        try {
+            mediaPlayer.setDataSource(context, sources.get(segment));
+            mediaPlayer.prepareAsync();
+        } catch (IOException | IllegalStateException exception) {
+            Log.w(TAG, "Couldn't open segment " + segment + " of " + audioID, exception);
+            reset();
+            publish();
+        }
+    }
+
+    /**
+     * Metodo que atiende la preparación de un MediaPlayer: el actual empieza a sonar y el
+     * siguiente se encadena al actual
+     * @param mp MediaPlayer preparado
+     */
+    private void onPrepared(MediaPlayer mp) {
+        if (mp == player) {
+            prepared = true;
+            if (duration <= 0 && sources.size() == 1) duration = mp.getDuration();
+            if (status != Status.PREPARING) return;   // Se pausó mientras se preparaba
+            mp.start();
+            status = Status.PLAYING;
+            handler.post(progressUpdater);
+            prepareNext();
+        } else if (mp == nextPlayer) {
+            nextPrepared = true;
+            if (waitingForNext) advance();
+            else player.setNextMediaPlayer(mp);
+        }
+    }
+
+    /**
+     * Metodo para preparar el siguiente segmento del audio, si lo hay
+     */
+    private void prepareNext() {
+        if (index + 1 >= sources.size()) return;
+        if (nextPlayer == null) nextPlayer = new MediaPlayer();
+        nextPlayer.reset();
+        nextPrepared = false;
+        prepare(nextPlayer, index + 1);
+    }
+
+    /**
+     * Metodo que atiende el final de un segmento: se pasa al siguiente o se termina el audio
+     * @param mp MediaPlayer que ha terminado
+     */
+    private void onCompletion(MediaPlayer mp) {
+        if (mp != player) return;
+        if (index + 1 < sources.size()) {
+            if (nextPrepared) advance();
+            else waitingForNext = true;
+            return;
+        }
+        handler.removeCallbacks(progressUpdater);
+        String finished = audioID;
+        long total = duration;
+        reset();
+        state.setValue(new PlaybackState(finished, Status.COMPLETED, 0, total));
+    }
+
+    /**
+     * Metodo para pasar al siguiente segmento. Con setNextMediaPlayer ya suena solo; si no dio
+     * tiempo a encadenarlo, se arranca aquí. El MediaPlayer terminado pasa a preparar el siguiente.
+     */
+    private void advance() {
+        playedOffset += player.getDuration();
+        MediaPlayer finished = player;
+        player = nextPlayer;
+        nextPlayer = finished;
+        index++;
+        prepared = true;
+        if (waitingForNext) {
+            waitingForNext = false;
+            player.start();
+        }
+        prepareNext();
+    }
+
+    /**
+     * Metodo para publicar el estado actual
+     */
+    private void publish() {
+        long position = prepared && player != null ? playedOffset + player.getCurrentPosition() : playedOffset;
+        state.setValue(new PlaybackState(audioID, status, position, duration));
+    }
+}
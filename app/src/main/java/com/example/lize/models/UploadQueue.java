@@ -0,0 +1,604 @@
+package com.example.lize.models;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+
+import com.example.lize.workers.UploadWorker;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cola persistente de subidas de adjuntos. Antes de subir un adjunto se copia a un directorio
+ * propio de la app y se apunta en un fichero de cola, de modo que la subida sobrevive a que el
+ * usuario salga de la nota o a que el sistema mate el proceso. Las subidas pendientes las termina
+ * {@link UploadWorker} en segundo plano cuando se cumplen las restricciones de red y batería.
+ * La entrada del manifiesto en Firestore solo se escribe una vez el fichero está en el Storage,
+ * pero la referencia a su blob se suma antes de subirlo, con {@link #acquireBlob(PendingUpload)}.
+ * Los segmentos de un audio se suben mientras se graba, pero se quedan en la cola hasta que llega
+ * su audio al parar la grabación: el audio y todos sus segmentos se apuntan en una sola escritura.
+ */
+public class UploadQueue {
+    private static final String TAG = "UploadQueue";
+    private static final String QUEUE_FILE = "upload_queue.json";
+    private static final String QUEUE_FILE_TMP = "upload_queue.json.tmp";
+    private static final String STAGING_DIR = "uploads";
+    private static final String WORK_NAME = "attachment-uploads";
+    private static final String PREFERENCES = "uploads";
+    private static final String PREF_UNMETERED_ONLY = "unmeteredOnly";
+
+    private static UploadQueue uploadQueue = null;
+
+    private final Context context;
+    private final File stagingDir;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, PendingUpload> pending;      // attachmentsID/ref -> subida, en orden de llegada
+    private final Set<String> claimed;                     // Claves de las subidas que se están subiendo ahora mismo
+    private boolean writeScheduled;                        // Ya hay una escritura de la cola en el executor
+
+    /**
+     * Subida pendiente: fichero preparado en local y entrada del manifiesto a escribir al terminar
+     */
+    public static class PendingUpload {
+        private final String attachmentsID;
+        private final AttachmentManifest.Entry entry;
+        private final String ref;
+        private final String key;       // Clave en la cola: las refs solo son únicas dentro de una Nota
+        private final String path;
+        private boolean uploaded;
+        private boolean referenced;     // Ya cuenta como referencia de su blob
+
+        PendingUpload(String attachmentsID, AttachmentManifest.Entry entry, String path) {
+            this.attachmentsID = attachmentsID;
+            this.entry = entry;
+            this.ref = entry.getRef();
+            this.key = key(attachmentsID, ref);
+            this.path = path;
+        }
+
+        public String getAttachmentsID() { return attachmentsID; }
+        public AttachmentManifest.Entry getEntry() { return entry; }
+        public String getRef() { return ref; }
+        public File getFile() { return path != null ? new File(path) : null; }
+        public String getHash() { return entry.getHash(); }
+
+        /**
+         * Metodo para saber si el fichero ya está en el Storage y solo falta apuntarlo en el manifiesto
+         * @return True si ya se ha subido (o no tiene fichero), False si no
+         */
+        public boolean isUploaded() { return uploaded; }
+
+        /**
+         * Metodo para saber si la subida forma parte de un audio grabado por segmentos, que se
+         * apunta en el manifiesto junto con todos sus segmentos
+         * @return True si es un segmento o un audio por segmentos, False si no
+         */
+        public boolean isAudioPart() {
+            return AttachmentManifest.TYPE_AUDIO_SEGMENT.equals(entry.getType())
+                    || (AttachmentManifest.TYPE_AUDIO.equals(entry.getType()) && entry.isSegmented());
+        }
+
+        /**
+         * Metodo para conseguir el audio al que pertenece una subida de un audio por segmentos
+         * @return Referencia del audio
+         */
+        public String getAudioRef() { return entry.getParent() != null ? entry.getParent() : ref; }
+
+        /**
+         * Metodo para conseguir la ruta destino en el Storage
+         * @return Ruta del blob
+         */
+        public String getStoragePath() { return entry.getStoragePath(); }
+
+        /**
+         * Metodo para conseguir el grupo de subidas al que pertenece: los adjuntos de una misma Nota
+         * @return Grupo de la subida
+         */
+        public String getGroupID() { return attachmentsID; }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("attachmentsID", attachmentsID);
+            json.put("ref", ref);
+            if (path != null) json.put("path", path);
+            json.put("uploaded", uploaded);
+            json.put("referenced", referenced);
+            json.put("entry", new JSONObject(entry.toMap()));
+            return json;
+        }
+
+        static PendingUpload fromJson(JSONObject json) throws JSONException {
+            JSONObject fields = json.getJSONObject("entry");
+            Map<String, Object> map = new HashMap<>();
+            Iterator<String> keys = fields.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                map.put(key, fields.get(key));
+            }
+            AttachmentManifest.Entry entry = AttachmentManifest.Entry.fromMap(json.getString("ref"), map);
+            PendingUpload upload = new PendingUpload(json.getString("attachmentsID"), entry, json.optString("path", null));
+            upload.uploaded = json.optBoolean("uploaded", false);
+            upload.referenced = json.optBoolean("referenced", false);
+            return upload;
+        }
+    }
+
+    /**
+     * Interfaz del Listener de preparación de subidas. Se llama en el hilo principal.
+     */
+    public interface OnStagedListener {
+        void onStaged(PendingUpload upload);
+    }
+
+    /**
+     * Metodo para obtener la instancia de la clase
+     * @param context Contexto de la app
+     * @return instancia de UploadQueue
+     */
+    public static synchronized UploadQueue getInstance(Context context) {
+        if (uploadQueue == null) uploadQueue = new UploadQueue(context.getApplicationContext());
+        return uploadQueue;
+    }
+
+    /**
+     * Constructor de la clase. Carga las subidas pendientes del fichero de cola.
+     * @param context Contexto de la app
+     */
+    private UploadQueue(Context context) {
+        this.context = context;
+        this.stagingDir = new File(context.getFilesDir(), STAGING_DIR);
+        this.pending = new LinkedHashMap<>();
+        this.claimed = new HashSet<>();
+        if (!stagingDir.exists() && !stagingDir.mkdirs()) Log.w(TAG, "Couldn't create staging dir " + stagingDir);
+        readQueue();
+    }
+
+    /**
+     * Metodo para preparar la subida de un adjunto: se copia a local, se apunta en la cola y se
+     * programa el worker. La copia se hace en un hilo de fondo y calcula a la vez el SHA-256 del
+     * contenido, que es la ruta del blob en el Storage, y el tamaño, que se guardan en la entrada.
+     * Si se pasa un listener, la subida queda reclamada por el llamante, que debe terminarla con
+     * {@link #complete(PendingUpload)} o liberarla con {@link #release(PendingUpload)}.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entry Entrada del manifiesto del adjunto
+     * @param source Uri del adjunto original
+     * @param listener Listener avisado cuando la subida está preparada, puede ser null
+     */
+    public void stage(String attachmentsID, AttachmentManifest.Entry entry, Uri source, OnStagedListener listener) {
+        String ref = entry.getRef();
+        executor.execute(() -> {
+            File staged = new File(stagingDir, attachmentsID + "-" + ref);
+            MessageDigest digest;
+            long size = 0;
+            try (InputStream in = openSource(source); OutputStream out = new FileOutputStream(staged)) {
+                digest = MessageDigest.getInstance("SHA-256");
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    size += read;
+                }
+            } catch (IOException | NoSuchAlgorithmException exception) {
+                Log.e(TAG, "Couldn't stage upload " + ref, exception);
+                return;
+            }
+
+            entry.setHash(BlobStore.toHex(digest.digest()));
+            entry.setSize(size);
+            PendingUpload upload = new PendingUpload(attachmentsID, entry, staged.getAbsolutePath());
+            synchronized (this) {
+                pending.put(upload.key, upload);
+                if (listener != null) claimed.add(upload.key);
+                writeQueue();
+            }
+            scheduleWorker();
+            if (listener != null) mainHandler.post(() -> listener.onStaged(upload));
+        });
+    }
+
+    /**
+     * Metodo para apuntar en la cola un audio grabado por segmentos al parar la grabación. No tiene
+     * fichero propio: se escribe en el manifiesto junto con sus segmentos cuando estén todos subidos.
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param entry Entrada del audio, con su número de segmentos
+     */
+    public synchronized void stageAudio(String attachmentsID, AttachmentManifest.Entry entry) {
+        PendingUpload upload = new PendingUpload(attachmentsID, entry, null);
+        upload.uploaded = true;
+        pending.put(upload.key, upload);
+        writeQueue();
+        scheduleWorker();
+    }
+
+    /**
+     * Metodo para marcar como subido un fichero de un audio por segmentos, que espera en la cola a
+     * que esté todo el audio para apuntarse en el manifiesto. Libera la subida.
+     * @param upload Subida cuyo fichero ya está en el Storage
+     */
+    public synchronized void markUploaded(PendingUpload upload) {
+        claimed.remove(upload.key);
+        PendingUpload queued = pending.get(upload.key);
+        if (queued == null) return;
+        queued.uploaded = true;
+        upload.uploaded = true;
+        writeQueue();
+    }
+
+    /**
+     * Metodo para sumar la referencia de una subida a su blob antes de subir el fichero, de modo
+     * que nadie pueda borrar el blob mientras tanto. Se hace una sola vez por subida; si la
+     * subida se descarta, su referencia se libera.
+     * @param upload Subida reclamada
+     * @return Task con True si el fichero ya está en el Storage y no hace falta subirlo
+     */
+    public Task<Boolean> acquireBlob(PendingUpload upload) {
+        if (upload.getHash() == null || upload.referenced) return Tasks.forResult(upload.uploaded);
+        return BlobStore.acquire(upload.getHash()).continueWith(executor, task -> {
+            boolean stored = task.getResult();      // Si falla la transacción, falla el Task
+            synchronized (this) {
+                PendingUpload queued = pending.get(upload.key);
+                if (queued == null) {
+                    // Se descartó mientras se sumaba la referencia: nadie más la va a liberar
+                    BlobStore.release(upload.getHash());
+                    return true;
+                }
+                queued.referenced = true;
+                upload.referenced = true;
+                writeQueue();
+            }
+            return stored || upload.uploaded;
+        });
+    }
+
+    /**
+     * Metodo para reclamar todas las subidas de un audio por segmentos si ya se pueden apuntar en
+     * el manifiesto: está el audio y todos sus segmentos subidos, y nadie los tiene reclamados
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param audioRef Referencia del audio
+     * @return Subidas reclamadas, el audio primero, o null si aún no están todas
+     */
+    public synchronized List<PendingUpload> claimAudio(String attachmentsID, String audioRef) {
+        PendingUpload audio = pending.get(key(attachmentsID, audioRef));
+        if (audio == null || claimed.contains(audio.key)) return null;
+        List<PendingUpload> group = new ArrayList<>();
+        group.add(audio);
+        for (PendingUpload upload : pending.values()) {
+            if (!upload.attachmentsID.equals(attachmentsID) || !audioRef.equals(upload.entry.getParent())) continue;
+            if (!upload.uploaded || claimed.contains(upload.key)) return null;
+            group.add(upload);
+        }
+        if (group.size() - 1 < audio.entry.getSegments()) return null;   // Faltan segmentos por preparar
+        for (PendingUpload upload : group) claimed.add(upload.key);
+        return group;
+    }
+
+    /**
+     * Metodo para conseguir las subidas pendientes que nadie está subiendo
+     * @return Subidas pendientes sin reclamar
+     */
+    public synchronized List<PendingUpload> getUnclaimed() {
+        List<PendingUpload> result = new ArrayList<>();
+        for (PendingUpload upload : pending.values()) if (!claimed.contains(upload.key)) result.add(upload);
+        return result;
+    }
+
+    /**
+     * Metodo para saber si queda alguna subida pendiente
+     * @return True si hay subidas pendientes, False si no
+     */
+    public synchronized boolean hasPending() { return !pending.isEmpty(); }
+
+    /**
+     * Metodo para saber si queda alguna subida pendiente de los adjuntos de una Nota
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @return True si alguno de sus adjuntos aún no está guardado, False si no
+     */
+    public synchronized boolean hasPending(String attachmentsID) {
+        for (PendingUpload upload : pending.values()) if (upload.attachmentsID.equals(attachmentsID)) return true;
+        return false;
+    }
+
+    /**
+     * Metodo para reclamar una subida, de modo que nadie más la suba a la vez
+     * @param upload Subida a reclamar
+     * @return True si se ha reclamado, False si ya no está pendiente o la tiene otro
+     */
+    public synchronized boolean claim(PendingUpload upload) {
+        return pending.containsKey(upload.key) && claimed.add(upload.key);
+    }
+
+    /**
+     * Metodo para liberar una subida reclamada que no se ha podido terminar
+     * @param upload Subida a liberar
+     */
+    public synchronized void release(PendingUpload upload) { claimed.remove(upload.key); }
+
+    /**
+     * Metodo para saber si una subida sigue pendiente (no se ha descartado)
+     * @param upload Subida a consultar
+     * @return True si sigue pendiente, False si no
+     */
+    public synchronized boolean isPending(PendingUpload upload) { return pending.containsKey(upload.key); }
+
+    /**
+     * Metodo para saber si alguna subida pendiente tiene un contenido, y por tanto aún apuntará su blob
+     * @param hash SHA-256 del contenido
+     * @return True si hay una subida pendiente con ese hash, False si no
+     */
+    public synchronized boolean hasPendingBlob(String hash) {
+        for (PendingUpload upload : pending.values()) if (hash.equals(upload.getHash())) return true;
+        return false;
+    }
+
+    /**
+     * Metodo para quitar de la cola una subida terminada y borrar su copia local
+     * @param upload Subida terminada
+     */
+    public synchronized void complete(PendingUpload upload) {
+        claimed.remove(upload.key);
+        if (pending.remove(upload.key) == null) return;
+        writeQueue();
+        if (upload.path != null && !upload.getFile().delete()) Log.d(TAG, "Staged file already gone: " + upload.ref);
+    }
+
+    /**
+     * Metodo para descartar la subida de un adjunto que se ha eliminado antes de subirse
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param ref Referencia del adjunto
+     * @return True si estaba pendiente, False si no
+     */
+    public synchronized boolean discard(String attachmentsID, String ref) {
+        PendingUpload upload = pending.get(key(attachmentsID, ref));
+        if (upload == null) return false;
+        complete(upload);
+        releaseBlob(upload);
+        return true;
+    }
+
+    /**
+     * Metodo para descartar todas las subidas pendientes de los adjuntos de una Nota borrada
+     * @param attachmentsID ID de los adjuntos de la Nota
+     */
+    public synchronized void discardAll(String attachmentsID) {
+        for (PendingUpload upload : new ArrayList<>(pending.values())) {
+            if (!upload.attachmentsID.equals(attachmentsID)) continue;
+            complete(upload);
+            releaseBlob(upload);
+        }
+    }
+
+    /**
+     * Metodo para liberar la referencia de una subida descartada a su blob, que se borra del
+     * Storage si era la última
+     * @param upload Subida descartada
+     */
+    private void releaseBlob(PendingUpload upload) {
+        if (upload.referenced) BlobStore.release(upload.getHash());
+    }
+
+    /**
+     * Metodo para apuntar en el manifiesto de Firestore un adjunto ya subido al Storage y marcar
+     * su blob como guardado, en una única transacción
+     * @param upload Subida terminada
+     * @return Task de la escritura
+     */
+    public Task<Void> commitManifest(PendingUpload upload) {
+        return commitManifest(Collections.singletonList(upload));
+    }
+
+    /**
+     * Metodo para apuntar en el manifiesto de Firestore varios adjuntos de una Nota ya subidos,
+     * p.ej. un audio y sus segmentos, y marcar sus blobs como guardados, en una única transacción.
+     * Sus referencias ya se sumaron con {@link #acquireBlob(PendingUpload)}. Es idempotente: las
+     * entradas que el manifiesto ya tiene con el mismo hash (la app murió antes de quitarlas de la
+     * cola) no se vuelven a escribir.
+     * @param uploads Subidas terminadas, todas de la misma Nota
+     * @return Task de la escritura
+     */
+    public Task<Void> commitManifest(List<PendingUpload> uploads) {
+        String attachmentsID = uploads.get(0).attachmentsID;
+        DocumentReference manifest = AttachmentManifest.getReference(attachmentsID);
+        return FirebaseFirestore.getInstance().runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(manifest);
+            List<AttachmentManifest.Entry> entries = new ArrayList<>();
+            List<String> hashes = new ArrayList<>();
+            for (PendingUpload upload : uploads) {
+                AttachmentManifest.Entry stored = AttachmentManifest.getEntry(snapshot, upload.ref);
+                String hash = upload.getHash();
+                if (stored != null && (hash == null ? stored.getHash() == null : hash.equals(stored.getHash()))) continue;   // Ya apuntada
+                entries.add(upload.entry);
+                if (hash != null) hashes.add(hash);
+            }
+            if (entries.isEmpty()) return null;
+            transaction.set(manifest, AttachmentManifest.withEntries(attachmentsID, entries), SetOptions.merge());
+            for (String hash : hashes) BlobStore.setStored(transaction, hash);
+            return null;
+        });
+    }
+
+    /**
+     * Metodo para programar el worker que termina las subidas pendientes en segundo plano
+     */
+    public void scheduleWorker() {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(isUnmeteredOnly() ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+                .setRequiresBatteryNotLow(true)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(UploadWorker.class)
+                .setConstraints(constraints)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, OneTimeWorkRequest.MIN_BACKOFF_MILLIS, TimeUnit.MILLISECONDS)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+    }
+
+    /**
+     * Metodo para saber si las subidas en segundo plano solo se hacen con WiFi
+     * @return True si solo se usan redes no medidas, False si no
+     */
+    public boolean isUnmeteredOnly() {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getBoolean(PREF_UNMETERED_ONLY, false);
+    }
+
+    /**
+     * Metodo para establecer si las subidas en segundo plano solo se hacen con WiFi
+     * @param unmeteredOnly True para usar solo redes no medidas
+     */
+    public void setUnmeteredOnly(boolean unmeteredOnly) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        preferences.edit().putBoolean(PREF_UNMETERED_ONLY, unmeteredOnly).apply();
+        if (hasPending()) scheduleWorker();
+    }
+
+    //*******************
+    //      INTERNAL
+    //*******************
+
+    /**
+     * Metodo para abrir el adjunto original, sea un fichero o un content:// Uri
+     * @param source Uri del adjunto
+     * @return InputStream del adjunto
+     * @throws IOException Si no se puede abrir
+     */
+    private InputStream openSource(Uri source) throws IOException {
+        if ("file".equals(source.getScheme())) return new FileInputStream(new File(source.getPath()));
+        InputStream in = context.getContentResolver().openInputStream(source);
+        if (in == null) throw new IOException("Couldn't open " + source);
+        return in;
+    }
+
+    /**
+     * Metodo para cargar la cola del fichero. Las entradas cuya copia local ha desaparecido se
+     * descartan, ya que no hay nada que subir.
+     */
+    private void readQueue() {
+        File file = new File(context.getFilesDir(), QUEUE_FILE);
+        if (!file.exists()) return;
+        StringBuilder content = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) content.append(line);
+            JSONArray array = new JSONArray(content.toString());
+            for (int i = 0; i < array.length(); i++) {
+                PendingUpload upload;
+                try {
+                    upload = PendingUpload.fromJson(array.getJSONObject(i));
+                } catch (JSONException exception) {
+                    Log.w(TAG, "Dropping upload in an old format: " + array.opt(i));   // Anterior al manifiesto único
+                    continue;
+                }
+                if (upload.path == null || upload.getFile().exists()) pending.put(upload.key, upload);
+                else Log.w(TAG, "Dropping upload without staged file: " + upload.ref);
+            }
+            dropAbandonedSegments();
+        } catch (IOException | JSONException exception) {
+            Log.e(TAG, "Couldn't read upload queue", exception);
+        }
+    }
+
+    /**
+     * Metodo para descartar al arrancar los segmentos de grabaciones que no llegaron a pararse (la
+     * app murió mientras se grababa): sin su audio no se apuntarán nunca, así que se liberan sus
+     * referencias y los blobs que nadie más referencia se borran del Storage.
+     */
+    private void dropAbandonedSegments() {
+        for (PendingUpload upload : new ArrayList<>(pending.values())) {
+            String parent = upload.entry.getParent();
+            if (!AttachmentManifest.TYPE_AUDIO_SEGMENT.equals(upload.entry.getType())
+                    || pending.containsKey(key(upload.attachmentsID, parent))) continue;
+            Log.w(TAG, "Dropping segment of an unfinished recording: " + upload.ref);
+            pending.remove(upload.key);
+            if (!upload.getFile().delete()) Log.d(TAG, "Staged file already gone: " + upload.ref);
+            releaseBlob(upload);
+        }
+        writeQueue();
+    }
+
+    /**
+     * Metodo para conseguir la clave de una subida en la cola
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param ref Referencia del adjunto
+     * @return Clave attachmentsID/ref
+     */
+    private static String key(String attachmentsID, String ref) { return attachmentsID + "/" + ref; }
+
+    /**
+     * Metodo para programar el guardado de la cola en el executor, fuera del hilo principal. Si ya
+     * hay uno programado no se añade otro: ese ya guardará el estado más reciente.
+     */
+    private void writeQueue() {
+        if (writeScheduled) return;
+        writeScheduled = true;
+        executor.execute(this::persistQueue);
+    }
+
+    /**
+     * Metodo para guardar la cola en el fichero, de forma atómica. Se llama en el executor.
+     */
+    private void persistQueue() {
+        String json;
+        synchronized (this) {
+            writeScheduled = false;
+            try {
+                JSONArray array = new JSONArray();
+                for (PendingUpload upload : pending.values()) array.put(upload.toJson());
+                json = array.toString();
+            } catch (JSONException exception) {
+                Log.e(TAG, "Couldn't write upload queue", exception);
+                return;
+            }
+        }
+        File tmp = new File(context.getFilesDir(), QUEUE_FILE_TMP);
+        try (Writer writer = new FileWriter(tmp)) {
+            writer.write(json);
+        } catch (IOException exception) {
+            Log.e(TAG, "Couldn't write upload queue", exception);
+            return;
+        }
+        if (!tmp.renameTo(new File(context.getFilesDir(), QUEUE_FILE))) Log.e(TAG, "Couldn't replace upload queue");
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.lize.models;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.firebase.storage.StorageReference;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Planificador de subidas de adjuntos al Firebase Storage. Limita el número de subidas simultáneas
+ * y agrupa los ficheros por colección de adjuntos (p.ej. "images/ID"), de modo que un fichero que
+ * ya se está subiendo no se vuelve a encolar. Cuando todas las subidas de un grupo terminan, el
+ * grupo se olvida: las fallidas quedan en la UploadQueue y las reintenta el UploadWorker.
+ * Debe usarse desde el hilo principal, que es donde Firebase entrega sus callbacks.
+ */
+public class UploadScheduler {
+    private static final String TAG = "UploadScheduler";
+    public static final int DEFAULT_MAX_PARALLEL = 3;
+
+    private final StorageReference storageRef;
+    private final int maxParallel;
+    private final ArrayDeque<Job> queue;
+    private final Map<String, LinkedHashMap<String, Job>> groups;
+    private int running;                                   // Subidas en curso
+
+    /**
+     * Subida de un fichero
+     */
+    private static class Job {
+        final String groupID;
+        final String ref;
+        final String path;
+        final Uri source;
+        final Runnable onSuccess;
+        final Runnable onFailure;
+        boolean finished;
+
+        Job(String groupID, String ref, String path, Uri source, Runnable onSuccess, Runnable onFailure) {
+            this.groupID = groupID;
+            this.ref = ref;
+            this.path = path;
+            this.source = source;
+            this.onSuccess = onSuccess;
+            this.onFailure = onFailure;
+        }
+    }
+
+    /**
+     * Constructor de la clase
+     * @param storageRef Referencia raíz del Storage
+     * @param maxParallel Número máximo de subidas simultáneas
+     */
+    public UploadScheduler(StorageReference storageRef, int maxParallel) {
+        this.storageRef = storageRef;
+        this.maxParallel = maxParallel;
+        this.queue = new ArrayDeque<>();
+        this.groups = new HashMap<>();
+    }
+
+    /**
+     * Metodo para encolar la subida de un fichero
+     * @param groupID Grupo al que pertenece la subida
+     * @param ref Referencia del adjunto
+     * @param path Ruta destino en el Storage
+     * @param source Uri del fichero local
+     * @param onSuccess Runnable ejecutado cuando el fichero está guardado, puede ser null
+     * @param onFailure Runnable ejecutado si la subida falla, puede ser null
+     */
+    public void enqueue(String groupID, String ref, String path, Uri source, Runnable onSuccess, Runnable onFailure) {
+        LinkedHashMap<String, Job> group = groups.get(groupID);
+        if (group == null) {
+            group = new LinkedHashMap<>();
+            groups.put(groupID, group);
+        }
+        Job previous = group.get(ref);
+        if (previous != null && !previous.finished) return;   // Ya se está subiendo
+
+        Job job = new Job(groupID, ref, path, source, onSuccess, onFailure);
+        group.put(ref, job);
+        queue.add(job);
+        schedule();
+    }
+
+    //*******************
+    //      INTERNAL
+    //*******************
+
+    /**
+     * Metodo para arrancar subidas encoladas mientras haya huecos libres
+     */
+    private void schedule() {
+        while (running < maxParallel && !queue.isEmpty()) start(queue.poll());
+    }
+
+    /**
+     * Metodo para arrancar la subida de un fichero
+     * @param job Subida a arrancar
+     */
+    private void start(Job job) {
+        running++;
+        storageRef.child(job.path).putFile(job.source).addOnSuccessListener(taskSnapshot -> {
+            if (job.onSuccess != null) job.onSuccess.run();
+        }).addOnFailureListener(exception -> {
+            Log.w(TAG, "Upload of " + job.ref + " failed", exception);
+            if (job.onFailure != null) job.onFailure.run();
+        }).addOnCompleteListener(task -> {
+            running--;
+            job.finished = true;
+            pruneGroup(job.groupID);
+            schedule();
+        });
+    }
+
+    /**
+     * Metodo para olvidar un grupo si todas sus subidas han terminado
+     * @param groupID Grupo a comprobar
+     */
+    private void pruneGroup(String groupID) {
+        LinkedHashMap<String, Job> group = groups.get(groupID);
+        if (group == null) return;
+        for (Job job : group.values()) if (!job.finished) return;
+        groups.remove(groupID);
+    }
+}
@@ -14,8 +14,11 @@ import android.provider.OpenableColumns;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by jihoon on 2016. 4. 3..
@@ -240,4 +243,19 @@ public class FileUtils {
         return file;
 
     }
-}
\ No newline at end of file
+
+
+    /**
+     * Copia un fichero byte a byte con FileChannel.transferTo, sin pasar los datos por el heap
+     * @param source Fichero origen
+     * @param target Fichero destino, se sobrescribe si existe
+     * @throws IOException Si no se puede leer el origen o escribir el destino
+     */
+    public static void copyFile(File source, File target) throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target, false).getChannel()) {
+            long position = 0, size = in.size();
+            while (position < size) position += in.transferTo(position, size - position, out);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.lize.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import com.example.lize.data.Image;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pipeline de ingesta de imágenes. Lee la imagen escogida por el usuario en streaming, decodificando
+ * primero solo sus dimensiones, la redimensiona a {@link #getMaxDimension()}, corrige su orientación
+ * EXIF y la codifica en WEBP en la cache de la app. Todo el trabajo se hace en un hilo de fondo;
+ * el resultado se entrega en el hilo principal mediante un {@link IngestListener}. El fichero
+ * resultante es temporal: quien lo recibe debe borrarlo cuando ya no lo necesite.
+ */
+public class ImageIngestor {
+    private static final String TAG = "ImageIngestor";
+    public static final int DEFAULT_MAX_DIMENSION = 1600;
+    public static final int DEFAULT_QUALITY = 75;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Context context;
+    private int maxDimension;
+    private int quality;
+    private IngestListener listener;                // Solo se usa en el hilo principal
+    private volatile boolean cancelled = false;
+
+    /**
+     * Interfaz del Listener de la ingesta. Ambos métodos se llaman en el hilo principal.
+     */
+    public interface IngestListener {
+        void onImageReady(Image image);
+        void onImageFailed(Exception exception);
+    }
+
+    /**
+     * Constructor de la clase
+     * @param context Contexto de la app
+     */
+    public ImageIngestor(Context context) {
+        this.context = context.getApplicationContext();
+        this.maxDimension = DEFAULT_MAX_DIMENSION;
+        this.quality = DEFAULT_QUALITY;
+    }
+
+    /**
+     * Metodo para conseguir la dimensión máxima (ancho o alto) de las imágenes resultantes
+     * @return Dimensión máxima en píxeles
+     */
+    public int getMaxDimension() { return maxDimension; }
+
+    /**
+     * Metodo para establecer la dimensión máxima (ancho o alto) de las imágenes resultantes
+     * @param maxDimension Dimensión máxima en píxeles
+     */
+    public void setMaxDimension(int maxDimension) { this.maxDimension = maxDimension; }
+
+    /**
+     * Metodo para conseguir la calidad de codificación
+     * @return Calidad de 0 a 100
+     */
+    public int getQuality() { return quality; }
+
+    /**
+     * Metodo para establecer la calidad de codificación
+     * @param quality Calidad de 0 a 100
+     */
+    public void setQuality(int quality) { this.quality = quality; }
+
+    /**
+     * Metodo para establecer el Listener que recibe las imágenes procesadas
+     * @param listener Listener de la ingesta
+     */
+    public void setListener(IngestListener listener) { this.listener = listener; }
+
+    /**
+     * Metodo para cancelar las ingestas pendientes y soltar el Listener, p.ej. cuando se destruye
+     * la Activity que lo ha registrado. Las imágenes que terminen después se borran sin entregarse.
+     */
+    public void cancel() {
+        cancelled = true;
+        listener = null;
+    }
+
+    /**
+     * Metodo para procesar una imagen en segundo plano. El resultado se entrega al Listener
+     * establecido con {@link #setListener}; el trabajo en curso no retiene al Listener.
+     * @param uri Uri de la imagen escogida
+     */
+    public void ingest(Uri uri) {
+        executor.execute(() -> {
+            if (cancelled) return;
+            try {
+                Image image = process(uri);
+                mainHandler.post(() -> deliver(image));
+            } catch (Exception exception) {
+                Log.w(TAG, "Failed to ingest image " + uri, exception);
+                mainHandler.post(() -> {
+                    if (listener != null) listener.onImageFailed(exception);
+                });
+            }
+        });
+    }
+
+    /**
+     * Metodo para entregar una imagen procesada al Listener, o borrarla si ya no hay nadie que la reciba
+     * @param image Imagen procesada
+     */
+    private void deliver(Image image) {
+        if (listener != null) listener.onImageReady(image);
+        else if (!image.delete()) Log.d(TAG, "Couldn't delete orphan image " + image);
+    }
+
+    /**
+     * Metodo que realiza la ingesta completa de una imagen. Se ejecuta en el hilo de fondo.
+     * @param uri Uri de la imagen
+     * @return Imagen codificada en la cache
+     * @throws IOException Si no se puede leer la imagen o escribir el fichero resultante
+     */
+    private Image process(Uri uri) throws IOException {
+        // 1. Leemos solo las dimensiones, sin reservar memoria para los píxeles
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) throw new IOException("Unsupported image " + uri);
+
+        // 2. Decodificamos submuestreando a la potencia de 2 más cercana a la dimensión máxima
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, maxDimension);
+        Bitmap sampled;
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            sampled = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (sampled == null) throw new IOException("Couldn't decode image " + uri);
+
+        // 3. Escalado final y orientación en una única transformación
+        Matrix matrix = new Matrix();
+        float scale = Math.min(1f, (float) maxDimension / Math.max(sampled.getWidth(), sampled.getHeight()));
+        if (scale < 1f) matrix.postScale(scale, scale);
+        applyOrientation(matrix, readOrientation(uri));
+
+        Bitmap result = sampled;
+        if (!matrix.isIdentity()) {
+            result = Bitmap.createBitmap(sampled, 0, 0, sampled.getWidth(), sampled.getHeight(), matrix, true);
+            if (result != sampled) sampled.recycle();
+        }
+
+        // 4. Codificamos directamente al fichero de la cache
+        String id = String.valueOf(System.currentTimeMillis());
+        Image image = new Image(context.getCacheDir(), id);
+        image.setId(id);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(image))) {
+            if (!result.compress(getCompressFormat(), quality, out)) throw new IOException("Couldn't encode image " + uri);
+        } finally {
+            result.recycle();
+        }
+        return image;
+    }
+
+    /**
+     * Metodo para calcular el factor de submuestreo de una imagen
+     * @param width Ancho original
+     * @param height Alto original
+     * @param maxDimension Dimensión máxima deseada
+     * @return Mayor potencia de 2 que mantiene la imagen por encima de la dimensión máxima
+     */
+    static int calculateInSampleSize(int width, int height, int maxDimension) {
+        int largest = Math.max(width, height);
+        int inSampleSize = 1;
+        while (largest / (inSampleSize * 2) >= maxDimension) inSampleSize *= 2;
+        return inSampleSize;
+    }
+
+    /**
+     * Metodo para leer la orientación EXIF de una imagen
+     * @param uri Uri de la imagen
+     * @return Orientación EXIF, {@link ExifInterface#ORIENTATION_NORMAL} si no se puede leer
+     */
+    private int readOrientation(Uri uri) {
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            if (in == null) return ExifInterface.ORIENTATION_NORMAL;
+            return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException exception) {
+            Log.w(TAG, "Couldn't read EXIF orientation of " + uri);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Metodo para añadir a la matriz la transformación correspondiente a una orientación EXIF
+     * @param matrix Matriz de transformación
+     * @param orientation Orientación EXIF
+     */
+    private static void applyOrientation(Matrix matrix, int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL: matrix.postScale(-1, 1); break;
+            case ExifInterface.ORIENTATION_ROTATE_180:      matrix.postRotate(180); break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:   matrix.postScale(1, -1); break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:       matrix.postRotate(90); matrix.postScale(-1, 1); break;
+            case ExifInterface.ORIENTATION_ROTATE_90:       matrix.postRotate(90); break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:      matrix.postRotate(-90); matrix.postScale(-1, 1); break;
+            case ExifInterface.ORIENTATION_ROTATE_270:      matrix.postRotate(-90); break;
+            default: break;
+        }
+    }
+
+    /**
+     * Metodo para conseguir el formato de codificación según la versión de Android
+     * @return WEBP con pérdidas
+     */
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getCompressFormat() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) return Bitmap.CompressFormat.WEBP_LOSSY;
+        return Bitmap.CompressFormat.WEBP;
+    }
+}
@@ -1,11 +1,16 @@
 package com.example.lize.utils;
 
+import android.content.Context;
 import android.view.ContextThemeWrapper;
 import androidx.appcompat.app.AppCompatDelegate;
 import com.example.lize.R;
+import com.example.lize.data.SortedNotes;
 
 public class Preferences {
 
+    private static final String PREFERENCES = "preferences";
+    private static final String PREF_NOTE_ORDER = "noteOrder";
+
     private static int selectedTheme = R.style.Theme_Red;
     private static int selectedColor;
 
@@ -111,4 +116,24 @@ public class Preferences {
      * @return Color Default
      */
     public static int getDefaultAmbitoColor(){ return R.color.white; }
+
+    /**
+     * Metodo para conseguir el orden de las Notas elegido por el usuario
+     * @param context Contexto de la aplicación
+     * @return Orden elegido, por fecha de edición si no hay ninguno
+     */
+    public static SortedNotes.Order getNoteOrder(Context context) {
+        String order = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getString(PREF_NOTE_ORDER, null);
+        for (SortedNotes.Order value : SortedNotes.Order.values()) if (value.name().equals(order)) return value;
+        return SortedNotes.Order.UPDATED;
+    }
+
+    /**
+     * Metodo para guardar el orden de las Notas elegido por el usuario
+     * @param context Contexto de la aplicación
+     * @param order Orden de las Notas
+     */
+    public static void setNoteOrder(Context context, SortedNotes.Order order) {
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit().putString(PREF_NOTE_ORDER, order.name()).apply();
+    }
 }
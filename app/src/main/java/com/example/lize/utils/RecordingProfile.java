@@ -0,0 +1,99 @@
+package com.example.lize.utils;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+
+/**
+ * Perfil de grabación de los audios: contenedor, códec, frecuencia de muestreo y bitrate que se
+ * aplican al MediaRecorder. Las notas de voz son mono y de voz hablada, así que los perfiles
+ * priorizan pocos bytes por minuto sobre la fidelidad musical. Por defecto se usa AAC en MPEG-4,
+ * que se puede reproducir y buscar en streaming a diferencia del AMR en 3GPP que se usaba antes.
+ */
+public final class RecordingProfile {
+
+    /** AMR-NB en 3GPP: el formato original, solo se conserva para describir los audios antiguos */
+    public static final RecordingProfile AMR_NB = new RecordingProfile("amr_nb", ".3gp", "audio/3gpp",
+            MediaRecorder.OutputFormat.THREE_GPP, MediaRecorder.AudioEncoder.AMR_NB, 8000, 12200, 1);
+    /** AAC-LC en MPEG-4: compatible con todas las versiones */
+    public static final RecordingProfile AAC = new RecordingProfile("aac", ".m4a", "audio/mp4",
+            MediaRecorder.OutputFormat.MPEG_4, MediaRecorder.AudioEncoder.AAC, 16000, 32000, 16);
+    /** HE-AAC en MPEG-4: la mitad de bitrate que AAC-LC con una calidad parecida para voz */
+    public static final RecordingProfile HE_AAC = new RecordingProfile("he_aac", ".m4a", "audio/mp4",
+            MediaRecorder.OutputFormat.MPEG_4, MediaRecorder.AudioEncoder.HE_AAC, 32000, 24000, 16);
+
+    private static final RecordingProfile[] PROFILES = {HE_AAC, AAC, AMR_NB};
+    // MPEG-4 primero: es el único contenedor que se puede partir en segmentos mientras se graba
+    private static final RecordingProfile[] DEFAULTS = {HE_AAC, AAC};
+
+    private final String codec;
+    private final String extension;
+    private final String contentType;
+    private final int outputFormat;
+    private final int audioEncoder;
+    private final int sampleRate;
+    private final int bitRate;
+    private final int minSdk;
+
+    private RecordingProfile(String codec, String extension, String contentType, int outputFormat,
+                             int audioEncoder, int sampleRate, int bitRate, int minSdk) {
+        this.codec = codec;
+        this.extension = extension;
+        this.contentType = contentType;
+        this.outputFormat = outputFormat;
+        this.audioEncoder = audioEncoder;
+        this.sampleRate = sampleRate;
+        this.bitRate = bitRate;
+        this.minSdk = minSdk;
+    }
+
+    public String getCodec() { return codec; }
+    public String getExtension() { return extension; }
+    public String getContentType() { return contentType; }
+    public int getSampleRate() { return sampleRate; }
+    public int getBitRate() { return bitRate; }
+
+    /**
+     * Metodo para saber si el perfil se puede usar en este dispositivo
+     * @return True si la versión de Android tiene el contenedor y el códec, False si no
+     */
+    public boolean isSupported() { return Build.VERSION.SDK_INT >= minSdk; }
+
+    /**
+     * Metodo para saber si la grabación se puede partir en segmentos sin cortarla
+     * @return True si el contenedor es MPEG-4, False si no
+     */
+    public boolean isSegmentable() { return outputFormat == MediaRecorder.OutputFormat.MPEG_4; }
+
+    /**
+     * Metodo para configurar un MediaRecorder con el perfil. Se debe llamar después de
+     * establecer la fuente de audio y antes de prepararlo.
+     * @param recorder MediaRecorder a configurar
+     */
+    public void apply(MediaRecorder recorder) {
+        recorder.setOutputFormat(outputFormat);
+        recorder.setAudioEncoder(audioEncoder);
+        recorder.setAudioChannels(1);
+        recorder.setAudioSamplingRate(sampleRate);
+        recorder.setAudioEncodingBitRate(bitRate);
+    }
+
+    /**
+     * Metodo para conseguir el perfil de un códec
+     * @param codec Nombre del códec, null para los audios sin metadatos
+     * @return Perfil del códec (AMR-NB si no se conoce, que es como se grababan los audios antiguos)
+     */
+    public static RecordingProfile forCodec(String codec) {
+        for (RecordingProfile profile : PROFILES) if (profile.codec.equals(codec)) return profile;
+        return AMR_NB;
+    }
+
+    /**
+     * Metodo para conseguir el perfil por defecto: el más eficiente de los que se pueden subir por
+     * segmentos mientras se graba
+     * @return Perfil por defecto
+     */
+    public static RecordingProfile getDefault() {
+        for (RecordingProfile profile : DEFAULTS) if (profile.isSupported()) return profile;
+        return AAC;
+    }
+}
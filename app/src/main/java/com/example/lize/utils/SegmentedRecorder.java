@@ -0,0 +1,134 @@
+package com.example.lize.utils;
+
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Grabadora que parte la grabación en segmentos de duración aproximada fija. Cuando el segmento
+ * actual se acerca a su tamaño máximo, el MediaRecorder pasa al siguiente fichero sin cortar la
+ * grabación, y se avisa del segmento terminado para que se pueda subir mientras se sigue grabando.
+ * Pasar de fichero solo lo admite MPEG-4 desde Android 8; en otro caso la grabación es un único
+ * segmento que se entrega al parar.
+ */
+public class SegmentedRecorder {
+    private static final String TAG = "SegmentedRecorder";
+    public static final long DEFAULT_SEGMENT_MS = 30000;
+
+    private final RecordingProfile profile;
+    private final File directory;
+    private final String baseName;
+    private final long segmentMs;
+    private final OnSegmentListener listener;
+    private final List<File> segments = new ArrayList<>();
+    private MediaRecorder recorder;
+    private int completed;
+
+    /**
+     * Interfaz del Listener de segmentos. Se llama en el hilo que ha empezado la grabación.
+     */
+    public interface OnSegmentListener {
+        void onSegment(File segment, int index);
+    }
+
+    /**
+     * Constructor de la clase
+     * @param profile Perfil de grabación
+     * @param directory Directorio donde se escriben los segmentos
+     * @param baseName Nombre base de los ficheros de los segmentos
+     * @param segmentMs Duración aproximada de cada segmento en milisegundos
+     * @param listener Listener avisado de cada segmento terminado mientras se graba
+     */
+    public SegmentedRecorder(RecordingProfile profile, File directory, String baseName, long segmentMs, OnSegmentListener listener) {
+        this.profile = profile;
+        this.directory = directory;
+        this.baseName = baseName;
+        this.segmentMs = segmentMs;
+        this.listener = listener;
+    }
+
+    /**
+     * Metodo para saber si la grabación se puede partir en segmentos en este dispositivo
+     * @return True si se pasa de fichero sin cortar la grabación, False si no
+     */
+    public boolean isSegmented() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && profile.isSegmentable();
+    }
+
+    /**
+     * Metodo para empezar a grabar
+     * @return MediaRecorder que está grabando, p.ej. para muestrear su amplitud
+     * @throws IOException Si no se ha podido preparar el MediaRecorder
+     */
+    public MediaRecorder start() throws IOException {
+        recorder = new MediaRecorder();
+        File first = nextFile();
+        recorder.setOutputFile(first.getAbsolutePath());
+        recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        profile.apply(recorder);
+        if (isSegmented()) {
+            recorder.setMaxFileSize(Math.max(1, profile.getBitRate() / 8 * segmentMs / 1000));
+            recorder.setOnInfoListener((mr, what, extra) -> onInfo(what));
+        }
+        recorder.prepare();
+        recorder.start();
+        return recorder;
+    }
+
+    /**
+     * Metodo para parar la grabación
+     * @return Ficheros de todos los segmentos con contenido, en orden
+     */
+    public List<File> stop() {
+        try {
+            recorder.stop();
+        } finally {
+            recorder.release();
+            recorder = null;
+        }
+        // El último fichero pedido puede no haber llegado a empezarse
+        List<File> result = new ArrayList<>();
+        for (File segment : segments) if (segment.length() > 0) result.add(segment);
+        return result;
+    }
+
+    /**
+     * Metodo para conseguir el número de segmentos ya avisados al listener
+     * @return Segmentos terminados durante la grabación
+     */
+    public int getCompletedCount() { return completed; }
+
+    /**
+     * Metodo que atiende los avisos del MediaRecorder: cuando el segmento se acerca a su tamaño
+     * máximo se le da el siguiente fichero, y cuando empieza a escribirlo el anterior está cerrado
+     * @param what Tipo de aviso
+     */
+    private void onInfo(int what) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || recorder == null) return;
+        if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+            try {
+                recorder.setNextOutputFile(nextFile());
+            } catch (IOException exception) {
+                Log.w(TAG, "Couldn't open next segment, recording will stop at max size", exception);
+            }
+        } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+            int index = completed++;
+            listener.onSegment(segments.get(index), index);
+        }
+    }
+
+    /**
+     * Metodo para crear el fichero del siguiente segmento
+     * @return Fichero del segmento
+     */
+    private File nextFile() {
+        File file = new File(directory, baseName + "-" + segments.size() + profile.getExtension());
+        segments.add(file);
+        return file;
+    }
+}
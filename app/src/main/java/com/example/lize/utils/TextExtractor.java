@@ -0,0 +1,557 @@
+package com.example.lize.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extractor del texto de los documentos adjuntos, para indexarlo en la búsqueda. Admite texto
+ * plano, HTML/XML, RTF, documentos de Word y OpenDocument (el XML de dentro del zip) y PDF, del que se
+ * leen los operadores de texto de las páginas sin interpretar las fuentes, así que los PDF
+ * escaneados o con fuentes CID no dan texto. Los documentos pequeños se leen enteros en memoria;
+ * los que superan {@link #STREAMING_THRESHOLD} se procesan en streaming, sin cargarlos nunca
+ * enteros. El texto se entrega por partes a un Appendable y se corta en {@link #MAX_CHARS}.
+ */
+public final class TextExtractor {
+    public static final long STREAMING_THRESHOLD = 1024 * 1024;    // Bytes a partir de los que se procesa en streaming
+    public static final int MAX_CHARS = 2 * 1024 * 1024;            // Caracteres máximos que se extraen de un documento
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_STREAM_BYTES = 8 * 1024 * 1024;    // Streams de PDF sin longitud que se leen como mucho
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private static final String[] TEXT_EXTENSIONS = {".txt", ".md", ".csv", ".log", ".json"};
+    private static final String[] MARKUP_EXTENSIONS = {".html", ".htm", ".xml"};
+    private static final String[] ZIP_EXTENSIONS = {".docx", ".odt"};
+    private static final String[] ZIP_TEXT_ENTRIES = {"word/document.xml", "content.xml"};
+    // Grupos de RTF que no son texto del documento: fuentes, colores, estilos, metadatos, imágenes...
+    private static final String[] RTF_DESTINATIONS = {"fonttbl", "colortbl", "stylesheet", "listtable",
+            "listoverridetable", "info", "pict", "object", "header", "footer", "headerl", "headerr",
+            "headerf", "footerl", "footerr", "footerf", "themedata", "colorschememapping", "latentstyles",
+            "datastore", "rsidtbl", "generator", "xmlnstbl", "fldinst"};
+    private static final String[] RTF_BREAKS = {"par", "line", "tab", "cell", "row", "sect", "page"};
+    private static final Pattern PDF_LENGTH = Pattern.compile("/Length\\s+(\\d+)(\\s+\\d+\\s+R)?");
+
+    private TextExtractor() {}
+
+    /**
+     * Metodo para saber si se puede extraer el texto de un documento
+     * @param name Nombre del documento, con su extensión
+     * @return True si el tipo de documento está admitido, False si no
+     */
+    public static boolean isSupported(String name) {
+        return name != null && (isPdf(name) || isRtf(name) || hasExtension(name, TEXT_EXTENSIONS)
+                || hasExtension(name, MARKUP_EXTENSIONS) || hasExtension(name, ZIP_EXTENSIONS));
+    }
+
+    /**
+     * Metodo para extraer el texto de un documento. Se llama en un hilo de fondo.
+     * @param in Contenido del documento, no se cierra
+     * @param name Nombre del documento, con su extensión
+     * @param size Tamaño en bytes, -1 si no se conoce (se procesa en streaming)
+     * @param out Destino del texto, que lo recibe por partes
+     * @throws IOException Si no se ha podido leer el documento
+     */
+    public static void extract(InputStream in, String name, long size, Appendable out) throws IOException {
+        if (!isSupported(name)) return;
+        // Los pequeños se leen de una vez: menos llamadas de E/S y los parsers trabajan sobre memoria
+        if (size >= 0 && size <= STREAMING_THRESHOLD) in = new ByteArrayInputStream(readFully(in, (int) size));
+        else in = new BufferedInputStream(in, BUFFER_SIZE);
+
+        Output output = new Output(out);
+        if (isPdf(name)) extractPdf(in, output);
+        else if (isRtf(name)) extractRtf(in, output);
+        else if (hasExtension(name, ZIP_EXTENSIONS)) extractZip(in, output);
+        else extractText(in, output, hasExtension(name, MARKUP_EXTENSIONS));
+    }
+
+    //*******************
+    //    PLAIN TEXT
+    //*******************
+
+    /**
+     * Metodo para extraer un fichero de texto, en UTF-8 salvo que empiece por la marca de UTF-16
+     * @param in Contenido del fichero
+     * @param out Destino del texto
+     * @param markup True para quitar las etiquetas HTML/XML
+     */
+    private static void extractText(InputStream in, Output out, boolean markup) throws IOException {
+        if (!in.markSupported()) in = new BufferedInputStream(in, BUFFER_SIZE);
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        boolean utf16 = (first == 0xFE && second == 0xFF) || (first == 0xFF && second == 0xFE);
+        Reader reader = new InputStreamReader(in, utf16 ? UTF_16 : UTF_8);
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while (!out.isFull() && (read = reader.read(buffer)) > 0) {
+            if (markup) out.appendMarkup(buffer, read);
+            else out.append(buffer, read);
+        }
+    }
+
+    /**
+     * Metodo para extraer un documento de Word u OpenDocument: el texto está en un XML del zip, que
+     * se lee en streaming sin descomprimir el resto
+     * @param in Contenido del documento
+     * @param out Destino del texto
+     */
+    private static void extractZip(InputStream in, Output out) throws IOException {
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            for (String name : ZIP_TEXT_ENTRIES) {
+                if (!name.equals(entry.getName())) continue;
+                extractText(zip, out, true);
+                return;
+            }
+        }
+    }
+
+    //*******************
+    //        RTF
+    //*******************
+
+    /**
+     * Metodo para extraer el texto de un RTF: se quitan las palabras de control y se saltan los
+     * grupos que no son texto (tablas de fuentes, estilos, imágenes y los marcados con \*). Los
+     * caracteres escapados con \'hh se leen en Latin-1 y los de la palabra de control u en
+     * Unicode, saltando el carácter alternativo que les sigue.
+     * @param in Contenido del RTF
+     * @param out Destino del texto
+     */
+    private static void extractRtf(InputStream in, Output out) throws IOException {
+        StringBuilder text = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        int depth = 0;
+        int skipDepth = -1;         // Profundidad del grupo que se está saltando, -1 si ninguno
+        boolean groupStart = false; // Justo tras '{', donde va la palabra que indica el destino
+        int unicodeSkip = 1;        // Caracteres alternativos tras cada carácter Unicode (palabra uc)
+        int pendingSkip = 0;
+        int next = -1;              // Carácter ya leído tras una palabra de control
+        while (!out.isFull()) {
+            int c = next >= 0 ? next : in.read();
+            next = -1;
+            if (c < 0) break;
+            if (c == '{') {
+                depth++;
+                groupStart = true;
+                pendingSkip = 0;
+                continue;
+            }
+            if (c == '}') {
+                if (depth-- == skipDepth) skipDepth = -1;
+                groupStart = false;
+                pendingSkip = 0;
+                continue;
+            }
+            if (c == '\r' || c == '\n') continue;
+            boolean starting = groupStart;
+            groupStart = false;
+            boolean skipping = skipDepth >= 0;
+            if (c != '\\') {
+                if (pendingSkip > 0) pendingSkip--;
+                else if (!skipping) text.append((char) c);
+            } else {
+                c = in.read();
+                if (Character.isLetter(c)) {
+                    word.setLength(0);
+                    while (c >= 0 && Character.isLetter(c)) {
+                        word.append((char) c);
+                        c = in.read();
+                    }
+                    int parameter = 0;
+                    boolean negative = c == '-';
+                    boolean hasParameter = negative || Character.isDigit(c);
+                    if (negative) c = in.read();
+                    while (c >= 0 && Character.isDigit(c)) {
+                        parameter = parameter * 10 + c - '0';
+                        c = in.read();
+                    }
+                    if (negative) parameter = -parameter;
+                    if (c != ' ') next = c;     // El delimitador solo se consume si es un espacio
+                    String control = word.toString();
+                    if (starting && contains(RTF_DESTINATIONS, control)) {
+                        if (!skipping) skipDepth = depth;
+                    } else if (control.equals("uc") && hasParameter) unicodeSkip = parameter;
+                    else if (control.equals("u") && hasParameter) {
+                        if (!skipping) text.append((char) (parameter < 0 ? parameter + 65536 : parameter));
+                        pendingSkip = unicodeSkip;
+                    } else if (!skipping && contains(RTF_BREAKS, control)) text.append(control.equals("tab") ? '\t' : '\n');
+                } else if (c == '\'') {
+                    int value = Character.digit(in.read(), 16) << 4 | Character.digit(in.read(), 16);
+                    if (pendingSkip > 0) pendingSkip--;
+                    else if (!skipping && value >= 0) text.append(new String(new byte[]{(byte) value}, LATIN_1));
+                } else if (c == '*') {
+                    if (starting && !skipping) skipDepth = depth;
+                } else if (c == '\r' || c == '\n') {
+                    if (!skipping) text.append('\n');
+                } else if (c == '~') {
+                    if (!skipping) text.append(' ');
+                } else if (c == '\\' || c == '{' || c == '}') {
+                    if (pendingSkip > 0) pendingSkip--;
+                    else if (!skipping) text.append((char) c);
+                }
+            }
+            if (text.length() >= BUFFER_SIZE) {
+                out.append(text);
+                text.setLength(0);
+            }
+        }
+        out.append(text);
+    }
+
+    //*******************
+    //        PDF
+    //*******************
+
+    /**
+     * Metodo para extraer el texto de un PDF. Se recorre el fichero una sola vez: de cada stream se
+     * mira su diccionario y, si es una página, se descomprime y se leen sus operadores de texto; el
+     * resto de streams (imágenes, fuentes...) se saltan sin leerlos.
+     * @param in Contenido del PDF
+     * @param out Destino del texto
+     */
+    private static void extractPdf(InputStream in, Output out) throws IOException {
+        StringBuilder window = new StringBuilder();     // Texto del objeto actual, hasta su stream
+        int c;
+        while (!out.isFull() && (c = in.read()) >= 0) {
+            window.append((char) c);
+            if (window.length() > 4096) window.delete(0, window.length() - 2048);
+            if (c != 'm' || !endsWith(window, "stream") || endsWith(window, "endstream")) continue;
+
+            // El stream empieza tras el fin de línea
+            int next = in.read();
+            if (next == '\r') next = in.read();
+            if (next != '\n') {
+                window.setLength(0);
+                continue;
+            }
+            int objectStart = window.lastIndexOf("obj");
+            String dictionary = window.substring(objectStart < 0 ? 0 : objectStart);
+            window.setLength(0);
+
+            Matcher length = PDF_LENGTH.matcher(dictionary);
+            long streamLength = length.find() && length.group(2) == null ? Long.parseLong(length.group(1)) : -1;
+            boolean text = isPdfContent(dictionary);
+            if (streamLength < 0) {
+                // Longitud indirecta: hay que buscar el final del stream
+                byte[] data = readUntilEndStream(in, text);
+                if (data != null) extractPdfContent(new ByteArrayInputStream(data), dictionary, out);
+            } else if (text) {
+                BoundedInputStream data = new BoundedInputStream(in, streamLength);
+                extractPdfContent(data, dictionary, out);
+                data.drain();
+            } else skipFully(in, streamLength);
+        }
+    }
+
+    /**
+     * Metodo para saber si un stream de un PDF puede tener texto: sin comprimir o con Flate, y sin
+     * ser una imagen, una fuente, metadatos ni una tabla de referencias
+     * @param dictionary Diccionario del stream
+     * @return True si es el contenido de una página o de un formulario, False si no
+     */
+    private static boolean isPdfContent(String dictionary) {
+        if (dictionary.contains("/Subtype") && !dictionary.contains("/Form")) return false;
+        if (dictionary.contains("/Length1") || dictionary.contains("/Length2") || dictionary.contains("/DecodeParms"))
+            return false;
+        if (dictionary.contains("/XRef") || dictionary.contains("/ObjStm") || dictionary.contains("/Metadata"))
+            return false;
+        if (!dictionary.contains("/Filter")) return true;
+        return dictionary.contains("/FlateDecode") && countOccurrences(dictionary, "Decode") == 1;    // Solo Flate
+    }
+
+    /**
+     * Metodo para leer los operadores de texto (Tj, TJ, ' y ") del contenido de una página. Las
+     * cadenas se leen en PDFDocEncoding, que coincide con Latin-1 en las letras habituales, o en
+     * UTF-16 si empiezan por su marca.
+     * @param data Datos del stream, aún comprimidos
+     * @param dictionary Diccionario del stream
+     * @param out Destino del texto
+     */
+    private static void extractPdfContent(InputStream data, String dictionary, Output out) throws IOException {
+        InputStream in = dictionary.contains("/FlateDecode")
+                ? new BufferedInputStream(new InflaterInputStream(data), BUFFER_SIZE) : new BufferedInputStream(data, BUFFER_SIZE);
+        StringBuilder operands = new StringBuilder();   // Cadenas leídas desde el último operador
+        StringBuilder token = new StringBuilder();
+        try {
+            int c = in.read();
+            while (c >= 0 && !out.isFull()) {
+                if (c == '(') {
+                    readPdfString(in, operands);
+                    c = in.read();
+                } else if (c == '<') {
+                    c = in.read();
+                    if (c == '<') c = in.read();    // Inicio de diccionario
+                    else {
+                        ByteArrayOutputStream hex = new ByteArrayOutputStream();
+                        int high = -1;
+                        while (c >= 0 && c != '>') {
+                            int digit = Character.digit(c, 16);
+                            if (digit >= 0) {
+                                if (high < 0) high = digit;
+                                else {
+                                    hex.write(high << 4 | digit);
+                                    high = -1;
+                                }
+                            }
+                            c = in.read();
+                        }
+                        appendPdfBytes(hex.toByteArray(), operands);
+                        c = in.read();
+                    }
+                } else if (c == '%') {
+                    while (c >= 0 && c != '\n' && c != '\r') c = in.read();
+                } else if (Character.isLetter(c) || c == '\'' || c == '"' || c == '*') {
+                    token.setLength(0);
+                    while (c >= 0 && (Character.isLetter(c) || c == '\'' || c == '"' || c == '*')) {
+                        token.append((char) c);
+                        c = in.read();
+                    }
+                    String operator = token.toString();
+                    if (operator.equals("Tj") || operator.equals("TJ")) out.append(operands);
+                    else if (operator.equals("'") || operator.equals("\"")) {
+                        out.append("\n");
+                        out.append(operands);
+                    } else if (operator.equals("Td") || operator.equals("TD") || operator.equals("T*") || operator.equals("ET"))
+                        out.append("\n");
+                    operands.setLength(0);
+                } else if (c == '-' || Character.isDigit(c)) {
+                    // En los arrays de TJ, un desplazamiento grande separa palabras
+                    token.setLength(0);
+                    while (c >= 0 && (c == '-' || c == '.' || Character.isDigit(c))) {
+                        token.append((char) c);
+                        c = in.read();
+                    }
+                    if (operands.length() > 0 && token.charAt(0) == '-' && token.length() > 3) operands.append(' ');
+                } else c = in.read();
+            }
+        } catch (ZipException exception) {
+            // Stream dañado o con otro formato: nos quedamos con lo que se haya podido leer
+            out.append(operands);
+        }
+    }
+
+    /**
+     * Metodo para leer una cadena literal de un PDF, con paréntesis anidados y escapes
+     * @param in Contenido, justo después del '(' inicial
+     * @param operands Destino de la cadena
+     */
+    private static void readPdfString(InputStream in, StringBuilder operands) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int depth = 1;
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\\') {
+                c = in.read();
+                if (c >= '0' && c <= '7') {
+                    int value = c - '0';
+                    for (int i = 0; i < 2; i++) {
+                        in.mark(1);
+                        int digit = in.read();
+                        if (digit < '0' || digit > '7') {
+                            in.reset();
+                            break;
+                        }
+                        value = value * 8 + digit - '0';
+                    }
+                    bytes.write(value);
+                } else if (c == 'n') bytes.write('\n');
+                else if (c == 'r') bytes.write('\r');
+                else if (c == 't') bytes.write('\t');
+                else if (c != '\n' && c != '\r' && c >= 0) bytes.write(c);   // \(, \), \\ y saltos de línea escapados
+                continue;
+            }
+            if (c == '(') depth++;
+            else if (c == ')' && --depth == 0) break;
+            bytes.write(c);
+        }
+        appendPdfBytes(bytes.toByteArray(), operands);
+    }
+
+    /**
+     * Metodo para decodificar los bytes de una cadena de un PDF. Los caracteres de control, que
+     * salen de las fuentes con codificación propia, se cambian por espacios.
+     * @param bytes Bytes de la cadena
+     * @param operands Destino de la cadena
+     */
+    private static void appendPdfBytes(byte[] bytes, StringBuilder operands) {
+        boolean utf16 = bytes.length >= 2 && (bytes[0] & 0xFF) == 0xFE && (bytes[1] & 0xFF) == 0xFF;
+        String value = new String(bytes, utf16 ? UTF_16 : LATIN_1);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            operands.append(Character.isISOControl(c) ? ' ' : c);
+        }
+    }
+
+    /**
+     * Metodo para avanzar hasta el final de un stream de longitud desconocida
+     * @param in Contenido del PDF, justo al inicio del stream
+     * @param keep True para guardar los datos del stream, False para saltarlos
+     * @return Datos del stream, null si se han saltado o superan {@link #MAX_STREAM_BYTES}
+     */
+    private static byte[] readUntilEndStream(InputStream in, boolean keep) throws IOException {
+        ByteArrayOutputStream data = keep ? new ByteArrayOutputStream() : null;
+        byte[] marker = "endstream".getBytes(LATIN_1);
+        int matched = 0;
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (data != null) {
+                data.write(c);
+                if (data.size() > MAX_STREAM_BYTES) data = null;
+            }
+            matched = c == marker[matched] ? matched + 1 : (c == marker[0] ? 1 : 0);
+            if (matched == marker.length) break;
+        }
+        return data == null ? null : data.toByteArray();
+    }
+
+    //*******************
+    //      HELPERS
+    //*******************
+
+    /**
+     * Destino del texto extraído: lo corta en {@link #MAX_CHARS} y, para HTML/XML, quita las
+     * etiquetas aunque queden partidas entre dos bloques
+     */
+    private static class Output {
+        private final Appendable out;
+        private int remaining = MAX_CHARS;
+        private boolean inTag;
+
+        Output(Appendable out) { this.out = out; }
+
+        boolean isFull() { return remaining <= 0; }
+
+        void append(CharSequence text) throws IOException {
+            int length = Math.min(text.length(), remaining);
+            out.append(text, 0, length);
+            remaining -= length;
+        }
+
+        void append(char[] buffer, int length) throws IOException {
+            append(CharBuffer.wrap(buffer, 0, length));
+        }
+
+        void appendMarkup(char[] buffer, int length) throws IOException {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (!inTag && buffer[i] == '<') {
+                    append(buffer, start, i);
+                    inTag = true;
+                } else if (inTag && buffer[i] == '>') {
+                    inTag = false;
+                    start = i + 1;
+                    append(" ");        // Las etiquetas separan palabras, p.ej. entre párrafos
+                }
+            }
+            if (!inTag) append(buffer, start, length);
+        }
+
+        private void append(char[] buffer, int start, int end) throws IOException {
+            if (end > start) append(CharBuffer.wrap(buffer, start, end - start));
+        }
+    }
+
+    /**
+     * Stream que solo deja leer un número de bytes del stream de debajo, sin cerrarlo
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int c = in.read();
+            if (c >= 0) remaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+
+        @Override
+        public boolean markSupported() { return false; }
+
+        @Override
+        public void close() {}
+
+        void drain() throws IOException {
+            skipFully(in, remaining);
+            remaining = 0;
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(size, 32));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) > 0) bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) return;
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static boolean endsWith(StringBuilder builder, String suffix) {
+        int start = builder.length() - suffix.length();
+        return start >= 0 && builder.indexOf(suffix, start) == start;
+    }
+
+    private static int countOccurrences(String text, String value) {
+        int count = 0;
+        for (int i = text.indexOf(value); i >= 0; i = text.indexOf(value, i + 1)) count++;
+        return count;
+    }
+
+    private static boolean isPdf(String name) { return hasExtension(name, new String[]{".pdf"}); }
+
+    private static boolean isRtf(String name) { return hasExtension(name, new String[]{".rtf"}); }
+
+    private static boolean contains(String[] values, String value) {
+        for (String candidate : values) if (candidate.equals(value)) return true;
+        return false;
+    }
+
+    private static boolean hasExtension(String name, String[] extensions) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String extension : extensions) if (lower.endsWith(extension)) return true;
+        return false;
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.lize.utils;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Analizador de la forma de onda de un audio. Decodifica el fichero una única vez a PCM con
+ * MediaCodec y lo resume en picos de 0 a 255, uno por tramo de tiempo. Los picos se guardan en un
+ * fichero ".peaks" junto al audio, de modo que no se vuelve a decodificar aunque se pierdan los
+ * metadatos. Decodificar bloquea, así que se llama fuera del hilo principal.
+ */
+public class WaveformAnalyzer {
+    private static final String TAG = "WaveformAnalyzer";
+    public static final String PEAKS_SUFFIX = ".peaks";
+    private static final long TIMEOUT_US = 10000;
+    private static final int MAX_AMPLITUDE = 32767;
+
+    private WaveformAnalyzer() {}
+
+    /**
+     * Metodo para conseguir los picos de un audio: se leen de su fichero ".peaks" o, si no existe,
+     * se decodifica el audio y se guardan. Bloquea, así que no se debe llamar en el hilo principal.
+     * @param audio Fichero del audio
+     * @param peaks Número de picos del resumen
+     * @return Picos de 0 a 255, null si no se ha podido analizar
+     */
+    public static byte[] getPeaks(File audio, int peaks) {
+        File sidecar = getPeaksFile(audio);
+        if (sidecar.length() == peaks) {
+            byte[] stored = new byte[peaks];
+            try (InputStream in = new FileInputStream(sidecar)) {
+                if (in.read(stored) == peaks) return stored;
+            } catch (IOException exception) {
+                Log.w(TAG, "Couldn't read peaks of " + audio, exception);
+            }
+        }
+
+        byte[] result;
+        try {
+            result = decodePeaks(audio, peaks);
+        } catch (IOException | RuntimeException exception) {
+            Log.w(TAG, "Couldn't decode " + audio, exception);
+            return null;
+        }
+        try (OutputStream out = new FileOutputStream(sidecar)) {
+            out.write(result);
+        } catch (IOException exception) {
+            Log.w(TAG, "Couldn't store peaks of " + audio, exception);
+        }
+        return result;
+    }
+
+    /**
+     * Metodo para conseguir el fichero ".peaks" donde se guardan los picos de un audio
+     * @param audio Fichero del audio
+     * @return Fichero de sus picos (puede no existir)
+     */
+    public static File getPeaksFile(File audio) {
+        return new File(audio.getPath() + PEAKS_SUFFIX);
+    }
+
+    /**
+     * Metodo para decodificar un audio y resumirlo en picos. Cada bloque de PCM se asigna a su
+     * tramo según su instante de presentación, así que no hace falta guardar el audio decodificado.
+     * @param audio Fichero del audio
+     * @param peaks Número de picos del resumen
+     * @return Picos de 0 a 255
+     * @throws IOException Si el fichero no tiene una pista de audio que se pueda decodificar
+     */
+    static byte[] decodePeaks(File audio, int peaks) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        boolean started = false;
+        try {
+            extractor.setDataSource(audio.getAbsolutePath());
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                MediaFormat candidate = extractor.getTrackFormat(i);
+                String mime = candidate.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = candidate;
+                }
+            }
+            if (format == null) throw new IOException("No audio track in " + audio);
+            long durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+            if (durationUs <= 0) throw new IOException("Unknown duration of " + audio);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            started = true;
+
+            ByteBuffer[] inputs = codec.getInputBuffers();
+            ByteBuffer[] outputs = codec.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int[] maxima = new int[peaks];
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int in = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (in >= 0) {
+                        int read = extractor.readSampleData(inputs[in], 0);
+                        if (read < 0) {
+                            codec.queueInputBuffer(in, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(in, 0, read, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int out = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (out >= 0) {
+                    ByteBuffer buffer = outputs[out];
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    ShortBuffer pcm = buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+                    int bucket = (int) Math.max(0, Math.min(peaks - 1, info.presentationTimeUs * peaks / durationUs));
+                    while (pcm.hasRemaining()) maxima[bucket] = Math.max(maxima[bucket], Math.abs(pcm.get()));
+                    codec.releaseOutputBuffer(out, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) outputDone = true;
+                } else if (out == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputs = codec.getOutputBuffers();
+                }
+            }
+
+            byte[] result = new byte[peaks];
+            for (int i = 0; i < peaks; i++) result[i] = (byte) Math.min(255, (long) maxima[i] * 255 / MAX_AMPLITUDE);
+            return result;
+        } finally {
+            if (codec != null) {
+                if (started) codec.stop();
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.lize.utils;
+
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Muestreador de la forma de onda de una grabación. Mientras se graba, consulta periódicamente la
+ * amplitud máxima del MediaRecorder y al terminar la resume en un número fijo de picos de 0 a 255,
+ * de modo que la forma de onda se guarda con el audio sin tener que volver a decodificarlo.
+ */
+public class WaveformSampler {
+    private static final String TAG = "WaveformSampler";
+    public static final int DEFAULT_PEAKS = 64;
+    private static final long SAMPLE_INTERVAL_MS = 50;
+    private static final int MAX_AMPLITUDE = 32767;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private MediaRecorder recorder;
+    private int[] samples = new int[256];
+    private int count;
+
+    private final Runnable sampler = new Runnable() {
+        @Override
+        public void run() {
+            if (recorder == null) return;
+            try {
+                add(recorder.getMaxAmplitude());
+            } catch (IllegalStateException exception) {
+                Log.w(TAG, "Recorder not ready for sampling", exception);
+            }
+            handler.postDelayed(this, SAMPLE_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Metodo para empezar a muestrear una grabación ya iniciada
+     * @param recorder MediaRecorder que está grabando
+     */
+    public void start(MediaRecorder recorder) {
+        this.recorder = recorder;
+        count = 0;
+        handler.postDelayed(sampler, SAMPLE_INTERVAL_MS);
+    }
+
+    /**
+     * Metodo para dejar de muestrear y resumir la grabación en picos. Se debe llamar antes de parar
+     * el MediaRecorder.
+     * @param peaks Número de picos del resumen
+     * @return Picos de 0 a 255, vacío si no hay muestras
+     */
+    public byte[] stop(int peaks) {
+        handler.removeCallbacks(sampler);
+        recorder = null;
+        return summarize(samples, count, peaks);
+    }
+
+    /**
+     * Metodo para añadir una muestra de amplitud
+     * @param amplitude Amplitud de 0 a 32767
+     */
+    private void add(int amplitude) {
+        if (count == samples.length) {
+            int[] grown = new int[samples.length * 2];
+            System.arraycopy(samples, 0, grown, 0, count);
+            samples = grown;
+        }
+        samples[count++] = amplitude;
+    }
+
+    /**
+     * Metodo para resumir unas amplitudes en picos: cada pico es el máximo de su tramo
+     * @param samples Amplitudes de 0 a 32767
+     * @param count Número de amplitudes válidas
+     * @param peaks Número de picos del resumen
+     * @return Picos de 0 a 255
+     */
+    public static byte[] summarize(int[] samples, int count, int peaks) {
+        if (count == 0) return new byte[0];
+        int size = Math.min(peaks, count);
+        byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            int from = (int) ((long) i * count / size);
+            int to = (int) ((long) (i + 1) * count / size);
+            int max = 0;
+            for (int j = from; j < to; j++) max = Math.max(max, samples[j]);
+            result[i] = (byte) Math.min(255, (long) max * 255 / MAX_AMPLITUDE);
+        }
+        return result;
+    }
+}
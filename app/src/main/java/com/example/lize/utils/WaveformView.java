@@ -0,0 +1,103 @@
+package com.example.lize.utils;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+import com.example.lize.R;
+
+/**
+ * Vista que dibuja la forma de onda estática de un audio a partir de sus picos precalculados, con
+ * la parte ya reproducida resaltada. No necesita una sesión de audio: basta con los picos y el
+ * progreso de la reproducción.
+ */
+public class WaveformView extends View {
+    private static final int UNPLAYED_ALPHA = 90;
+    private static final float BAR_GAP = 0.3f;      // Fracción de cada barra que queda como hueco
+
+    private final Paint playedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint unplayedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private byte[] peaks;
+    private float progress;
+
+    /**
+     * Constructores de la clase
+     * @param context Contexto de la vista
+     */
+    public WaveformView(Context context) {
+        this(context, null);
+    }
+
+    public WaveformView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public WaveformView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        TypedValue value = new TypedValue();
+        int color = context.getTheme().resolveAttribute(R.attr.colorPrimaryDark, value, true) ? value.data : Color.GRAY;
+        setColor(color);
+    }
+
+    /**
+     * Metodo para establecer el color de la forma de onda
+     * @param color Color de la parte reproducida; la pendiente se dibuja con el mismo color más claro
+     */
+    public void setColor(int color) {
+        playedPaint.setColor(color);
+        unplayedPaint.setColor(color);
+        unplayedPaint.setAlpha(UNPLAYED_ALPHA);
+        invalidate();
+    }
+
+    /**
+     * Metodo para establecer los picos de la forma de onda
+     * @param peaks Picos de 0 a 255, null si aún no se conocen
+     */
+    public void setPeaks(byte[] peaks) {
+        this.peaks = peaks;
+        invalidate();
+    }
+
+    /**
+     * Metodo para establecer el progreso de la reproducción
+     * @param progress Fracción reproducida, de 0 a 1
+     */
+    public void setProgress(float progress) {
+        float clamped = Math.max(0f, Math.min(1f, progress));
+        if (clamped == this.progress) return;
+        this.progress = clamped;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (width <= 0 || height <= 0) return;
+
+        float centerY = getPaddingTop() + height / 2f;
+        float playedX = getPaddingLeft() + width * progress;
+
+        // Sin picos dibujamos una línea plana, para que la fila no quede vacía
+        if (peaks == null || peaks.length == 0) {
+            canvas.drawRect(getPaddingLeft(), centerY - 1, getPaddingLeft() + width, centerY + 1, unplayedPaint);
+            canvas.drawRect(getPaddingLeft(), centerY - 1, playedX, centerY + 1, playedPaint);
+            return;
+        }
+
+        float step = (float) width / peaks.length;
+        float barWidth = Math.max(1f, step * (1 - BAR_GAP));
+        for (int i = 0; i < peaks.length; i++) {
+            float barHeight = Math.max(2f, height * (peaks[i] & 0xFF) / 255f);
+            float left = getPaddingLeft() + i * step;
+            Paint paint = left < playedX ? playedPaint : unplayedPaint;
+            canvas.drawRect(left, centerY - barHeight / 2, left + barWidth, centerY + barHeight / 2, paint);
+        }
+    }
+}
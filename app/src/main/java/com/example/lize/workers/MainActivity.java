@@ -27,6 +27,8 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.lize.R;
+import com.example.lize.data.Ambito;
+import com.example.lize.data.SortedNotes;
 import com.example.lize.models.DocumentManager;
 import com.example.lize.models.MainViewModel;
 import com.example.lize.utils.Preferences;
@@ -38,6 +40,7 @@ import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.storage.FirebaseStorage;
 import com.google.firebase.storage.StorageReference;
 import com.squareup.picasso.Picasso;
+import java.io.File;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -73,6 +76,7 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
     private Button darkMode;
     private Button signOut;
     private Button settings;
+    private Button recentNotes;
 
     private Toast toastReference;
 
@@ -150,6 +154,14 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
             startActivityForResult(intent_Settings, REQUEST_CODE_UPDATE_USER);
         });
 
+        //Asignamos Boton y Listener a recentNotes: Notas editadas recientemente en todos los Ámbitos
+        this.recentNotes = findViewById(R.id.recent_notes);
+        recentNotes.setOnClickListener(v -> {
+            drawerLayout.closeDrawer(Gravity.LEFT);
+            topAppBar.setTitle(R.string.recent);
+            noteHostFragment.showRecent();
+        });
+
         //Asignamos Boton y Listener a signOut
         this.signOut = findViewById(R.id.sign_out);
         signOut.setOnClickListener(v -> {
@@ -164,6 +176,7 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
         this.folderHostFragment = (FolderHostFragment) getSupportFragmentManager().findFragmentById(R.id.folders_host_fragment);
         this.noteHostFragment = (NoteHostFragment) getSupportFragmentManager().findFragmentById(R.id.notes_host_fragment);
         topAppBar.setOnMenuItemClickListener(this);
+        checkNoteOrder(Preferences.getNoteOrder(this));
 
         // Inicializamos los FABS
         initFABGroup();
@@ -186,6 +199,7 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
      */
     private void observeLiveData() {
         this.dataViewModel = new ViewModelProvider(this).get(MainViewModel.class);
+        dataViewModel.setIndexDirectory(new File(getFilesDir(), "search"));
 
         // Observador del Toast Message del MainActivity. Evitamos acumulación de toasts mediante toastReference.
         dataViewModel.getToast().observe(this, (t) -> {
@@ -205,11 +219,18 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
             if (dataViewModel.getViewUpdate().getValue()) topAppBar.setTitle(ambito.getName());
             else updateAmbito();
         });
+
+        // Observador de la Carpeta seleccionada. Al dejar las Notas recientes vuelve el nombre del Ámbito.
+        dataViewModel.getFolderSelected().observe(this, (folder) -> {
+            Ambito ambito = dataViewModel.getAmbitoSelected().getValue();
+            if (ambito != null && dataViewModel.getViewUpdate().getValue() && !noteHostFragment.isShowingRecent())
+                topAppBar.setTitle(ambito.getName());
+        });
     }
 
     /**
      * Implementación del método OnMenuItemClick para definir las acciones de los items del Toolbar.
-     * @param item item del Toolbar: search, sandwich
+     * @param item item del Toolbar: search, search_all, sort_*, sandwich
      * @return True si se ha hecho click en alguno de ellos, False si no
      */
     @Override
@@ -218,6 +239,21 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
             case R.id.search:
                 noteHostFragment.searchNote(item);
                 break;
+            case R.id.search_all:
+                item.setChecked(!item.isChecked());
+                noteHostFragment.setGlobalSearch(item.isChecked());
+                break;
+            case R.id.sort:
+                return false;           // Abre el submenú de órdenes
+            case R.id.sort_updated:
+                setNoteOrder(SortedNotes.Order.UPDATED);
+                break;
+            case R.id.sort_title:
+                setNoteOrder(SortedNotes.Order.TITLE);
+                break;
+            case R.id.sort_created:
+                setNoteOrder(SortedNotes.Order.CREATED);
+                break;
             case R.id.sandwich:
                 changeCardNoteType(item);
                 noteHostFragment.changeCardNoteType();
@@ -227,6 +263,30 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
         return true;
     }
 
+    /**
+     * Método para cambiar el orden de las Notas mostradas
+     * @param order Orden elegido
+     */
+    private void setNoteOrder(SortedNotes.Order order) {
+        checkNoteOrder(order);
+        noteHostFragment.setNoteOrder(order);
+    }
+
+    /**
+     * Método para marcar en el Toolbar el orden de las Notas
+     * @param order Orden de las Notas
+     */
+    private void checkNoteOrder(SortedNotes.Order order) {
+        int item;
+        switch (order) {
+            case TITLE:     item = R.id.sort_title; break;
+            case CREATED:   item = R.id.sort_created; break;
+            default:        item = R.id.sort_updated; break;
+        }
+        MenuItem menuItem = topAppBar.getMenu().findItem(item);
+        if (menuItem != null) menuItem.setChecked(true);
+    }
+
     /**
      * Método para modificar el icono del MenuItem de cambiar vista de Notas
      * @param item menú item de cambiar vista de notas (sandwich)
@@ -260,11 +320,9 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
                 Boolean images = bundle.getBoolean("images");
                 Boolean documents = bundle.getBoolean("documents");
                 Boolean audios = bundle.getBoolean("audios");
-                String  documentsID =  bundle.getString("documentsID");
-                String  imagesID =  bundle.getString("imagesID");
-                String  audiosID = bundle.getString("audiosID");
+                String  attachmentsID =  bundle.getString("attachmentsID");
 
-                dataViewModel.addNote(title, plainText, htmlText, images, documents,audios,documentsID,imagesID,audiosID);
+                dataViewModel.addNote(title, plainText, htmlText, images, documents,audios,attachmentsID);
 
             } else if (requestCode == REQUEST_CODE_EDIT_NOTE && resultCode == RESULT_OK) {
                 Log.d(TAG, "Request Code for Note Editing OK");
@@ -272,12 +330,10 @@ public class MainActivity extends AppCompatActivity implements Toolbar.OnMenuIte
                 String plainText = bundle.getString("noteText_PLAIN");
                 String htmlText = bundle.getString("noteText_HTML");
                 Boolean images = bundle.getBoolean("images");
-                String imagesID =  bundle.getString("imagesID");
                 Boolean documents = bundle.getBoolean("documents");
-                String documentsID =  bundle.getString("documentsID");
                 Boolean audios = bundle.getBoolean("audios");
-                String  audiosID = bundle.getString("audiosID");
-                dataViewModel.editNote(title, plainText, htmlText, images, documents,audios,documentsID,imagesID,audiosID);
+                String attachmentsID =  bundle.getString("attachmentsID");
+                dataViewModel.editNote(title, plainText, htmlText, images, documents,audios,attachmentsID);
 
             } else if (requestCode == REQUEST_CODE_ADD_AMBITO && resultCode == RESULT_OK) {
                 String name = bundle.getString("name");
@@ -13,8 +13,6 @@ import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
-import android.media.MediaPlayer;
-import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -59,7 +57,12 @@ import com.example.lize.data.Audio;
 import com.example.lize.data.Document;
 import com.example.lize.data.Image;
 import com.example.lize.models.DocumentManager;
+import com.example.lize.models.PlaybackController;
+import com.example.lize.utils.ImageIngestor;
 import com.example.lize.utils.Preferences;
+import com.example.lize.utils.RecordingProfile;
+import com.example.lize.utils.SegmentedRecorder;
+import com.example.lize.utils.WaveformSampler;
 import com.onegravity.rteditor.RTEditText;
 import com.onegravity.rteditor.RTManager;
 import com.onegravity.rteditor.RTToolbar;
@@ -79,7 +82,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Locale;
 
 
@@ -108,17 +113,19 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
     private ScrollView scrollView;
     boolean isKeyboardShowing = false;
     private DocumentManager documentManager;
-    private String documentsID;
-    private String imagesID;
-    private String audiosID;
-    private MediaRecorder recorder;
+    private String attachmentsID;
+    private SegmentedRecorder recorder;
+    private final WaveformSampler waveformSampler = new WaveformSampler();
     private boolean isRecording = false;
     private String fileName;
+    private RecordingProfile recordingProfile;
     private String singleAudioID;
     private long startAudio;
     private long endAudio;
     private Dialog recordDialog;
-    private MediaPlayer player;
+    private PlaybackController playbackController;
+    private ImageIngestor imageIngestor;
+    private int pendingImages = 0;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -144,6 +151,23 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
         /* DOCUMENTOS / IMAGENES */
         //ArrayList de imagenes y documentes
         documentManager = DocumentManager.getInstance();
+        imageIngestor = new ImageIngestor(this);
+        imageIngestor.setListener(new ImageIngestor.IngestListener() {
+            @Override
+            public void onImageReady(Image image) {
+                pendingImages--;
+                attachmentsID = documentManager.addImageToCloud(attachmentsID, image);
+                documentManager.pinAttachments(attachmentsID);
+                init_carousel();
+            }
+
+            @Override
+            public void onImageFailed(Exception exception) {
+                pendingImages--;
+                init_carousel();
+                Toast.makeText(NotasActivity.this, exception.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+        });
 
         //Onclick Listener botones
         backBtn.setOnClickListener(v -> saveNote());
@@ -160,7 +184,12 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
         audioRecycleView.setLayoutManager(new LinearLayoutManager(this));
         audioAdapter = new AudioAdapter(this,this);
         audioRecycleView.setAdapter(audioAdapter);
-        player = new MediaPlayer();
+        playbackController = new PlaybackController(this);
+        playbackController.getState().observe(this, state -> {
+            audioAdapter.setPlaybackState(state);
+            if (state.getStatus() == PlaybackController.Status.COMPLETED)
+                Toast.makeText(getApplicationContext(), "Audio finished!", Toast.LENGTH_SHORT).show();
+        });
         recordDialog = new Dialog(this);
 
         // Crear RTManager para gestionar los botones de estilo
@@ -225,7 +254,7 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
                 documentRecycleView.setVisibility(View.VISIBLE);
                 //showHideFragment(carouselFragment);
             }
-            if (!documentManager.arrayImagesEmpty(imagesID)) { carouselView.setVisibility(View.VISIBLE); }
+            if (!documentManager.arrayImagesEmpty(attachmentsID)) { carouselView.setVisibility(View.VISIBLE); }
         }
 
     }
@@ -248,9 +277,8 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
     private void getBundleForEdit() {
         Bundle bundle = getIntent().getExtras();
         if (bundle != null) {
-            documentsID = bundle.getString("documentsID");
-            imagesID = bundle.getString("imagesID");
-            audiosID = bundle.getString("audiosID");
+            attachmentsID = bundle.getString("attachmentsID");
+            documentManager.pinAttachments(attachmentsID);   // Mientras se ve, la cache no desaloja sus ficheros
             String title = bundle.getString("title");
             String html_text = bundle.getString("noteText_HTML");
             Log.d("Titulo", title);
@@ -258,17 +286,19 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
 
             inputNoteTitulo.setText(title);
             rtEditText.setRichTextEditing(true, html_text);
-            if (bundle.getBoolean("images"))  init_carousel();
+            // Los adjuntos se descargan al abrir la nota (si no estaban ya en local)
+            // y se pintan cuando termina su carga; el listener se quita si la actividad se para antes
+            if (bundle.getBoolean("images"))
+                documentManager.loadImages(attachmentsID).addOnSuccessListener(this, images -> init_carousel());
 
             if (bundle.getBoolean("documents")) {
-                for (Document doc : documentManager.getDocuments(documentsID))
-                    documentAdapter.addDocument(doc);
-                documentRecycleView.setVisibility(View.VISIBLE);
+                documentManager.loadDocuments(attachmentsID).addOnSuccessListener(this, documents -> {
+                    documentAdapter.setDocuments(documents);
+                    if (documentAdapter.getItemCount() != 0) documentRecycleView.setVisibility(View.VISIBLE);
+                });
             }
             if (bundle.getBoolean("audios")) {
-                for (Audio s: documentManager.getAudios(audiosID))
-                    audioAdapter.addAudio(s);
-                audioAdapter.notifyDataSetChanged();
+                documentManager.loadAudios(attachmentsID).addOnSuccessListener(this, audios -> audioAdapter.setAudios(audios));
             }
         }
     }
@@ -278,7 +308,7 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
      * @return status code CANCELLED o OK
      */
     private int validateNote() {
-        if (inputNoteTitulo.getText().toString().isEmpty() && rtEditText.getText(RTFormat.PLAIN_TEXT).isEmpty() && audioAdapter.getItemCount() == 0 && documentManager.arrayImagesEmpty(imagesID)  && documentAdapter.getItemCount() == 0  /*&&  imagesUris.isEmpty()*/)
+        if (inputNoteTitulo.getText().toString().isEmpty() && rtEditText.getText(RTFormat.PLAIN_TEXT).isEmpty() && audioAdapter.getItemCount() == 0 && documentManager.arrayImagesEmpty(attachmentsID)  && documentAdapter.getItemCount() == 0  /*&&  imagesUris.isEmpty()*/)
             return RESULT_CANCELED;
         return RESULT_OK;
     }
@@ -348,17 +378,19 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
      * Método para crear el intent para regresar los datos al Main activity
      */
     private void saveNote() {
+        if (pendingImages > 0) {
+            Toast.makeText(this, "Procesando imágenes, espera un momento...", Toast.LENGTH_SHORT).show();
+            return;
+        }
         Intent intent = new Intent(getApplicationContext(), MainActivity.class);
         Bundle nota = new Bundle();
         nota.putString("title", inputNoteTitulo.getText().toString());
         nota.putString("noteText_HTML", rtEditText.getText(RTFormat.HTML));
         nota.putString("noteText_PLAIN", rtEditText.getText(RTFormat.PLAIN_TEXT));
-        nota.putBoolean("images", !documentManager.arrayImagesEmpty(imagesID));
+        nota.putBoolean("images", !documentManager.arrayImagesEmpty(attachmentsID));
         nota.putBoolean("documents", !(documentAdapter.getItemCount() == 0));
         nota.putBoolean("audios", !(audioAdapter.getItemCount() == 0));
-        nota.putString("documentsID", documentsID);
-        nota.putString("imagesID", imagesID);
-        nota.putString("audiosID", audiosID);
+        nota.putString("attachmentsID", attachmentsID);
 
         intent.putExtras(nota);
         setResult(validateNote(), intent);
@@ -389,6 +421,21 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
     protected void onDestroy() {
         super.onDestroy();
         rtManager.onDestroy(isFinishing());
+        playbackController.release();
+        imageIngestor.cancel();   // Las imágenes aún en proceso no deben llegar a una Activity muerta
+        if (isRecording) {
+            // La grabación no llega a guardarse: sus segmentos ya subidos no se apuntarán nunca
+            waveformSampler.stop(WaveformSampler.DEFAULT_PEAKS);
+            try {
+                recorder.stop();
+            } catch (RuntimeException e) {
+                Log.d("stopRecording", "stop() failed", e);
+            }
+            documentManager.discardRecording(attachmentsID, singleAudioID, recorder.getCompletedCount());
+            recorder = null;
+            isRecording = false;
+        }
+        documentManager.unpinAttachments(attachmentsID);
 
     }
 
@@ -396,16 +443,22 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
      * Metodo para iniciar el Carousel de imagenes de las notas
      */
     private void init_carousel() {
+        int readyImages = documentManager.imagesArraySize(attachmentsID);
         ImageListener imageListener = (position, imageView) -> {
-            Bitmap bitmap = BitmapFactory.decodeFile(documentManager.selectImageFromArray(imagesID, position));
+            // Las imágenes aún en proceso de ingesta se muestran con un placeholder
+            if (position >= readyImages) {
+                imageView.setImageResource(R.drawable.ic_baseline_image_24);
+                return;
+            }
+            Bitmap bitmap = BitmapFactory.decodeFile(documentManager.selectImageFromArray(attachmentsID, position));
             imageView.setImageBitmap(bitmap);
             registerForContextMenu(imageView);
         };
 
-        carouselView.setPageCount(documentManager.imagesArraySize(imagesID));
+        carouselView.setPageCount(readyImages + pendingImages);
         carouselView.setImageListener(imageListener);
 
-        if (documentManager.arrayImagesEmpty(imagesID)) carouselView.setVisibility(View.GONE);
+        if (readyImages + pendingImages == 0) carouselView.setVisibility(View.GONE);
         else carouselView.setVisibility(View.VISIBLE);
     }
 
@@ -471,15 +524,10 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
             if (data != null) {
                 Uri selectedImageUri = data.getData();
                 if (selectedImageUri != null) {
-                    try {
-                        InputStream inputStream = getContentResolver().openInputStream(selectedImageUri);
-                        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                        Image i = documentManager.BitmapToImage(bitmap);
-                        imagesID = documentManager.addImageToCloud(imagesID, i);
-                        init_carousel();
-                    } catch (Exception e) {
-                        Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
-                    }
+                    // Mostramos un placeholder y procesamos la imagen fuera del hilo de UI
+                    pendingImages++;
+                    init_carousel();
+                    imageIngestor.ingest(selectedImageUri);
                 }
             }
         } else if (requestCode == REQUEST_DOCUMENT_GET && resultCode == RESULT_OK) {
@@ -516,7 +564,8 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
 
             } else myFile.setId(displayName + "@" + System.currentTimeMillis() + ".");
 
-            documentsID = documentManager.addDocumentToCloud(documentsID, myFile);
+            attachmentsID = documentManager.addDocumentToCloud(attachmentsID, myFile);
+            documentManager.pinAttachments(attachmentsID);
             documentAdapter.addDocument(myFile);
             documentRecycleView.setVisibility(View.VISIBLE);
         }
@@ -538,10 +587,10 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
     @Override
     public boolean onContextItemSelected(MenuItem item) {
         if (item.getTitle().equals("Eliminar")) {
-            documentManager.removeImageFromNote(imagesID, carouselView.getCurrentItem());
+            documentManager.removeImageFromNote(attachmentsID, carouselView.getCurrentItem());
             init_carousel();
         } else if (item.getTitle().equals("Eliminar documento")) {
-            documentManager.removeDocumentFromNote(documentsID, documentAdapter.getDocument(item.getGroupId()));
+            documentManager.removeDocumentFromNote(attachmentsID, documentAdapter.getDocument(item.getGroupId()));
             documentAdapter.removeDocument(item.getGroupId());
             if (documentAdapter.getItemCount() == 0) documentRecycleView.setVisibility(View.GONE);
         }
@@ -556,7 +605,7 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
      */
     @Override
     public void onDocumentClick(int position)  {
-        Document d = documentManager.getDocuments(documentsID).get(position);
+        Document d = documentManager.getDocuments(attachmentsID).get(position);
         //openFile(d.getUrl());
         Toast.makeText(this,"Funcionality not implemented yet :)",Toast.LENGTH_SHORT).show();
     }
@@ -702,103 +751,95 @@ public class NotasActivity extends AppCompatActivity implements DocumentAdapter.
     }
 
     /**
-     * Metodo para empezar a grabar un Audio
+     * Metodo para empezar a grabar un Audio. La grabación se parte en segmentos y cada segmento
+     * terminado se sube mientras se sigue grabando.
      */
     private void startRecording() {
         Log.d("startRecording", "startRecording");
 
-        recorder = new MediaRecorder();
         DateFormat df = new SimpleDateFormat("yyMMddHHmmss", Locale.ITALY);
         String date = df.format(Calendar.getInstance().getTime());
-        fileName = getExternalCacheDir().getAbsolutePath() + File.separator + date + ".3gp";
+        recordingProfile = RecordingProfile.getDefault();
         singleAudioID = date;
-        Log.d("startRecording", fileName);
-
-        recorder.setOutputFile(fileName);
-        recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        recorder.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
-        recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
+        recorder = new SegmentedRecorder(recordingProfile, getExternalCacheDir(), date, SegmentedRecorder.DEFAULT_SEGMENT_MS,
+                (segment, index) -> attachmentsID = documentManager.addAudioSegment(attachmentsID, singleAudioID, index, segment));
 
         try {
-            recorder.prepare();
-        } catch (IOException e) {
-            Log.d("startRecording", "prepare() failed");
+            waveformSampler.start(recorder.start());
+        } catch (IOException | RuntimeException e) {
+            Log.d("startRecording", "prepare() failed", e);
+            recorder = null;
+            return;
         }
-        recorder.start();
         startAudio = System.currentTimeMillis();
         isRecording = true;
     }
 
     /**
-     * Metodo para dejar de grabar un Audio
+     * Metodo para dejar de grabar un Audio. Los segmentos ya terminados se han subido mientras se
+     * grababa: solo queda por subir el último.
      */
     private void stopRecording() {
         if (isRecording) {
             endAudio = System.currentTimeMillis();
+            byte[] waveform = waveformSampler.stop(WaveformSampler.DEFAULT_PEAKS);
             try {
-                recorder.stop();
-                recorder.release();
+                int completed = recorder.getCompletedCount();
+                List<File> segments = recorder.stop();
+                fileName = segments.get(0).getAbsolutePath();
+                // Los metadatos se guardan en el manifiesto: la lista de audios no tiene que leer el fichero
                 Audio a = new Audio(singleAudioID,fileName,(endAudio-startAudio));
-                audiosID = documentManager.addAudioToCloud(audiosID,a);
+                a.setCodec(recordingProfile.getCodec());
+                a.setBitRate(recordingProfile.getBitRate());
+                a.setWaveform(waveform);
+                if (segments.size() > 1 || completed > 0) {
+                    ArrayList<String> files = new ArrayList<>();
+                    for (File segment : segments) files.add(segment.getAbsolutePath());
+                    a.setSegments(files);
+                    for (int i = completed; i < segments.size(); i++)
+                        attachmentsID = documentManager.addAudioSegment(attachmentsID, singleAudioID, i, segments.get(i));
+                }
+                attachmentsID = documentManager.addAudioToCloud(attachmentsID,a);
+                documentManager.pinAttachments(attachmentsID);
                 audioAdapter.addAudio(a);
-                recorder = null;
-                isRecording = false;
-            } catch (IllegalStateException e) {
+            } catch (RuntimeException e) {
                 e.printStackTrace();
+                documentManager.discardRecording(attachmentsID, singleAudioID, recorder.getCompletedCount());
             }
-
+            recorder = null;
+            isRecording = false;
         }
     }
 
     /**
-     * Metodo para empezar a reproducir un Audio
-     * @param position Posicion desde la que se empezará a reproducir
+     * Metodo para empezar (o reanudar) la reproducción de un Audio. Si no está en local se descarga
+     * una vez a la cache y se reproduce desde allí.
+     * @param audio Audio a reproducir
      */
-    public void startPlaying(int position) {
-        try {
-            if (player != null) {
-                if (!player.isPlaying()) {
-                    player = new MediaPlayer();
-                    String fileName = audioAdapter.getAudio(position).getAddress();
-                    Log.d("startPlaying", fileName);
-                    player.setDataSource(fileName);
-                    player.prepare();
-                }
-                audioAdapter.setSessionID(player.getAudioSessionId());
-                player.start();
-                player.setOnCompletionListener(mp -> {
-                    audioAdapter.setSessionID(-1);
-                    audioAdapter.setStateReproduction(position);
-                    audioAdapter.notifyItemChanged(position);
-                    Toast.makeText(getApplicationContext(), "Audio finished!", Toast.LENGTH_SHORT).show();
-                    //playButton.setBackgroundResource(R.drawable.ic_baseline_play_circle_filled_24);
-                });
-            }
-        } catch (IOException e) {
-            Log.d("startPlaying", "prepare() failed");
-        }
+    @Override
+    public void startPlaying(Audio audio) {
+        documentManager.getAudioSources(attachmentsID, audio, sources -> {
+            playbackController.play(audio.getID(), sources, audio.getDuration());
+            // Los audios anteriores a los picos precalculados o sin duración se analizan una vez, ya descargados, y se guardan
+            if (audio.getWaveform() == null || audio.getDuration() <= 0) documentManager.analyzeAudio(attachmentsID, audio, () -> audioAdapter.notifyAudioChanged(audio.getID()));
+        });
     }
 
     /**
      * Metodo para pausar la reproduccion de un Audio
-     * @param position Posicion del Audio
+     * @param audio Audio a pausar
      */
     @Override
-    public void pausePlaying(int position) {
-        try {
-            player.pause();
-        } catch (IllegalStateException e) {
-            Toast.makeText(this,"No se está reporduciendo ningún audio",Toast.LENGTH_SHORT).show();
-        }
-    }
+    public void pausePlaying(Audio audio) { playbackController.pause(); }
 
     /**
      * Metodo para eliminar un Audio de una Nota
-     * @param position posicion del Audio
+     * @param audio Audio a eliminar
      */
     @Override
-    public void removeAudio(int position) {
-        documentManager.removeAudioFromNote(audiosID,audioAdapter.getAudio(position));
+    public void removeAudio(Audio audio) {
+        playbackController.stop(audio.getID());
+        documentManager.removeAudioFromNote(attachmentsID,audio);
     }
 }
 
@@ -6,6 +6,8 @@ import androidx.fragment.app.Fragment;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -21,8 +23,14 @@ import com.example.lize.adapters.NoteAdapter;
 import com.example.lize.data.Ambito;
 import com.example.lize.data.Folder;
 import com.example.lize.data.Note;
+import com.example.lize.data.RecentNotes;
+import com.example.lize.data.SortedNotes;
+import com.example.lize.data.User;
 import com.example.lize.models.MainViewModel;
+import com.example.lize.utils.Preferences;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /** Notes View Host fragment. Responsabilidades:
@@ -33,6 +41,8 @@ import java.util.ArrayList;
 public class NoteHostFragment extends Fragment implements NoteAdapter.CardNoteListener {
 
     private static final int REQUEST_CODE_EDIT_NOTE = 2;
+    private static final long SEARCH_DELAY_MS = 150;    // Wait for the user to stop typing before searching
+    private static final int PAGE_THRESHOLD = 10;       // Load the next page this close to the end of the list
     private Context mContext;                           // Root context
     private RecyclerView mNotesRecyclerView;            // Recycle View of Card-Notes
     private StaggeredGridLayoutManager mNotesManager;   // Recycle View Layout Manager
@@ -40,6 +50,14 @@ public class NoteHostFragment extends Fragment implements NoteAdapter.CardNoteLi
     private boolean cardNoteType;                       // boolean cardNote type
     private MainViewModel dataViewModel;                // Model Shared Data between Fragments
     private NoteAdapter.CardNote lastCardChecked;       // Last CardNote selected
+    private boolean globalSearch;                       // Search in every Ambito instead of the current list
+    private SortedNotes.Order noteOrder;                // Order of the notes list
+    private RecentNotes recentNotes;                    // Recent notes of every Ambito, null when showing an Ambito
+    private Folder shownFolder;                         // Folder shown before the recent notes
+    private boolean loadingPage;                        // Next recent page already posted
+    private String currentQuery = "";                   // Last search query
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable pendingSearch = () -> { if (mNoteAdapter != null) mNoteAdapter.search(currentQuery); };
 
     /** Inicializa el fragment contenedor de Notas. */
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -62,6 +80,7 @@ public class NoteHostFragment extends Fragment implements NoteAdapter.CardNoteLi
         mContext = root.getContext();
 
         dataViewModel = new ViewModelProvider(requireActivity()).get(MainViewModel.class);
+        noteOrder = Preferences.getNoteOrder(mContext);
 
         // Actualizamos la lista de Notas cuando se seleccione una Carpeta
         dataViewModel.getFolderSelected().observe(getViewLifecycleOwner(), (@Nullable Folder folder)->{
@@ -70,28 +89,146 @@ public class NoteHostFragment extends Fragment implements NoteAdapter.CardNoteLi
                     lastCardChecked.reset();
                     lastCardChecked = null;
                 }
-                try {
-                    if (folder == null) {
-                        Ambito ambito = dataViewModel.getAmbitoSelected().getValue();
-                        mNoteAdapter = new NoteAdapter(root.getContext(),  new ArrayList<>(ambito.getNotes()), cardNoteType);
-                    } else {
-                        mNoteAdapter = new NoteAdapter(root.getContext(), new ArrayList<>(folder.getNotes()), cardNoteType);
-                    }
-                    mNoteAdapter.registerCardNoteListener(this);
-                    mNotesRecyclerView.swapAdapter(mNoteAdapter, false);
-                    mNoteAdapter.notifyDataSetChanged();
-
-                } catch (NullPointerException exception) {
-                    Log.w("NoteHostFragment", "Failed to update ambito's notes: null ambito selected.");
-                    Log.w("NoteHostFragment", "Exception message: " + exception.getMessage());
-                }
+                if (recentNotes != null && folder == shownFolder) showRecent();    // Se ha editado una Nota
+                else showNotes(folder);
             }
             else {
-                mNoteAdapter = new NoteAdapter(root.getContext(), new ArrayList<>(), cardNoteType);
+                mNoteAdapter = new NoteAdapter(root.getContext(), new ArrayList<>(), cardNoteType, dataViewModel.getNoteIndex());
                 mNotesRecyclerView.swapAdapter(mNoteAdapter, false);
                 mNoteAdapter.notifyDataSetChanged();
             }
         });
+
+        // Añadimos las páginas de Notas que llegan de DB al listado del Ámbito
+        dataViewModel.getNotesLoaded().observe(getViewLifecycleOwner(), (@Nullable ArrayList<Note> page) -> {
+            if (page == null || page.isEmpty() || mNoteAdapter == null || recentNotes != null || !dataViewModel.getViewUpdate().getValue()) return;
+            Ambito ambito = dataViewModel.getAmbitoSelected().getValue();
+            if (ambito == null || !ambito.getSelfID().equals(page.get(0).getAmbitoID())) return;
+            // Las páginas del Ámbito llegan por fecha de edición y van al final; las de una Carpeta o
+            // en otro orden se reparten por el listado
+            if (shownFolder == null && noteOrder == SortedNotes.Order.UPDATED && isOlder(page.get(0), mNoteAdapter.getLastNote()))
+                mNoteAdapter.appendNotes(page);
+            else showNotes(shownFolder);
+        });
+
+        // Cargamos la siguiente página al acercarnos al final del listado
+        mNotesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (mNoteAdapter == null || dy <= 0) return;
+                int last = 0;
+                for (int position : mNotesManager.findLastVisibleItemPositions(null)) last = Math.max(last, position);
+                if (last < mNoteAdapter.getItemCount() - PAGE_THRESHOLD) return;
+                if (recentNotes == null) {
+                    dataViewModel.loadMoreNotes();      // Siguiente página del Ámbito desde DB
+                    return;
+                }
+                if (loadingPage || !recentNotes.hasMore()) return;
+                loadingPage = true;
+                recyclerView.post(() -> {           // No se puede modificar el adaptador durante el scroll
+                    loadingPage = false;
+                    if (recentNotes != null) mNoteAdapter.appendNotes(recentNotes.nextPage());
+                });
+            }
+        });
+    }
+
+    /**
+     * Metodo para mostrar las Notas de la Carpeta o, si no hay ninguna, del Ámbito seleccionado.
+     * Los listados ya vienen ordenados del modelo.
+     * @param folder Carpeta seleccionada, null para mostrar todo el Ámbito
+     */
+    private void showNotes(@Nullable Folder folder) {
+        recentNotes = null;
+        shownFolder = folder;
+        try {
+            if (folder == null) {
+                Ambito ambito = dataViewModel.getAmbitoSelected().getValue();
+                mNoteAdapter = new NoteAdapter(mContext, ambito.getNotes(noteOrder), cardNoteType, dataViewModel.getNoteIndex());
+            } else {
+                mNoteAdapter = new NoteAdapter(mContext, folder.getNotes(noteOrder), cardNoteType, dataViewModel.getNoteIndex());
+            }
+            mNoteAdapter.registerCardNoteListener(this);
+            mNoteAdapter.setGlobalSearch(globalSearch, getAmbitoNames());
+            mNotesRecyclerView.swapAdapter(mNoteAdapter, false);
+            mNoteAdapter.notifyDataSetChanged();
+            // Sin Notas suficientes para hacer scroll, p.ej. en una Carpeta, pedimos ya la siguiente página
+            if (mNoteAdapter.getItemCount() < PAGE_THRESHOLD) dataViewModel.loadMoreNotes();
+
+        } catch (NullPointerException exception) {
+            Log.w("NoteHostFragment", "Failed to update ambito's notes: null ambito selected.");
+            Log.w("NoteHostFragment", "Exception message: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Metodo para saber si una Nota se editó antes que otra
+     * @param note Nota
+     * @param other Otra Nota, null si no hay
+     * @return True si note no es más reciente que other o no hay other, False si no
+     */
+    private static boolean isOlder(Note note, @Nullable Note other) {
+        if (other == null) return true;
+        long time = note.getLastUpdate() == null ? 0 : note.getLastUpdate().getTime();
+        long otherTime = other.getLastUpdate() == null ? 0 : other.getLastUpdate().getTime();
+        return time <= otherTime;
+    }
+
+    /**
+     * Metodo para mostrar las Notas editadas más recientemente en todos los Ámbitos. Se cargan por
+     * páginas mientras se hace scroll; al repetirse, p.ej. tras editar una Nota, se vuelven a cargar
+     * tantas como ya se mostraban.
+     */
+    public void showRecent() {
+        User user = dataViewModel.getUserSelected().getValue();
+        if (user == null) return;
+        int count = recentNotes == null ? RecentNotes.PAGE_SIZE : Math.max(recentNotes.getServed(), RecentNotes.PAGE_SIZE);
+        if (lastCardChecked != null) {
+            lastCardChecked.reset();
+            lastCardChecked = null;
+        }
+        recentNotes = new RecentNotes(user.getAmbitos());
+        mNoteAdapter = new NoteAdapter(mContext, recentNotes.next(count), cardNoteType, dataViewModel.getNoteIndex());
+        mNoteAdapter.registerCardNoteListener(this);
+        mNoteAdapter.setGlobalSearch(globalSearch, getAmbitoNames());
+        mNotesRecyclerView.swapAdapter(mNoteAdapter, false);
+        mNoteAdapter.notifyDataSetChanged();
+        searchHandler.removeCallbacks(pendingSearch);
+        if (!currentQuery.trim().isEmpty()) pendingSearch.run();
+    }
+
+    /**
+     * Metodo para saber si se muestran las Notas recientes de todos los Ámbitos
+     * @return True si se muestran las recientes, False si se muestra el Ámbito seleccionado
+     */
+    public boolean isShowingRecent() { return recentNotes != null; }
+
+    /**
+     * Metodo para cambiar el orden de las Notas. El orden elegido se guarda para las próximas veces
+     * y la búsqueda en curso se repite sobre el nuevo listado.
+     * @param order Nuevo orden de las Notas
+     */
+    public void setNoteOrder(SortedNotes.Order order) {
+        if (order == noteOrder) return;
+        noteOrder = order;
+        Preferences.setNoteOrder(mContext, order);
+        if (mNoteAdapter == null || recentNotes != null || !dataViewModel.getViewUpdate().getValue()) return;
+        showNotes(dataViewModel.getFolderSelected().getValue());
+        searchHandler.removeCallbacks(pendingSearch);
+        if (!currentQuery.trim().isEmpty()) pendingSearch.run();
+    }
+
+    /**
+     * Metodo para conseguir el orden actual de las Notas
+     * @return Orden de las Notas
+     */
+    public SortedNotes.Order getNoteOrder() { return noteOrder; }
+
+    /** Cancelamos la búsqueda pendiente: la vista del Fragment ya no existe */
+    @Override
+    public void onDestroyView() {
+        searchHandler.removeCallbacks(pendingSearch);
+        super.onDestroyView();
     }
 
     /**
@@ -108,12 +245,41 @@ public class NoteHostFragment extends Fragment implements NoteAdapter.CardNoteLi
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                mNoteAdapter.getFilter().filter(newText);
+                // Solo se busca cuando se deja de escribir; borrar la búsqueda muestra el listado al momento
+                currentQuery = newText;
+                searchHandler.removeCallbacks(pendingSearch);
+                if (newText.trim().isEmpty()) pendingSearch.run();
+                else searchHandler.postDelayed(pendingSearch, SEARCH_DELAY_MS);
                 return false;
             }
         });
     }
 
+    /**
+     * Metodo para activar o desactivar la búsqueda en todos los Ámbitos del Usuario. La búsqueda
+     * en curso se repite en el nuevo modo.
+     * @param globalSearch True para buscar en todos los Ámbitos, False para buscar en el listado actual
+     */
+    public void setGlobalSearch(boolean globalSearch) {
+        this.globalSearch = globalSearch;
+        if (mNoteAdapter == null) return;
+        mNoteAdapter.setGlobalSearch(globalSearch, getAmbitoNames());
+        searchHandler.removeCallbacks(pendingSearch);
+        pendingSearch.run();
+    }
+
+    /**
+     * Metodo para conseguir los nombres de los Ámbitos del Usuario, para mostrar dónde está cada
+     * resultado de la búsqueda global
+     * @return Nombres de los Ámbitos por ID
+     */
+    private Map<String, String> getAmbitoNames() {
+        Map<String, String> names = new HashMap<>();
+        User user = dataViewModel.getUserSelected().getValue();
+        if (user != null) for (Ambito ambito : user.getAmbitos()) names.put(ambito.getSelfID(), ambito.getName());
+        return names;
+    }
+
     /**
      * Método para cambiar el tipo de los CardNotes:
      * Si cardNoteType = true; 2 columnas con cards de alto height {@link R.dimen# cardnote_layout_height_high}
@@ -143,12 +309,10 @@ public class NoteHostFragment extends Fragment implements NoteAdapter.CardNoteLi
 
         nota.putString("title", selectedNote.getTitle());
         nota.putString("noteText_HTML", selectedNote.getText_html());
-        nota.putString("documentsID",selectedNote.getDocumentsID());
-        nota.putString("imagesID",selectedNote.getImagesID());
+        nota.putString("attachmentsID",selectedNote.getAttachmentsID());
         nota.putBoolean("images",selectedNote.getHaveImages());
         nota.putBoolean("documents",selectedNote.getHaveDocuments());
         nota.putBoolean("audios",selectedNote.getHaveAudios());
-        nota.putString("audiosID",selectedNote.getAudiosID());
         intent.putExtras(nota);
 
         requireActivity().startActivityForResult(intent, REQUEST_CODE_EDIT_NOTE);
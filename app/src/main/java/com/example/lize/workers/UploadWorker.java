@@ -0,0 +1,98 @@
+package com.example.lize.workers;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.example.lize.models.BlobStore;
+import com.example.lize.models.UploadQueue;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageReference;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Worker que termina en segundo plano las subidas pendientes de la {@link UploadQueue}.
+ * Las subidas que la app está haciendo en primer plano se saltan; si quedan, se reintenta más tarde.
+ * Los blobs que ya están en el Storage no se vuelven a subir. Sin sesión iniciada no se sabe de
+ * qué usuario son los blobs, así que se espera a que vuelva a haberla.
+ */
+public class UploadWorker extends Worker {
+    private static final String TAG = "UploadWorker";
+
+    /**
+     * Constructor de la clase
+     * @param context Contexto de la app
+     * @param params Parámetros del worker
+     */
+    public UploadWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Metodo que sube los adjuntos pendientes y, una vez en el Storage, los apunta en su manifiesto
+     * @return Resultado del trabajo
+     */
+    @NonNull
+    @Override
+    public Result doWork() {
+        UploadQueue queue = UploadQueue.getInstance(getApplicationContext());
+        if (FirebaseAuth.getInstance().getCurrentUser() == null) return queue.hasPending() ? Result.retry() : Result.success();
+        StorageReference storageRef = FirebaseStorage.getInstance().getReference();
+
+        for (UploadQueue.PendingUpload upload : queue.getUnclaimed()) {
+            if (isStopped()) return Result.retry();
+            if (!queue.claim(upload)) continue;
+            try {
+                // Si el blob ya está guardado (mismo contenido en otra nota) no hace falta subirlo
+                boolean stored = Tasks.await(queue.acquireBlob(upload));
+                if (!stored && queue.isPending(upload))
+                    Tasks.await(storageRef.child(upload.getStoragePath()).putFile(Uri.fromFile(upload.getFile())));
+                if (queue.isPending(upload) && upload.isAudioPart()) {
+                    // Un audio por segmentos se apunta entero, cuando están el audio y todos sus segmentos
+                    queue.markUploaded(upload);
+                    commitAudio(queue, upload.getAttachmentsID(), upload.getAudioRef());
+                } else if (queue.isPending(upload)) {
+                    Tasks.await(queue.commitManifest(upload));
+                    queue.complete(upload);
+                } else if (upload.getHash() != null && !queue.hasPendingBlob(upload.getHash())) {
+                    // Se eliminó mientras se subía: si nadie referencia el blob, se borra del Storage
+                    Tasks.await(BlobStore.discard(upload.getHash()));
+                }
+            } catch (ExecutionException | InterruptedException | IllegalStateException exception) {
+                Log.w(TAG, "Upload of " + upload.getRef() + " failed, retrying later", exception);
+                queue.release(upload);
+                return Result.retry();
+            }
+        }
+        return queue.hasPending() ? Result.retry() : Result.success();
+    }
+
+    /**
+     * Metodo para apuntar en su manifiesto un audio por segmentos y todos sus segmentos, si ya están
+     * todos subidos y nadie más los está apuntando
+     * @param queue Cola de subidas
+     * @param attachmentsID ID de los adjuntos de la Nota
+     * @param audioRef Referencia del audio
+     * @throws ExecutionException Si falla la escritura
+     * @throws InterruptedException Si se interrumpe la espera
+     */
+    private static void commitAudio(UploadQueue queue, String attachmentsID, String audioRef) throws ExecutionException, InterruptedException {
+        List<UploadQueue.PendingUpload> uploads = queue.claimAudio(attachmentsID, audioRef);
+        if (uploads == null) return;
+        try {
+            Tasks.await(queue.commitManifest(uploads));
+        } catch (ExecutionException | InterruptedException exception) {
+            for (UploadQueue.PendingUpload upload : uploads) queue.release(upload);
+            throw exception;
+        }
+        for (UploadQueue.PendingUpload upload : uploads) queue.complete(upload);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.lize.data;
+
+import com.example.lize.data.SortedNotesTest.CountingNote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.example.lize.data.SortedNotesTest.ids;
+import static com.example.lize.data.SortedNotesTest.note;
+import static org.junit.Assert.*;
+
+/**
+ * Tests del listado de Notas recientes: mezcla de los Ámbitos, desempates, páginas y Notas editadas
+ */
+public class RecentNotesTest {
+
+    @Test
+    public void ambitosAreMergedNewestFirst() {
+        Ambito work = ambito("work", note("w1", "", 500, 0), note("w2", "", 200, 0));
+        Ambito home = ambito("home", note("h1", "", 400, 0), note("h2", "", 300, 0), note("h3", "", 100, 0));
+        Ambito empty = ambito("empty");
+
+        RecentNotes recent = new RecentNotes(Arrays.asList(work, empty, home));
+        assertEquals(Arrays.asList("w1", "h1"), ids(recent.next(2)));
+        assertEquals(Arrays.asList("h2", "w2"), ids(recent.next(2)));
+        assertTrue(recent.hasMore());
+        assertEquals(Arrays.asList("h3"), ids(recent.next(2)));
+        assertFalse(recent.hasMore());
+        assertTrue(recent.next(2).isEmpty());
+        assertEquals(5, recent.getServed());
+    }
+
+    /**
+     * Con la misma fecha en varios Ámbitos cada Nota sale una sola vez y el orden no retrocede
+     */
+    @Test
+    public void tiesAcrossAmbitosServeEveryNoteOnce() {
+        List<Ambito> ambitos = new ArrayList<>();
+        for (int a = 0; a < 4; a++) {
+            Ambito ambito = ambito("a" + a);
+            for (int i = 0; i < 5; i++) ambito.addNote(note("a" + a + "n" + i, "", 100 * (i % 2), 0));
+            ambitos.add(ambito);
+        }
+
+        RecentNotes recent = new RecentNotes(ambitos);
+        List<Note> served = new ArrayList<>();
+        while (recent.hasMore()) served.addAll(recent.next(3));
+
+        assertEquals(20, served.size());
+        assertEquals(20, new HashSet<>(ids(served)).size());
+        for (int i = 1; i < served.size(); i++)
+            assertTrue(served.get(i - 1).getLastUpdate().getTime() >= served.get(i).getLastUpdate().getTime());
+        // Dentro de un Ámbito, las empatadas salen en el orden en que se añadieron
+        List<String> first = new ArrayList<>();
+        for (Note note : served) if (note.getSelfID().startsWith("a0") && note.getLastUpdate().getTime() == 100) first.add(note.getSelfID());
+        assertEquals(Arrays.asList("a0n1", "a0n3"), first);
+    }
+
+    /**
+     * Las Notas editadas o borradas entre dos páginas no se repiten ni se sirven después de borradas
+     */
+    @Test
+    public void editsBetweenPagesAreHonored() {
+        Note moved = note("moved", "", 300, 0);
+        Note removed = note("removed", "", 200, 0);
+        Ambito ambito = ambito("a", note("top", "", 500, 0), moved, removed, note("last", "", 100, 0));
+        Ambito other = ambito("b", note("other", "", 400, 0));
+
+        RecentNotes recent = new RecentNotes(Arrays.asList(ambito, other));
+        assertEquals(Arrays.asList("top", "other"), ids(recent.next(2)));
+
+        ambito.removeNote(removed);
+        moved.setLastUpdate(new Date(50));
+        ambito.updateNote(moved);
+        assertEquals(Arrays.asList("last", "moved"), ids(recent.next(10)));
+        assertFalse(recent.hasMore());
+    }
+
+    /**
+     * La primera página de 100k Notas en 20 Ámbitos sale de las claves ya ordenadas de cada
+     * Ámbito: no se lee ni se ordena ninguna Nota
+     */
+    @Test
+    public void firstPageDoesNotReadEveryNote() {
+        List<Ambito> ambitos = new ArrayList<>();
+        List<CountingNote> all = new ArrayList<>();
+        for (int a = 0; a < 20; a++) {
+            Ambito ambito = ambito("a" + a);
+            for (int i = 0; i < 5000; i++) {
+                CountingNote note = new CountingNote("a" + a + "n" + i, i * 20L + a);
+                ambito.addNote(note);
+                all.add(note);
+            }
+            ambitos.add(ambito);
+        }
+        for (CountingNote note : all) note.reads = 0;
+
+        ArrayList<Note> page = new RecentNotes(ambitos).nextPage();
+
+        assertEquals(RecentNotes.PAGE_SIZE, page.size());
+        assertEquals("a19n4999", page.get(0).getSelfID());
+        assertEquals("a10n4997", page.get(RecentNotes.PAGE_SIZE - 1).getSelfID());
+        int reads = 0;
+        for (CountingNote note : all) reads += note.reads;
+        assertEquals(0, reads);
+    }
+
+    @Test
+    public void noAmbitosHaveNoNotes() {
+        RecentNotes recent = new RecentNotes(Collections.<Ambito>emptyList());
+        assertFalse(recent.hasMore());
+        assertTrue(recent.nextPage().isEmpty());
+    }
+
+    private static Ambito ambito(String id, Note... notes) {
+        Ambito ambito = new Ambito(id, 0);
+        ambito.setSelfID(id);
+        for (Note note : notes) ambito.addNote(note);
+        return ambito;
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.lize.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests de los listados ordenados de Notas: los tres órdenes, los desempates y las Notas editadas
+ */
+public class SortedNotesTest {
+
+    @Test
+    public void notesAreListedInEachOrder() {
+        SortedNotes notes = new SortedNotes();
+        notes.add(note("b", "Casa", 200, 10));
+        notes.add(note("a", "árbol", 300, 30));
+        notes.add(note("c", "Abeja", 100, 20));
+
+        assertEquals(Arrays.asList("a", "b", "c"), ids(notes.getNotes(SortedNotes.Order.UPDATED)));
+        // Sin distinguir mayúsculas ni tildes
+        assertEquals(Arrays.asList("c", "a", "b"), ids(notes.getNotes(SortedNotes.Order.TITLE)));
+        assertEquals(Arrays.asList("a", "c", "b"), ids(notes.getNotes(SortedNotes.Order.CREATED)));
+    }
+
+    /**
+     * Con la misma fecha va primero la que se añadió antes; con el mismo título, la más reciente
+     */
+    @Test
+    public void tiesAreBrokenConsistently() {
+        SortedNotes notes = new SortedNotes();
+        notes.add(note("first", "Lista", 100, 100));
+        notes.add(note("second", "lista", 200, 100));
+        notes.add(note("third", "Lista", 100, 100));
+
+        assertEquals(Arrays.asList("second", "first", "third"), ids(notes.getNotes(SortedNotes.Order.UPDATED)));
+        assertEquals(Arrays.asList("second", "first", "third"), ids(notes.getNotes(SortedNotes.Order.TITLE)));
+        assertEquals(Arrays.asList("first", "second", "third"), ids(notes.getNotes(SortedNotes.Order.CREATED)));
+    }
+
+    @Test
+    public void editedNoteIsRepositioned() {
+        SortedNotes notes = new SortedNotes();
+        Note old = note("old", "Zeta", 100, 100);
+        notes.add(old);
+        notes.add(note("new", "Alfa", 200, 200));
+
+        old.setLastUpdate(new Date(300));
+        old.setTitle("Alfa");
+        assertTrue(notes.update(old));
+        assertEquals(Arrays.asList("old", "new"), ids(notes.getNotes(SortedNotes.Order.UPDATED)));
+        assertEquals(Arrays.asList("old", "new"), ids(notes.getNotes(SortedNotes.Order.TITLE)));
+        assertEquals(2, notes.size());
+
+        assertTrue(notes.remove(old));
+        assertFalse(notes.remove(old));
+        assertFalse(notes.update(old));
+        assertEquals(Arrays.asList("new"), ids(notes.getNotes(SortedNotes.Order.UPDATED)));
+    }
+
+    /**
+     * Las Notas nuevas aún no tienen ID: se distinguen por identidad
+     */
+    @Test
+    public void notesWithoutIdAreKeptApart() {
+        SortedNotes notes = new SortedNotes();
+        Note first = note(null, "Nueva", 100, 100);
+        Note second = note(null, "Nueva", 100, 100);
+        notes.add(first);
+        notes.add(second);
+
+        assertEquals(2, notes.size());
+        assertTrue(notes.contains(second));
+        notes.remove(first);
+        assertSame(second, notes.getNotes(SortedNotes.Order.UPDATED).get(0));
+    }
+
+    /**
+     * Un Cursor sigue siendo válido aunque se editen o quiten Notas mientras se recorre
+     */
+    @Test
+    public void cursorSurvivesEdits() {
+        SortedNotes notes = new SortedNotes();
+        Note a = note("a", "A", 400, 400);
+        Note b = note("b", "B", 300, 300);
+        Note c = note("c", "C", 200, 200);
+        Note d = note("d", "D", 100, 100);
+        for (Note note : Arrays.asList(a, b, c, d)) notes.add(note);
+
+        SortedNotes.Cursor cursor = notes.cursor(SortedNotes.Order.UPDATED);
+        assertSame(a, cursor.next());
+        notes.remove(b);
+        d.setLastUpdate(new Date(50));
+        notes.update(d);
+        assertSame(c, cursor.next());
+        assertSame(d, cursor.next());
+        assertFalse(cursor.hasNext());
+        assertNull(cursor.next());
+    }
+
+    @Test
+    public void ambitoAndFolderStaySorted() {
+        Ambito ambito = new Ambito("Trabajo", 0);
+        Note draft = note("draft", "Borrador", 100, 100);
+        draft.setFolderTAG("Ideas");
+        ambito.addNote(draft);
+        Note plan = note("plan", "Plan", 200, 200);
+        plan.setFolderTAG("Ideas");
+        ambito.addNote(plan);
+
+        draft.setLastUpdate(new Date(300));
+        ambito.updateNote(draft);
+        assertEquals(Arrays.asList("draft", "plan"), ids(ambito.getNotes()));
+        assertEquals(Arrays.asList("draft", "plan"), ids(ambito.getFolder("Ideas").getNotes(SortedNotes.Order.UPDATED)));
+
+        ambito.removeFolder("Ideas");
+        assertEquals(0, ambito.getNumberOfNotes());
+    }
+
+    /**
+     * Recolocar una Nota editada no reordena el listado: solo se leen los valores de esa Nota
+     */
+    @Test
+    public void updatesOnlyReadTheEditedNote() {
+        SortedNotes notes = new SortedNotes();
+        List<CountingNote> all = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            CountingNote note = new CountingNote("n" + i, i);
+            all.add(note);
+            notes.add(note);
+        }
+        for (CountingNote note : all) note.reads = 0;
+
+        CountingNote edited = all.get(500);
+        edited.setLastUpdate(new Date(5000));
+        notes.update(edited);
+        notes.remove(all.get(10));
+
+        int otherReads = 0;
+        for (CountingNote note : all) if (note != edited) otherReads += note.reads;
+        assertEquals(0, otherReads);
+        assertSame(edited, notes.getNotes(SortedNotes.Order.UPDATED).get(0));
+    }
+
+    static Note note(String id, String title, long updated, long created) {
+        Note note = new Note(title, "", "");
+        note.setSelfID(id);
+        note.setLastUpdate(new Date(updated));
+        note.setCreationDate(new Date(created));
+        return note;
+    }
+
+    static List<String> ids(List<Note> notes) {
+        List<String> ids = new ArrayList<>();
+        for (Note note : notes) ids.add(note.getSelfID());
+        return ids;
+    }
+
+    /**
+     * Nota que cuenta las veces que se leen los valores por los que se ordena
+     */
+    static class CountingNote extends Note {
+        int reads;
+
+        CountingNote(String id, long updated) {
+            super("Nota " + id, "", "");
+            setSelfID(id);
+            setLastUpdate(new Date(updated));
+            setCreationDate(new Date(updated));
+        }
+
+        @Override
+        public String getTitle() {
+            reads++;
+            return super.getTitle();
+        }
+
+        @Override
+        public Date getLastUpdate() {
+            reads++;
+            return super.getLastUpdate();
+        }
+
+        @Override
+        public Date getCreationDate() {
+            reads++;
+            return super.getCreationDate();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.lize.models;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests de la migración de los manifiestos antiguos de adjuntos al manifiesto único
+ */
+public class AttachmentMigrationTest {
+
+    /**
+     * Las notas antiguas guardaban la primera imagen en "images" y las siguientes en "files":
+     * todas deben pasar al manifiesto nuevo, en su orden
+     */
+    @Test
+    public void multiImageLegacyDocMigratesEveryImage() {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("images", Collections.singletonList("img1"));
+        legacy.put("files", Arrays.asList("img2", "img3"));
+        legacy.put("hashes", Collections.singletonMap("img2", "abc123"));
+
+        Map<String, Object> entries = new HashMap<>();
+        AttachmentMigration.addEntries(entries, AttachmentManifest.TYPE_IMAGE, legacy);
+
+        assertEquals(3, entries.size());
+        assertEquals(Arrays.asList("img1", "img2", "img3"), AttachmentMigration.getLegacyRefs(AttachmentManifest.TYPE_IMAGE, legacy));
+        assertEquals(0L, entry(entries, "img1").getOrder());
+        assertEquals(1L, entry(entries, "img2").getOrder());
+        assertEquals(2L, entry(entries, "img3").getOrder());
+        assertEquals("abc123", entry(entries, "img2").getHash());
+        assertNull(entry(entries, "img3").getHash());
+        assertEquals("img3", entry(entries, "img3").getStoragePath());
+        assertTrue(AttachmentMigration.containsAll(entries, AttachmentMigration.getRawRefs(legacy)));
+    }
+
+    @Test
+    public void imageInBothFieldsIsMigratedOnce() {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("images", Collections.singletonList("img1"));
+        legacy.put("files", Arrays.asList("img1", "img2"));
+
+        Map<String, Object> entries = new HashMap<>();
+        AttachmentMigration.addEntries(entries, AttachmentManifest.TYPE_IMAGE, legacy);
+
+        assertEquals(2, entries.size());
+        assertEquals(1L, entry(entries, "img2").getOrder());
+    }
+
+    @Test
+    public void audioLegacyDocOnlyReadsFiles() {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("files", Arrays.asList("a1", "a2"));
+        legacy.put("images", Collections.singletonList("ignored"));
+
+        Map<String, Object> entries = new HashMap<>();
+        AttachmentMigration.addEntries(entries, AttachmentManifest.TYPE_AUDIO, legacy);
+
+        assertEquals(2, entries.size());
+        assertFalse(entries.containsKey("ignored"));
+        assertEquals(AttachmentManifest.TYPE_AUDIO, entry(entries, "a1").getType());
+    }
+
+    @Test
+    public void missingLegacyDocHasNothingToMigrate() {
+        Map<String, Object> entries = new HashMap<>();
+        AttachmentMigration.addEntries(entries, AttachmentManifest.TYPE_IMAGE, null);
+
+        assertTrue(entries.isEmpty());
+        assertTrue(AttachmentMigration.getLegacyRefs(AttachmentManifest.TYPE_IMAGE, null).isEmpty());
+    }
+
+    /**
+     * El manifiesto antiguo no se puede borrar si le falta alguna entrada al nuevo
+     */
+    @Test
+    public void incompleteMigrationIsDetected() {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("images", Collections.singletonList("img1"));
+        legacy.put("files", Arrays.asList("img2", "img3"));
+        List<String> refs = AttachmentMigration.getRawRefs(legacy);
+
+        Map<String, Object> entries = new HashMap<>();
+        entries.put("img1", new AttachmentManifest.Entry("img1", AttachmentManifest.TYPE_IMAGE).toMap());
+
+        assertFalse(AttachmentMigration.containsAll(entries, refs));
+    }
+
+    /**
+     * La comprobación se hace con todo lo que guarda el manifiesto antiguo, no con lo que lee
+     * addEntries: una referencia en un campo que no se migra impide borrarlo
+     */
+    @Test
+    public void refsSkippedByTheMigrationAreDetected() {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("files", Arrays.asList("a1", "a2"));
+        legacy.put("images", Collections.singletonList("a3"));
+
+        Map<String, Object> entries = new HashMap<>();
+        AttachmentMigration.addEntries(entries, AttachmentManifest.TYPE_AUDIO, legacy);
+
+        assertTrue(AttachmentMigration.containsAll(entries, AttachmentMigration.getLegacyRefs(AttachmentManifest.TYPE_AUDIO, legacy)));
+        assertFalse(AttachmentMigration.containsAll(entries, AttachmentMigration.getRawRefs(legacy)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AttachmentManifest.Entry entry(Map<String, Object> entries, String ref) {
+        return AttachmentManifest.Entry.fromMap(ref, (Map<String, Object>) entries.get(ref));
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.lize.models;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests del formato de los segmentos del índice en disco: diccionario, listas de Notas, trigramas
+ * y borrados
+ */
+public class IndexSegmentTest {
+
+    @Test
+    public void writtenSegmentIsReadBack() throws Exception {
+        File directory = Files.createTempDirectory("segment").toFile();
+        try {
+            File file = new File(directory, "segment-3.idx");
+            IndexSegment.Builder builder = new IndexSegment.Builder();
+            int first = builder.addDoc("a", 3, 11L);
+            int second = builder.addDoc("b", 2, 22L);
+            builder.addPosting("gato", first, 2);
+            builder.addPosting("gato", second, 1);
+            builder.addPosting("perro", first, 1);
+            builder.addPosting("gatito", second, 1);
+            builder.write(file);
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+
+            IndexSegment segment = IndexSegment.open(file, 3);
+            assertEquals(3, segment.getGeneration());
+            assertEquals(2, segment.getDocCount());
+            assertEquals(3, segment.getTermCount());
+            assertEquals("b", segment.getNoteID(second));
+            assertEquals(3, segment.getLength(first));
+            assertEquals(22L, segment.getSignature(second));
+
+            int gato = segment.findTerm("gato");
+            assertEquals("gato", segment.getTerm(gato));
+            assertEquals(2, segment.getPostingCount(gato));
+            assertEquals(first, segment.getPostingDoc(gato, 0));
+            assertEquals(2, segment.getPostingFrequency(gato, 0));
+            assertEquals(-1, segment.findTerm("gat"));
+            assertEquals(-1, segment.findTerm("zorro"));
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void prefixRangesAndTrigramsFindTerms() throws Exception {
+        File directory = Files.createTempDirectory("segment").toFile();
+        try {
+            IndexSegment segment = write(directory, "casa casas", "casas cosa", "perro");
+
+            int[] range = segment.prefixRange("cas");
+            List<String> terms = new ArrayList<>();
+            for (int term = range[0]; term < range[1]; term++) terms.add(segment.getTerm(term));
+            assertEquals(Arrays.asList("casa", "casas"), terms);
+            int[] empty = segment.prefixRange("zz");
+            assertEquals(empty[0], empty[1]);
+
+            assertTrue(segment.hasTermInRange(1, range));
+            assertFalse(segment.hasTermInRange(2, range));
+
+            // Las palabras más frecuentes del rango: "casas" está en dos Notas
+            int[] frequent = segment.getFrequentTerms(range, 1);
+            assertEquals(1, frequent.length);
+            assertEquals("casas", segment.getTerm(frequent[0]));
+            assertEquals(2, segment.getFrequentTerms(range, 5).length);
+
+            List<String> withGram = new ArrayList<>();
+            for (int term : segment.getGramTerms("osa")) withGram.add(segment.getTerm(term));
+            assertEquals(Collections.singletonList("cosa"), withGram);
+            assertEquals(0, segment.getGramTerms("xyz").length);
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void deletionsAreKeptApartFromTheSegment() throws Exception {
+        File directory = Files.createTempDirectory("segment").toFile();
+        try {
+            IndexSegment segment = write(directory, "uno", "dos", "tres");
+            long size = segment.getFile().length();
+            segment.delete(1);
+            segment.writeDeletions(segment.getDeletedIDs());
+            assertEquals(size, segment.getFile().length());
+            assertTrue(IndexSegment.getDeletionsFile(segment.getFile()).exists());
+
+            IndexSegment reopened = IndexSegment.open(segment.getFile(), 1);
+            assertTrue(reopened.isDeleted(1));
+            assertFalse(reopened.isDeleted(0));
+            assertEquals(Collections.singletonList("b"), reopened.getDeletedIDs());
+
+            // Sin borrados el fichero desaparece
+            reopened.writeDeletions(Collections.<String>emptyList());
+            assertFalse(IndexSegment.getDeletionsFile(segment.getFile()).exists());
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Abrir un segmento solo lee los IDs de las Notas: las listas de Notas de cada palabra se
+     * leen del fichero al consultarlas, así que un segmento con esas listas dañadas se abre igual
+     */
+    @Test
+    public void openingReadsOnlyTheNoteIds() throws Exception {
+        File directory = Files.createTempDirectory("segment").toFile();
+        try {
+            IndexSegment segment = write(directory, "lista de la compra", "lista de tareas");
+            File file = segment.getFile();
+            try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+                raw.seek(28);
+                int postingsOffset = raw.readInt();
+                int docTermsOffset = raw.readInt();
+                byte[] garbage = new byte[docTermsOffset - postingsOffset];
+                Arrays.fill(garbage, (byte) 0x7F);
+                raw.seek(postingsOffset);
+                raw.write(garbage);
+            }
+
+            IndexSegment reopened = IndexSegment.open(file, 1);
+            assertEquals("b", reopened.getNoteID(1));
+            int lista = reopened.findTerm("lista");
+            assertEquals(2, reopened.getPostingCount(lista));
+            assertNotEquals(0, reopened.getPostingDoc(lista, 0));
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedSegmentFailsToOpen() throws Exception {
+        File directory = Files.createTempDirectory("segment").toFile();
+        try {
+            File file = new File(directory, "segment-1.idx");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            }
+            IndexSegment.open(file, 1);
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Metodo para escribir un segmento con una Nota por texto, con IDs "a", "b", "c"...
+     */
+    private static IndexSegment write(File directory, String... texts) throws IOException {
+        IndexSegment.Builder builder = new IndexSegment.Builder();
+        for (int i = 0; i < texts.length; i++) {
+            String[] words = texts[i].split(" ");
+            Map<String, Integer> frequencies = new HashMap<>();
+            for (String word : words) frequencies.put(word, frequencies.containsKey(word) ? frequencies.get(word) + 1 : 1);
+            int doc = builder.addDoc(String.valueOf((char) ('a' + i)), words.length, 0);
+            for (Map.Entry<String, Integer> term : frequencies.entrySet()) builder.addPosting(term.getKey(), doc, term.getValue());
+        }
+        File file = new File(directory, "segment-1.idx");
+        builder.write(file);
+        return IndexSegment.open(file, 1);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.lize.models;
+
+import com.example.lize.data.Note;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests de la búsqueda del índice de Notas: prefijos, erratas y orden por relevancia
+ */
+public class NoteIndexTest {
+
+    @Test
+    public void prefixMatchesWordsBeingTyped() {
+        NoteIndex index = new NoteIndex();
+        index.put(note("1", "Receta", "tortilla de patatas"));
+        index.put(note("2", "Compra", "patas de pulpo"));
+        index.put(note("3", "Viaje", "billete de tren"));
+
+        assertEquals(set("1", "2"), index.search("pat"));
+        assertEquals(set("1"), index.search("patat"));
+        assertEquals(set("1"), index.search("de patat"));
+        assertTrue(index.search("avion").isEmpty());
+    }
+
+    @Test
+    public void wordsAreFoldedAndAllMustMatch() {
+        NoteIndex index = new NoteIndex();
+        index.put(note("1", "Canción", "letra del estribillo"));
+        index.put(note("2", "Cancion", "acordes"));
+
+        assertEquals(set("1", "2"), index.search("CANCIÓN"));
+        assertEquals(set("1"), index.search("cancion estribillo"));
+    }
+
+    @Test
+    public void fuzzyMatchesTyposOnlyWithoutPrefixMatches() {
+        NoteIndex index = new NoteIndex();
+        index.put(note("1", "Reunión", "presupuesto anual"));
+        index.put(note("2", "Ideas", "presentación"));
+
+        assertEquals(set("1"), index.search("presupesto"));
+        assertEquals(set("1"), index.search("prseupuesto"));
+        // Con alguna palabra que empieza por lo buscado no se buscan erratas
+        assertEquals(set("1", "2"), index.search("pres"));
+        // Las palabras cortas no admiten erratas
+        assertTrue(index.search("anl").isEmpty());
+        assertEquals(1, NoteIndex.prefixDistance("presupesto", "presupuesto", 2));
+        assertEquals(3, NoteIndex.prefixDistance("xyzxyz", "presupuesto", 2));
+    }
+
+    @Test
+    public void bm25RanksExactAndFrequentWordsFirst() {
+        NoteIndex index = new NoteIndex();
+        index.put(note("exact", "", "gato"));
+        index.put(note("title", "gato", ""));
+        index.put(note("often", "", "gato gato gato perro"));
+        index.put(note("other", "", "perro"));
+
+        List<NoteIndex.Hit> hits = index.rank("gato", 10);
+        assertEquals(3, hits.size());
+        for (int i = 1; i < hits.size(); i++) assertTrue(hits.get(i - 1).getScore() >= hits.get(i).getScore());
+        // El título cuenta como dos apariciones y la Nota es más corta que la que lo repite tres veces
+        assertTrue(score(hits, "title") > score(hits, "exact"));
+        assertTrue(score(hits, "often") > score(hits, "exact"));
+        assertTrue(hits.get(0).getTerms().contains("gato"));
+    }
+
+    @Test
+    public void prefixMatchesScoreLessThanExactOnes() {
+        NoteIndex index = new NoteIndex();
+        index.put(note("exact", "", "gato"));
+        index.put(note("prefix", "", "gatos"));
+        index.put(note("other", "", "perro"));
+
+        List<NoteIndex.Hit> hits = index.rank("gato", 10);
+        assertEquals("exact", hits.get(0).getNote().getSelfID());
+        assertEquals(score(hits, "exact") / 2, score(hits, "prefix"), 0.0001f);
+        assertEquals(Collections.singleton("gatos"), hits.get(1).getTerms());
+    }
+
+    @Test
+    public void rankOnlyScoresCandidatesAndHonorsLimit() {
+        NoteIndex index = new NoteIndex();
+        for (int i = 0; i < 20; i++) index.put(note("n" + i, "", "nota numero " + i));
+
+        assertEquals(5, index.rank("nota", 5).size());
+        List<NoteIndex.Hit> hits = index.rank("nota", 10, set("n3", "n7"));
+        assertEquals(2, hits.size());
+        assertTrue(index.rank("nota", 0).isEmpty());
+    }
+
+    @Test
+    public void attachmentsMatchAndAreReported() {
+        NoteIndex index = new NoteIndex();
+        Note note = note("1", "Facturas", "");
+        note.setAttachmentsID("att1");
+        index.put(note);
+        NoteIndex.TermCounter counter = new NoteIndex.TermCounter();
+        counter.append("importe total de la fac");
+        counter.append("tura electrica");
+        index.putAttachment("att1", "doc1", counter);
+
+        assertEquals(set("1"), index.search("electrica"));
+        List<NoteIndex.Hit> hits = index.rank("electrica", 10);
+        assertEquals("doc1", hits.get(0).getAttachment());
+        assertEquals(set("1"), index.search("factura"));
+
+        index.removeAttachment("att1", "doc1");
+        assertTrue(index.search("electrica").isEmpty());
+    }
+
+    /**
+     * Un prefijo de una letra no puede expandirse a todo el vocabulario: solo a la palabra exacta
+     * y a las más frecuentes
+     */
+    @Test
+    public void shortPrefixExpandsToMostFrequentWords() {
+        NoteIndex index = new NoteIndex();
+        for (int i = 0; i < 200; i++) index.put(note("rare" + i, "", "z" + i + "raro"));
+        for (int i = 0; i < 10; i++) index.put(note("common" + i, "", "zeta"));
+
+        Set<String> found = index.search("z");
+        for (int i = 0; i < 10; i++) assertTrue(found.contains("common" + i));
+        assertTrue(found.size() < 210);
+        // Con un prefijo más largo se encuentran todas
+        assertEquals(set("rare150"), index.search("z150"));
+    }
+
+    /**
+     * Búsqueda de una letra, la más cara, con 10k Notas en memoria: solo se recorren las listas de
+     * las palabras a las que se expande, una pequeña parte del índice
+     */
+    @Test
+    public void shortPrefixOverTenThousandNotesVisitsFewPostings() {
+        NoteIndex index = new NoteIndex();
+        Random random = new Random(42);
+        long total = 0;
+        for (int i = 0; i < 10000; i++) {
+            Note note = note("n" + i, randomText(random, 3), randomText(random, 60));
+            index.put(note);
+            total += NoteIndex.getFrequencies(note).size();
+        }
+
+        for (String query : new String[]{"a", "e", "ma", "co", "s"}) {
+            assertEquals(50, index.rank(query, 50).size());
+            long visited = index.getVisitedPostings();
+            assertTrue(query + ": " + visited + " of " + total, visited > 0 && visited < total / 10);
+        }
+    }
+    /**
+     * Las Notas quitadas de un segmento en disco no deben volver al reabrir el índice, antes de
+     * que se carguen las Notas y se llame a prune()
+     */
+    @Test
+    public void deletionsSurviveReopening() throws Exception {
+        File directory = Files.createTempDirectory("index").toFile();
+        try {
+            List<Note> notes = Arrays.asList(note("a", "", "lista compra"), note("b", "", "lista tareas"), note("c", "", "lista viaje"));
+            writeSegment(directory, 1, notes);
+            NoteIndex index = new NoteIndex();
+            index.open(directory);
+            index.putAll(notes);
+            assertEquals(set("a", "b", "c"), index.search("lista"));
+
+            index.remove("b");
+            assertEquals(set("a", "c"), index.search("lista"));
+            File deletions = IndexSegment.getDeletionsFile(new File(directory, "segment-1.idx"));
+            for (int i = 0; i < 100 && !deletions.exists(); i++) Thread.sleep(50);
+            assertTrue(deletions.exists());
+
+            NoteIndex reopened = new NoteIndex();
+            reopened.open(directory);
+            assertEquals(set("a", "c"), reopened.search("lista"));
+            assertTrue(reopened.search("tareas").isEmpty());
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Búsqueda global con 50k Notas en un segmento en disco, como tras reabrir el índice: se
+     * escribe cada consulta letra a letra y ninguna pulsación recorre más de una décima parte del
+     * índice por palabra buscada
+     */
+    @Test
+    public void globalSearchOverFiftyThousandNotesVisitsFewPostings() throws Exception {
+        File directory = Files.createTempDirectory("index").toFile();
+        try {
+            Random random = new Random(7);
+            List<Note> notes = new ArrayList<>();
+            long total = 0;
+            for (int i = 0; i < 50000; i++) {
+                Note note = note("n" + i, randomText(random, 3), randomText(random, 40));
+                notes.add(note);
+                total += NoteIndex.getFrequencies(note).size();
+            }
+            writeSegment(directory, 1, notes);
+            NoteIndex index = new NoteIndex();
+            index.open(directory);
+            index.putAll(notes);
+
+            // Consultas de una a tres palabras sacadas de las propias Notas
+            for (int i = 0; i < 60; i++) {
+                Note source = notes.get(random.nextInt(notes.size()));
+                List<String> words = NoteIndex.tokenize(source.getText_plain());
+                int start = random.nextInt(words.size() - 3);
+                StringBuilder query = new StringBuilder(words.get(start));
+                for (int j = 1; j <= i % 3; j++) query.append(' ').append(words.get(start + j));
+                for (int end = 1; end <= query.length(); end++) {
+                    String typed = query.substring(0, end);
+                    List<NoteIndex.Hit> hits = index.rank(typed, 100);
+                    long visited = index.getVisitedPostings();
+                    int tokens = NoteIndex.tokenize(typed).size();
+                    assertTrue(typed + ": " + visited + " of " + total, visited <= tokens * total / 10);
+                    if (end == query.length()) assertFalse(typed, hits.isEmpty());
+                }
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Metodo para escribir un segmento con unas Notas igual que las escribe el índice
+     */
+    static void writeSegment(File directory, long generation, List<Note> notes) throws IOException {
+        IndexSegment.Builder builder = new IndexSegment.Builder();
+        for (Note note : notes) {
+            Map<String, Integer> frequencies = NoteIndex.getFrequencies(note);
+            int length = 0;
+            for (int frequency : frequencies.values()) length += frequency;
+            int doc = builder.addDoc(note.getSelfID(), length, NoteIndex.signature(note));
+            for (Map.Entry<String, Integer> term : frequencies.entrySet()) builder.addPosting(term.getKey(), doc, term.getValue());
+        }
+        builder.write(new File(directory, "segment-" + generation + ".idx"));
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    static Note note(String id, String title, String text) {
+        Note note = new Note(title, text, text);
+        note.setSelfID(id);
+        return note;
+    }
+
+    /**
+     * Metodo para generar texto con palabras de un vocabulario de unas 5000, con las sílabas
+     * habituales del castellano
+     */
+    static String randomText(Random random, int words) {
+        String[] syllables = {"ma", "co", "sa", "la", "te", "ri", "no", "pe", "de", "ca", "to", "ra", "a", "e", "lo", "mi", "su", "ta", "ve", "ba"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) text.append(' ');
+            int length = 1 + random.nextInt(3);
+            for (int j = 0; j < length; j++) text.append(syllables[random.nextInt(syllables.length)]);
+        }
+        return text.toString();
+    }
+
+    private static float score(List<NoteIndex.Hit> hits, String id) {
+        for (NoteIndex.Hit hit : hits) if (hit.getNote().getSelfID().equals(id)) return hit.getScore();
+        fail("Missing " + id);
+        return 0;
+    }
+
+    private static Set<String> set(String... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+}
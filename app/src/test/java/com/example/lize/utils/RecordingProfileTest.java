@@ -0,0 +1,38 @@
+package com.example.lize.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests de los perfiles de grabación: códecs guardados, audios antiguos y segmentos
+ */
+public class RecordingProfileTest {
+
+    @Test
+    public void codecNamesRoundTrip() {
+        RecordingProfile[] profiles = {RecordingProfile.AMR_NB, RecordingProfile.AAC, RecordingProfile.HE_AAC};
+        for (RecordingProfile profile : profiles) assertSame(profile, RecordingProfile.forCodec(profile.getCodec()));
+    }
+
+    /**
+     * Los audios grabados antes de los perfiles no guardan el códec: eran AMR-NB en 3GPP
+     */
+    @Test
+    public void unknownCodecIsLegacyAmr() {
+        assertSame(RecordingProfile.AMR_NB, RecordingProfile.forCodec(null));
+        assertSame(RecordingProfile.AMR_NB, RecordingProfile.forCodec("flac"));
+        assertEquals(".3gp", RecordingProfile.AMR_NB.getExtension());
+        assertEquals("audio/3gpp", RecordingProfile.AMR_NB.getContentType());
+    }
+
+    /**
+     * Solo MPEG-4 se puede subir por segmentos mientras se graba
+     */
+    @Test
+    public void onlyMpeg4IsSegmentable() {
+        assertTrue(RecordingProfile.AAC.isSegmentable());
+        assertTrue(RecordingProfile.HE_AAC.isSegmentable());
+        assertFalse(RecordingProfile.AMR_NB.isSegmentable());
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.lize.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests de la extracción del texto de los documentos adjuntos: tipos admitidos, PDF y límites
+ */
+public class TextExtractorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    @Test
+    public void onlyKnownTypesAreSupported() {
+        assertTrue(TextExtractor.isSupported("Notas.TXT"));
+        assertTrue(TextExtractor.isSupported("factura.pdf"));
+        assertTrue(TextExtractor.isSupported("informe.docx"));
+        assertTrue(TextExtractor.isSupported("carta.rtf"));
+        assertFalse(TextExtractor.isSupported("foto.jpg"));
+        assertFalse(TextExtractor.isSupported(null));
+    }
+
+    @Test
+    public void plainTextAndMarkupAreExtracted() throws IOException {
+        assertEquals("lista de la compra", extract("lista de la compra".getBytes(UTF_8), "a.txt"));
+        assertEquals("canción", extract("canción".getBytes(Charset.forName("UTF-16")), "a.txt"));
+
+        String html = extract("<p>primer</p><p>párrafo</p>".getBytes(UTF_8), "a.html");
+        assertEquals(Arrays.asList("primer", "párrafo"), Arrays.asList(html.trim().split("\\s+")));
+        assertEquals("", extract(new byte[]{1, 2, 3}, "a.jpg"));
+    }
+
+    /**
+     * Una etiqueta partida entre dos bloques de lectura se quita igual
+     */
+    @Test
+    public void tagsSplitAcrossBuffersAreRemoved() throws IOException {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 8190; i++) html.append('x');
+        html.append("<span class=\"nota\">dentro</span>");
+        String text = extract(html.toString().getBytes(UTF_8), "a.html");
+        assertTrue(text.endsWith(" dentro "));
+        assertFalse(text.contains("span"));
+    }
+
+    /**
+     * Del RTF solo queda el texto: sin palabras de control, tablas de fuentes ni grupos \*
+     */
+    @Test
+    public void rtfControlWordsAreRemoved() throws IOException {
+        String rtf = "{\\rtf1\\ansi\\deff0{\\fonttbl{\\f0 Arial;}}{\\colortbl;\\red255\\green0\\blue0;}"
+                + "{\\*\\generator Writer;}\\pard\\f0\\fs24 Reuni\\'f3n del \\b lunes\\b0\\par\r\n"
+                + "caf\\u233? con \\{llaves\\}}";
+        String text = extract(rtf.getBytes(LATIN_1), "acta.rtf");
+        assertEquals(Arrays.asList("Reunión", "del", "lunes", "café", "con", "{llaves}"), Arrays.asList(text.trim().split("\\s+")));
+    }
+
+    @Test
+    public void wordDocumentTextIsReadFromTheZip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("word/styles.xml"));
+            zip.write("<w:styles>estilos</w:styles>".getBytes(UTF_8));
+            zip.putNextEntry(new ZipEntry("word/document.xml"));
+            zip.write("<w:body><w:t>acta</w:t><w:t>reunión</w:t></w:body>".getBytes(UTF_8));
+        }
+        String text = extract(bytes.toByteArray(), "acta.docx");
+        assertEquals(Arrays.asList("acta", "reunión"), Arrays.asList(text.trim().split("\\s+")));
+    }
+
+    /**
+     * Se leen los operadores de texto de las páginas, comprimidas o no; las fuentes y las
+     * imágenes se saltan
+     */
+    @Test
+    public void pdfPageTextIsExtracted() throws IOException {
+        byte[] page = "BT /F1 12 Tf (Factura) Tj 0 -14 Td [(impor) -10 (te) -250 (total)] TJ (caf\\351) Tj ET".getBytes(LATIN_1);
+        byte[] pdf = pdf(
+                stream("<< /Length %d /Length1 5 >>", "(fuente) Tj".getBytes(LATIN_1)),
+                stream("<< /Length %d /Filter /FlateDecode >>", deflate(page)),
+                stream("<< /Type /XObject /Subtype /Image /Length %d >>", "(imagen) Tj".getBytes(LATIN_1)));
+        String text = extract(pdf, "factura.pdf");
+
+        assertTrue(text, text.contains("Factura"));
+        assertTrue(text, text.contains("importe total"));
+        assertTrue(text, text.contains("café"));
+        assertFalse(text, text.contains("fuente"));
+        assertFalse(text, text.contains("imagen"));
+    }
+
+    /**
+     * Con la longitud en otro objeto se busca el final del stream
+     */
+    @Test
+    public void pdfStreamWithIndirectLengthIsExtracted() throws IOException {
+        byte[] pdf = pdf(stream("<< /Length 9 0 R >>", "(indirecta) Tj".getBytes(LATIN_1)));
+        assertTrue(extract(pdf, "a.pdf").contains("indirecta"));
+    }
+
+    /**
+     * Los documentos grandes se procesan en streaming: se leen sin cargarlos enteros y la página
+     * tras una imagen de varios MB se encuentra igual
+     */
+    @Test
+    public void largePdfIsStreamed() throws IOException {
+        byte[] image = new byte[3 * 1024 * 1024];
+        Arrays.fill(image, (byte) 'x');
+        byte[] pdf = pdf(
+                stream("<< /Subtype /Image /Length %d >>", image),
+                stream("<< /Length %d >>", "(final) Tj".getBytes(LATIN_1)));
+        assertTrue(pdf.length > TextExtractor.STREAMING_THRESHOLD);
+
+        CountingStream in = new CountingStream(pdf);
+        StringBuilder out = new StringBuilder();
+        TextExtractor.extract(in, "grande.pdf", pdf.length, out);
+        assertTrue(out.toString().contains("final"));
+        assertTrue(in.largestRead < TextExtractor.STREAMING_THRESHOLD);
+
+        // Sin tamaño conocido también se procesa en streaming
+        out.setLength(0);
+        TextExtractor.extract(new ByteArrayInputStream(pdf), "grande.pdf", -1, out);
+        assertTrue(out.toString().contains("final"));
+    }
+
+    @Test
+    public void extractedTextIsCutAtTheLimit() throws IOException {
+        byte[] text = new byte[TextExtractor.MAX_CHARS + 10000];
+        Arrays.fill(text, (byte) 'a');
+        StringBuilder out = new StringBuilder();
+        TextExtractor.extract(new ByteArrayInputStream(text), "largo.txt", text.length, out);
+        assertEquals(TextExtractor.MAX_CHARS, out.length());
+
+        StringBuilder content = new StringBuilder("BT ");
+        for (int i = 0; i < TextExtractor.MAX_CHARS / 1000 + 10; i++) {
+            content.append('(');
+            for (int j = 0; j < 1000; j++) content.append('p');
+            content.append(") Tj ");
+        }
+        content.append("ET");
+        byte[] pdf = pdf(stream("<< /Length %d /Filter /FlateDecode >>", deflate(content.toString().getBytes(LATIN_1))));
+        out.setLength(0);
+        TextExtractor.extract(new ByteArrayInputStream(pdf), "largo.pdf", pdf.length, out);
+        assertEquals(TextExtractor.MAX_CHARS, out.length());
+    }
+
+    private static String extract(byte[] content, String name) throws IOException {
+        StringBuilder out = new StringBuilder();
+        TextExtractor.extract(new ByteArrayInputStream(content), name, content.length, out);
+        return out.toString();
+    }
+
+    /**
+     * Metodo para montar un PDF mínimo con un objeto por stream
+     */
+    private static byte[] pdf(byte[]... objects) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("%PDF-1.4\n".getBytes(LATIN_1));
+        for (int i = 0; i < objects.length; i++) {
+            out.write((i + 1 + " 0 obj\n").getBytes(LATIN_1));
+            out.write(objects[i]);
+            out.write("\nendobj\n".getBytes(LATIN_1));
+        }
+        out.write("trailer\n<< /Root 1 0 R >>\n%%EOF\n".getBytes(LATIN_1));
+        return out.toByteArray();
+    }
+
+    private static byte[] stream(String dictionary, byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(String.format(dictionary, data.length).getBytes(LATIN_1));
+        out.write("\nstream\n".getBytes(LATIN_1));
+        out.write(data);
+        out.write("\nendstream".getBytes(LATIN_1));
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Stream que recuerda la lectura más grande que se le ha pedido
+     */
+    private static class CountingStream extends ByteArrayInputStream {
+        int largestRead;
+
+        CountingStream(byte[] data) { super(data); }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            largestRead = Math.max(largestRead, length);
+            return super.read(buffer, offset, length);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
+    }
+}